@@ -60,14 +60,32 @@ class DbItemComponent extends React.Component {
     this.props.onClick(this.props.idx, this.props.name);
   }
 
+  formatBytes(bytes) {
+    const units = ['B', 'KB', 'MB', 'GB', 'TB'];
+    let value = bytes;
+    let unit = 0;
+    while (value >= 1024 && unit < units.length - 1) {
+      value = value / 1024;
+      unit++;
+    }
+    return (unit === 0 ? value : value.toFixed(1)) + ' ' + units[unit];
+  }
+
   render () {
+    const stats = this.props.stats;
+    const size = stats && typeof(stats.sizeOnDisk) != 'undefined' ? stats.sizeOnDisk : (stats ? stats.storageSize : undefined);
+    let title = this.props.name;
+    if (stats && typeof(stats.objects) != 'undefined') {
+      title += '\n' + stats.objects + ' objects, data ' + this.formatBytes(stats.dataSize) + ', indexes ' + this.formatBytes(stats.indexSize);
+    }
     return (
       <div onClick={this.onClick} value={this.props.name} className={(this.props.isSelected ? dbListStyles.menuItem + ' ' + dbListStyles.highlight : dbListStyles.menuItem)} key={this.props.name} >
           <span className={dbListStyles.dbIcon}>
             <i className="fa fa-database" aria-hidden="true"></i>
           </span>
-          <span id="toolTipDb" className={dbListStyles.content} title = {this.props.name}>{this.props.name}</span>
+          <span id="toolTipDb" className={dbListStyles.content} title = {title}>{this.props.name}</span>
           <i className={'fa fa-trash ' + dbListStyles.removeIcon} aria-hidden="true" onClick={this.openModal}></i>
+          {typeof(size) != 'undefined' ? <span className={dbListStyles.dbSize}>{this.formatBytes(size)}</span> : ''}
         {this.state.modalIsOpen ? ( !this.state.showAuth ? <DeleteComponent modalIsOpen={this.state.modalIsOpen} closeModal={this.closeModal} title = 'database' dbName = {this.props.name} connectionId={this.props.connectionId} ></DeleteComponent> : <AuthPopUp modalIsOpen = {this.state.showAuth} authClose = {this.authClose} action = 'drop database' ></AuthPopUp>) : ''}
       </div>
     );
@@ -81,6 +99,7 @@ DbItemComponent.propTypes = {
   onClick : React.PropTypes.func.isRequired,
   isSelected : React.PropTypes.bool,
   name : React.PropTypes.string,
+  stats : React.PropTypes.object,
   refreshDbList : React.PropTypes.func,
   idx : React.PropTypes.number,
   connectionId : React.PropTypes.string
@@ -19,6 +19,7 @@ class DbListComponent extends React.Component {
       dbNames : [],
       connectionId : this.props.propps.connectionId,
       dbStats : {},
+      dbSizes : {},
       visible : true,
       selectedItem : null,
       selectedDb : this.props.propps.propss.location.query.db,
@@ -101,6 +102,19 @@ class DbListComponent extends React.Component {
     refreshDbCall.then(this.success.bind(this, 'componentDidMount', ''), this.failure.bind(this, 'componentDidMount', ''));
   }
 
+  loadDbSizes() {
+    let partialUrl = 'stats/databases?connectionId=' + this.state.connectionId;
+    service('GET', partialUrl, '').then((data) => {
+      if (data.response.result) {
+        let dbSizes = {};
+        data.response.result.databases.forEach((db) => {
+          dbSizes[db.name] = db;
+        });
+        this.setState({dbSizes : dbSizes});
+      }
+    }, () => {});
+  }
+
   setViewMore(height) {
     var dbListHeight = $('.dbContainer').height();
     var listContainerHeight = height;
@@ -189,6 +203,7 @@ class DbListComponent extends React.Component {
         let result = data.response.result;
         this.setState({dbNames : result.dbNames});
         sessionStorage.setItem('dbNames', JSON.stringify(this.state.dbNames));
+        this.loadDbSizes();
         if (result.rolesAndPrivileges) {
           privilegesAPI.setRoles(result.rolesAndPrivileges.documents[0].users[0]);
         } else{
@@ -205,6 +220,7 @@ class DbListComponent extends React.Component {
       if (typeof(data.response.result) != 'undefined') {
         this.setState({dbNames : data.response.result.dbNames});
         sessionStorage.setItem('dbNames', JSON.stringify(data.response.result.dbNames));
+        this.loadDbSizes();
       } else {
         browserHistory.push({ pathname : '/index.html', query : { code : 'INVALID_CONNECTION'} });
       }
@@ -278,6 +294,7 @@ class DbListComponent extends React.Component {
                        key={item}
                        idx={idx}
                        name={item}
+                       stats={this.state.dbSizes[item]}
                        onClick={this.clickHandler}
                        isSelected={this.state.selectedDb === item}
                        connectionId = {this.state.connectionId}
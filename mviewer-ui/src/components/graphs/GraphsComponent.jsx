@@ -2,7 +2,7 @@ import React from 'react';
 import { Tab, Tabs, TabList, TabPanel } from 'react-tabs';
 import { ResponsiveContainer, LineChart, Line, XAxis, YAxis,
    Tooltip, CartesianGrid, Legend, Brush } from 'recharts';
-import service from '../../gateway/service.js';
+import service, { serviceUrl } from '../../gateway/service.js';
 import graphStyles from './graphs.css';
 
 class GraphsComponent extends React.Component {
@@ -12,6 +12,7 @@ class GraphsComponent extends React.Component {
       data : [],
       selectedTab : 0,
       interval : 0,
+      eventSource : null,
       error : false,
       connectionId : JSON.parse(sessionStorage.getItem('connectionId') || '{}'),
       hasRole : null,
@@ -40,7 +41,54 @@ class GraphsComponent extends React.Component {
     const graphsInitialCall = service('GET', partialUrl1, '');
     graphsInitialCall.then(this.success1.bind(this), this.failure1.bind(this));
 
-    requestTime = new Date().getTime().toString();
+    if (typeof(window.EventSource) !== 'undefined') {
+      this.startStream();
+    } else {
+      this.startPolling();
+    }
+  }
+
+  startStream() {
+    // Samples are pushed over one connection, the browser reconnects by itself after a drop
+    const url = serviceUrl('graphs/stream?connectionId=' + this.state.connectionId + '&series=opcounters');
+    const eventSource = new window.EventSource(url);
+    let startTime = null;
+    eventSource.addEventListener('sample', function(e) {
+      const sample = JSON.parse(e.data);
+      if (startTime === null) {
+        startTime = sample.timestamp;
+      }
+      const point = {
+        TimeStamp : sample.timestamp - startTime,
+        QueryValue : sample.values['opcounters.query'],
+        InsertValue : sample.values['opcounters.insert'],
+        UpdateValue : sample.values['opcounters.update'],
+        DeleteValue : sample.values['opcounters.delete']
+      };
+      this.setState({data : this.state.data.concat([point]).slice(-20), hasRole : true});
+    }.bind(this));
+    eventSource.onerror = function(e) {
+      if (e.data) {
+        // Sampling fails on the server, like without the clusterMonitor role
+        const error = JSON.parse(e.data);
+        eventSource.close();
+        this.setState({eventSource : null});
+        if (error.message.indexOf('not authorized on') === -1) {
+          this.startPolling();
+        } else {
+          this.setState({hasRole : false});
+        }
+      } else if (eventSource.readyState === window.EventSource.CLOSED) {
+        // Refused outright (invalid connection), let the polled request report why
+        this.setState({eventSource : null});
+        this.startPolling();
+      }
+    }.bind(this);
+    this.setState({eventSource : eventSource});
+  }
+
+  startPolling() {
+    const requestTime = new Date().getTime().toString();
     const partialUrl = 'graphs/query?connectionId=' + this.state.connectionId + '&ts=' + requestTime;
     const interval = setInterval (function () {
       const graphsCall = service('GET', partialUrl, '');
@@ -52,6 +100,9 @@ class GraphsComponent extends React.Component {
 
   componentWillUnmount() {
     clearInterval(this.state.interval);
+    if (this.state.eventSource !== null) {
+      this.state.eventSource.close();
+    }
   }
 
   success(data) {
@@ -60,4 +60,8 @@ function service(typex, serviceName, req, component, data) {
 }
 
 
+export function serviceUrl(serviceName) {
+  return path + serviceName;
+}
+
 export default service;
@@ -13,8 +13,12 @@ package com.imaginea.mongodb.controllers;
 
 import com.imaginea.mongodb.exceptions.*;
 import com.imaginea.mongodb.services.AuthService;
+import com.imaginea.mongodb.services.ServiceProvider;
 import com.imaginea.mongodb.services.impl.AuthServiceImpl;
 import com.imaginea.mongodb.utils.ApplicationUtils;
+import com.imaginea.mongodb.utils.ConcurrencyLimiter;
+import com.imaginea.mongodb.utils.RequestMetrics;
+import com.imaginea.mongodb.utils.RequestTimings;
 import com.mongodb.util.JSONParseException;
 import org.apache.log4j.Logger;
 import org.json.JSONArray;
@@ -23,7 +27,12 @@ import org.json.JSONObject;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.util.Collections;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Defines validation functions for validating dbInfo from session. An error JSON object is returned
@@ -42,6 +51,41 @@ public class BaseController {
     GET, POST, PUT, DELETE
   }
 
+  /**
+   * Name of the session attribute holding the ids of the connections opened in the session.
+   */
+  protected static final String CONNECTION_IDS_IN_SESSION = "existingConnectionIdsInSession";
+
+  /**
+   * Remembers a connection opened at login in the HTTP session of the user.
+   *
+   * @param connectionId Connection returned by the login
+   * @param request Login request
+   */
+  protected static void addConnectionIdToSession(String connectionId, HttpServletRequest request) {
+    if (connectionId == null || request == null) {
+      return;
+    }
+    HttpSession session = request.getSession();
+    synchronized (session) {
+      Set<String> connectionIds = getConnectionIdsInSession(request);
+      if (connectionIds == null) {
+        connectionIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        session.setAttribute(CONNECTION_IDS_IN_SESSION, connectionIds);
+      }
+      connectionIds.add(connectionId);
+    }
+  }
+
+  /**
+   * @return Ids of the connections opened in the session of the request, null when there are none
+   */
+  @SuppressWarnings("unchecked")
+  protected static Set<String> getConnectionIdsInSession(HttpServletRequest request) {
+    HttpSession session = request.getSession(false);
+    return session == null ? null : (Set<String>) session.getAttribute(CONNECTION_IDS_IN_SESSION);
+  }
+
   /**
    * Validates connectionId with the connectionId Array present in session.
    *
@@ -82,6 +126,7 @@ public class BaseController {
       error.put("code", e.getErrorCode());
       error.put("message", e.getMessage());
       logger.error(error, e);
+      RequestMetrics.getInstance().recordError(e.getErrorCode());
 
       JSONObject tempResponse = new JSONObject();
       tempResponse.put("error", error);
@@ -114,7 +159,10 @@ public class BaseController {
           try {
             tempResult.put("result", dispatcherResponse);
             jsonResponse.put("response", tempResult);
+            long begin = RequestTimings.begin();
             response = ApplicationUtils.serializeToJSON(jsonResponse);
+            RequestTimings.end(RequestTimings.SERIALIZE, begin);
+            response = appendDebugBlock(response);
           } catch (JSONException e) {
             logger.error(e);
             response = "{\"code\":" + "\"" + ErrorCodes.JSON_EXCEPTION + "\","
@@ -154,8 +202,32 @@ public class BaseController {
     }
   }
 
+  /**
+   * Adds the phase timings of the request to its JSON response when they were asked for.
+   */
+  private static String appendDebugBlock(String response) throws JSONException {
+    RequestTimings timings = RequestTimings.current();
+    if (timings == null || !timings.isDebug() || response == null) {
+      return response;
+    }
+    int end = response.lastIndexOf('}');
+    if (end < 0) {
+      return response;
+    }
+    JSONObject debug = new JSONObject();
+    debug.put("timings", timings.toJSON());
+    return response.substring(0, end) + ",\"debug\":" + debug.toString() + "}";
+  }
+
+  /**
+   * Validates the connection and runs the callback within the concurrency limits of
+   * {@link ConcurrencyLimiter}. When the limits are reached the request fails fast with HTTP 429
+   * and a TOO_MANY_REQUESTS error instead of waiting for a servlet thread.
+   */
   protected static class ResponseTemplate {
 
+    private static final ConcurrencyLimiter limiter = ConcurrencyLimiter.getInstance();
+
     public String execute(Logger logger, String connectionId, HttpServletRequest request,
         ResponseCallback callback) {
       return execute(logger, connectionId, request, callback, true);
@@ -168,7 +240,21 @@ public class BaseController {
       if (response != null) {
         return response;
       }
-      return ErrorTemplate.execute(logger, callback, wrapResult);
+      ConcurrencyLimiter.Permit permit;
+      long begin = RequestTimings.begin();
+      try {
+        // Only open connections get permits of their own, so made up ids cannot grow the limiter
+        permit = limiter.acquire(ServiceProvider.isOpen(connectionId) ? connectionId : null);
+        RequestTimings.end(RequestTimings.QUEUE, begin);
+      } catch (ApplicationException e) {
+        throw new WebApplicationException(Response.status(429).header("Retry-After", "1")
+            .type(MediaType.APPLICATION_JSON).entity(formErrorResponse(logger, e)).build());
+      }
+      try {
+        return ErrorTemplate.execute(logger, callback, wrapResult);
+      } finally {
+        permit.release();
+      }
     }
   }
 
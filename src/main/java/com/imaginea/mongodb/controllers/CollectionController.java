@@ -27,7 +27,7 @@ import javax.ws.rs.core.MediaType;
 import org.apache.log4j.Logger;
 
 import com.imaginea.mongodb.services.CollectionService;
-import com.imaginea.mongodb.services.impl.CollectionServiceImpl;
+import com.imaginea.mongodb.services.ServiceProvider;
 
 import io.swagger.annotations.Api;
 
@@ -73,7 +73,8 @@ public class CollectionController extends BaseController {
         new ResponseTemplate().execute(logger, connectionId, request, new ResponseCallback() {
           public Object execute() throws Exception {
 
-            CollectionService collectionService = new CollectionServiceImpl(connectionId);
+            CollectionService collectionService =
+                ServiceProvider.getServiceContext(connectionId).getCollectionService();
 
             return collectionService.isCappedCollection(dbName, selectedCollection);
           }
@@ -100,7 +101,8 @@ public class CollectionController extends BaseController {
     String response =
         new ResponseTemplate().execute(logger, connectionId, request, new ResponseCallback() {
           public Object execute() throws Exception {
-            CollectionService collectionService = new CollectionServiceImpl(connectionId);
+            CollectionService collectionService =
+                ServiceProvider.getServiceContext(connectionId).getCollectionService();
             return collectionService.getCollList(dbName);
           }
         });
@@ -137,7 +139,8 @@ public class CollectionController extends BaseController {
     String response =
         new ResponseTemplate().execute(logger, connectionId, request, new ResponseCallback() {
           public Object execute() throws Exception {
-            CollectionService collectionService = new CollectionServiceImpl(connectionId);
+            CollectionService collectionService =
+                ServiceProvider.getServiceContext(connectionId).getCollectionService();
             String status = null;
             status = collectionService.insertCollection(dbName, newCollName,
                 (isCapped != null && isCapped.equals("on")), capSize, maxDocs,
@@ -163,7 +166,8 @@ public class CollectionController extends BaseController {
     String response =
         new ResponseTemplate().execute(logger, connectionId, request, new ResponseCallback() {
           public Object execute() throws Exception {
-            CollectionService collectionService = new CollectionServiceImpl(connectionId);
+            CollectionService collectionService =
+                ServiceProvider.getServiceContext(connectionId).getCollectionService();
             String status = null;
 
             status = collectionService.updateCollection(dbName, selectedCollection, newCollName,
@@ -186,7 +190,8 @@ public class CollectionController extends BaseController {
     String response =
         new ResponseTemplate().execute(logger, connectionId, request, new ResponseCallback() {
           public Object execute() throws Exception {
-            CollectionService collectionService = new CollectionServiceImpl(connectionId);
+            CollectionService collectionService =
+                ServiceProvider.getServiceContext(connectionId).getCollectionService();
 
             String status = null;
             status = collectionService.deleteCollection(dbName, selectedCollection);
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.controllers;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.DELETE;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+
+import org.apache.log4j.Logger;
+
+import com.imaginea.mongodb.services.ServiceProvider;
+import com.imaginea.mongodb.services.impl.CurrentOpPoller;
+
+import io.swagger.annotations.Api;
+
+/**
+ * Defines resources for watching the operations in progress on the server of a connection and
+ * killing them. The operations are polled in the background by the {@link CurrentOpPoller} of the
+ * connection, which all viewers of the connection share.
+ */
+@Path("/currentOps")
+@Api(value = "/currentOps", description = "MongoDB Current Operations Controller")
+public class CurrentOperationsController extends BaseController {
+  private final static Logger logger = Logger.getLogger(CurrentOperationsController.class);
+
+  /**
+   * Lists the operations in progress.
+   *
+   * @param connectionId Mongo Db Configuration provided by user to connect to.
+   * @param since Number of the last snapshot seen, operations started after it are flagged new and
+   *        the operations finished after it are listed
+   * @param namespace Database or collection namespace to restrict the operations to
+   * @param minDuration Minimum milliseconds the operations have been running
+   * @param opTypes Comma separated operation types, like <query,update,command>
+   * @param request Get the HTTP request context to extract session parameters
+   * @return Running and finished operations of the latest snapshot
+   */
+  @GET
+  @Produces(MediaType.APPLICATION_JSON)
+  public String getCurrentOperations(@QueryParam("connectionId") final String connectionId,
+      @QueryParam("since") final long since, @QueryParam("ns") final String namespace,
+      @QueryParam("minDuration") final long minDuration, @QueryParam("op") final String opTypes,
+      @Context final HttpServletRequest request) {
+
+    String response =
+        new ResponseTemplate().execute(logger, connectionId, request, new ResponseCallback() {
+          public Object execute() throws Exception {
+            CurrentOpPoller poller =
+                ServiceProvider.getServiceContext(connectionId).getCurrentOpPoller();
+            poller.start();
+            Set<String> types = new HashSet<String>();
+            if (opTypes != null) {
+              for (String type : opTypes.split(",")) {
+                if (!type.trim().isEmpty()) {
+                  types.add(type.trim());
+                }
+              }
+            }
+            return poller.getOperations(since, namespace, minDuration, types);
+          }
+        });
+    return response;
+  }
+
+  /**
+   * Kills an operation. The user of the connection needs the <killop> privilege.
+   *
+   * @param connectionId Mongo Db Configuration provided by user to connect to.
+   * @param opid Id of the operation
+   * @param request Get the HTTP request context to extract session parameters
+   * @return Reply of the server
+   */
+  @DELETE
+  @Path("/{opid}")
+  @Produces(MediaType.APPLICATION_JSON)
+  public String killOperation(@QueryParam("connectionId") final String connectionId,
+      @PathParam("opid") final String opid, @Context final HttpServletRequest request) {
+
+    String response =
+        new ResponseTemplate().execute(logger, connectionId, request, new ResponseCallback() {
+          public Object execute() throws Exception {
+            logger.info("Killing operation " + opid + " of connection " + connectionId);
+            return ServiceProvider.getServiceContext(connectionId).getCurrentOpPoller()
+                .killOp(opid);
+          }
+        });
+    return response;
+  }
+}
@@ -33,8 +33,7 @@ import com.imaginea.mongodb.exceptions.ErrorCodes;
 import com.imaginea.mongodb.exceptions.InvalidMongoCommandException;
 import com.imaginea.mongodb.services.DatabaseService;
 import com.imaginea.mongodb.services.GridFSService;
-import com.imaginea.mongodb.services.impl.DatabaseServiceImpl;
-import com.imaginea.mongodb.services.impl.GridFSServiceImpl;
+import com.imaginea.mongodb.services.ServiceProvider;
 
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
@@ -77,7 +76,8 @@ public class DatabaseController extends BaseController {
                 new ResponseTemplate().execute(logger, connectionId, request, new ResponseCallback() {
                     public Object execute() throws Exception {
                         // TODO Using Service Provider
-                        DatabaseService databaseService = new DatabaseServiceImpl(connectionId);
+                        DatabaseService databaseService =
+                                ServiceProvider.getServiceContext(connectionId).getDatabaseService();
                         return databaseService.getDbList();
                     }
                 });
@@ -109,7 +109,8 @@ public class DatabaseController extends BaseController {
         String response =
                 new ResponseTemplate().execute(logger, connectionId, request, new ResponseCallback() {
                     public Object execute() throws Exception {
-                        DatabaseService databaseService = new DatabaseServiceImpl(connectionId);
+                        DatabaseService databaseService =
+                                ServiceProvider.getServiceContext(connectionId).getDatabaseService();
                         String status = null;
                         status = databaseService.createDb(dbName);
                         return status;
@@ -129,7 +130,8 @@ public class DatabaseController extends BaseController {
         String response =
                 new ResponseTemplate().execute(logger, connectionId, request, new ResponseCallback() {
                     public Object execute() throws Exception {
-                        DatabaseService databaseService = new DatabaseServiceImpl(connectionId);
+                        DatabaseService databaseService =
+                                ServiceProvider.getServiceContext(connectionId).getDatabaseService();
                         String status = null;
                         status = databaseService.dropDb(dbName);
                         return status;
@@ -177,7 +179,8 @@ public class DatabaseController extends BaseController {
                             throw new InvalidMongoCommandException(ErrorCodes.COMMAND_EMPTY, "Command is empty");
                         }
                         String command = cmdStr.substring(lastIndexOfDot + 1, cmdStr.length());
-                        DatabaseService databaseService = new DatabaseServiceImpl(connectionId);
+                        DatabaseService databaseService =
+                                ServiceProvider.getServiceContext(connectionId).getDatabaseService();
                         int docsLimit = Integer.parseInt(queryData.getLimit());
                         int docsSkip = Integer.parseInt(queryData.getSkip());
                         String jsonStr = queryData.getQuery().substring(startIndex + 1, endIndex);
@@ -215,7 +218,8 @@ public class DatabaseController extends BaseController {
                             throw new InvalidMongoCommandException(ErrorCodes.COMMAND_EMPTY, "Command is empty");
                         }
                         String command = cmdStr.substring(lastIndexOfDot + 1, cmdStr.length());
-                        DatabaseService databaseService = new DatabaseServiceImpl(connectionId);
+                        DatabaseService databaseService =
+                                ServiceProvider.getServiceContext(connectionId).getDatabaseService();
                         int docsLimit = Integer.parseInt(queryData.getLimit());
                         int docsSkip = Integer.parseInt(queryData.getSkip());
                         String jsonStr = queryData.getQuery().substring(startIndex + 1, endIndex);
@@ -34,14 +34,15 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import com.imaginea.mongodb.domain.DocumentUserQueryData;
+import com.imaginea.mongodb.domain.MongoConnectionDetails;
 import com.imaginea.mongodb.exceptions.ApplicationException;
 import com.imaginea.mongodb.exceptions.DocumentException;
 import com.imaginea.mongodb.exceptions.ErrorCodes;
 import com.imaginea.mongodb.exceptions.InvalidMongoCommandException;
 import com.imaginea.mongodb.services.DocumentService;
-import com.imaginea.mongodb.services.impl.DocumentServiceImpl;
-import com.mongodb.MongoClient;
+import com.imaginea.mongodb.services.ServiceProvider;
 import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
 
 import io.swagger.annotations.Api;
@@ -92,7 +93,8 @@ public class DocumentController extends BaseController {
     String response =
         new ResponseTemplate().execute(logger, connectionId, request, new ResponseCallback() {
           public Object execute() throws Exception {
-            DocumentService documentService = new DocumentServiceImpl(connectionId);
+            DocumentService documentService =
+                ServiceProvider.getServiceContext(connectionId).getDocumentService();
             // Get query
             int startIndex = query.indexOf("("), endIndex = query.lastIndexOf(")");
             if (startIndex == -1 || endIndex == -1) {
@@ -133,7 +135,8 @@ public class DocumentController extends BaseController {
     String response =
         new ResponseTemplate().execute(logger, connectionId, request, new ResponseCallback() {
           public Object execute() throws Exception {
-            DocumentService documentService = new DocumentServiceImpl(connectionId);
+            DocumentService documentService =
+                ServiceProvider.getServiceContext(connectionId).getDocumentService();
             // Get query
             int startIndex = queryData.getQuery().indexOf("("),
                 endIndex = queryData.getQuery().lastIndexOf(")");
@@ -190,11 +193,14 @@ public class DocumentController extends BaseController {
         new ResponseTemplate().execute(logger, connectionId, request, new ResponseCallback() {
           public Object execute() throws Exception {
             // Perform the operation here only.
-            MongoClient mongoInstance = authService.getMongoInstance(connectionId);
-
-            long count = mongoInstance.getDatabase(dbName).getCollection(collectionName).count();
-            FindIterable<Document> findIterable =
-                mongoInstance.getDatabase(dbName).getCollection(collectionName).find();
+            MongoConnectionDetails mongoConnectionDetails =
+                authService.getMongoConnectionDetails(connectionId);
+            MongoCollection<Document> collection = mongoConnectionDetails.getMongo()
+                .getDatabase(dbName).getCollection(collectionName)
+                .withReadPreference(mongoConnectionDetails.getReadPreference());
+
+            long count = collection.count();
+            FindIterable<Document> findIterable = collection.find();
             if (!allKeys) {
               findIterable.limit(10);
             }
@@ -260,7 +266,8 @@ public class DocumentController extends BaseController {
         new ResponseTemplate().execute(logger, connectionId, request, new ResponseCallback() {
           public Object execute() throws Exception {
 
-            DocumentService documentService = new DocumentServiceImpl(connectionId);
+            DocumentService documentService =
+                ServiceProvider.getServiceContext(connectionId).getDocumentService();
             JSONObject resultJSON = new JSONObject();
             String result = null;
             if ("".equals(documentData)) {
@@ -306,7 +313,8 @@ public class DocumentController extends BaseController {
         new ResponseTemplate().execute(logger, connectionId, request, new ResponseCallback() {
           public Object execute() throws Exception {
 
-            DocumentService documentService = new DocumentServiceImpl(connectionId);
+            DocumentService documentService =
+                ServiceProvider.getServiceContext(connectionId).getDocumentService();
             JSONObject resultJSON = new JSONObject();
             String result = null;
 
@@ -358,7 +366,8 @@ public class DocumentController extends BaseController {
         new ResponseTemplate().execute(logger, connectionId, request, new ResponseCallback() {
           public Object execute() throws Exception {
 
-            DocumentService documentService = new DocumentServiceImpl(connectionId);
+            DocumentService documentService =
+                ServiceProvider.getServiceContext(connectionId).getDocumentService();
             JSONObject resultJSON = new JSONObject();
             String result = null;
 
@@ -12,31 +12,45 @@
 package com.imaginea.mongodb.controllers;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
 import org.apache.log4j.Logger;
-import org.bson.Document;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import com.imaginea.mongodb.exceptions.ApplicationException;
 import com.imaginea.mongodb.exceptions.ErrorCodes;
-import com.imaginea.mongodb.services.AuthService;
-import com.imaginea.mongodb.services.impl.AuthServiceImpl;
-import com.mongodb.MongoClient;
-import com.mongodb.client.MongoDatabase;
+import com.imaginea.mongodb.services.ServiceProvider;
+import com.imaginea.mongodb.services.impl.ServerStatusSampler;
+import com.imaginea.mongodb.utils.ConfigurationUtils;
+import com.imaginea.mongodb.utils.MetricsStore;
 
 import io.swagger.annotations.Api;
 
 /**
- * Return values of queries,updates,inserts and deletes being performed on Mongo Db per sec.
+ * Return values of queries,updates,inserts and deletes being performed on Mongo Db per sec. The
+ * values are sampled in the background by the {@link ServerStatusSampler} of the connection, the
+ * requests only read the latest samples.
+ * <p/>
+ * Besides the polled <query> request, samples are pushed as Server-Sent Events over <stream>, or
+ * handed out by the long polling <poll> request to clients without EventSource. Older samples are
+ * read back from the {@link MetricsStore} of the server by <history>.
  *
  * @author Aditya Gaur, Rachit Mittal
  */
@@ -46,25 +60,27 @@ import io.swagger.annotations.Api;
 public class GraphController extends BaseController {
   private static final long serialVersionUID = -1539358875210511143L;
 
-  private static JSONArray array;
-  private static int num = 0;
-
-  // TODO For multiple users - static variable do not work. So static variable
-  // per mongoHost
-  /**
-   * Keep the record of last values.
-   */
-  private static int lastNoOfQueries = 0;
-  private static int lastNoOfInserts = 0;
-  private static int lastNoOfUpdates = 0;
-  private static int lastNoOfDeletes = 0;
-  private int maxLen = 20;
-  private int jump = 1;
-
-  private AuthService authService = AuthServiceImpl.getInstance();
+  private static final int DEFAULT_SAMPLES = 20;
+  private static final long KEEP_ALIVE_INTERVAL = 15 * 1000;
+  private static final long MAX_POLL_TIMEOUT = 30 * 1000;
+  private static final String[] LEGACY_SERIES = {"opcounters.query", "opcounters.insert",
+      "opcounters.update", "opcounters.delete"};
+  private static final String[] LEGACY_KEYS = {"QueryValue", "InsertValue", "UpdateValue",
+      "DeleteValue"};
 
   private static Logger logger = Logger.getLogger(GraphController.class);
 
+  private static final String GRAPHS_MAX_STREAMS = "GRAPHS_MAX_STREAMS";
+  private static final String GRAPHS_MAX_STREAMS_PER_CONNECTION =
+      "GRAPHS_MAX_STREAMS_PER_CONNECTION";
+  private static final int MAX_STREAMS_PER_CONNECTION =
+      Math.max(1, ConfigurationUtils.getInt(GRAPHS_MAX_STREAMS_PER_CONNECTION, 2));
+  private static final Semaphore streamSlots =
+      new Semaphore(Math.max(1, ConfigurationUtils.getInt(GRAPHS_MAX_STREAMS, 16)));
+  private static final String GRAPHS_MAX_POLLS = "GRAPHS_MAX_POLLS";
+  private static final Semaphore pollSlots =
+      new Semaphore(Math.max(1, ConfigurationUtils.getInt(GRAPHS_MAX_POLLS, 32)));
+
 
   @GET
   @Path("/initiate")
@@ -76,18 +92,19 @@ public class GraphController extends BaseController {
     String result =
         new ResponseTemplate().execute(logger, connectionId, request, new ResponseCallback() {
           public Object execute() throws Exception {
-            MongoClient mongoInstance = authService.getMongoInstance(connectionId);
-            // Need a Db to get ServerStats
-            MongoDatabase db = mongoInstance.getDatabase("admin");
-
-
-            Object result = null;
+            Long interval = null;
             if (pollingTime != null) {
-              jump = Integer.parseInt(pollingTime);
+              try {
+                interval = Long.parseLong(pollingTime);
+              } catch (NumberFormatException e) {
+                throw new ApplicationException(ErrorCodes.INVALID_ARGUMENT,
+                    "Polling time should be a number of milliseconds");
+              }
             }
-            result = processInitiate(db);
-
-            return result;
+            getSampler(connectionId).start(interval);
+            JSONObject respObj = new JSONObject();
+            respObj.put("result", "Initiated");
+            return respObj;
           }
         });
     return result;
@@ -99,18 +116,18 @@ public class GraphController extends BaseController {
   @Path("/query")
   @Produces(MediaType.APPLICATION_JSON)
   public String queryGraphsRequest(@QueryParam("connectionId") final String connectionId,
-      @Context final HttpServletRequest request) throws IOException {
+      @QueryParam("limit") final int limit, @Context final HttpServletRequest request)
+      throws IOException {
 
     String result =
         new ResponseTemplate().execute(logger, connectionId, request, new ResponseCallback() {
           public Object execute() throws Exception {
-            MongoClient mongoInstance = authService.getMongoInstance(connectionId);
-            // Need a Db to get ServerStats
-            MongoDatabase db = mongoInstance.getDatabase("admin");
-
-            Object result = null;
-            result = processQuery(db);
-            return result;
+            ServerStatusSampler sampler = getSampler(connectionId);
+            if (!sampler.isRunning()) {
+              // Stopped after being idle or never initiated, pick up where the page left off
+              sampler.start(null);
+            }
+            return sampler.getSamples(limit > 0 ? limit : DEFAULT_SAMPLES);
           }
         });
     return result;
@@ -118,81 +135,322 @@ public class GraphController extends BaseController {
   }
 
   /**
-   * Process <opcounters> query request made after each second by Front end
+   * Streams the samples of a connection as Server-Sent Events. Each sample is one <sample> event
+   * whose id is its sequence number, carrying all the subscribed series, so a reconnecting
+   * EventSource resumes after the last sample it got. As long as sampling fails without a single
+   * sample taken, like without the clusterMonitor role, an <error> event tells why and the stream
+   * ends.
+   * <p/>
+   * The stream holds no request slot of the connection while it waits for samples, but it does
+   * hold a servlet thread, so the streams are capped per connection and overall. Clients turned
+   * away get HTTP 429 and fall back to polling <query>.
    *
-   * @param db : Db Name to egt Server Stats <admin>
-   * @return Server stats of <opcounters> key
-   * @throws IOException
-   * @throws JSONException
+   * @param connectionId Mongo Db Configuration provided by user to connect to.
+   * @param series Comma separated prefixes of the series to send, like <opcounters,connections>.
+   *        All series are sent when absent. The names are listed by <series>.
+   * @param lastEventId Sequence number of the last sample received before reconnecting
+   * @return Event stream, or a JSON error when the connection is invalid or too many streams are
+   *         open
    */
-  private JSONArray processQuery(MongoDatabase db) throws IOException, JSONException {
-
-    Document cr = db.runCommand(new Document("serverStatus", 1));
-
-    Document obj = (Document) cr.get("opcounters");
-    int currentValue;
-    JSONObject temp = new JSONObject();
-
-    num = num + jump;
-    temp.put("TimeStamp", num);
-    currentValue = (Integer) obj.get("query");
-    temp.put("QueryValue", currentValue - lastNoOfQueries);
-    lastNoOfQueries = currentValue;
-    currentValue = (Integer) obj.get("insert");
-    temp.put("InsertValue", currentValue - lastNoOfInserts);
-    lastNoOfInserts = currentValue;
-    currentValue = (Integer) obj.get("update");
-    temp.put("UpdateValue", currentValue - lastNoOfUpdates);
-    lastNoOfUpdates = currentValue;
-    currentValue = (Integer) obj.get("delete");
-    temp.put("DeleteValue", currentValue - lastNoOfDeletes);
-    lastNoOfDeletes = currentValue;
-
-    if (array.length() == maxLen) {
-      JSONArray tempArray = new JSONArray();
-      for (int i = 1; i < maxLen; i++) {
-        tempArray.put(array.get(i));
+  @GET
+  @Path("/stream")
+  @Produces("text/event-stream")
+  public Response streamGraphsRequest(@QueryParam("connectionId") final String connectionId,
+      @QueryParam("series") String series, @HeaderParam("Last-Event-ID") String lastEventId,
+      @Context final HttpServletRequest request) {
+    final ServerStatusSampler sampler;
+    try {
+      sampler = getSampler(connectionId);
+    } catch (ApplicationException e) {
+      // Any status but 200 makes EventSource give up instead of reconnecting
+      return Response.status(Response.Status.FORBIDDEN).type(MediaType.APPLICATION_JSON)
+          .entity(formErrorResponse(logger, e)).build();
+    }
+    if (!openStream(sampler)) {
+      ApplicationException e = new ApplicationException(ErrorCodes.TOO_MANY_REQUESTS,
+          "Too many graphs are being streamed. Polling for the samples instead.");
+      return Response.status(429).type(MediaType.APPLICATION_JSON)
+          .entity(formErrorResponse(logger, e)).build();
+    }
+    if (!sampler.isRunning()) {
+      sampler.start(null);
+    }
+    final Set<String> subscribed = parseSeries(series);
+    final long resumeFrom = parseSequence(lastEventId, sampler);
+
+    StreamingOutput stream = new StreamingOutput() {
+      public void write(OutputStream output) throws IOException {
+        try {
+          writeEvents(output);
+        } finally {
+          closeStream(sampler);
+        }
       }
-      array = tempArray;
+
+      private void writeEvents(OutputStream output) throws IOException {
+        long lastSequence = resumeFrom;
+        writeEvent(output, "retry: " + Math.max(1000, sampler.getInterval()) + "\n\n");
+        try {
+          while (!sampler.isClosed()) {
+            long sequence = sampler.awaitSamples(lastSequence, KEEP_ALIVE_INTERVAL);
+            if (!sampler.isRunning() && !sampler.isClosed()) {
+              sampler.start(null);
+            }
+            if (sequence == lastSequence) {
+              String error = sampler.getError();
+              if (error != null) {
+                writeEvent(output, errorEvent(ErrorCodes.ERROR_INITIATING_GRAPH, error));
+                return;
+              }
+              // Comment line, fails fast once the client has gone away
+              writeEvent(output, ": keep-alive\n\n");
+              continue;
+            }
+            JSONArray events = sampler.getEvents(lastSequence, subscribed);
+            StringBuilder chunk = new StringBuilder();
+            for (int i = 0; i < events.length(); i++) {
+              JSONObject event = events.getJSONObject(i);
+              chunk.append("id: ").append(event.getLong("seq")).append("\nevent: sample\ndata: ")
+                  .append(event.toString()).append("\n\n");
+            }
+            lastSequence = sequence;
+            writeEvent(output, chunk.toString());
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } catch (ApplicationException e) {
+          writeEvent(output, errorEvent(e.getErrorCode(), e.getMessage()));
+        } catch (Exception e) {
+          logger.debug("Graphs stream of " + connectionId + " ended: " + e.getMessage());
+          writeEvent(output, errorEvent(ErrorCodes.ERROR_INITIATING_GRAPH, e.getMessage()));
+        }
+      }
+    };
+    return Response.ok(stream).header("Cache-Control", "no-cache")
+        .header("X-Accel-Buffering", "no").build();
+  }
+
+  /**
+   * Long polling fallback of <stream>. Answers as soon as samples newer than <since> are taken or
+   * after the timeout with no samples. The wait happens before a request slot is taken, in one of
+   * the GRAPHS_MAX_POLLS slots shared by all connections. Polls finding none free are refused with
+   * 429.
+   *
+   * @param connectionId Mongo Db Configuration provided by user to connect to.
+   * @param since Sequence number of the last sample received. The latest samples are returned
+   *        when absent.
+   * @param series Comma separated prefixes of the series to return
+   * @param timeout Milliseconds to wait for a new sample, at most 30000
+   * @return <seq> of the latest sample and the <events> after <since>
+   */
+  @GET
+  @Path("/poll")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response pollGraphsRequest(@QueryParam("connectionId") final String connectionId,
+      @QueryParam("since") String since, @QueryParam("series") String series,
+      @QueryParam("timeout") long timeout, @Context final HttpServletRequest request) {
+    final Set<String> subscribed = parseSeries(series);
+    long waitFor = timeout > 0 ? Math.min(timeout, MAX_POLL_TIMEOUT) : MAX_POLL_TIMEOUT;
+    long afterSequence = -1;
+    try {
+      ServerStatusSampler sampler = getSampler(connectionId);
+      if (!sampler.isRunning()) {
+        sampler.start(null);
+      }
+      afterSequence = parseSequence(since, sampler);
+      if (since != null) {
+        if (!pollSlots.tryAcquire()) {
+          ApplicationException e = new ApplicationException(ErrorCodes.TOO_MANY_REQUESTS,
+              "Too many clients are polling for graphs. Retry later.");
+          return Response.status(429).type(MediaType.APPLICATION_JSON)
+              .entity(formErrorResponse(logger, e)).build();
+        }
+        try {
+          sampler.awaitSamples(afterSequence, waitFor);
+        } finally {
+          pollSlots.release();
+        }
+      }
+    } catch (ApplicationException e) {
+      // Reported by the template below
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     }
-    array.put(temp);
-    return array;
+    final long from = afterSequence;
+
+    String result =
+        new ResponseTemplate().execute(logger, connectionId, request, new ResponseCallback() {
+          public Object execute() throws Exception {
+            ServerStatusSampler sampler = getSampler(connectionId);
+            JSONObject result = new JSONObject();
+            result.put("events", sampler.getEvents(from, subscribed));
+            result.put("seq", sampler.getSequence());
+            return result;
+          }
+        });
+    return Response.ok(result, MediaType.APPLICATION_JSON).build();
+  }
+
+  /**
+   * Lists the series sampled for the connection, each being a <counter> (sent as a per second
+   * rate) or a <gauge>.
+   *
+   * @param connectionId Mongo Db Configuration provided by user to connect to.
+   * @return Kind of each series keyed by its name
+   */
+  @GET
+  @Path("/series")
+  @Produces(MediaType.APPLICATION_JSON)
+  public String seriesGraphsRequest(@QueryParam("connectionId") final String connectionId,
+      @Context final HttpServletRequest request) {
+
+    String result =
+        new ResponseTemplate().execute(logger, connectionId, request, new ResponseCallback() {
+          public Object execute() throws Exception {
+            return getSampler(connectionId).getSeries();
+          }
+        });
+    return result;
   }
 
   /**
-   * Initialize by previous <opcounter> value.
+   * Reads the metrics history of the server of a connection. Each point carries the <min>, <max>
+   * and <avg> of every series and, for the graphs page, the average opcounters rates under the
+   * keys of <query>.
    *
-   * @param db : Name of Database
-   * @return : Status of Initialization
-   * @throws RuntimeException
+   * @param connectionId Mongo Db Configuration provided by user to connect to.
+   * @param from Start of the range in milliseconds since the epoch. An hour before <to> when
+   *        absent.
+   * @param to End of the range in milliseconds since the epoch. Now when absent.
+   * @param series Comma separated prefixes of the series to return
+   * @param resolution One of <raw>, <1m> and <1h>. Chosen from the length of the range when absent.
+   * @return <host>, <resolution> and the <points> of the range
    */
+  @GET
+  @Path("/history")
+  @Produces(MediaType.APPLICATION_JSON)
+  public String historyGraphsRequest(@QueryParam("connectionId") final String connectionId,
+      @QueryParam("from") final long from, @QueryParam("to") final long to,
+      @QueryParam("series") final String series,
+      @QueryParam("resolution") final String resolution,
+      @Context final HttpServletRequest request) {
 
-  private JSONObject processInitiate(MongoDatabase db) throws RuntimeException, JSONException {
+    String result =
+        new ResponseTemplate().execute(logger, connectionId, request, new ResponseCallback() {
+          public Object execute() throws Exception {
+            String host = getSampler(connectionId).getHost();
+            MetricsStore store = MetricsStore.forHost(host);
+            if (store == null) {
+              throw new ApplicationException(ErrorCodes.GRAPH_HISTORY_DISABLED,
+                  "Metrics history is not kept. Check GRAPHS_HISTORY_ENABLED and GRAPHS_DATA_DIR");
+            }
+            long now = System.currentTimeMillis();
+            long end = to > 0 ? to : now;
+            long start = from > 0 ? from : end - 60 * 60 * 1000;
+            if (start > end) {
+              throw new ApplicationException(ErrorCodes.INVALID_ARGUMENT,
+                  "Start of the range is after its end");
+            }
+            MetricsStore.Resolution chosen = resolution == null
+                ? store.chooseResolution(start, end, now) : MetricsStore.Resolution
+                    .fromLabel(resolution);
+            if (chosen == null) {
+              throw new ApplicationException(ErrorCodes.INVALID_ARGUMENT,
+                  "Resolution should be one of raw, 1m and 1h");
+            }
+            JSONArray points = store.query(start, end, parseSeries(series), chosen);
+            for (int i = 0; i < points.length(); i++) {
+              JSONObject point = points.getJSONObject(i);
+              JSONObject values = point.getJSONObject("values");
+              for (int j = 0; j < LEGACY_SERIES.length; j++) {
+                JSONObject value = values.optJSONObject(LEGACY_SERIES[j]);
+                if (value != null) {
+                  point.put(LEGACY_KEYS[j], value.getDouble("avg"));
+                }
+              }
+            }
+            JSONObject result = new JSONObject();
+            result.put("host", host);
+            result.put("resolution", chosen.getLabel());
+            result.put("from", start);
+            result.put("to", end);
+            result.put("points", points);
+            return result;
+          }
+        });
+    return result;
+  }
 
-    JSONObject respObj = new JSONObject();
-    array = new JSONArray();
-    num = 0;
-    try {
+  /**
+   * Takes a stream slot of the connection and one of the server.
+   */
+  private static boolean openStream(ServerStatusSampler sampler) {
+    if (!streamSlots.tryAcquire()) {
+      return false;
+    }
+    if (!sampler.openStream(MAX_STREAMS_PER_CONNECTION)) {
+      streamSlots.release();
+      return false;
+    }
+    return true;
+  }
 
-      Document cr = db.runCommand(new Document("serverStatus", 1));
+  private static void closeStream(ServerStatusSampler sampler) {
+    sampler.closeStream();
+    streamSlots.release();
+  }
 
-      Document obj = (Document) cr.get("opcounters");
+  /**
+   * @return <error> event carrying the error in the form of the JSON responses
+   */
+  private static String errorEvent(String code, String message) {
+    JSONObject error = new JSONObject();
+    try {
+      error.put("code", code);
+      error.put("message", String.valueOf(message));
+    } catch (JSONException e) {
+      // Only thrown for null keys
+    }
+    return "event: error\ndata: " + error.toString() + "\n\n";
+  }
 
-      lastNoOfQueries = (Integer) obj.get("query");
-      lastNoOfInserts = (Integer) obj.get("insert");
-      lastNoOfUpdates = (Integer) obj.get("update");
-      lastNoOfDeletes = (Integer) obj.get("delete");
+  private static void writeEvent(OutputStream output, String text) throws IOException {
+    output.write(text.getBytes(StandardCharsets.UTF_8));
+    output.flush();
+  }
 
-      respObj.put("result", "Initiated");
-    } catch (Exception e) {
-      // Invalid User
-      JSONObject error = new JSONObject();
-      error.put("message", e.getMessage());
-      error.put("code", ErrorCodes.ERROR_INITIATING_GRAPH);
+  private static Set<String> parseSeries(String series) {
+    Set<String> prefixes = new HashSet<String>();
+    if (series != null) {
+      for (String prefix : series.split(",")) {
+        if (!prefix.trim().isEmpty()) {
+          prefixes.add(prefix.trim());
+        }
+      }
+    }
+    return prefixes;
+  }
 
-      respObj.put("error", error);
-      logger.info(respObj);
+  /**
+   * Reads the sequence number a client resumes from. Clients without one, or with one the sampler
+   * never handed out (mViewer was restarted meanwhile), start from the latest samples.
+   */
+  private static long parseSequence(String sequence, ServerStatusSampler sampler) {
+    long latest = sampler.getSequence();
+    if (sequence != null) {
+      try {
+        long parsed = Long.parseLong(sequence.trim());
+        if (parsed >= 0 && parsed <= latest) {
+          return parsed;
+        }
+      } catch (NumberFormatException e) {
+        // Start over from the latest samples
+      }
     }
-    return respObj;
+    return Math.max(0, latest - DEFAULT_SAMPLES);
+  }
+
+  private ServerStatusSampler getSampler(String connectionId) throws ApplicationException {
+    return ServiceProvider.getServiceContext(connectionId).getServerStatusSampler();
   }
 }
@@ -11,24 +11,35 @@
  */
 package com.imaginea.mongodb.controllers;
 
-import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Semaphore;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
 import com.imaginea.mongodb.domain.DocumentUserQueryData;
 import org.apache.log4j.Logger;
+import org.bson.Document;
 import org.glassfish.jersey.media.multipart.FormDataContentDisposition;
 import org.glassfish.jersey.media.multipart.FormDataParam;
 
@@ -39,8 +50,10 @@ import com.imaginea.mongodb.exceptions.DocumentException;
 import com.imaginea.mongodb.exceptions.ErrorCodes;
 import com.imaginea.mongodb.exceptions.InvalidMongoCommandException;
 import com.imaginea.mongodb.services.GridFSService;
-import com.imaginea.mongodb.services.impl.GridFSServiceImpl;
-import com.imaginea.mongodb.utils.ApplicationUtils;
+import com.imaginea.mongodb.services.ServiceProvider;
+import com.imaginea.mongodb.utils.ConfigurationUtils;
+import com.imaginea.mongodb.utils.HttpRange;
+import com.mongodb.client.gridfs.model.GridFSFile;
 
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
@@ -56,6 +69,9 @@ import io.swagger.annotations.ApiParam;
 public class GridFSController extends BaseController {
     private final static Logger logger = Logger.getLogger(GridFSController.class);
 
+    private static final String GRIDFS_MAX_ARCHIVES = "GRIDFS_MAX_ARCHIVES";
+    private static final Semaphore archiveSlots =
+            new Semaphore(Math.max(1, ConfigurationUtils.getInt(GRIDFS_MAX_ARCHIVES, 2)));
 
     @GET
     @Produces(MediaType.APPLICATION_JSON)
@@ -65,7 +81,8 @@ public class GridFSController extends BaseController {
         String response =
                 new ResponseTemplate().execute(logger, connectionId, request, new ResponseCallback() {
                     public Object execute() throws Exception {
-                        GridFSService gridFSService = new GridFSServiceImpl(connectionId);
+                        GridFSService gridFSService =
+                                ServiceProvider.getServiceContext(connectionId).getGridFSService();
                         return gridFSService.getAllBuckets(dbName);
                     }
                 });
@@ -82,7 +99,8 @@ public class GridFSController extends BaseController {
         String response =
                 new ResponseTemplate().execute(logger, connectionId, request, new ResponseCallback() {
                     public Object execute() throws Exception {
-                        GridFSService gridFSService = new GridFSServiceImpl(connectionId);
+                        GridFSService gridFSService =
+                                ServiceProvider.getServiceContext(connectionId).getGridFSService();
                         return gridFSService.createStore(dbName, bucketName);
                     }
                 });
@@ -99,7 +117,8 @@ public class GridFSController extends BaseController {
         String response =
                 new ResponseTemplate().execute(logger, connectionId, request, new ResponseCallback() {
                     public Object execute() throws Exception {
-                        GridFSService gridFSService = new GridFSServiceImpl(connectionId);
+                        GridFSService gridFSService =
+                                ServiceProvider.getServiceContext(connectionId).getGridFSService();
                         return gridFSService.getCount(dbName, bucketName);
                     }
                 });
@@ -128,7 +147,8 @@ public class GridFSController extends BaseController {
         String response =
                 new ResponseTemplate().execute(logger, connectionId, request, new ResponseCallback() {
                     public Object execute() throws Exception {
-                        GridFSService gridFSService = new GridFSServiceImpl(connectionId);
+                        GridFSService gridFSService =
+                                ServiceProvider.getServiceContext(connectionId).getGridFSService();
                         int startIndex = queryData.getQuery().indexOf("("), endIndex = queryData.getQuery().lastIndexOf(")");
                         String cmdStr = queryData.getQuery().substring(0, startIndex);
                         int lastIndexOfDot = cmdStr.lastIndexOf(".");
@@ -158,14 +178,19 @@ public class GridFSController extends BaseController {
     }
 
     /**
-     * Request handler for retrieving the specified file stored in GridFS.
+     * Request handler for retrieving the specified file stored in GridFS. The content is streamed
+     * from the chunks of the file as it is read, and a single <Range> of bytes may be asked for to
+     * resume or seek into a download. An <If-Range> validator not matching the stored file gets
+     * the whole file back.
      *
      * @param dbName       Name of Database
      * @param bucketName   Name of GridFS Bucket
      * @param id           ObjectId of the file to be retrieved
      * @param download     is download request
      * @param connectionId Mongo Db Configuration provided by user to connect to.
-     * @return Requested multipartfile for viewing or download based on 'download' param.
+     * @param range        Range header of the request
+     * @param ifRange      If-Range header of the request
+     * @return Requested file for viewing or download based on 'download' param.
      */
     @GET
     @Path("/{bucketName}/getfile")
@@ -173,22 +198,139 @@ public class GridFSController extends BaseController {
     public Response getFile(@PathParam("dbName") final String dbName,
                             @PathParam("bucketName") final String bucketName, @ApiParam(value = "GridFS fileId") @QueryParam("id") final String id,
                             @QueryParam("download") final boolean download,
-                            @QueryParam("connectionId") final String connectionId) throws ApplicationException {
-        GridFSService gridFSService = new GridFSServiceImpl(connectionId);
-        File fileObject = null;
+                            @QueryParam("connectionId") final String connectionId,
+                            @HeaderParam("Range") final String range,
+                            @HeaderParam("If-Range") final String ifRange) {
+        final GridFSService gridFSService;
+        final GridFSFile fsFile;
+        String contentType;
         try {
-            fileObject = gridFSService.getFile(dbName, bucketName, id);
-        } catch (Exception e) {
-            e.printStackTrace();
+            gridFSService = ServiceProvider.getServiceContext(connectionId).getGridFSService();
+            fsFile = gridFSService.getFileInfo(dbName, bucketName, id);
+            contentType = gridFSService.getContentType(dbName, bucketName, fsFile);
+        } catch (ApplicationException e) {
+            Response.Status status = ErrorCodes.DOCUMENT_DOES_NOT_EXIST.equals(e.getErrorCode())
+                    ? Response.Status.NOT_FOUND : Response.Status.BAD_REQUEST;
+            return Response.status(status).type(MediaType.APPLICATION_JSON)
+                    .entity(formErrorResponse(logger, e)).build();
         }
-        String contentType = ApplicationUtils.getContentType(fileObject);
-        Response.ResponseBuilder response = Response.ok(fileObject, contentType);
-        if (download) {
-            response.header("Content-Disposition", "attachment; filename='" + fileObject.getName() + "'");
-        } else {
-            response.header("Content-Disposition", "filename='" + fileObject.getName() + "'");
+        long total = fsFile.getLength();
+        String etag = "\"" + (fsFile.getMD5() != null ? fsFile.getMD5()
+                : fsFile.getObjectId().toHexString() + "-" + total) + "\"";
+        Date lastModified = fsFile.getUploadDate();
+
+        HttpRange byteRange = HttpRange.parse(range, total);
+        if (byteRange != null && !HttpRange.ifRangeMatches(ifRange, etag, lastModified.getTime())) {
+            byteRange = null;
+        }
+        if (byteRange != null && !byteRange.isSatisfiable()) {
+            return Response.status(Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE)
+                    .header("Content-Range", byteRange.toContentRange())
+                    .header("Accept-Ranges", "bytes").build();
+        }
+        final long offset = byteRange == null ? 0 : byteRange.getStart();
+        final long length = byteRange == null ? total : byteRange.getLength();
+
+        StreamingOutput content = new StreamingOutput() {
+            public void write(OutputStream output) throws IOException {
+                try {
+                    gridFSService.writeFile(dbName, bucketName, fsFile, offset, length, output);
+                } catch (IOException e) {
+                    // Mostly clients going away in the middle of a download
+                    logger.info("Download of file [" + id + "] stopped: " + e.getMessage());
+                    throw e;
+                }
+            }
+        };
+        Response.ResponseBuilder response = byteRange == null
+                ? Response.ok(content, contentType)
+                : Response.status(Response.Status.PARTIAL_CONTENT).entity(content).type(contentType)
+                        .header("Content-Range", byteRange.toContentRange());
+        return response.header("Accept-Ranges", "bytes")
+                .header("Content-Length", length)
+                .header("Content-Disposition", contentDisposition(download, fsFile.getFilename()))
+                .tag(new EntityTag(etag.substring(1, etag.length() - 1)))
+                .lastModified(lastModified).build();
+    }
+
+    /**
+     * Request handler for downloading many files stored in GridFS as one ZIP archive. The archive
+     * is streamed while it is built from the chunks of the files, so a whole bucket can be pulled
+     * with one request. At most GRIDFS_MAX_ARCHIVES archives are written at once, others are
+     * refused with 429.
+     *
+     * @param dbName       Name of Database
+     * @param bucketName   Name of GridFS Bucket
+     * @param query        Filter on the files, as typed for the listing. All files when absent.
+     * @param ids          Comma separated ObjectIds of the files
+     * @param connectionId Mongo Db Configuration provided by user to connect to.
+     * @return ZIP archive of the files, or a JSON error when the filter or ids are invalid
+     */
+    @GET
+    @Path("/{bucketName}/zip")
+    @ApiOperation(value = "zip", notes = "To get the GridFS Files matching a filter or ids as a ZIP archive")
+    public Response getArchive(@PathParam("dbName") final String dbName,
+                               @PathParam("bucketName") final String bucketName,
+                               @QueryParam("query") final String query,
+                               @QueryParam("ids") final String ids,
+                               @QueryParam("connectionId") final String connectionId) {
+        final GridFSService gridFSService;
+        final Document filter;
+        try {
+            gridFSService = ServiceProvider.getServiceContext(connectionId).getGridFSService();
+            List<String> fileIds = new ArrayList<String>();
+            if (ids != null) {
+                for (String fileId : ids.split(",")) {
+                    if (!fileId.trim().isEmpty()) {
+                        fileIds.add(fileId.trim());
+                    }
+                }
+            }
+            filter = gridFSService.getArchiveFilter(query, fileIds);
+        } catch (ApplicationException e) {
+            return Response.status(Response.Status.BAD_REQUEST).type(MediaType.APPLICATION_JSON)
+                    .entity(formErrorResponse(logger, e)).build();
+        }
+        if (!archiveSlots.tryAcquire()) {
+            ApplicationException e = new ApplicationException(ErrorCodes.TOO_MANY_REQUESTS,
+                    "Too many archives are being written. Retry later.");
+            return Response.status(429).type(MediaType.APPLICATION_JSON)
+                    .entity(formErrorResponse(logger, e)).build();
+        }
+        StreamingOutput archive = new StreamingOutput() {
+            public void write(OutputStream output) throws IOException {
+                long start = System.currentTimeMillis();
+                try {
+                    int files = gridFSService.writeArchive(dbName, bucketName, filter, output);
+                    logger.info("Archived " + files + " files of bucket [" + bucketName + "] in "
+                            + (System.currentTimeMillis() - start) + " ms");
+                } catch (IOException e) {
+                    logger.info("Archive of bucket [" + bucketName + "] stopped: "
+                            + e.getMessage());
+                    throw e;
+                } finally {
+                    // Held until the archive is written or given up on
+                    archiveSlots.release();
+                }
+            }
+        };
+        return Response.ok(archive, "application/zip")
+                .header("Content-Disposition", contentDisposition(true, bucketName + ".zip"))
+                .build();
+    }
+
+    private static String contentDisposition(boolean download, String fileName) {
+        String name = fileName == null ? "file" : fileName;
+        StringBuilder header = new StringBuilder(download ? "attachment" : "inline");
+        header.append("; filename=\"").append(name.replaceAll("[\"\\\\\\r\\n]", "_"))
+                .append('"');
+        try {
+            header.append("; filename*=UTF-8''")
+                    .append(URLEncoder.encode(name, "UTF-8").replace("+", "%20"));
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
         }
-        return response.build();
+        return header.toString();
     }
 
     /**
@@ -199,6 +341,10 @@ public class GridFSController extends BaseController {
      * @param formData     formDataBodyPart of the uploaded file
      * @param inputStream  inputStream of the uploaded file
      * @param connectionId Mongo Db Configuration provided by user to connect to.
+     * @param chunkSize    Size of the chunks of the file in bytes, the configured one when absent
+     * @param dedup        Store content already in the bucket only once, the configured mode
+     *                     when absent
+     * @param sha256       SHA-256 of the file, lets a deduplicated upload skip writing chunks
      * @param request      HTTP request context to extract session parameters
      * @return Success message with additional file details such as name, size, download url &
      * deletion url as JSON Array string.
@@ -212,15 +358,19 @@ public class GridFSController extends BaseController {
                              @FormDataParam("files") final FormDataContentDisposition formData,
                              @FormDataParam("files") final InputStream inputStream,
                              @QueryParam("connectionId") final String connectionId,
+                             @QueryParam("chunkSize") final Integer chunkSize,
+                             @QueryParam("dedup") final Boolean dedup,
+                             @QueryParam("sha256") final String sha256,
                              @Context final HttpServletRequest request) {
 
 
         String response =
                 new ResponseTemplate().execute(logger, connectionId, request, new ResponseCallback() {
                     public Object execute() throws Exception {
-                        GridFSService gridFSService = new GridFSServiceImpl(connectionId);
+                        GridFSService gridFSService =
+                                ServiceProvider.getServiceContext(connectionId).getGridFSService();
                         return gridFSService.insertFile(dbName, bucketName, connectionId, inputStream,
-                                formData);
+                                formData, chunkSize, dedup, sha256);
                     }
                 }, false);
         return response;
@@ -248,7 +398,8 @@ public class GridFSController extends BaseController {
         String response =
                 new ResponseTemplate().execute(logger, connectionId, request, new ResponseCallback() {
                     public Object execute() throws Exception {
-                        GridFSService gridFSService = new GridFSServiceImpl(connectionId);
+                        GridFSService gridFSService =
+                                ServiceProvider.getServiceContext(connectionId).getGridFSService();
                         String result = null;
                         if ("".equals(_id)) {
                             ApplicationException e = new DocumentException(ErrorCodes.DOCUMENT_DOES_NOT_EXIST,
@@ -282,7 +433,8 @@ public class GridFSController extends BaseController {
         String response =
                 new ResponseTemplate().execute(logger, connectionId, request, new ResponseCallback() {
                     public Object execute() throws Exception {
-                        GridFSService gridFSService = new GridFSServiceImpl(connectionId);
+                        GridFSService gridFSService =
+                                ServiceProvider.getServiceContext(connectionId).getGridFSService();
                         return gridFSService.dropBucket(dbName, bucketName);
                     }
                 });
@@ -33,8 +33,7 @@ import com.imaginea.mongodb.exceptions.ApplicationException;
 import com.imaginea.mongodb.exceptions.ErrorCodes;
 import com.imaginea.mongodb.exceptions.MongoConnectionException;
 import com.imaginea.mongodb.services.impl.AuthServiceImpl;
-import com.imaginea.mongodb.services.impl.DatabaseServiceImpl;
-import com.imaginea.mongodb.services.impl.SystemCollectionServiceImpl;
+import com.imaginea.mongodb.services.ServiceProvider;
 import com.mongodb.MongoException;
 import com.mongodb.MongoInternalException;
 
@@ -66,28 +65,36 @@ public class LoginController extends BaseController {
     @POST
     @Produces(MediaType.APPLICATION_JSON)
     @Consumes(MediaType.APPLICATION_JSON)
-    @ApiOperation(value = "for login to mongodb", notes = "In order to login you must pass atleast host and port", position = 1)
+    @ApiOperation(value = "for login to mongodb", notes = "In order to login you must pass atleast host and port or a connection string", position = 1)
     public String authenticateUser(
             @ApiParam(value = "user login data in json format", required = true) final UserLoginData userLoginData,
             @Context final HttpServletRequest request) {
 
         String response = ErrorTemplate.execute(logger, new ResponseCallback() {
             public Object execute() throws Exception {
-                if ("".equals(userLoginData.getHost()) || "".equals(userLoginData.getPort())) {
+                String connectionString = userLoginData.getConnectionString();
+                boolean hasConnectionString =
+                        connectionString != null && !connectionString.trim().isEmpty();
+                if (!hasConnectionString
+                        && ("".equals(userLoginData.getHost()) || "".equals(userLoginData.getPort()))) {
                     ApplicationException e =
                             new ApplicationException(ErrorCodes.MISSING_LOGIN_FIELDS, "Missing Login Fields");
                     return formErrorResponse(logger, e);
                 }
 
                 int port = 0;
-                try {
-                    port = Integer.parseInt(userLoginData.getPort());
-                } catch (NumberFormatException e) {
-                    throw new MongoConnectionException(ErrorCodes.INVALID_PORT,
-                            "You have entered an invalid port number !");
+                if (!hasConnectionString) {
+                    try {
+                        port = Integer.parseInt(userLoginData.getPort());
+                    } catch (NumberFormatException e) {
+                        throw new MongoConnectionException(ErrorCodes.INVALID_PORT,
+                                "You have entered an invalid port number !");
+                    }
                 }
                 ConnectionDetails connectionDetails = new ConnectionDetails(userLoginData.getHost(), port,
                         userLoginData.getUserName(), userLoginData.getPassword(), userLoginData.getDatabases());
+                connectionDetails.setConnectionOptions(userLoginData.getConnectionOptions());
+                connectionDetails.setConnectionString(hasConnectionString ? connectionString : null);
                 String connectionId = null;
                 try {
                     connectionId = authService.authenticate(connectionDetails);
@@ -101,6 +108,7 @@ public class LoginController extends BaseController {
                     throw new MongoConnectionException(ErrorCodes.MONGO_CONNECTION_EXCEPTION,
                             "Connection Failed. Check if MongoDB is running at the given host and port.");
                 }
+                addConnectionIdToSession(connectionId, request);
                 JSONObject response = new JSONObject();
                 try {
                     response.put("success", true);
@@ -166,12 +174,13 @@ public class LoginController extends BaseController {
 
                 JSONObject response = new JSONObject();
                 try {
-                    String clientMongoVersion = new SystemCollectionServiceImpl(connectionId).getMongoClientVersion(connectionDetails.getDbName());
+                    String clientMongoVersion = ServiceProvider.getServiceContext(connectionId).getSystemCollectionService().getMongoClientVersion(connectionDetails.getDbName());
                     if (clientMongoVersion.contains("2.4")) {
                         logger.info("User is currently using " + clientMongoVersion + "  which has compatability issues..!");
                         throw new ApplicationException(ErrorCodes.LEGACY_MONGO_DB_EXCEPTION, "You are using outdated version of mongodb. Please upgrade to mongo 2.6 or higher");
                     }
                     else {
+                        addConnectionIdToSession(connectionId, request);
                         response.put("success", true);
                         response.put("connectionId", connectionId);
                     }
@@ -207,8 +216,10 @@ public class LoginController extends BaseController {
                             jsonResponse.put("dbNames", dbList);
                             jsonResponse.put("authMode", connectionDetails.isAuthMode());
                             jsonResponse.put("hasAdminLoggedIn", connectionDetails.isAdminLogin());
+                            jsonResponse.put("readPreference",
+                                    mongoConnectionDetails.getReadPreference().getName());
                             if (privileges)
-                                jsonResponse.put("rolesAndPrivileges", new SystemCollectionServiceImpl(connectionId).getUsersPrivileges(connectionDetails.getDbName(), connectionDetails.getUsername()));
+                                jsonResponse.put("rolesAndPrivileges", ServiceProvider.getServiceContext(connectionId).getSystemCollectionService().getUsersPrivileges(connectionDetails.getDbName(), connectionDetails.getUsername()));
                         } catch (JSONException e) {
                             logger.error(e);
                         }
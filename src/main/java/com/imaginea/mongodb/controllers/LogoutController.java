@@ -14,7 +14,6 @@ package com.imaginea.mongodb.controllers;
 import java.util.Set;
 
 import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpSession;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
@@ -62,9 +61,7 @@ public class LogoutController extends BaseController {
         new ResponseTemplate().execute(logger, connectionId, request, new ResponseCallback() {
           public Object execute() throws Exception {
             authService.disconnectConnection(connectionId);
-            HttpSession session = request.getSession();
-            Set<String> existingConnectionIdsInSession =
-                (Set<String>) session.getAttribute("existingConnectionIdsInSession");
+            Set<String> existingConnectionIdsInSession = getConnectionIdsInSession(request);
             if (existingConnectionIdsInSession != null) {
               existingConnectionIdsInSession.remove(connectionId);
             }
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.controllers;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Response;
+
+import org.apache.log4j.Logger;
+import org.json.JSONObject;
+
+import com.imaginea.mongodb.utils.ConcurrencyLimiter;
+import com.imaginea.mongodb.utils.FileCache;
+import com.imaginea.mongodb.utils.PrometheusText;
+import com.imaginea.mongodb.utils.RequestMetrics;
+import com.imaginea.mongodb.utils.TaskExecutors;
+
+import io.swagger.annotations.Api;
+
+/**
+ * Exposes the metrics of mViewer itself in the Prometheus text format: latency and errors of the
+ * REST endpoints and of the mongo commands, the JVM, the thread pools, the concurrency limiter and
+ * the connection pools of the mongo clients and the disk cache of GridFS downloads.
+ * <p/>
+ * Scrapes do not take a permit of the concurrency limiter, so that a busy mViewer can still be
+ * watched.
+ */
+@Path("/metrics")
+@Api(value = "/metrics", description = "mViewer Metrics Controller")
+public class MetricsController extends BaseController {
+  private final static Logger logger = Logger.getLogger(MetricsController.class);
+
+  /** Connection pool MBeans registered by the mongo driver for every client. */
+  private static final String CONNECTION_POOL_MBEANS = "org.mongodb.driver:type=ConnectionPool,*";
+
+  @GET
+  @Produces(PrometheusText.CONTENT_TYPE)
+  public Response getMetrics() {
+    PrometheusText text = new PrometheusText();
+    try {
+      RequestMetrics.getInstance().writeTo(text);
+      writeLimiterMetrics(text);
+      writeThreadPoolMetrics(text);
+      writeConnectionPoolMetrics(text);
+      writeFileCacheMetrics(text);
+      writeJvmMetrics(text);
+    } catch (Exception e) {
+      logger.error("Could not collect the metrics", e);
+      return Response.serverError().entity("# " + e + "\n").build();
+    }
+    return Response.ok(text.toString(), PrometheusText.CONTENT_TYPE).build();
+  }
+
+  private static void writeFileCacheMetrics(PrometheusText text) {
+    FileCache gridFSCache = FileCache.getGridFSCache();
+    if (gridFSCache != null) {
+      gridFSCache.writeTo(text, "gridfs");
+    }
+  }
+
+  private static void writeLimiterMetrics(PrometheusText text) throws Exception {
+    JSONObject limiter = ConcurrencyLimiter.getInstance().getMetrics();
+    text.family("mviewer_requests_in_flight", "gauge", "REST requests holding a permit");
+    text.sample("mviewer_requests_in_flight", limiter.getInt("inFlight"));
+    text.family("mviewer_requests_queued", "gauge", "REST requests waiting for a permit");
+    text.sample("mviewer_requests_queued", limiter.getInt("queued"));
+    text.family("mviewer_requests_admitted_total", "counter", "REST requests given a permit");
+    text.sample("mviewer_requests_admitted_total", limiter.getLong("admitted"));
+    text.family("mviewer_requests_rejected_total", "counter",
+        "REST requests refused with HTTP 429");
+    text.sample("mviewer_requests_rejected_total", limiter.getLong("rejected"));
+  }
+
+  private static void writeThreadPoolMetrics(PrometheusText text) {
+    Map<String, ThreadPoolExecutor> pools = TaskExecutors.getThreadPools();
+    text.family("mviewer_executor_threads", "gauge", "Threads of the background pools");
+    for (Map.Entry<String, ThreadPoolExecutor> pool : pools.entrySet()) {
+      text.sample("mviewer_executor_threads", pool.getValue().getPoolSize(), "pool", pool.getKey());
+    }
+    text.family("mviewer_executor_active_threads", "gauge",
+        "Threads of the background pools running a task");
+    for (Map.Entry<String, ThreadPoolExecutor> pool : pools.entrySet()) {
+      text.sample("mviewer_executor_active_threads", pool.getValue().getActiveCount(), "pool",
+          pool.getKey());
+    }
+    text.family("mviewer_executor_queued_tasks", "gauge", "Tasks waiting for a pool thread");
+    for (Map.Entry<String, ThreadPoolExecutor> pool : pools.entrySet()) {
+      text.sample("mviewer_executor_queued_tasks", pool.getValue().getQueue().size(), "pool",
+          pool.getKey());
+    }
+    text.family("mviewer_executor_completed_tasks_total", "counter",
+        "Tasks run by the background pools");
+    for (Map.Entry<String, ThreadPoolExecutor> pool : pools.entrySet()) {
+      text.sample("mviewer_executor_completed_tasks_total", pool.getValue().getCompletedTaskCount(),
+          "pool", pool.getKey());
+    }
+  }
+
+  /**
+   * The 3.2 driver has no public pool listener hook on the client options but registers a
+   * statistics MBean per connection pool, which is read here.
+   */
+  private static void writeConnectionPoolMetrics(PrometheusText text) throws Exception {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    Set<ObjectName> names = server.queryNames(new ObjectName(CONNECTION_POOL_MBEANS), null);
+    String[][] attributes = {
+        {"Size", "mongodb_pool_connections", "Connections open in the pool"},
+        {"CheckedOutCount", "mongodb_pool_checked_out_connections", "Connections in use"},
+        {"WaitQueueSize", "mongodb_pool_wait_queue_size", "Threads waiting for a connection"},
+        {"MaxSize", "mongodb_pool_max_connections", "Maximum connections of the pool"}};
+    for (String[] attribute : attributes) {
+      text.family(attribute[1], "gauge", attribute[2]);
+      for (ObjectName name : names) {
+        Object value;
+        try {
+          value = server.getAttribute(name, attribute[0]);
+        } catch (Exception e) {
+          // Pool closed since the query
+          continue;
+        }
+        if (value instanceof Number) {
+          text.sample(attribute[1], ((Number) value).doubleValue(), "cluster",
+              name.getKeyProperty("clusterId"), "host", name.getKeyProperty("host"), "port",
+              name.getKeyProperty("port"));
+        }
+      }
+    }
+  }
+
+  private static void writeJvmMetrics(PrometheusText text) {
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    MemoryUsage heap = memory.getHeapMemoryUsage();
+    MemoryUsage nonHeap = memory.getNonHeapMemoryUsage();
+    text.family("jvm_memory_bytes_used", "gauge", "Used bytes of a memory area");
+    text.sample("jvm_memory_bytes_used", heap.getUsed(), "area", "heap");
+    text.sample("jvm_memory_bytes_used", nonHeap.getUsed(), "area", "nonheap");
+    text.family("jvm_memory_bytes_committed", "gauge", "Committed bytes of a memory area");
+    text.sample("jvm_memory_bytes_committed", heap.getCommitted(), "area", "heap");
+    text.sample("jvm_memory_bytes_committed", nonHeap.getCommitted(), "area", "nonheap");
+    text.family("jvm_memory_bytes_max", "gauge", "Maximum bytes of a memory area");
+    text.sample("jvm_memory_bytes_max", heap.getMax(), "area", "heap");
+    text.sample("jvm_memory_bytes_max", nonHeap.getMax(), "area", "nonheap");
+    text.family("jvm_memory_pool_bytes_used", "gauge", "Used bytes of a memory pool");
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      text.sample("jvm_memory_pool_bytes_used", pool.getUsage().getUsed(), "pool",
+          pool.getName());
+    }
+    text.family("jvm_gc_collection_seconds_count", "counter", "Collections per collector");
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      text.sample("jvm_gc_collection_seconds_count", gc.getCollectionCount(), "gc", gc.getName());
+    }
+    text.family("jvm_gc_collection_seconds_sum", "counter", "Time spent per collector");
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      text.sample("jvm_gc_collection_seconds_sum", gc.getCollectionTime() / 1e3, "gc",
+          gc.getName());
+    }
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    text.family("jvm_threads_current", "gauge", "Live threads");
+    text.sample("jvm_threads_current", threads.getThreadCount());
+    text.family("jvm_threads_daemon", "gauge", "Live daemon threads");
+    text.sample("jvm_threads_daemon", threads.getDaemonThreadCount());
+    text.family("jvm_threads_peak", "gauge", "Most live threads since the start");
+    text.sample("jvm_threads_peak", threads.getPeakThreadCount());
+    text.family("jvm_classes_loaded", "gauge", "Loaded classes");
+    text.sample("jvm_classes_loaded", ManagementFactory.getClassLoadingMXBean()
+        .getLoadedClassCount());
+    text.family("process_uptime_seconds", "gauge", "Time since the JVM started");
+    text.sample("process_uptime_seconds", ManagementFactory.getRuntimeMXBean().getUptime() / 1e3);
+  }
+}
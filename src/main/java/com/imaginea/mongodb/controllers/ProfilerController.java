@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.controllers;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.DELETE;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+
+import org.apache.log4j.Logger;
+
+import com.imaginea.mongodb.services.ServiceProvider;
+import com.imaginea.mongodb.services.impl.QueryProfiler;
+
+import io.swagger.annotations.Api;
+
+/**
+ * Defines resources for switching the database profiler on and off and for finding the slowest
+ * query shapes of a database from its <system.profile>.
+ */
+@Path("/profiler/{dbName}")
+@Api(value = "/profiler", description = "MongoDB Profiler Controller")
+public class ProfilerController extends BaseController {
+  private final static Logger logger = Logger.getLogger(ProfilerController.class);
+
+  /**
+   * Gets the profiling level of a database.
+   *
+   * @param dbName Name of the database
+   * @param connectionId Mongo Db Configuration provided by user to connect to.
+   * @param request Get the HTTP request context to extract session parameters
+   * @return Level (<was>) and slow operation threshold (<slowms>)
+   */
+  @GET
+  @Path("/level")
+  @Produces(MediaType.APPLICATION_JSON)
+  public String getLevel(@PathParam("dbName") final String dbName,
+      @QueryParam("connectionId") final String connectionId,
+      @Context final HttpServletRequest request) {
+
+    String response =
+        new ResponseTemplate().execute(logger, connectionId, request, new ResponseCallback() {
+          public Object execute() throws Exception {
+            return getProfiler(connectionId).getLevel(dbName);
+          }
+        });
+    return response;
+  }
+
+  /**
+   * Sets the profiling level of a database.
+   *
+   * @param dbName Name of the database
+   * @param level 0 for off, 1 for slow operations, 2 for all operations
+   * @param slowms Threshold of slow operations in milliseconds, unchanged when absent
+   * @param connectionId Mongo Db Configuration provided by user to connect to.
+   * @param request Get the HTTP request context to extract session parameters
+   * @return Previous level and threshold
+   */
+  @POST
+  @Path("/level")
+  @Produces(MediaType.APPLICATION_JSON)
+  public String setLevel(@PathParam("dbName") final String dbName,
+      @QueryParam("level") final int level, @QueryParam("slowms") final Integer slowms,
+      @QueryParam("connectionId") final String connectionId,
+      @Context final HttpServletRequest request) {
+
+    String response =
+        new ResponseTemplate().execute(logger, connectionId, request, new ResponseCallback() {
+          public Object execute() throws Exception {
+            return getProfiler(connectionId).setLevel(dbName, level, slowms);
+          }
+        });
+    return response;
+  }
+
+  /**
+   * Reads the new profile entries of a database and returns the statistics of its query shapes.
+   *
+   * @param dbName Name of the database
+   * @param sortBy Statistic to order the shapes by, totalMillis by default
+   * @param limit Maximum number of shapes, 50 by default
+   * @param connectionId Mongo Db Configuration provided by user to connect to.
+   * @param request Get the HTTP request context to extract session parameters
+   * @return Shapes with their count, durations, scan ratio and plan summary
+   */
+  @GET
+  @Path("/shapes")
+  @Produces(MediaType.APPLICATION_JSON)
+  public String getShapes(@PathParam("dbName") final String dbName,
+      @QueryParam("sortBy") final String sortBy, @QueryParam("limit") final int limit,
+      @QueryParam("connectionId") final String connectionId,
+      @Context final HttpServletRequest request) {
+
+    String response =
+        new ResponseTemplate().execute(logger, connectionId, request, new ResponseCallback() {
+          public Object execute() throws Exception {
+            return getProfiler(connectionId).getShapes(dbName, sortBy, limit > 0 ? limit : 50);
+          }
+        });
+    return response;
+  }
+
+  /**
+   * Clears the statistics of a database.
+   *
+   * @param dbName Name of the database
+   * @param connectionId Mongo Db Configuration provided by user to connect to.
+   * @param request Get the HTTP request context to extract session parameters
+   * @return Status of the operation
+   */
+  @DELETE
+  @Path("/shapes")
+  @Produces(MediaType.APPLICATION_JSON)
+  public String resetShapes(@PathParam("dbName") final String dbName,
+      @QueryParam("connectionId") final String connectionId,
+      @Context final HttpServletRequest request) {
+
+    String response =
+        new ResponseTemplate().execute(logger, connectionId, request, new ResponseCallback() {
+          public Object execute() throws Exception {
+            getProfiler(connectionId).reset(dbName);
+            return "Profiler statistics of " + dbName + " cleared";
+          }
+        });
+    return response;
+  }
+
+  private static QueryProfiler getProfiler(String connectionId) throws Exception {
+    return ServiceProvider.getServiceContext(connectionId).getQueryProfiler();
+  }
+}
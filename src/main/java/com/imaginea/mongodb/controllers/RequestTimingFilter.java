@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.controllers;
+
+import java.io.IOException;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.ext.Provider;
+
+import com.imaginea.mongodb.utils.RequestMetrics;
+import com.imaginea.mongodb.utils.RequestTimings;
+
+/**
+ * Times every request served by the resources of this package and records it in
+ * {@link RequestMetrics} under the resource class and method, along with the HTTP status.
+ * Streamed responses are timed until their headers are sent.
+ * <p/>
+ * The phases of the request are also timed by {@link RequestTimings} and sent back in the
+ * <Server-Timing> header, and in the JSON response for requests with <debug=timings>. Writing the
+ * response happens after its headers and is not part of them.
+ */
+@Provider
+public class RequestTimingFilter implements ContainerRequestFilter, ContainerResponseFilter {
+
+  private static final String START_PROPERTY = "mViewer.requestStart";
+  private static final String ENDPOINT_PROPERTY = "mViewer.endpoint";
+  private static final String DEBUG_PARAMETER = "debug";
+  private static final String SERVER_TIMING_HEADER = "Server-Timing";
+
+  private final RequestMetrics metrics = RequestMetrics.getInstance();
+
+  @Context
+  private ResourceInfo resourceInfo;
+
+  @Override
+  public void filter(ContainerRequestContext requestContext) throws IOException {
+    if (RequestTimings.isEnabled()) {
+      RequestTimings.start("timings".equals(
+          requestContext.getUriInfo().getQueryParameters().getFirst(DEBUG_PARAMETER)));
+    }
+    if (!metrics.isEnabled() || resourceInfo == null || resourceInfo.getResourceClass() == null
+        || !resourceInfo.getResourceClass().getName()
+            .startsWith(RequestTimingFilter.class.getPackage().getName())) {
+      return;
+    }
+    String endpoint = resourceInfo.getResourceClass().getSimpleName() + "."
+        + resourceInfo.getResourceMethod().getName();
+    requestContext.setProperty(START_PROPERTY, System.nanoTime());
+    requestContext.setProperty(ENDPOINT_PROPERTY, endpoint);
+    metrics.begin(endpoint);
+  }
+
+  @Override
+  public void filter(ContainerRequestContext requestContext,
+      ContainerResponseContext responseContext) throws IOException {
+    RequestTimings timings = RequestTimings.current();
+    if (timings != null) {
+      responseContext.getHeaders().putSingle(SERVER_TIMING_HEADER, timings.toServerTiming());
+      RequestTimings.stop();
+    }
+    Object start = requestContext.getProperty(START_PROPERTY);
+    Object endpoint = requestContext.getProperty(ENDPOINT_PROPERTY);
+    if (start instanceof Long && endpoint instanceof String) {
+      metrics.end((String) endpoint, System.nanoTime() - (Long) start,
+          responseContext.getStatus());
+    }
+  }
+}
@@ -17,13 +17,19 @@ import com.imaginea.mongodb.services.AuthService;
 import com.imaginea.mongodb.services.CollectionService;
 import com.imaginea.mongodb.services.DatabaseService;
 import com.imaginea.mongodb.services.impl.AuthServiceImpl;
-import com.imaginea.mongodb.services.impl.CollectionServiceImpl;
-import com.imaginea.mongodb.services.impl.DatabaseServiceImpl;
+import com.imaginea.mongodb.services.impl.ClusterOverview;
+import com.imaginea.mongodb.services.ServiceProvider;
+import com.imaginea.mongodb.utils.CommandStatistics;
+import com.imaginea.mongodb.utils.ConcurrencyLimiter;
 import com.mongodb.Mongo;
 import com.mongodb.MongoException;
 import org.apache.log4j.Logger;
 import org.json.JSONException;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.*;
 import javax.ws.rs.core.Context;
@@ -77,6 +83,153 @@ public class StatisticsController extends BaseController {
     return response;
   }
 
+  /**
+   * Get the in flight, queued and rejected request counts of the concurrency limiter, overall and
+   * of the connection asking.
+   *
+   * @param connectionId Mongo Db Configuration provided by user to connect to.
+   * @param request Get the HTTP request context to extract session parameters
+   * @return String of JSON Format with the limiter metrics.
+   */
+  @GET
+  @Path("/throttle")
+  @Produces(MediaType.APPLICATION_JSON)
+  public String getThrottleStats(@QueryParam("connectionId") final String connectionId,
+      @Context final HttpServletRequest request) throws JSONException {
+
+    String response = ErrorTemplate.execute(logger, new ResponseCallback() {
+      public Object execute() throws Exception {
+        return ConcurrencyLimiter.getInstance().getMetrics(connectionId);
+      }
+    });
+    return response;
+  }
+
+  /**
+   * Get a health summary of many connections in one go: host, version, connections, operations,
+   * memory, replica set state and lag, and the stats of the login database of each of them. The
+   * servers are asked concurrently and each one has its own timeout, so a slow or dead server only
+   * shows up as a timed out row.
+   *
+   * @param connectionIds Comma separated connections to summarize. Defaults to all the connections
+   *        opened in the session.
+   * @param request Get the HTTP request context to extract session parameters
+   * @return String of JSON Format with the per status counts and one row per connection.
+   */
+  @GET
+  @Path("/cluster")
+  @Produces(MediaType.APPLICATION_JSON)
+  public String getClusterOverview(@QueryParam("connectionIds") final String connectionIds,
+      @Context final HttpServletRequest request) throws JSONException {
+
+    // The servers are asked on the fan-out pool, the request itself takes a single permit
+    String response =
+        new ResponseTemplate().execute(logger, null, request, new ResponseCallback() {
+          public Object execute() throws Exception {
+            Collection<String> targets;
+            if (connectionIds != null && !connectionIds.trim().isEmpty()) {
+              targets = new LinkedHashSet<String>();
+              for (String connectionId : connectionIds.split(",")) {
+                if (!connectionId.trim().isEmpty()) {
+                  targets.add(connectionId.trim());
+                }
+              }
+            } else {
+              Collection<String> inSession = getConnectionIdsInSession(request);
+              targets = inSession == null ? Collections.<String>emptySet()
+                  : new LinkedHashSet<String>(inSession);
+            }
+            return ClusterOverview.collect(targets);
+          }
+        });
+    return response;
+  }
+
+  /**
+   * Get the commands sent to mongo by a connection, per database and command name, ordered by
+   * their cumulative time or another measure. Latencies are measured by the driver from sending
+   * the command to receiving its reply.
+   *
+   * @param connectionId Mongo Db Configuration provided by user to connect to.
+   * @param all Whether to list the commands of all the connections opened in the session instead
+   * @param sortBy totalTime (default), count, failures, maxTime or replyBytes
+   * @param limit Maximum number of commands listed, 20 by default
+   * @param request Get the HTTP request context to extract session parameters
+   * @return String of JSON Format with the top commands.
+   */
+  @GET
+  @Path("/commands")
+  @Produces(MediaType.APPLICATION_JSON)
+  public String getTopCommands(@QueryParam("connectionId") final String connectionId,
+      @QueryParam("all") final boolean all, @QueryParam("sortBy") final String sortBy,
+      @DefaultValue("20") @QueryParam("limit") final int limit,
+      @Context final HttpServletRequest request) throws JSONException {
+
+    String response =
+        new ResponseTemplate().execute(logger, connectionId, request, new ResponseCallback() {
+          public Object execute() throws Exception {
+            Collection<String> connectionIds = Collections.singleton(connectionId);
+            if (all) {
+              Collection<String> inSession = getConnectionIdsInSession(request);
+              connectionIds = inSession == null ? connectionIds : inSession;
+            }
+            return CommandStatistics.getInstance().getTopCommands(connectionIds, sortBy,
+                Math.max(1, limit));
+          }
+        });
+    return response;
+  }
+
+  /**
+   * Forget the commands recorded for a connection.
+   *
+   * @param connectionId Mongo Db Configuration provided by user to connect to.
+   * @param request Get the HTTP request context to extract session parameters
+   * @return String of JSON Format with the status.
+   */
+  @DELETE
+  @Path("/commands")
+  @Produces(MediaType.APPLICATION_JSON)
+  public String resetCommands(@QueryParam("connectionId") final String connectionId,
+      @Context final HttpServletRequest request) throws JSONException {
+
+    String response =
+        new ResponseTemplate().execute(logger, connectionId, request, new ResponseCallback() {
+          public Object execute() throws Exception {
+            CommandStatistics.getInstance().removeConnection(connectionId);
+            return "Command statistics reset";
+          }
+        });
+    return response;
+  }
+
+  /**
+   * GET the size, object count and index size of every database at once. The overview is cached
+   * per connection and refreshed in the background once it gets old.
+   *
+   * @param refresh Fetch the overview again before answering
+   * @param connectionId Mongo Db Configuration provided by user to connect to.
+   * @param request Get the HTTP request context to extract session parameters
+   * @return String of JSON Format with the stats of each database.
+   */
+  @GET
+  @Path("/databases")
+  @Produces(MediaType.APPLICATION_JSON)
+  public String getDatabasesOverview(@QueryParam("refresh") final boolean refresh,
+      @QueryParam("connectionId") final String connectionId,
+      @Context final HttpServletRequest request) throws JSONException {
+
+    String response =
+        new ResponseTemplate().execute(logger, connectionId, request, new ResponseCallback() {
+          public Object execute() throws Exception {
+            DatabaseService databaseService =
+                ServiceProvider.getServiceContext(connectionId).getDatabaseService();
+            return databaseService.getDatabasesOverview(refresh);
+          }
+        });
+    return response;
+  }
+
   /**
    * GET Statistics of a particular database.
    *
@@ -94,13 +247,43 @@ public class StatisticsController extends BaseController {
     String response =
         new ResponseTemplate().execute(logger, connectionId, request, new ResponseCallback() {
           public Object execute() throws Exception {
-            DatabaseService databaseService = new DatabaseServiceImpl(connectionId);
+            DatabaseService databaseService =
+                ServiceProvider.getServiceContext(connectionId).getDatabaseService();
             return databaseService.getDbStats(dbName);
           }
         });
     return response;
   }
 
+  /**
+   * GET Statistics of all the Collections of a Database at once, with numbers kept as numbers.
+   * The stats are fetched concurrently and cached for a short while.
+   *
+   * @param dbName : Name of Database
+   * @param refresh : Fetch the stats again even when they are cached
+   * @param connectionId Mongo Db Configuration provided by user to connect to.
+   * @param request : Get the HTTP request context to extract session parameters
+   * @return : A String of JSON Format with the stats of each collection and their totals.
+   */
+  @GET
+  @Path("/db/{dbName}/collections")
+  @Produces(MediaType.APPLICATION_JSON)
+  public String getAllCollStats(@PathParam("dbName") final String dbName,
+      @QueryParam("refresh") final boolean refresh,
+      @QueryParam("connectionId") final String connectionId,
+      @Context final HttpServletRequest request) throws JSONException {
+
+    String response =
+        new ResponseTemplate().execute(logger, connectionId, request, new ResponseCallback() {
+          public Object execute() throws Exception {
+            CollectionService collectionService =
+                ServiceProvider.getServiceContext(connectionId).getCollectionService();
+            return collectionService.getAllCollStats(dbName, refresh);
+          }
+        });
+    return response;
+  }
+
   /**
    * GET Statistics of Collections in a Database present in mongo.
    *
@@ -122,7 +305,8 @@ public class StatisticsController extends BaseController {
         new ResponseTemplate().execute(logger, connectionId, request, new ResponseCallback() {
           public Object execute() throws Exception {
 
-            CollectionService collectionService = new CollectionServiceImpl(connectionId);
+            CollectionService collectionService =
+                ServiceProvider.getServiceContext(connectionId).getCollectionService();
             // Get the result;
             return collectionService.getCollStats(dbName, collectionName);
           }
@@ -41,8 +41,8 @@ import org.bson.Document;
  * @since 9 september 2012
  */
 
+import com.imaginea.mongodb.services.ServiceProvider;
 import com.imaginea.mongodb.services.SystemCollectionService;
-import com.imaginea.mongodb.services.impl.SystemCollectionServiceImpl;
 
 import io.swagger.annotations.Api;
 
@@ -82,7 +82,7 @@ public class SystemCollectionController extends BaseController {
           public Object execute() throws Exception {
 
             SystemCollectionService systemCollectionService =
-                new SystemCollectionServiceImpl(connectionId);
+                ServiceProvider.getServiceContext(connectionId).getSystemCollectionService();
 
             return systemCollectionService.addUser(dbName, username, password, roles, dbSource);
           }
@@ -122,7 +122,7 @@ public class SystemCollectionController extends BaseController {
             public Object execute() throws Exception {
 
               SystemCollectionService systemCollectionService =
-                  new SystemCollectionServiceImpl(connectionId);
+                  ServiceProvider.getServiceContext(connectionId).getSystemCollectionService();
 
               return systemCollectionService.modifyUser(dbName, username, password, revokedRoles , grantNewRoles ,dbSource);
             }
@@ -153,7 +153,7 @@ public class SystemCollectionController extends BaseController {
         new ResponseTemplate().execute(logger, connectionId, request, new ResponseCallback() {
           public Object execute() throws Exception {
             SystemCollectionService systemCollectionService =
-                new SystemCollectionServiceImpl(connectionId);
+                ServiceProvider.getServiceContext(connectionId).getSystemCollectionService();
             return systemCollectionService.removeUser(dbName, username);
           }
         });
@@ -170,7 +170,7 @@ public class SystemCollectionController extends BaseController {
         new ResponseTemplate().execute(logger, connectionId, request, new ResponseCallback() {
           public Object execute() throws Exception {
             SystemCollectionService systemCollectionService =
-                new SystemCollectionServiceImpl(connectionId);
+                ServiceProvider.getServiceContext(connectionId).getSystemCollectionService();
             return systemCollectionService.getUsers(dbName);
           }
         });
@@ -199,7 +199,7 @@ public class SystemCollectionController extends BaseController {
         new ResponseTemplate().execute(logger, connectionId, request, new ResponseCallback() {
           public Object execute() throws Exception {
             SystemCollectionService systemCollectionService =
-                new SystemCollectionServiceImpl(connectionId);
+                ServiceProvider.getServiceContext(connectionId).getSystemCollectionService();
             return systemCollectionService.removeAllUsers(dbName);
           }
         });
@@ -234,7 +234,7 @@ public class SystemCollectionController extends BaseController {
             // Convert the json keys into a DB object
             Document keys = Document.parse(index_keys);
             SystemCollectionService systemCollectionService =
-                new SystemCollectionServiceImpl(connectionId);
+                ServiceProvider.getServiceContext(connectionId).getSystemCollectionService();
             return systemCollectionService.addIndex(dbName, collectionName, keys);
           }
 
@@ -270,7 +270,7 @@ public class SystemCollectionController extends BaseController {
             // Convert the json keys into a DB object
             Document keys = Document.parse(index_keys);
             SystemCollectionService systemCollectionService =
-                new SystemCollectionServiceImpl(connectionId);
+                ServiceProvider.getServiceContext(connectionId).getSystemCollectionService();
             return systemCollectionService.updateIndex(dbName, collectionName, keys);
           }
 
@@ -294,7 +294,7 @@ public class SystemCollectionController extends BaseController {
           public Object execute() throws Exception {
             // Convert the keys into json object
             SystemCollectionService systemCollectionService =
-                new SystemCollectionServiceImpl(connectionId);
+                ServiceProvider.getServiceContext(connectionId).getSystemCollectionService();
             return systemCollectionService.getIndex(dbName, collectionName);
           }
 
@@ -303,6 +303,35 @@ public class SystemCollectionController extends BaseController {
     return response;
   }
 
+  /**
+   * Maps to the GET request for the usage of all the indexes of a database, with the unused and
+   * redundant ones flagged.
+   *
+   * @param dbName Name of the database
+   * @param connectionId Mongo Db Configuration provided by user to connect to.
+   * @param request Get the HTTP request context to extract session parameters
+   * @return Indexes per collection with their size, usage and redundancy
+   */
+  @GET
+  @Produces(MediaType.APPLICATION_JSON)
+  @Path("indexUsage")
+  public String getIndexUsage(@PathParam("dbName") final String dbName,
+      @QueryParam("connectionId") final String connectionId,
+      @Context final HttpServletRequest request) {
+
+    String response =
+        new ResponseTemplate().execute(logger, connectionId, request, new ResponseCallback() {
+          public Object execute() throws Exception {
+            SystemCollectionService systemCollectionService =
+                ServiceProvider.getServiceContext(connectionId).getSystemCollectionService();
+            return systemCollectionService.getIndexUsage(dbName);
+          }
+
+        });
+
+    return response;
+  }
+
   /**
    * Maps to the POST request for dropping all the indexes in all collection from a give database.
    *
@@ -323,7 +352,7 @@ public class SystemCollectionController extends BaseController {
           @Override
           public Object execute() throws Exception {
             SystemCollectionService systemCollectionService =
-                new SystemCollectionServiceImpl(connectionId);
+                ServiceProvider.getServiceContext(connectionId).getSystemCollectionService();
             return systemCollectionService.removeIndexes(dbName);
           }
         });
@@ -356,7 +385,7 @@ public class SystemCollectionController extends BaseController {
           @Override
           public Object execute() throws Exception {
             SystemCollectionService systemCollectionService =
-                new SystemCollectionServiceImpl(connectionId);
+                ServiceProvider.getServiceContext(connectionId).getSystemCollectionService();
             // The collection name is obtained by removing the DB name from the namespace.
             String collectionName = nameSpace.replace(dbName + ".", "");
             return systemCollectionService.removeIndex(dbName, collectionName, indexName);
@@ -14,6 +14,8 @@ public class ConnectionDetails {
   private String dbName;
   private Set<String> authenticatedDbNames = new HashSet<String>();
   private boolean authMode;
+  private ConnectionOptions connectionOptions;
+  private String connectionString;
 
   public ConnectionDetails(String hostIp, int hostPort, String username, String password,
       String dbName) {
@@ -80,6 +82,26 @@ public class ConnectionDetails {
     this.authMode = authMode;
   }
 
+  public ConnectionOptions getConnectionOptions() {
+    return connectionOptions;
+  }
+
+  public void setConnectionOptions(ConnectionOptions connectionOptions) {
+    this.connectionOptions = connectionOptions;
+  }
+
+  /**
+   * @return MongoDB connection string (mongodb://host1,host2/?replicaSet=rs) given at login or
+   *         null when the login was made with a single host and port.
+   */
+  public String getConnectionString() {
+    return connectionString;
+  }
+
+  public void setConnectionString(String connectionString) {
+    this.connectionString = connectionString;
+  }
+
   public boolean isAdminLogin() {
     return authenticatedDbNames.contains("admin");
   }
@@ -110,6 +132,14 @@ public class ConnectionDetails {
     if (username != null ? !username.equals(that.username) : that.username != null) {
       return false;
     }
+    if (connectionString != null ? !connectionString.equals(that.connectionString)
+        : that.connectionString != null) {
+      return false;
+    }
+    if (connectionOptions != null ? !connectionOptions.equals(that.connectionOptions)
+        : that.connectionOptions != null) {
+      return false;
+    }
 
     return true;
   }
@@ -121,6 +151,7 @@ public class ConnectionDetails {
     result = 31 * result + (username != null ? username.hashCode() : 0);
     result = 31 * result + (password != null ? password.hashCode() : 0);
     result = 31 * result + (dbName != null ? dbName.hashCode() : 0);
+    result = 31 * result + (connectionString != null ? connectionString.hashCode() : 0);
     if (result == Integer.MIN_VALUE) {
       return Integer.MAX_VALUE;
     }
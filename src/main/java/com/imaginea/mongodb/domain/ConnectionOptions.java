@@ -0,0 +1,130 @@
+package com.imaginea.mongodb.domain;
+
+/**
+ * Per login overrides of the mongo client settings. Any option left null falls back to the value
+ * configured in mViewer.properties and then to the driver default.
+ */
+public class ConnectionOptions {
+
+  private Integer minConnectionsPerHost;
+  private Integer connectionsPerHost;
+  private Integer threadsAllowedToBlockForConnectionMultiplier;
+  private Integer maxWaitTime;
+  private Integer maxConnectionIdleTime;
+  private Integer connectTimeout;
+  private Integer socketTimeout;
+  private Integer serverSelectionTimeout;
+  private Integer heartbeatFrequency;
+  private String readPreference;
+
+  public ConnectionOptions() {}
+
+  public Integer getMinConnectionsPerHost() {
+    return minConnectionsPerHost;
+  }
+
+  public void setMinConnectionsPerHost(Integer minConnectionsPerHost) {
+    this.minConnectionsPerHost = minConnectionsPerHost;
+  }
+
+  public Integer getConnectionsPerHost() {
+    return connectionsPerHost;
+  }
+
+  public void setConnectionsPerHost(Integer connectionsPerHost) {
+    this.connectionsPerHost = connectionsPerHost;
+  }
+
+  public Integer getThreadsAllowedToBlockForConnectionMultiplier() {
+    return threadsAllowedToBlockForConnectionMultiplier;
+  }
+
+  public void setThreadsAllowedToBlockForConnectionMultiplier(
+      Integer threadsAllowedToBlockForConnectionMultiplier) {
+    this.threadsAllowedToBlockForConnectionMultiplier =
+        threadsAllowedToBlockForConnectionMultiplier;
+  }
+
+  public Integer getMaxWaitTime() {
+    return maxWaitTime;
+  }
+
+  public void setMaxWaitTime(Integer maxWaitTime) {
+    this.maxWaitTime = maxWaitTime;
+  }
+
+  public Integer getMaxConnectionIdleTime() {
+    return maxConnectionIdleTime;
+  }
+
+  public void setMaxConnectionIdleTime(Integer maxConnectionIdleTime) {
+    this.maxConnectionIdleTime = maxConnectionIdleTime;
+  }
+
+  public Integer getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  public void setConnectTimeout(Integer connectTimeout) {
+    this.connectTimeout = connectTimeout;
+  }
+
+  public Integer getSocketTimeout() {
+    return socketTimeout;
+  }
+
+  public void setSocketTimeout(Integer socketTimeout) {
+    this.socketTimeout = socketTimeout;
+  }
+
+  public Integer getServerSelectionTimeout() {
+    return serverSelectionTimeout;
+  }
+
+  public void setServerSelectionTimeout(Integer serverSelectionTimeout) {
+    this.serverSelectionTimeout = serverSelectionTimeout;
+  }
+
+  public Integer getHeartbeatFrequency() {
+    return heartbeatFrequency;
+  }
+
+  public void setHeartbeatFrequency(Integer heartbeatFrequency) {
+    this.heartbeatFrequency = heartbeatFrequency;
+  }
+
+  public String getReadPreference() {
+    return readPreference;
+  }
+
+  public void setReadPreference(String readPreference) {
+    this.readPreference = readPreference;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof ConnectionOptions)) {
+      return false;
+    }
+    return toString().equals(o.toString());
+  }
+
+  @Override
+  public int hashCode() {
+    return toString().hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return "ConnectionOptions [minConnectionsPerHost=" + minConnectionsPerHost
+        + ", connectionsPerHost=" + connectionsPerHost
+        + ", threadsAllowedToBlockForConnectionMultiplier="
+        + threadsAllowedToBlockForConnectionMultiplier + ", maxWaitTime=" + maxWaitTime
+        + ", maxConnectionIdleTime=" + maxConnectionIdleTime + ", connectTimeout=" + connectTimeout
+        + ", socketTimeout=" + socketTimeout + ", serverSelectionTimeout=" + serverSelectionTimeout
+        + ", heartbeatFrequency=" + heartbeatFrequency + ", readPreference=" + readPreference + "]";
+  }
+}
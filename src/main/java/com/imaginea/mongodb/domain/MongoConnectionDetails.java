@@ -1,17 +1,25 @@
 package com.imaginea.mongodb.domain;
 
 import com.mongodb.MongoClient;
+import com.mongodb.ReadPreference;
 
 public class MongoConnectionDetails {
   private ConnectionDetails connectionDetails;
   private MongoClient mongo;
   private String connectionId;
+  private ReadPreference readPreference;
 
   public MongoConnectionDetails(ConnectionDetails connectionDetails, MongoClient mongo,
       String connectionId) {
+    this(connectionDetails, mongo, connectionId, ReadPreference.primary());
+  }
+
+  public MongoConnectionDetails(ConnectionDetails connectionDetails, MongoClient mongo,
+      String connectionId, ReadPreference readPreference) {
     this.connectionDetails = connectionDetails;
     this.mongo = mongo;
     this.connectionId = connectionId;
+    this.readPreference = readPreference;
   }
 
   public ConnectionDetails getConnectionDetails() {
@@ -25,4 +33,14 @@ public class MongoConnectionDetails {
   public String getConnectionId() {
     return connectionId;
   }
+
+  /**
+   * Read preference used for browsing: queries, counts, key scans and stats. The client itself
+   * reads from the primary, so writes and every other read stay on the primary.
+   *
+   * @return read preference for the read only operations of this connection
+   */
+  public ReadPreference getReadPreference() {
+    return readPreference;
+  }
 }
@@ -10,6 +10,8 @@ public class UserLoginData {
   private String host;
   private String port;
   private String databases;
+  private String connectionString;
+  private ConnectionOptions connectionOptions;
 
   public UserLoginData() {
     // TODO Auto-generated constructor stub
@@ -55,10 +57,28 @@ public class UserLoginData {
     this.databases = databases;
   }
 
+  public String getConnectionString() {
+    return connectionString;
+  }
+
+  public void setConnectionString(String connectionString) {
+    this.connectionString = connectionString;
+  }
+
+  public ConnectionOptions getConnectionOptions() {
+    return connectionOptions;
+  }
+
+  public void setConnectionOptions(ConnectionOptions connectionOptions) {
+    this.connectionOptions = connectionOptions;
+  }
+
   @Override
   public String toString() {
     return "UserLoginData [userName=" + userName + ", password=" + password + ", host=" + host
-        + ", port=" + port + ", databases=" + databases + "]";
+        + ", port=" + port + ", databases=" + databases + ", connectionString=" + connectionString
+        + ", connectionOptions="
+        + connectionOptions + "]";
   }
 
 }
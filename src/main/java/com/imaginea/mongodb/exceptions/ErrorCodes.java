@@ -43,6 +43,10 @@ public interface ErrorCodes {
     String INVALID_USERNAME = "INVALID_USERNAME";
     String NEED_AUTHORISATION = "NEED_AUTHORISATION";
     String ERROR_INITIATING_GRAPH = "ERROR_INITIATING_GRAPH";
+    String GRAPH_HISTORY_DISABLED = "GRAPH_HISTORY_DISABLED";
+    String CURRENT_OP_FAILED = "CURRENT_OP_FAILED";
+    String PROFILER_EXCEPTION = "PROFILER_EXCEPTION";
+    String INDEX_USAGE_EXCEPTION = "INDEX_USAGE_EXCEPTION";
     String INVALID_ARGUMENT = "INVALID_ARGUMENT";
 
     String INVALID_PORT = "INVALID_PORT";
@@ -84,6 +88,7 @@ public interface ErrorCodes {
     String COLLECTION_CREATION_EXCEPTION = "COLLECTION_CREATION_EXCEPTION";
     String COLLECTION_UPDATE_EXCEPTION = "COLLECTION_UPDATE_EXCEPTION";
     String UPLOAD_FILE_EXCEPTION = "UPLOAD_FILE_EXCEPTION";
+    String DOWNLOAD_FILE_EXCEPTION = "DOWNLOAD_FILE_EXCEPTION";
     String UPDATE_OBJECT_ID_EXCEPTION = "UPDATE_OBJECT_ID_EXCEPTION";
 
 
@@ -97,4 +102,5 @@ public interface ErrorCodes {
     String USER_DELETION_EXCEPTION = "USER_DELETION_EXCEPTION";
     String ANY_OTHER_EXCEPTION = "ANY_OTHER_EXCEPTION";
     String LEGACY_MONGO_DB_EXCEPTION = "LEGACY_MONGO_DB_EXCEPTION";
+    String TOO_MANY_REQUESTS = "TOO_MANY_REQUESTS";
 }
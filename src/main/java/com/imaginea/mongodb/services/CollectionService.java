@@ -11,6 +11,7 @@
  */
 package com.imaginea.mongodb.services;
 
+import com.imaginea.mongodb.exceptions.ApplicationException;
 import com.imaginea.mongodb.exceptions.CollectionException;
 import com.imaginea.mongodb.exceptions.DatabaseException;
 import com.imaginea.mongodb.exceptions.ValidationException;
@@ -111,6 +112,18 @@ public interface CollectionService {
   public JSONArray getCollStats(String dbName, String collectionName)
       throws DatabaseException, CollectionException, ValidationException, JSONException;
 
+  /**
+   * Get Statistics of all the collections of a database at once. The collections are listed once
+   * and their stats are fetched concurrently. Results are kept for a short while.
+   *
+   * @param dbName Name of Database
+   * @param refresh Whether to fetch the stats again even when they are cached
+   * @return Typed stats of each collection along with the totals of the database
+   * @throws ApplicationException When the database name is empty or the collections cannot be
+   *         listed
+   */
+  public JSONObject getAllCollStats(String dbName, boolean refresh) throws ApplicationException;
+
   public JSONObject isCappedCollection(String dbName, String collectionName)
       throws DatabaseException, CollectionException, ValidationException;
 
@@ -11,6 +11,7 @@
  */
 package com.imaginea.mongodb.services;
 
+import com.imaginea.mongodb.exceptions.ApplicationException;
 import com.imaginea.mongodb.exceptions.DatabaseException;
 import com.imaginea.mongodb.exceptions.InvalidMongoCommandException;
 import com.imaginea.mongodb.exceptions.ValidationException;
@@ -51,6 +52,18 @@ public interface DatabaseService {
   public JSONArray getDbStats(String dbName)
       throws DatabaseException, ValidationException, JSONException;
 
+  /**
+   * Returns the size, object count and index size of every database at once. The overview is
+   * cached per connection; once it is older than its time to live it is still answered right away
+   * while a fresh one is fetched in the background.
+   *
+   * @param refresh Whether to fetch the overview again right now
+   * @return Typed stats of each database, when they were collected and whether a refresh is
+   *         running
+   * @throws ApplicationException When the databases cannot be listed
+   */
+  public JSONObject getDatabasesOverview(boolean refresh) throws ApplicationException;
+
   /**
    * Creates a Database with the specified name in mongo database to which user is connected to.
    *
@@ -11,10 +11,13 @@
  */
 package com.imaginea.mongodb.services;
 
-import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
 import java.util.Set;
 
+import org.bson.Document;
 import org.glassfish.jersey.media.multipart.FormDataContentDisposition;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -26,6 +29,7 @@ import com.imaginea.mongodb.exceptions.DatabaseException;
 import com.imaginea.mongodb.exceptions.DocumentException;
 import com.imaginea.mongodb.exceptions.GridFSException;
 import com.imaginea.mongodb.exceptions.ValidationException;
+import com.mongodb.client.gridfs.model.GridFSFile;
 
 /**
  * Declares service methods for performing CRUD operations on files stored in GridFS.
@@ -63,15 +67,69 @@ public interface GridFSService {
       throws ApplicationException, JSONException;
 
   /**
-   * Service handler for retrieving the specified file stored in GridFS.
+   * Service handler for looking up a file stored in GridFS without reading its content.
    *
    * @param dbName Name of Database
    * @param bucketName Name of GridFS Bucket
    * @param id ObjectId of the file to be retrieved
-   * @return Requested multipartfile for viewing or download based on 'download' param.
+   * @return Entry of the file in the files collection of the bucket
    */
-  public File getFile(String dbName, String bucketName, String id)
-      throws ValidationException, DatabaseException, CollectionException;
+  public GridFSFile getFileInfo(String dbName, String bucketName, String id)
+      throws ApplicationException;
+
+  /**
+   * Service handler for finding the MIME type of a file stored in GridFS. The content type saved
+   * in the metadata of the file is used when present, else it is detected from the leading bytes
+   * of the first chunk.
+   *
+   * @param dbName Name of Database
+   * @param bucketName Name of GridFS Bucket
+   * @param file Entry of the file in the files collection
+   * @return MIME type of the file
+   */
+  public String getContentType(String dbName, String bucketName, GridFSFile file)
+      throws ApplicationException;
+
+  /**
+   * Service handler for streaming the content of a file stored in GridFS, or a byte range of it.
+   * Only the chunks covering the range are read from the server.
+   *
+   * @param dbName Name of Database
+   * @param bucketName Name of GridFS Bucket
+   * @param file Entry of the file in the files collection
+   * @param offset Offset of the first byte to be written
+   * @param length Number of bytes to be written
+   * @param out Stream the bytes are written to
+   * @throws IOException When writing fails or chunks of the file are missing
+   */
+  public void writeFile(String dbName, String bucketName, GridFSFile file, long offset,
+      long length, OutputStream out) throws IOException;
+
+  /**
+   * Service handler for building the filter of the files to be put into an archive.
+   *
+   * @param query Filter on the files, as typed for the listing of the bucket. May be null.
+   * @param ids ObjectIds of the files. May be null.
+   * @return Filter matching the files that pass the query and are among the ids, all the files of
+   *         the bucket when neither is given
+   */
+  public Document getArchiveFilter(String query, List<String> ids) throws ApplicationException;
+
+  /**
+   * Service handler for streaming the files stored in GridFS that match a filter as a ZIP
+   * archive. The archive is built while it is written, one file at a time, so memory does not
+   * grow with its size. Contents that are compressed already are stored without compressing
+   * them again.
+   *
+   * @param dbName Name of Database
+   * @param bucketName Name of GridFS Bucket
+   * @param filter Filter on the files collection
+   * @param out Stream the archive is written to
+   * @return Number of files written
+   * @throws IOException When writing fails or chunks of a file are missing
+   */
+  public int writeArchive(String dbName, String bucketName, Document filter, OutputStream out)
+      throws IOException;
 
   /**
    * Service handler for uploading a file to GridFS.
@@ -81,11 +139,18 @@ public interface GridFSService {
    * @param formData formDataBodyPart of the uploaded file
    * @param inputStream inputStream of the uploaded file
    * @param connectionId ConnectionId of the connection
+   * @param chunkSize Size of the chunks of the file in bytes. The one configured for the bucket is
+   *        used when null.
+   * @param dedup Whether content already stored in the bucket is shared instead of stored again.
+   *        The configured mode is used when null.
+   * @param sha256 SHA-256 of the content given by the client. When the bucket holds it, the
+   *        upload is checked against it and no chunk is written. May be null.
    * @return Success message with additional file details such as name, size, download url &
    *         deletion url as JSON Array string.
    */
   public JSONArray insertFile(String dbName, String bucketName, String connectionId,
-      InputStream inputStream, FormDataContentDisposition fileData) throws ApplicationException;
+      InputStream inputStream, FormDataContentDisposition fileData, Integer chunkSize,
+      Boolean dedup, String sha256) throws ApplicationException;
 
   /**
    * Service handler for dropping a file from GridFS.
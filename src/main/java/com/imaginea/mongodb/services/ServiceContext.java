@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.services;
+
+import com.imaginea.mongodb.domain.MongoConnectionDetails;
+import com.imaginea.mongodb.services.impl.CollectionServiceImpl;
+import com.imaginea.mongodb.services.impl.CurrentOpPoller;
+import com.imaginea.mongodb.services.impl.DatabaseServiceImpl;
+import com.imaginea.mongodb.services.impl.DocumentServiceImpl;
+import com.imaginea.mongodb.services.impl.GridFSServiceImpl;
+import com.imaginea.mongodb.services.impl.QueryProfiler;
+import com.imaginea.mongodb.services.impl.ServerStatusSampler;
+import com.imaginea.mongodb.services.impl.SystemCollectionServiceImpl;
+import com.imaginea.mongodb.utils.CommandStatistics;
+import com.imaginea.mongodb.utils.ConcurrencyLimiter;
+import com.imaginea.mongodb.utils.NamespaceCache;
+import com.imaginea.mongodb.utils.ParsedQueryCache;
+
+/**
+ * Services of one connection along with the caches they share. A context is created by
+ * {@link ServiceProvider} when the connection is made and closed when it is disconnected, so the
+ * controllers reuse the same service instances for every request of the connection.
+ */
+public class ServiceContext {
+
+  private final String connectionId;
+  private final MongoConnectionDetails mongoConnectionDetails;
+  private final NamespaceCache namespaceCache = new NamespaceCache();
+  private final ParsedQueryCache queryCache = new ParsedQueryCache();
+
+  private final DatabaseService databaseService;
+  private final CollectionService collectionService;
+  private final DocumentService documentService;
+  private final GridFSService gridFSService;
+  private final SystemCollectionService systemCollectionService;
+  private final ServerStatusSampler serverStatusSampler;
+  private final CurrentOpPoller currentOpPoller;
+  private final QueryProfiler queryProfiler;
+
+  ServiceContext(MongoConnectionDetails mongoConnectionDetails) {
+    this.connectionId = mongoConnectionDetails.getConnectionId();
+    this.mongoConnectionDetails = mongoConnectionDetails;
+    // Services are created in order of their dependencies on one another
+    this.databaseService = new DatabaseServiceImpl(this);
+    this.collectionService = new CollectionServiceImpl(this);
+    this.documentService = new DocumentServiceImpl(this);
+    this.gridFSService = new GridFSServiceImpl(this);
+    this.systemCollectionService = new SystemCollectionServiceImpl(this);
+    this.serverStatusSampler = new ServerStatusSampler(mongoConnectionDetails.getMongo());
+    this.currentOpPoller = new CurrentOpPoller(mongoConnectionDetails.getMongo());
+    this.queryProfiler = new QueryProfiler(mongoConnectionDetails.getMongo());
+  }
+
+  public String getConnectionId() {
+    return connectionId;
+  }
+
+  public MongoConnectionDetails getMongoConnectionDetails() {
+    return mongoConnectionDetails;
+  }
+
+  public NamespaceCache getNamespaceCache() {
+    return namespaceCache;
+  }
+
+  public ParsedQueryCache getQueryCache() {
+    return queryCache;
+  }
+
+  public DatabaseService getDatabaseService() {
+    return databaseService;
+  }
+
+  public CollectionService getCollectionService() {
+    return collectionService;
+  }
+
+  public DocumentService getDocumentService() {
+    return documentService;
+  }
+
+  public GridFSService getGridFSService() {
+    return gridFSService;
+  }
+
+  public SystemCollectionService getSystemCollectionService() {
+    return systemCollectionService;
+  }
+
+  /**
+   * @return Background sampler of the server status feeding the graphs. It is started on demand.
+   */
+  public ServerStatusSampler getServerStatusSampler() {
+    return serverStatusSampler;
+  }
+
+  /**
+   * @return Background poller of the operations in progress. It is started on demand.
+   */
+  public CurrentOpPoller getCurrentOpPoller() {
+    return currentOpPoller;
+  }
+
+  /**
+   * @return Slow query statistics read from the database profiler
+   */
+  public QueryProfiler getQueryProfiler() {
+    return queryProfiler;
+  }
+
+  /**
+   * Stops the background work of the connection and drops its cached state.
+   */
+  void close() {
+    serverStatusSampler.close();
+    currentOpPoller.close();
+    namespaceCache.clear();
+    queryCache.clear();
+    CommandStatistics.getInstance().removeConnection(connectionId);
+    ConcurrencyLimiter.getInstance().removeConnection(connectionId);
+  }
+}
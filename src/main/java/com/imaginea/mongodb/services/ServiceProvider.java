@@ -1,5 +1,10 @@
 package com.imaginea.mongodb.services;
 
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.imaginea.mongodb.exceptions.ApplicationException;
+import com.imaginea.mongodb.exceptions.ErrorCodes;
+import com.imaginea.mongodb.services.impl.AuthServiceImpl;
 import com.imaginea.mongodb.services.impl.CollectionServiceImpl;
 import com.imaginea.mongodb.services.impl.DatabaseServiceImpl;
 import com.imaginea.mongodb.services.impl.DocumentServiceImpl;
@@ -12,6 +17,60 @@ import com.imaginea.mongodb.services.impl.DocumentServiceImpl;
  */
 public class ServiceProvider {
 
+  private static final ConcurrentHashMap<String, ServiceContext> serviceContexts =
+      new ConcurrentHashMap<String, ServiceContext>();
+
+  /**
+   * Returns the services of a connection, creating them on first use.
+   *
+   * @param connectionId Connection given at login
+   * @return Service context of the connection
+   * @throws ApplicationException INVALID_CONNECTION if the connection does not exist
+   */
+  public static ServiceContext getServiceContext(String connectionId) throws ApplicationException {
+    if (connectionId == null) {
+      throw new ApplicationException(ErrorCodes.INVALID_CONNECTION, "Invalid Connection");
+    }
+    ServiceContext serviceContext = serviceContexts.get(connectionId);
+    if (serviceContext != null) {
+      return serviceContext;
+    }
+    synchronized (serviceContexts) {
+      serviceContext = serviceContexts.get(connectionId);
+      if (serviceContext == null) {
+        serviceContext = new ServiceContext(
+            AuthServiceImpl.getInstance().getMongoConnectionDetails(connectionId));
+        serviceContexts.put(connectionId, serviceContext);
+      }
+    }
+    return serviceContext;
+  }
+
+  /**
+   * Tells whether a connection is open, without opening its services.
+   *
+   * @param connectionId Connection given at login
+   * @return true when the services of the connection exist
+   */
+  public static boolean isOpen(String connectionId) {
+    return connectionId != null && serviceContexts.containsKey(connectionId);
+  }
+
+  /**
+   * Closes the services of a connection that was disconnected.
+   *
+   * @param connectionId Connection given at login
+   */
+  public static void closeServiceContext(String connectionId) {
+    if (connectionId == null) {
+      return;
+    }
+    ServiceContext serviceContext = serviceContexts.remove(connectionId);
+    if (serviceContext != null) {
+      serviceContext.close();
+    }
+  }
+
   // TODO Usage of this function in each service file
 
   /**
@@ -78,6 +78,16 @@ public interface SystemCollectionService {
    */
   
   public JSONObject getUsers(String dbName) throws ApplicationException;
+
+  /**
+   * Get the roles and privileges of a user of the given mongo db
+   *
+   * @param dbName Name of the database
+   * @param userName Name of the user
+   * @return Returns the roles and privileges of the user
+   * @throws DatabaseException throw super type of UndefinedDatabaseException
+   */
+  public JSONObject getUsersPrivileges(String dbName, String userName) throws ApplicationException;
   
   /**
    * Drops all the users from the given mongo db
@@ -148,4 +158,22 @@ public interface SystemCollectionService {
    */
   public String removeIndex(String dbName, String collectionName, String indexName)
       throws ApplicationException;
+
+  /**
+   * Gets the version of the mongo server
+   *
+   * @param dataBaseName Name of the database to run the buildInfo command on
+   * @return Returns the version of the mongo server
+   */
+  public String getMongoClientVersion(String dataBaseName) throws ApplicationException;
+
+  /**
+   * Gets the usage, size and redundancy of every index of a database
+   *
+   * @param dbName Name of the database
+   * @return Indexes per collection, flagged when unused or redundant, and the memory their removal
+   *         would free
+   * @throws DatabaseException throw super type of UndefinedDatabaseException
+   */
+  public JSONObject getIndexUsage(String dbName) throws ApplicationException;
 }
@@ -6,8 +6,13 @@ import com.imaginea.mongodb.exceptions.ApplicationException;
 import com.imaginea.mongodb.exceptions.DatabaseException;
 import com.imaginea.mongodb.exceptions.ErrorCodes;
 import com.imaginea.mongodb.services.AuthService;
+import com.imaginea.mongodb.services.ServiceProvider;
+import com.imaginea.mongodb.utils.CommandMetricsListener;
+import com.imaginea.mongodb.utils.ConfigurationUtils;
+import com.imaginea.mongodb.utils.MongoClientOptionsFactory;
+import com.imaginea.mongodb.utils.RequestMetrics;
 import com.mongodb.*;
-import com.mongodb.client.MongoDatabase;
+import org.bson.Document;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
@@ -24,8 +29,16 @@ public class AuthServiceImpl implements AuthService {
     private final Map<String, Collection<MongoConnectionDetails>> allConnectionDetails =
             new ConcurrentHashMap<String, Collection<MongoConnectionDetails>>();
 
+    private final Map<String, AuthModeProbe> authModeProbes =
+            new ConcurrentHashMap<String, AuthModeProbe>();
+
     private final int SECONDS = 1000;
 
+    private static final String AUTH_PROBE_CACHE_TTL = "MONGO_AUTH_PROBE_CACHE_TTL";
+    private static final long DEFAULT_AUTH_PROBE_CACHE_TTL = 60 * 1000;
+    private static final long UNKNOWN_AUTH_MODE_TTL = 5 * 1000;
+    private static final int UNAUTHORIZED = 13;
+
     private AuthServiceImpl() {
     }
 
@@ -33,17 +46,6 @@ public class AuthServiceImpl implements AuthService {
     public String authenticate(ConnectionDetails connectionDetails) throws ApplicationException {
         sanitizeConnectionDetails(connectionDetails);
         String connectionDetailsHashCode = String.valueOf(connectionDetails.hashCode());
-        boolean authMode = checkAuthMode(connectionDetails);
-        connectionDetails.setAuthMode(authMode);
-        if (authMode) {
-            String username = connectionDetails.getUsername();
-            String pwd = connectionDetails.getPassword();
-            String db = connectionDetails.getDbName();
-            if (username == null || pwd == null || db == null) {
-                throw new ApplicationException(ErrorCodes.NEED_AUTHORISATION,
-                        "Mongo DB Running in Auth Mode. Please perform Authentication.");
-            }
-        }
         Collection<MongoConnectionDetails> mongoConnectionDetailsList =
                 allConnectionDetails.get(connectionDetailsHashCode);
         if (mongoConnectionDetailsList != null) {
@@ -54,68 +56,95 @@ public class AuthServiceImpl implements AuthService {
             }
         }
 
-        MongoClient mongo = getMongoAndAuthenticate(connectionDetails);
-
         String connectionId =
                 SUCCESSFUL_CONNECTIONS_COUNT.incrementAndGet() + "_" + connectionDetailsHashCode;
+        MongoConnectionDetails mongoConnectionDetails =
+                getMongoAndAuthenticate(connectionDetails, connectionId);
+
         if (mongoConnectionDetailsList == null) {
             mongoConnectionDetailsList = new ArrayList<>(1);
             allConnectionDetails.put(connectionDetailsHashCode, mongoConnectionDetailsList);
         }
-        mongoConnectionDetailsList
-                .add(new MongoConnectionDetails(connectionDetails, mongo, connectionId));
+        mongoConnectionDetailsList.add(mongoConnectionDetails);
+        ServiceProvider.getServiceContext(connectionId);
 
         return connectionId;
     }
 
-    private boolean checkAuthMode(ConnectionDetails connectionDetails) throws ApplicationException {
-        MongoClient mongo = null;
+    /**
+     * Creates the client for a login and authenticates it. For a login without credentials the same
+     * client also tells whether the server runs in auth mode: listing the databases is refused by a
+     * server in auth mode. The outcome is remembered per host and port, or seed list, for a while
+     * so that logins without credentials to such a server fail without opening a connection at all.
+     * <p/>
+     * A host and port is connected to directly so that a secondary or hidden member can be browsed
+     * by its address. When a connection string is given the client is built from its seed list and
+     * options and discovers the replica set. The read preference it asks for is kept for browsing
+     * while the client itself stays on the primary, so that writes and admin commands never go to a
+     * secondary.
+     */
+    private MongoConnectionDetails getMongoAndAuthenticate(ConnectionDetails connectionDetails,
+            String connectionId) throws ApplicationException {
+        String username = connectionDetails.getUsername();
+        String password = connectionDetails.getPassword();
+        String dbName = connectionDetails.getDbName().trim();
+        boolean authModeUi = username != null && !username.isEmpty();
+
+        MongoClientOptions.Builder options;
         try {
-            mongo = new MongoClient(connectionDetails.getHostIp(), connectionDetails.getHostPort());
-            mongo.listDatabaseNames().iterator().next();
-            return false;
-        }catch (Exception e) {
-            if (e instanceof MongoTimeoutException) {
-                throw new ApplicationException(ErrorCodes.NEED_AUTHORISATION, "Invalid IP Address or Port");
-            }
-            return true;
-        }finally {
-            if (mongo != null) {
-                mongo.close();
-                mongo = null;
+            options = MongoClientOptionsFactory.newBuilder(connectionDetails.getConnectionOptions());
+        } catch (IllegalArgumentException e) {
+            throw new ApplicationException(ErrorCodes.INVALID_ARGUMENT, e.getMessage());
+        }
+        if (authModeUi
+                && !MongoClientOptionsFactory.hasServerSelectionTimeout(connectionDetails.getConnectionOptions())) {
+            // Fail fast on wrong credentials unless a timeout is configured explicitly
+            options.serverSelectionTimeout(1 * SECONDS);
+        }
+        List<ServerAddress> seeds = null;
+        MongoClientOptions clientOptions;
+        String probeKey;
+        if (connectionDetails.getConnectionString() != null) {
+            MongoClientURI uri = parseConnectionString(connectionDetails.getConnectionString(), options);
+            seeds = new ArrayList<>();
+            for (String host : uri.getHosts()) {
+                seeds.add(new ServerAddress(host));
             }
+            clientOptions = uri.getOptions();
+            probeKey = new TreeSet<>(uri.getHosts()).toString();
+        } else {
+            clientOptions = options.build();
+            probeKey = connectionDetails.getHostIp() + ":" + connectionDetails.getHostPort();
         }
-    }
+        AuthModeProbe cachedAuthMode = getCachedAuthMode(probeKey);
+        if (!authModeUi && cachedAuthMode != null && cachedAuthMode.known
+                && cachedAuthMode.authMode) {
+            connectionDetails.setAuthMode(true);
+            throw new ApplicationException(ErrorCodes.NEED_AUTHORISATION,
+                    "Mongo DB Running in Auth Mode. Please perform Authentication.");
+        }
+        ReadPreference browseReadPreference = clientOptions.getReadPreference();
+        MongoClientOptions.Builder clientOptionsBuilder = MongoClientOptions.builder(clientOptions)
+                .readPreference(ReadPreference.primary());
+        if (RequestMetrics.getInstance().isEnabled()) {
+            clientOptionsBuilder.addCommandListener(new CommandMetricsListener(connectionId));
+        }
+        clientOptions = clientOptionsBuilder.build();
+
+        // A host and port is connected to directly, only a seed list discovers the replica set
+        List<MongoCredential> credentials = Collections.emptyList();
+        if (authModeUi) {
+            credentials = Arrays.asList(MongoCredential.createCredential(username, dbName,
+                    password == null ? new char[0] : password.toCharArray()));
+        }
+        MongoClient mongo = seeds == null
+                ? new MongoClient(getServerAddress(connectionDetails), credentials, clientOptions)
+                : new MongoClient(seeds, credentials, clientOptions);
 
-    private MongoClient getMongoAndAuthenticate(ConnectionDetails connectionDetails)
-            throws ApplicationException {
-        MongoClient mongo = null;
-        boolean authModeUi;
-        authModeUi = (connectionDetails.getUsername() == null || connectionDetails.getUsername().isEmpty()) ? false : true;
-        if (!authModeUi) {
-            mongo = new MongoClient(connectionDetails.getHostIp(), connectionDetails.getHostPort());
-        }
-        String dbName = connectionDetails.getDbName();
-        // String[] dbNamesList = dbNames.split(",");
-        // dbName will be only one db name
-        String username = connectionDetails.getUsername();
-        String password = connectionDetails.getPassword();
-        dbName = dbName.trim();
         boolean loginStatus = false;
         try {
             if (authModeUi) {
-                MongoCredential
-                        credential =
-                        MongoCredential.createCredential(username, dbName,
-                                password.toCharArray());
-                mongo =
-                        new MongoClient(
-                                new ServerAddress(connectionDetails.getHostIp(),
-                                        connectionDetails.getHostPort()),
-                                java.util.Arrays.asList(credential),
-                                MongoClientOptions.builder().serverSelectionTimeout(1*SECONDS).build());
                 Iterator iterator = mongo.listDatabaseNames().iterator();
-
                 while (iterator.hasNext()) {
                     if (iterator.next().toString().equals(dbName)) {
                         mongo.getDatabase(dbName).listCollections().iterator();
@@ -123,29 +152,36 @@ public class AuthServiceImpl implements AuthService {
                         break;
                     }
                 }
+                connectionDetails.setAuthMode(resolveAuthMode(probeKey, cachedAuthMode, mongo));
             } else {
-                MongoDatabase db = mongo.getDatabase(dbName);
-                db.listCollectionNames();
+                // The round trip to the server is what tells the auth mode.
+                mongo.listDatabaseNames().first();
                 loginStatus = true;
+                connectionDetails.setAuthMode(false);
+                cacheAuthMode(probeKey, false);
             }
-            // Hack. Checking server connectivity status by fetching collection names on selected db
-            // this line will throw exception in two cases.1)On Invalid mongo
-            // host Address,2)Invalid authorization to fetch collection names
-        } catch (MongoCommandException me) {
-            // User is authenticated but user doesn't have sufficient privilges
-            loginStatus = true;
-        }
-        catch (Exception e) {
+        } catch (MongoTimeoutException e) {
+            mongo.close();
             String errMsg = e.getMessage();
-            if (((MongoTimeoutException) e).getCode() == -3) {
-                if (errMsg.contains("Authentication failed")) {
-                    errMsg = "Invalid Credentials. Please enter correct combination of Username, password and Database name";
-                    throw new ApplicationException(ErrorCodes.NEED_AUTHORISATION, errMsg);
-                } else {
-                    throw new ApplicationException(ErrorCodes.NEED_AUTHORISATION, "Invalid IP Address or Port");
-                }
+            if (errMsg != null && errMsg.contains("Authentication failed")) {
+                throw new ApplicationException(ErrorCodes.NEED_AUTHORISATION,
+                        "Invalid Credentials. Please enter correct combination of Username, password and Database name");
+            }
+            throw new ApplicationException(ErrorCodes.NEED_AUTHORISATION, "Invalid IP Address or Port");
+        } catch (MongoException e) {
+            if (authModeUi && e instanceof MongoCommandException) {
+                // User is authenticated but user doesn't have sufficient privilges
+                loginStatus = true;
+                connectionDetails.setAuthMode(resolveAuthMode(probeKey, cachedAuthMode, mongo));
+            } else if (!authModeUi) {
+                mongo.close();
+                connectionDetails.setAuthMode(true);
+                cacheAuthMode(probeKey, true);
+                throw new ApplicationException(ErrorCodes.NEED_AUTHORISATION,
+                        "Mongo DB Running in Auth Mode. Please perform Authentication.");
             } else {
-                throw new ApplicationException(ErrorCodes.NEED_AUTHORISATION, errMsg);
+                mongo.close();
+                throw new ApplicationException(ErrorCodes.NEED_AUTHORISATION, e.getMessage());
             }
         }
         if (loginStatus) {
@@ -153,13 +189,126 @@ public class AuthServiceImpl implements AuthService {
         }
 
         if (connectionDetails.getAuthenticatedDbNames().isEmpty()) {
+            mongo.close();
             throw new ApplicationException(
                     ("".equals(username) && "".equals(password))
                             ? ErrorCodes.NEED_AUTHORISATION
                             : ErrorCodes.INVALID_USERNAME,
                     "Invalid combination of username or password or Database name");
         }
-        return mongo;
+        return new MongoConnectionDetails(connectionDetails, mongo, connectionId,
+                browseReadPreference);
+    }
+
+    private MongoClientURI parseConnectionString(String connectionString,
+            MongoClientOptions.Builder options) throws ApplicationException {
+        try {
+            return new MongoClientURI(connectionString, options);
+        } catch (IllegalArgumentException e) {
+            throw new ApplicationException(ErrorCodes.INVALID_ARGUMENT,
+                    "Invalid connection string: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Auth mode of the server for a login with credentials. Accepted credentials do not tell it, a
+     * server without auth accepts the users it knows as well, so unless an earlier login has found
+     * it out the client of the login asks for the command line options of the server. A server
+     * without auth lets anyone run it, so being refused tells auth mode as well as the options do.
+     * An answer that could not be had is taken as auth mode and remembered for a few seconds only.
+     */
+    private boolean resolveAuthMode(String probeKey, AuthModeProbe cachedAuthMode,
+            MongoClient mongo) {
+        if (cachedAuthMode != null) {
+            return cachedAuthMode.authMode;
+        }
+        try {
+            Document options =
+                    mongo.getDatabase("admin").runCommand(new Document("getCmdLineOpts", 1));
+            boolean authMode = isAuthEnabled(options);
+            cacheAuthMode(probeKey, authMode);
+            return authMode;
+        } catch (MongoCommandException e) {
+            if (e.getErrorCode() == UNAUTHORIZED) {
+                cacheAuthMode(probeKey, true);
+            } else {
+                cacheUnknownAuthMode(probeKey);
+            }
+            return true;
+        } catch (MongoException e) {
+            cacheUnknownAuthMode(probeKey);
+            return true;
+        }
+    }
+
+    /**
+     * Tells from the reply of <getCmdLineOpts> whether the server enforces access control, as it
+     * does with <security.authorization> enabled, a key file, x.509 cluster membership or the
+     * legacy <auth> option.
+     */
+    private static boolean isAuthEnabled(Document options) {
+        Object parsed = options.get("parsed");
+        if (!(parsed instanceof Document)) {
+            return true;
+        }
+        if (Boolean.TRUE.equals(((Document) parsed).get("auth"))) {
+            return true;
+        }
+        Object security = ((Document) parsed).get("security");
+        if (!(security instanceof Document)) {
+            return false;
+        }
+        return "enabled".equals(((Document) security).get("authorization"))
+                || ((Document) security).containsKey("keyFile")
+                || ((Document) security).containsKey("clusterAuthMode");
+    }
+
+    private AuthModeProbe getCachedAuthMode(String probeKey) {
+        AuthModeProbe probe = authModeProbes.get(probeKey);
+        if (probe == null) {
+            return null;
+        }
+        if (probe.expiresAt < System.currentTimeMillis()) {
+            authModeProbes.remove(probeKey, probe);
+            return null;
+        }
+        return probe;
+    }
+
+    private void cacheAuthMode(String probeKey, boolean authMode) {
+        long ttl = ConfigurationUtils.getLong(AUTH_PROBE_CACHE_TTL, DEFAULT_AUTH_PROBE_CACHE_TTL);
+        if (ttl > 0) {
+            authModeProbes.put(probeKey,
+                    new AuthModeProbe(authMode, true, System.currentTimeMillis() + ttl));
+        }
+    }
+
+    /**
+     * Remembers that the auth mode could not be found out, so that the logins of the next few
+     * seconds do not all ask again. Logins without credentials still go through to the server.
+     */
+    private void cacheUnknownAuthMode(String probeKey) {
+        long ttl = Math.min(UNKNOWN_AUTH_MODE_TTL,
+                ConfigurationUtils.getLong(AUTH_PROBE_CACHE_TTL, DEFAULT_AUTH_PROBE_CACHE_TTL));
+        if (ttl > 0) {
+            authModeProbes.put(probeKey,
+                    new AuthModeProbe(true, false, System.currentTimeMillis() + ttl));
+        }
+    }
+
+    /**
+     * Auth mode of a mongo server as found by the last login to it.
+     */
+    private static class AuthModeProbe {
+        private final boolean authMode;
+        private final boolean known;
+        private final long expiresAt;
+
+        AuthModeProbe(boolean authMode, boolean known, long expiresAt) {
+            this.authMode = authMode;
+            this.known = known;
+            this.expiresAt = expiresAt;
+        }
     }
 
     @Override
@@ -221,6 +370,8 @@ public class AuthServiceImpl implements AuthService {
             MongoConnectionDetails mongoConnectionDetails = mongoConnectionDetailsIterator.next();
             if (connectionId.equals(mongoConnectionDetails.getConnectionId())) {
                 mongoConnectionDetailsIterator.remove();
+                ServiceProvider.closeServiceContext(connectionId);
+                mongoConnectionDetails.getMongo().close();
                 return;
             }
         }
@@ -231,7 +382,7 @@ public class AuthServiceImpl implements AuthService {
     public List listDatabases(String connectionId, String dbName) throws ApplicationException {
         List dbList;
         try {
-            dbList = new DatabaseServiceImpl(connectionId).getDbList();
+            dbList = ServiceProvider.getServiceContext(connectionId).getDatabaseService().getDbList();
         } catch (DatabaseException e) {
             dbList = new ArrayList();
             dbList.add(dbName);
@@ -239,7 +390,35 @@ public class AuthServiceImpl implements AuthService {
         return dbList;
     }
 
-    private void sanitizeConnectionDetails(ConnectionDetails connectionDetails) {
+    private ServerAddress getServerAddress(ConnectionDetails connectionDetails) {
+        return new ServerAddress(connectionDetails.getHostIp(), connectionDetails.getHostPort());
+    }
+
+    private void sanitizeConnectionDetails(ConnectionDetails connectionDetails)
+            throws ApplicationException {
+        String connectionString = connectionDetails.getConnectionString();
+        if (connectionString != null && connectionString.trim().isEmpty()) {
+            connectionDetails.setConnectionString(null);
+        } else if (connectionString != null) {
+            connectionDetails.setConnectionString(connectionString.trim());
+            // Host, port and credentials of the connection string stand in for the ones left empty
+            MongoClientURI uri = parseConnectionString(connectionDetails.getConnectionString(),
+                    MongoClientOptions.builder());
+            ServerAddress firstHost = new ServerAddress(uri.getHosts().get(0));
+            connectionDetails.setHostIp(firstHost.getHost());
+            connectionDetails.setHostPort(firstHost.getPort());
+            String username = connectionDetails.getUsername();
+            if ((username == null || username.isEmpty()) && uri.getUsername() != null) {
+                connectionDetails.setUsername(uri.getUsername());
+                connectionDetails.setPassword(
+                        uri.getPassword() == null ? "" : new String(uri.getPassword()));
+                MongoCredential credential = uri.getCredentials();
+                String dbName = connectionDetails.getDbName();
+                if ((dbName == null || dbName.isEmpty()) && credential != null) {
+                    connectionDetails.setDbName(credential.getSource());
+                }
+            }
+        }
         if ("localhost".equals(connectionDetails.getHostIp())) {
             connectionDetails.setHostIp("127.0.0.1");
         }
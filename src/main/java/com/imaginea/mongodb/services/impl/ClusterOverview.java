@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.services.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+import org.bson.Document;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.imaginea.mongodb.domain.ConnectionDetails;
+import com.imaginea.mongodb.domain.MongoConnectionDetails;
+import com.imaginea.mongodb.exceptions.ApplicationException;
+import com.imaginea.mongodb.services.ServiceProvider;
+import com.imaginea.mongodb.utils.ConfigurationUtils;
+import com.imaginea.mongodb.utils.TaskExecutors;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoException;
+
+/**
+ * Health summary of many connections at once. <serverStatus>, <replSetGetStatus> and <dbStats>
+ * are sent to every connection concurrently on the fan-out pool and each connection gets its own
+ * timeout, so a slow or dead server only marks its own row as timed out.
+ */
+public class ClusterOverview {
+
+  private static final Logger logger = Logger.getLogger(ClusterOverview.class);
+
+  public static final String CLUSTER_OVERVIEW_TIMEOUT = "CLUSTER_OVERVIEW_TIMEOUT";
+
+  /** Error codes of replSetGetStatus on a server which is not part of a replica set. */
+  private static final int NO_REPLICATION_ENABLED = 76;
+  private static final int NOT_YET_INITIALIZED = 94;
+
+  private ClusterOverview() {}
+
+  /**
+   * Collects the summary of each connection.
+   *
+   * @param connectionIds Connections to look at
+   * @return Counts of the rows per status and one row per connection, in the given order
+   */
+  public static JSONObject collect(Collection<String> connectionIds)
+      throws InterruptedException, JSONException {
+    long timeout = ConfigurationUtils.getLong(CLUSTER_OVERVIEW_TIMEOUT, 5000);
+    List<String> ids = new ArrayList<String>(connectionIds);
+    List<Callable<JSONObject>> tasks = new ArrayList<Callable<JSONObject>>();
+    for (final String connectionId : ids) {
+      tasks.add(new Callable<JSONObject>() {
+        public JSONObject call() throws Exception {
+          return summarize(connectionId);
+        }
+      });
+    }
+    long start = System.currentTimeMillis();
+    List<Object> results = TaskExecutors.invokeEach(tasks, timeout);
+
+    JSONArray rows = new JSONArray();
+    int ok = 0, partial = 0, failed = 0, timedOut = 0;
+    for (int i = 0; i < ids.size(); i++) {
+      Object result = results.get(i);
+      JSONObject row;
+      if (result instanceof JSONObject) {
+        row = (JSONObject) result;
+      } else {
+        row = new JSONObject();
+        row.put("connectionId", ids.get(i));
+        if (result instanceof TimeoutException || result instanceof CancellationException) {
+          row.put("status", "timeout");
+          row.put("error", "No answer within " + timeout + " ms");
+        } else {
+          Throwable cause = (Throwable) result;
+          row.put("status", "error");
+          row.put("error", cause.getMessage() == null ? cause.toString() : cause.getMessage());
+          if (!(cause instanceof ApplicationException)) {
+            logger.warn("Cluster overview of connection " + ids.get(i) + " failed", cause);
+          }
+        }
+      }
+      String status = row.getString("status");
+      if ("ok".equals(status)) {
+        ok++;
+      } else if ("partial".equals(status)) {
+        partial++;
+      } else if ("timeout".equals(status)) {
+        timedOut++;
+      } else {
+        failed++;
+      }
+      rows.put(row);
+    }
+    JSONObject overview = new JSONObject();
+    overview.put("targets", ids.size());
+    overview.put("ok", ok);
+    overview.put("partial", partial);
+    overview.put("failed", failed);
+    overview.put("timedOut", timedOut);
+    overview.put("timeout", timeout);
+    overview.put("elapsedMillis", System.currentTimeMillis() - start);
+    overview.put("rows", rows);
+    return overview;
+  }
+
+  /**
+   * Sends the three commands to one connection. A failing command is reported in the errors of
+   * the row and leaves it partial, the other commands still run.
+   */
+  private static JSONObject summarize(String connectionId) throws ApplicationException,
+      JSONException {
+    long start = System.currentTimeMillis();
+    MongoConnectionDetails details =
+        ServiceProvider.getServiceContext(connectionId).getMongoConnectionDetails();
+    MongoClient mongoInstance = details.getMongo();
+    JSONObject row = new JSONObject();
+    JSONObject errors = new JSONObject();
+    row.put("connectionId", connectionId);
+
+    try {
+      Document serverStatus =
+          mongoInstance.getDatabase("admin").runCommand(new Document("serverStatus", 1));
+      row.put("host", serverStatus.getString("host"));
+      row.put("version", serverStatus.getString("version"));
+      row.put("uptimeSeconds", number(serverStatus, "uptime"));
+      Document connections = subDocument(serverStatus, "connections");
+      row.put("connectionsCurrent", number(connections, "current"));
+      row.put("connectionsAvailable", number(connections, "available"));
+      Document opcounters = subDocument(serverStatus, "opcounters");
+      long operations = 0;
+      for (Object value : opcounters.values()) {
+        if (value instanceof Number) {
+          operations += ((Number) value).longValue();
+        }
+      }
+      row.put("operations", operations);
+      row.put("residentMb", number(subDocument(serverStatus, "mem"), "resident"));
+    } catch (MongoException e) {
+      errors.put("serverStatus", e.getMessage());
+    }
+
+    try {
+      Document status =
+          mongoInstance.getDatabase("admin").runCommand(new Document("replSetGetStatus", 1));
+      row.put("replication", summarizeReplicaSet(status));
+    } catch (MongoCommandException e) {
+      if (e.getErrorCode() == NO_REPLICATION_ENABLED || e.getErrorCode() == NOT_YET_INITIALIZED) {
+        row.put("replication", new JSONObject().put("role", "standalone"));
+      } else {
+        errors.put("replSetGetStatus", e.getErrorMessage());
+      }
+    } catch (MongoException e) {
+      errors.put("replSetGetStatus", e.getMessage());
+    }
+
+    String dbName = getStatsDbName(details.getConnectionDetails());
+    try {
+      Document dbStats = mongoInstance.getDatabase(dbName).runCommand(new Document("dbStats", 1));
+      JSONObject db = new JSONObject();
+      db.put("name", dbName);
+      db.put("collections", number(dbStats, "collections"));
+      db.put("objects", number(dbStats, "objects"));
+      db.put("dataSize", number(dbStats, "dataSize"));
+      db.put("storageSize", number(dbStats, "storageSize"));
+      db.put("indexSize", number(dbStats, "indexSize"));
+      row.put("db", db);
+    } catch (MongoException e) {
+      errors.put("dbStats", e.getMessage());
+    }
+
+    row.put("status", errors.length() == 0 ? "ok" : errors.length() == 3 ? "error" : "partial");
+    if (errors.length() > 0) {
+      row.put("errors", errors);
+    }
+    row.put("elapsedMillis", System.currentTimeMillis() - start);
+    return row;
+  }
+
+  /**
+   * @return Set name, role of the server, member health counts and the replication lag in seconds
+   *         of the furthest secondary behind the primary
+   */
+  private static JSONObject summarizeReplicaSet(Document status) throws JSONException {
+    JSONObject replication = new JSONObject();
+    replication.put("set", status.getString("set"));
+    Object myState = status.get("myState");
+    replication.put("role", myState instanceof Number ? stateName(((Number) myState).intValue())
+        : "unknown");
+    int members = 0, healthy = 0;
+    Date primaryOptime = null;
+    Date oldestSecondaryOptime = null;
+    List<?> memberList = status.get("members", List.class);
+    if (memberList != null) {
+      for (Object item : memberList) {
+        if (!(item instanceof Document)) {
+          continue;
+        }
+        Document member = (Document) item;
+        members++;
+        Object health = member.get("health");
+        if (health instanceof Number && ((Number) health).intValue() == 1) {
+          healthy++;
+        }
+        Object optime = member.get("optimeDate");
+        if (!(optime instanceof Date)) {
+          continue;
+        }
+        String state = member.getString("stateStr");
+        if ("PRIMARY".equals(state)) {
+          primaryOptime = (Date) optime;
+        } else if ("SECONDARY".equals(state) && (oldestSecondaryOptime == null
+            || ((Date) optime).before(oldestSecondaryOptime))) {
+          oldestSecondaryOptime = (Date) optime;
+        }
+      }
+    }
+    replication.put("members", members);
+    replication.put("healthy", healthy);
+    if (primaryOptime != null && oldestSecondaryOptime != null) {
+      replication.put("maxLagSeconds",
+          Math.max(0, (primaryOptime.getTime() - oldestSecondaryOptime.getTime()) / 1000));
+    }
+    return replication;
+  }
+
+  private static String stateName(int state) {
+    switch (state) {
+      case 1:
+        return "primary";
+      case 2:
+        return "secondary";
+      case 7:
+        return "arbiter";
+      default:
+        return "state " + state;
+    }
+  }
+
+  /**
+   * dbStats are taken of the database the user logged in to, or of admin for the admin logins.
+   */
+  private static String getStatsDbName(ConnectionDetails connectionDetails) {
+    Set<String> dbNames = connectionDetails.getAuthenticatedDbNames();
+    if (!connectionDetails.isAdminLogin() && dbNames != null && !dbNames.isEmpty()) {
+      return dbNames.iterator().next();
+    }
+    return "admin";
+  }
+
+  private static Document subDocument(Document document, String key) {
+    Object value = document.get(key);
+    return value instanceof Document ? (Document) value : new Document();
+  }
+
+  private static Object number(Document document, String key) {
+    Object value = document.get(key);
+    return value instanceof Number ? value : JSONObject.NULL;
+  }
+}
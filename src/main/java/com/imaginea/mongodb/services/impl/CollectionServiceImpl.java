@@ -11,13 +11,19 @@
  */
 package com.imaginea.mongodb.services.impl;
 
+import com.imaginea.mongodb.domain.MongoConnectionDetails;
 import com.imaginea.mongodb.exceptions.*;
-import com.imaginea.mongodb.services.AuthService;
 import com.imaginea.mongodb.services.CollectionService;
 import com.imaginea.mongodb.services.DatabaseService;
+import com.imaginea.mongodb.services.ServiceContext;
+import com.imaginea.mongodb.services.ServiceProvider;
+import com.imaginea.mongodb.utils.ConfigurationUtils;
+import com.imaginea.mongodb.utils.NamespaceCache;
+import com.imaginea.mongodb.utils.TaskExecutors;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoException;
 import com.mongodb.MongoNamespace;
+import com.mongodb.ReadPreference;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
@@ -28,9 +34,13 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Defines services definitions for performing operations like create/drop on collections inside a
@@ -41,13 +51,21 @@ import java.util.Set;
  */
 public class CollectionServiceImpl implements CollectionService {
 
+  public static final String COLL_STATS_PARALLELISM = "COLL_STATS_PARALLELISM";
+  public static final String COLL_STATS_TIMEOUT = "COLL_STATS_TIMEOUT";
+
+  /** Fields of collStats kept by the all collections stats, the others are per storage engine. */
+  private static final String[] COLL_STATS_FIELDS = {"count", "size", "avgObjSize",
+      "storageSize", "totalIndexSize", "nindexes", "capped", "max", "maxSize", "indexSizes"};
+  private static final String[] TOTAL_FIELDS = {"count", "size", "storageSize", "totalIndexSize"};
+
   private DatabaseService databaseService;
   /**
    * Mongo Instance to communicate with mongo
    */
   private MongoClient mongoInstance;
-
-  private static final AuthService AUTH_SERVICE = AuthServiceImpl.getInstance();
+  private ReadPreference readPreference;
+  private NamespaceCache namespaceCache;
 
   /**
    * Creates an instance of MongoInstanceProvider which is used to get a mongo instance to perform
@@ -57,8 +75,20 @@ public class CollectionServiceImpl implements CollectionService {
    * @param connectionId A combination of username,mongoHost and mongoPort
    */
   public CollectionServiceImpl(String connectionId) throws ApplicationException {
-    mongoInstance = AUTH_SERVICE.getMongoInstance(connectionId);
-    databaseService = new DatabaseServiceImpl(connectionId);
+    this(ServiceProvider.getServiceContext(connectionId));
+  }
+
+  /**
+   * Creates the collection service of a connection from its service context.
+   *
+   * @param serviceContext Services and caches of the connection
+   */
+  public CollectionServiceImpl(ServiceContext serviceContext) {
+    MongoConnectionDetails mongoConnectionDetails = serviceContext.getMongoConnectionDetails();
+    mongoInstance = mongoConnectionDetails.getMongo();
+    readPreference = mongoConnectionDetails.getReadPreference();
+    databaseService = serviceContext.getDatabaseService();
+    namespaceCache = serviceContext.getNamespaceCache();
   }
 
   /**
@@ -75,6 +105,10 @@ public class CollectionServiceImpl implements CollectionService {
       throw new DatabaseException(ErrorCodes.DB_NAME_EMPTY, "Invalid Database name");
     }
 
+    Set<String> cachedCollectionList = namespaceCache.getCollectionNames(dbName);
+    if (cachedCollectionList != null) {
+      return cachedCollectionList;
+    }
     try {
       // List<String> dbList = databaseService.getDbList();
       // if (!dbList.contains(dbName)) {
@@ -106,6 +140,7 @@ public class CollectionServiceImpl implements CollectionService {
         mongoInstance.getDatabase(dbName).createCollection("system.users");
         collectionList.add("system.users");
       }
+      namespaceCache.putCollectionNames(dbName, collectionList);
       return collectionList;
     } catch (MongoException m) {
       throw new CollectionException(ErrorCodes.GET_COLLECTION_LIST_EXCEPTION, m.getMessage());
@@ -160,6 +195,7 @@ public class CollectionServiceImpl implements CollectionService {
       }
 
       mongoInstance.getDatabase(dbName).createCollection(newCollName, options);
+      namespaceCache.invalidate(dbName);
     } catch (MongoException m) {
       throw new CollectionException(ErrorCodes.COLLECTION_CREATION_EXCEPTION, m.getMessage());
     }
@@ -256,6 +292,7 @@ public class CollectionServiceImpl implements CollectionService {
         MongoNamespace mongoNamespace = new MongoNamespace(dbName + "." + newCollName);
 
         selectedCollection.renameCollection(mongoNamespace);
+        namespaceCache.invalidate(dbName);
         renamed = true;
       }
       if (((convertedToNormal || convertedToCapped || updated) && renamed) || updated)  {
@@ -289,6 +326,7 @@ public class CollectionServiceImpl implements CollectionService {
     MongoNamespace namespace = selectedCollection.getNamespace();
     selectedCollection.drop();
     tempCollection.renameCollection(namespace);
+    namespaceCache.invalidate(db.getName());
   }
 
 
@@ -325,6 +363,7 @@ public class CollectionServiceImpl implements CollectionService {
             + collectionName + "] DOES NOT EXIST in Database [" + dbName + "]");
       }
       mongoInstance.getDatabase(dbName).getCollection(collectionName).drop();
+      namespaceCache.invalidate(dbName);
     } catch (MongoException m) {
       throw new CollectionException(ErrorCodes.COLLECTION_DELETION_EXCEPTION, m.getMessage());
     }
@@ -366,8 +405,8 @@ public class CollectionServiceImpl implements CollectionService {
         throw new CollectionException(ErrorCodes.COLLECTION_DOES_NOT_EXIST, "Collection with name ["
             + collectionName + "] DOES NOT EXIST in Database [" + dbName + "]");
       }
-      Document stats =
-          mongoInstance.getDatabase(dbName).runCommand(new Document("collStats", collectionName));
+      Document stats = mongoInstance.getDatabase(dbName)
+          .runCommand(new Document("collStats", collectionName), readPreference);
       Set<String> keys = stats.keySet();
       Iterator<String> keyIterator = keys.iterator();
 
@@ -387,6 +426,92 @@ public class CollectionServiceImpl implements CollectionService {
     return collStats;
   }
 
+  @Override
+  public JSONObject getAllCollStats(final String dbName, boolean refresh)
+      throws ApplicationException {
+    if (dbName == null || dbName.equals("")) {
+      throw new DatabaseException(ErrorCodes.DB_NAME_EMPTY, "Invalid Database name");
+    }
+    if (!refresh) {
+      JSONObject cached = namespaceCache.getCollectionStats(dbName);
+      if (cached != null) {
+        return cached;
+      }
+    }
+    long start = System.currentTimeMillis();
+    try {
+      final MongoDatabase db = mongoInstance.getDatabase(dbName);
+      final List<String> collectionNames = new ArrayList<String>();
+      for (Document collection : db.listCollections()) {
+        // Views have no stats of their own
+        if (!"view".equals(collection.getString("type"))) {
+          collectionNames.add(collection.getString("name"));
+        }
+      }
+      List<Callable<Document>> tasks = new ArrayList<Callable<Document>>();
+      for (final String collectionName : collectionNames) {
+        tasks.add(new Callable<Document>() {
+          public Document call() {
+            return db.runCommand(new Document("collStats", collectionName), readPreference);
+          }
+        });
+      }
+      List<Object> results = TaskExecutors.invokeAll(tasks,
+          ConfigurationUtils.getInt(COLL_STATS_PARALLELISM, TaskExecutors.getBulkParallelism()),
+          ConfigurationUtils.getLong(COLL_STATS_TIMEOUT, 30 * 1000));
+
+      JSONArray collections = new JSONArray();
+      long[] totals = new long[TOTAL_FIELDS.length];
+      int failed = 0;
+      for (int i = 0; i < results.size(); i++) {
+        Object result = results.get(i);
+        JSONObject collection = new JSONObject();
+        collection.put("name", collectionNames.get(i));
+        if (result instanceof Document) {
+          Document stats = (Document) result;
+          for (String field : COLL_STATS_FIELDS) {
+            if (stats.containsKey(field)) {
+              collection.put(field, stats.get(field));
+            }
+          }
+          for (int t = 0; t < TOTAL_FIELDS.length; t++) {
+            Object value = stats.get(TOTAL_FIELDS[t]);
+            if (value instanceof Number) {
+              totals[t] += ((Number) value).longValue();
+            }
+          }
+        } else {
+          failed++;
+          collection.put("error", result instanceof TimeoutException ? "Timed out"
+              : String.valueOf(((Throwable) result).getMessage()));
+        }
+        collections.put(collection);
+      }
+      JSONObject total = new JSONObject();
+      for (int t = 0; t < TOTAL_FIELDS.length; t++) {
+        total.put(TOTAL_FIELDS[t], totals[t]);
+      }
+      JSONObject allStats = new JSONObject();
+      allStats.put("dbName", dbName);
+      allStats.put("collections", collections);
+      allStats.put("totals", total);
+      allStats.put("failed", failed);
+      allStats.put("collectedAt", System.currentTimeMillis());
+      allStats.put("elapsedMillis", System.currentTimeMillis() - start);
+      if (failed == 0) {
+        namespaceCache.putCollectionStats(dbName, allStats);
+      }
+      return allStats;
+    } catch (MongoException m) {
+      throw new CollectionException(ErrorCodes.GET_COLL_STATS_EXCEPTION, m.getMessage());
+    } catch (JSONException e) {
+      throw new ApplicationException(ErrorCodes.JSON_EXCEPTION, e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CollectionException(ErrorCodes.GET_COLL_STATS_EXCEPTION, "Interrupted");
+    }
+  }
+
   @Override
   public JSONObject isCappedCollection(String dbName, String collectionName)
       throws DatabaseException, CollectionException, ValidationException {
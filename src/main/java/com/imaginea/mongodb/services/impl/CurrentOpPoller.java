@@ -0,0 +1,375 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.services.impl;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.bson.Document;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.imaginea.mongodb.exceptions.ApplicationException;
+import com.imaginea.mongodb.exceptions.ErrorCodes;
+import com.imaginea.mongodb.utils.ConfigurationUtils;
+import com.imaginea.mongodb.utils.TaskExecutors;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoException;
+
+/**
+ * Polls <currentOp> of one connection in the background and compares each snapshot with the
+ * previous one, so that operations which started, finished or have been running for long are
+ * known without every viewer of the connection asking the server.
+ * <p/>
+ * Snapshots are numbered. Viewers pass the number of the last snapshot they saw and are told
+ * which of the running operations are new to them and which operations finished since.
+ */
+public class CurrentOpPoller {
+
+  private static final Logger logger = Logger.getLogger(CurrentOpPoller.class);
+
+  public static final String CURRENT_OP_INTERVAL = "CURRENT_OP_INTERVAL";
+  public static final String CURRENT_OP_LONG_RUNNING = "CURRENT_OP_LONG_RUNNING";
+  public static final String CURRENT_OP_IDLE_TIMEOUT = "CURRENT_OP_IDLE_TIMEOUT";
+  public static final String CURRENT_OP_FINISHED_HISTORY = "CURRENT_OP_FINISHED_HISTORY";
+  public static final String CURRENT_OP_KILL_ENABLED = "CURRENT_OP_KILL_ENABLED";
+
+  private static final long MIN_INTERVAL = 500;
+
+  private final MongoClient mongoInstance;
+  private final long interval;
+  private final long longRunningMillis;
+  private final long idleTimeout;
+  private final int finishedHistory;
+
+  private final Object lock = new Object();
+  private Map<String, TrackedOp> running = new LinkedHashMap<String, TrackedOp>();
+  private final ArrayDeque<FinishedOp> finished = new ArrayDeque<FinishedOp>();
+  private long sequence;
+  private long polledAt;
+  private String lastError;
+  private ScheduledFuture<?> task;
+  private boolean closed;
+
+  private volatile long lastReadAt;
+
+  public CurrentOpPoller(MongoClient mongoInstance) {
+    this.mongoInstance = mongoInstance;
+    this.interval =
+        Math.max(MIN_INTERVAL, ConfigurationUtils.getLong(CURRENT_OP_INTERVAL, 2000));
+    this.longRunningMillis = ConfigurationUtils.getLong(CURRENT_OP_LONG_RUNNING, 10 * 1000);
+    this.idleTimeout = ConfigurationUtils.getLong(CURRENT_OP_IDLE_TIMEOUT, 60 * 1000);
+    this.finishedHistory = Math.max(0, ConfigurationUtils.getInt(CURRENT_OP_FINISHED_HISTORY, 200));
+  }
+
+  /**
+   * Starts polling unless already running. The first snapshot is taken right away.
+   */
+  public void start() {
+    lastReadAt = System.currentTimeMillis();
+    synchronized (lock) {
+      if (closed || (task != null && !task.isDone())) {
+        return;
+      }
+      running.clear();
+      finished.clear();
+      lastError = null;
+      task = TaskExecutors.getScheduler().scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          poll();
+        }
+      }, 0, interval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  public void stop() {
+    synchronized (lock) {
+      if (task != null) {
+        task.cancel(false);
+        task = null;
+      }
+    }
+  }
+
+  public void close() {
+    synchronized (lock) {
+      closed = true;
+      stop();
+    }
+  }
+
+  private void poll() {
+    long now = System.currentTimeMillis();
+    if (now - lastReadAt > Math.max(idleTimeout, 3 * interval)) {
+      logger.debug("Stopping idle currentOp poller");
+      stop();
+      return;
+    }
+    try {
+      Document reply = mongoInstance.getDatabase("admin").runCommand(new Document("currentOp", 1));
+      record(now, reply.get("inprog", List.class));
+    } catch (MongoException e) {
+      synchronized (lock) {
+        lastError = e.getMessage();
+      }
+    } catch (RuntimeException e) {
+      // Keep the schedule alive, a failing poll must not cancel the task
+      logger.error("Error polling currentOp", e);
+      synchronized (lock) {
+        lastError = e.getMessage();
+      }
+    }
+  }
+
+  @SuppressWarnings("rawtypes")
+  void record(long now, List inprog) {
+    synchronized (lock) {
+      sequence++;
+      Map<String, TrackedOp> next = new LinkedHashMap<String, TrackedOp>();
+      if (inprog != null) {
+        for (Object each : inprog) {
+          if (!(each instanceof Document) || isOwnPoll((Document) each)) {
+            continue;
+          }
+          Document op = (Document) each;
+          String opid = String.valueOf(op.get("opid"));
+          TrackedOp tracked = running.remove(opid);
+          if (tracked != null && !isSameOp(tracked.op, op)) {
+            // The opid was given to another operation since the last snapshot
+            addFinished(new FinishedOp(tracked, sequence, now));
+            tracked = null;
+          }
+          if (tracked == null) {
+            tracked = new TrackedOp(sequence, now);
+          }
+          tracked.op = op;
+          next.put(opid, tracked);
+        }
+      }
+      // Whatever is left was running in the last snapshot and is gone from this one
+      for (Map.Entry<String, TrackedOp> entry : running.entrySet()) {
+        addFinished(new FinishedOp(entry.getValue(), sequence, now));
+      }
+      running = next;
+      polledAt = now;
+      lastError = null;
+    }
+  }
+
+  private void addFinished(FinishedOp op) {
+    finished.addLast(op);
+    if (finished.size() > finishedHistory) {
+      finished.removeFirst();
+    }
+  }
+
+  /**
+   * Tells whether two snapshots of an opid show the same operation: same type, same client
+   * connection and not running for less time than before.
+   */
+  private static boolean isSameOp(Document previous, Document op) {
+    return equal(previous.get("op"), op.get("op"))
+        && equal(previous.get("connectionId"), op.get("connectionId"))
+        && runningMillis(op) >= runningMillis(previous);
+  }
+
+  private static boolean equal(Object a, Object b) {
+    return a == null ? b == null : a.equals(b);
+  }
+
+  private static boolean isOwnPoll(Document op) {
+    Object command = op.get("command");
+    return command instanceof Document && ((Document) command).containsKey("currentOp");
+  }
+
+  /**
+   * Returns the operations of the latest snapshot matching the filters, along with the operations
+   * which finished after the given snapshot.
+   *
+   * @param since Number of the last snapshot seen by the viewer, 0 for none
+   * @param namespace Database or <db.collection> the operations run on. All when null.
+   * @param minDuration Minimum milliseconds an operation has been running
+   * @param opTypes Types of operation such as <query>, <update> or <command>. All when empty.
+   * @return <seq> and <timestamp> of the snapshot, the <running> operations and the <finished>
+   *         ones. Each running operation is flagged <isNew> when it started after <since> and
+   *         <longRunning> past the configured threshold.
+   */
+  public JSONObject getOperations(long since, String namespace, long minDuration,
+      Set<String> opTypes) throws ApplicationException, JSONException {
+    lastReadAt = System.currentTimeMillis();
+    JSONObject result = new JSONObject();
+    synchronized (lock) {
+      if (sequence == 0 && lastError != null) {
+        throw new ApplicationException(ErrorCodes.CURRENT_OP_FAILED, lastError);
+      }
+      JSONArray operations = new JSONArray();
+      for (TrackedOp tracked : running.values()) {
+        long runningMillis = runningMillis(tracked.op);
+        if (!matches(tracked.op, namespace, opTypes) || runningMillis < minDuration) {
+          continue;
+        }
+        JSONObject operation = new JSONObject();
+        operation.put("op", tracked.op);
+        operation.put("runningMillis", runningMillis);
+        operation.put("firstSeen", tracked.firstSeen);
+        operation.put("isNew", tracked.firstSequence > since);
+        operation.put("longRunning", runningMillis >= longRunningMillis);
+        operations.put(operation);
+      }
+      JSONArray finishedOperations = new JSONArray();
+      Iterator<FinishedOp> iterator = finished.descendingIterator();
+      while (iterator.hasNext()) {
+        FinishedOp each = iterator.next();
+        if (each.sequence <= since) {
+          break;
+        }
+        if (matches(each.op, namespace, opTypes) && runningMillis(each.op) >= minDuration) {
+          JSONObject operation = new JSONObject();
+          operation.put("op", each.op);
+          operation.put("firstSeen", each.firstSeen);
+          operation.put("finishedBy", each.finishedBy);
+          finishedOperations.put(operation);
+        }
+      }
+      result.put("seq", sequence);
+      result.put("timestamp", polledAt);
+      result.put("interval", interval);
+      result.put("longRunningThreshold", longRunningMillis);
+      result.put("running", operations);
+      result.put("finished", finishedOperations);
+    }
+    return result;
+  }
+
+  /**
+   * Kills an operation, after checking that the user of the connection may do so.
+   *
+   * @param opid Id of the operation as reported by <currentOp>
+   * @return Reply of <killOp>
+   */
+  public Document killOp(String opid) throws ApplicationException {
+    if (!ConfigurationUtils.getBoolean(CURRENT_OP_KILL_ENABLED, false)) {
+      throw new ApplicationException(ErrorCodes.NEED_AUTHORISATION,
+          "Killing operations is disabled in mViewer.properties");
+    }
+    if (opid == null || opid.trim().isEmpty()) {
+      throw new ApplicationException(ErrorCodes.INVALID_ARGUMENT, "Operation id is empty");
+    }
+    if (!canKillOp()) {
+      throw new ApplicationException(ErrorCodes.NEED_AUTHORISATION,
+          "User of this connection is not allowed to kill operations");
+    }
+    Object op = opid.trim();
+    try {
+      op = Integer.valueOf(opid.trim());
+    } catch (NumberFormatException e) {
+      // Sharded operations are identified as <shard>:<opid>
+    }
+    try {
+      return mongoInstance.getDatabase("admin")
+          .runCommand(new Document("killOp", 1).append("op", op));
+    } catch (MongoException e) {
+      throw new ApplicationException(ErrorCodes.CURRENT_OP_FAILED, e.getMessage());
+    }
+  }
+
+  /**
+   * Tells whether the authenticated users of the connection hold the <killop> action on the
+   * cluster. Servers running without authentication let everyone kill operations.
+   */
+  @SuppressWarnings("rawtypes")
+  private boolean canKillOp() throws ApplicationException {
+    Document status;
+    try {
+      status = mongoInstance.getDatabase("admin")
+          .runCommand(new Document("connectionStatus", 1).append("showPrivileges", true));
+    } catch (MongoCommandException e) {
+      throw new ApplicationException(ErrorCodes.CURRENT_OP_FAILED, e.getMessage());
+    }
+    Document authInfo = (Document) status.get("authInfo");
+    if (authInfo == null) {
+      return true;
+    }
+    List users = authInfo.get("authenticatedUsers", List.class);
+    if (users == null || users.isEmpty()) {
+      // Either authentication is off or the server refuses the kill anyway
+      return true;
+    }
+    List privileges = authInfo.get("authenticatedUserPrivileges", List.class);
+    if (privileges == null) {
+      return false;
+    }
+    for (Object each : privileges) {
+      Document privilege = (Document) each;
+      Document resource = (Document) privilege.get("resource");
+      List actions = privilege.get("actions", List.class);
+      if (resource != null && Boolean.TRUE.equals(resource.get("cluster")) && actions != null
+          && actions.contains("killop")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static long runningMillis(Document op) {
+    Object micros = op.get("microsecs_running");
+    if (micros instanceof Number) {
+      return ((Number) micros).longValue() / 1000;
+    }
+    Object secs = op.get("secs_running");
+    return secs instanceof Number ? ((Number) secs).longValue() * 1000 : 0;
+  }
+
+  private static boolean matches(Document op, String namespace, Set<String> opTypes) {
+    if (namespace != null && !namespace.isEmpty()) {
+      String ns = op.getString("ns");
+      if (ns == null || !(ns.equals(namespace) || ns.startsWith(namespace + "."))) {
+        return false;
+      }
+    }
+    return opTypes == null || opTypes.isEmpty() || opTypes.contains(op.getString("op"));
+  }
+
+  private static class TrackedOp {
+    private final long firstSequence;
+    private final long firstSeen;
+    private Document op;
+
+    TrackedOp(long firstSequence, long firstSeen) {
+      this.firstSequence = firstSequence;
+      this.firstSeen = firstSeen;
+    }
+  }
+
+  private static class FinishedOp {
+    private final Document op;
+    private final long firstSeen;
+    private final long sequence;
+    private final long finishedBy;
+
+    FinishedOp(TrackedOp tracked, long sequence, long finishedBy) {
+      this.op = tracked.op;
+      this.firstSeen = tracked.firstSeen;
+      this.sequence = sequence;
+      this.finishedBy = finishedBy;
+    }
+  }
+}
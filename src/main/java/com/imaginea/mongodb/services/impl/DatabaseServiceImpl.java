@@ -14,8 +14,14 @@ package com.imaginea.mongodb.services.impl;
 
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
 
 import org.bson.Document;
 import org.json.JSONArray;
@@ -29,11 +35,16 @@ import com.imaginea.mongodb.exceptions.DatabaseException;
 import com.imaginea.mongodb.exceptions.ErrorCodes;
 import com.imaginea.mongodb.exceptions.InvalidMongoCommandException;
 import com.imaginea.mongodb.exceptions.ValidationException;
-import com.imaginea.mongodb.services.AuthService;
 import com.imaginea.mongodb.services.DatabaseService;
+import com.imaginea.mongodb.services.ServiceContext;
+import com.imaginea.mongodb.services.ServiceProvider;
+import com.imaginea.mongodb.utils.ConfigurationUtils;
 import com.imaginea.mongodb.utils.DatabaseQueryExecutor;
+import com.imaginea.mongodb.utils.NamespaceCache;
+import com.imaginea.mongodb.utils.TaskExecutors;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoException;
+import com.mongodb.ReadPreference;
 import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
 
@@ -46,13 +57,29 @@ import com.mongodb.client.MongoDatabase;
  */
 public class DatabaseServiceImpl implements DatabaseService {
 
+  private static final Logger logger = Logger.getLogger(DatabaseServiceImpl.class);
+
+  public static final String DB_OVERVIEW_TTL = "DB_OVERVIEW_TTL";
+  public static final String DB_OVERVIEW_PARALLELISM = "DB_OVERVIEW_PARALLELISM";
+  public static final String DB_OVERVIEW_TIMEOUT = "DB_OVERVIEW_TIMEOUT";
+
+  /** Fields of dbStats kept by the overview. */
+  private static final String[] DB_STATS_FIELDS = {"collections", "objects", "avgObjSize",
+      "dataSize", "storageSize", "indexes", "indexSize"};
+
   /**
    * Mongo Instance to communicate with mongo
    */
   private MongoClient mongoInstance;
   private ConnectionDetails connectionDetails;
+  private ReadPreference readPreference;
+  private NamespaceCache namespaceCache;
 
-  private static final AuthService AUTH_SERVICE = AuthServiceImpl.getInstance();
+  private final Object overviewLock = new Object();
+  private volatile JSONObject overview;
+  private boolean overviewRefreshing;
+  /** Bumped whenever databases are created or dropped, so that older refreshes are not kept. */
+  private long overviewGeneration;
 
   /**
    * Creates an instance of MongoInstanceProvider which is used to get a mongo instance to perform
@@ -62,10 +89,20 @@ public class DatabaseServiceImpl implements DatabaseService {
    * @param connectionId A combination of username,mongoHost and mongoPort
    */
   public DatabaseServiceImpl(String connectionId) throws ApplicationException {
-    MongoConnectionDetails mongoConnectionDetails =
-        AUTH_SERVICE.getMongoConnectionDetails(connectionId);
+    this(ServiceProvider.getServiceContext(connectionId));
+  }
+
+  /**
+   * Creates the database service of a connection from its service context.
+   *
+   * @param serviceContext Services and caches of the connection
+   */
+  public DatabaseServiceImpl(ServiceContext serviceContext) {
+    MongoConnectionDetails mongoConnectionDetails = serviceContext.getMongoConnectionDetails();
     mongoInstance = mongoConnectionDetails.getMongo();
     connectionDetails = mongoConnectionDetails.getConnectionDetails();
+    readPreference = mongoConnectionDetails.getReadPreference();
+    namespaceCache = serviceContext.getNamespaceCache();
   }
 
   /**
@@ -119,6 +156,8 @@ public class DatabaseServiceImpl implements DatabaseService {
       }
       // mongoInstance.getDatabase(dbName).listCollectionNames();
       mongoInstance.getDatabase(dbName).createCollection("temp");
+      namespaceCache.invalidate(dbName);
+      invalidateOverview();
       connectionDetails.addToAuthenticatedDbNames(dbName);
     } catch (MongoException e) {
 
@@ -153,6 +192,8 @@ public class DatabaseServiceImpl implements DatabaseService {
       }
 
       mongoInstance.dropDatabase(dbName);
+      namespaceCache.invalidate(dbName);
+      invalidateOverview();
 
       // newly added line
 
@@ -187,16 +228,22 @@ public class DatabaseServiceImpl implements DatabaseService {
 
     JSONArray dbStats = new JSONArray();
     try {
-      List<String> dbList = getDbList();
-      boolean dbPresent = dbList.contains(dbName);
+      // Logins to given databases may only see those, for the others a database exists as long as
+      // it has a collection, which its stats tell without listing all the databases
+      boolean dbPresent = connectionDetails.isAdminLogin()
+          || connectionDetails.getAuthenticatedDbNames().contains(dbName);
+      MongoDatabase db = mongoInstance.getDatabase(dbName);
+      Document stats = null;
+      if (dbPresent) {
+        stats = db.runCommand(new Document("dbStats", "1"), readPreference);
+        Object collections = stats.get("collections");
+        dbPresent = !(collections instanceof Number) || ((Number) collections).longValue() > 0;
+      }
       if (!dbPresent) {
         throw new DatabaseException(ErrorCodes.DB_DOES_NOT_EXISTS,
             "DB with name '" + dbName + "'  DOES NOT EXIST");
       }
 
-      MongoDatabase db = mongoInstance.getDatabase(dbName);
-      Document stats = db.runCommand(new Document("dbStats", "1"));
-
       Set<String> keys = stats.keySet();
 
       Iterator<String> keyIterator = keys.iterator();
@@ -218,6 +265,158 @@ public class DatabaseServiceImpl implements DatabaseService {
     return dbStats;
   }
 
+  @Override
+  public JSONObject getDatabasesOverview(boolean refresh) throws ApplicationException {
+    JSONObject current = overview;
+    if (current == null || refresh) {
+      current = refreshOverview();
+    } else {
+      long ttl = ConfigurationUtils.getLong(DB_OVERVIEW_TTL, 60 * 1000);
+      try {
+        if (System.currentTimeMillis() - current.getLong("collectedAt") > ttl) {
+          refreshOverviewInBackground();
+        }
+      } catch (JSONException e) {
+        throw new ApplicationException(ErrorCodes.JSON_EXCEPTION, e.getMessage());
+      }
+    }
+    try {
+      JSONObject response = new JSONObject(current, JSONObject.getNames(current));
+      synchronized (overviewLock) {
+        response.put("refreshing", overviewRefreshing);
+      }
+      return response;
+    } catch (JSONException e) {
+      throw new ApplicationException(ErrorCodes.JSON_EXCEPTION, e.getMessage());
+    }
+  }
+
+  private void refreshOverviewInBackground() {
+    synchronized (overviewLock) {
+      if (overviewRefreshing) {
+        return;
+      }
+      overviewRefreshing = true;
+    }
+    // Not on the scheduler: the refresh waits for its dbStats for as long as the timeout
+    TaskExecutors.getBackgroundExecutor().execute(new Runnable() {
+      public void run() {
+        try {
+          refreshOverview();
+        } catch (Exception e) {
+          // The previous overview is kept until a refresh succeeds
+          logger.warn("Could not refresh the databases overview", e);
+        } finally {
+          synchronized (overviewLock) {
+            overviewRefreshing = false;
+          }
+        }
+      }
+    });
+  }
+
+  private void invalidateOverview() {
+    synchronized (overviewLock) {
+      overviewGeneration++;
+      overview = null;
+    }
+  }
+
+  /**
+   * Lists the databases with their sizes on disk and fetches their stats concurrently. The result
+   * is only kept when no database was created or dropped in the meantime.
+   */
+  private JSONObject refreshOverview() throws ApplicationException {
+    long start = System.currentTimeMillis();
+    long generation;
+    synchronized (overviewLock) {
+      generation = overviewGeneration;
+    }
+    try {
+      final Map<String, Document> databases = new LinkedHashMap<String, Document>();
+      Object totalSize = null;
+      try {
+        Document listing = mongoInstance.getDatabase("admin")
+            .runCommand(new Document("listDatabases", 1));
+        for (Object item : listing.get("databases", List.class)) {
+          Document database = (Document) item;
+          databases.put(database.getString("name"), database);
+        }
+        totalSize = listing.get("totalSize");
+      } catch (MongoException e) {
+        if (connectionDetails.isAdminLogin()) {
+          throw e;
+        }
+      }
+      if (!connectionDetails.isAdminLogin()) {
+        // Only the databases of the login are shown, listed or not
+        databases.keySet().retainAll(connectionDetails.getAuthenticatedDbNames());
+        for (String dbName : connectionDetails.getAuthenticatedDbNames()) {
+          if (!databases.containsKey(dbName)) {
+            databases.put(dbName, new Document("name", dbName));
+          }
+        }
+      }
+      final List<String> dbNames = new ArrayList<String>(databases.keySet());
+      List<Callable<Document>> tasks = new ArrayList<Callable<Document>>();
+      for (final String dbName : dbNames) {
+        tasks.add(new Callable<Document>() {
+          public Document call() {
+            return mongoInstance.getDatabase(dbName)
+                .runCommand(new Document("dbStats", 1), readPreference);
+          }
+        });
+      }
+      List<Object> results = TaskExecutors.invokeAll(tasks,
+          ConfigurationUtils.getInt(DB_OVERVIEW_PARALLELISM, 4),
+          ConfigurationUtils.getLong(DB_OVERVIEW_TIMEOUT, 30 * 1000));
+
+      JSONArray rows = new JSONArray();
+      for (int i = 0; i < dbNames.size(); i++) {
+        Document listed = databases.get(dbNames.get(i));
+        JSONObject row = new JSONObject();
+        row.put("name", dbNames.get(i));
+        if (listed.containsKey("sizeOnDisk")) {
+          row.put("sizeOnDisk", listed.get("sizeOnDisk"));
+          row.put("empty", listed.get("empty"));
+        }
+        Object result = results.get(i);
+        if (result instanceof Document) {
+          Document stats = (Document) result;
+          for (String field : DB_STATS_FIELDS) {
+            if (stats.containsKey(field)) {
+              row.put(field, stats.get(field));
+            }
+          }
+        } else {
+          row.put("error", result instanceof TimeoutException ? "Timed out"
+              : String.valueOf(((Throwable) result).getMessage()));
+        }
+        rows.put(row);
+      }
+      JSONObject fresh = new JSONObject();
+      fresh.put("databases", rows);
+      if (totalSize != null) {
+        fresh.put("totalSize", totalSize);
+      }
+      fresh.put("collectedAt", System.currentTimeMillis());
+      fresh.put("elapsedMillis", System.currentTimeMillis() - start);
+      synchronized (overviewLock) {
+        if (generation == overviewGeneration) {
+          overview = fresh;
+        }
+      }
+      return fresh;
+    } catch (MongoException m) {
+      throw new DatabaseException(ErrorCodes.GET_DB_STATS_EXCEPTION, m.getMessage());
+    } catch (JSONException e) {
+      throw new ApplicationException(ErrorCodes.JSON_EXCEPTION, e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new DatabaseException(ErrorCodes.GET_DB_STATS_EXCEPTION, "Interrupted");
+    }
+  }
+
   /**
    * Gets the result of the command
    *
@@ -246,6 +445,8 @@ public class DatabaseServiceImpl implements DatabaseService {
     // }
     try {
       MongoDatabase db = mongoInstance.getDatabase(dbName);
+      // Database commands may create or drop collections
+      namespaceCache.invalidate(dbName);
       return DatabaseQueryExecutor.executeQuery(db, command, queryStr, keys, sortBy, limit, skip);
     } catch (MongoException e) {
       throw new DatabaseException(ErrorCodes.QUERY_EXECUTION_EXCEPTION, e.getMessage());
@@ -23,20 +23,26 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import com.imaginea.mongodb.domain.MongoConnectionDetails;
 import com.imaginea.mongodb.exceptions.ApplicationException;
 import com.imaginea.mongodb.exceptions.CollectionException;
 import com.imaginea.mongodb.exceptions.DatabaseException;
 import com.imaginea.mongodb.exceptions.DocumentException;
 import com.imaginea.mongodb.exceptions.ErrorCodes;
 import com.imaginea.mongodb.exceptions.ValidationException;
-import com.imaginea.mongodb.services.AuthService;
 import com.imaginea.mongodb.services.CollectionService;
 import com.imaginea.mongodb.services.DatabaseService;
 import com.imaginea.mongodb.services.DocumentService;
+import com.imaginea.mongodb.services.ServiceContext;
+import com.imaginea.mongodb.services.ServiceProvider;
 import com.imaginea.mongodb.utils.JSON;
+import com.imaginea.mongodb.utils.NamespaceCache;
+import com.imaginea.mongodb.utils.ParsedQueryCache;
 import com.imaginea.mongodb.utils.QueryExecutor;
+import com.imaginea.mongodb.utils.RequestTimings;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoException;
+import com.mongodb.ReadPreference;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
@@ -60,7 +66,14 @@ public class DocumentServiceImpl implements DocumentService {
     private DatabaseService databaseService;
     private CollectionService collectionService;
 
-    private static final AuthService AUTH_SERVICE = AuthServiceImpl.getInstance();
+    /**
+     * Read preference of the connection for the read only queries
+     */
+    private ReadPreference readPreference;
+
+    private NamespaceCache namespaceCache;
+    private ParsedQueryCache queryCache;
+
     private static final String ID_FIELD_NAME = "_id";
 
     /**
@@ -71,9 +84,22 @@ public class DocumentServiceImpl implements DocumentService {
      * @param connectionId A combination of username,mongoHost and mongoPort
      */
     public DocumentServiceImpl(String connectionId) throws ApplicationException {
-        mongoInstance = AUTH_SERVICE.getMongoInstance(connectionId);
-        databaseService = new DatabaseServiceImpl(connectionId);
-        collectionService = new CollectionServiceImpl(connectionId);
+        this(ServiceProvider.getServiceContext(connectionId));
+    }
+
+    /**
+     * Creates the document service of a connection from its service context.
+     *
+     * @param serviceContext Services and caches of the connection
+     */
+    public DocumentServiceImpl(ServiceContext serviceContext) {
+        MongoConnectionDetails mongoConnectionDetails = serviceContext.getMongoConnectionDetails();
+        mongoInstance = mongoConnectionDetails.getMongo();
+        readPreference = mongoConnectionDetails.getReadPreference();
+        databaseService = serviceContext.getDatabaseService();
+        collectionService = serviceContext.getCollectionService();
+        namespaceCache = serviceContext.getNamespaceCache();
+        queryCache = serviceContext.getQueryCache();
     }
 
     /**
@@ -121,14 +147,21 @@ public class DocumentServiceImpl implements DocumentService {
             if (collectionName.equals("")) {
                 throw new CollectionException(ErrorCodes.COLLECTION_NAME_EMPTY, "Collection Name Empty");
             }
-            if (!collectionService.getCollList(dbName).contains(collectionName)) {
+            long begin = RequestTimings.begin();
+            boolean exists = collectionService.getCollList(dbName).contains(collectionName);
+            RequestTimings.end(RequestTimings.MONGO, begin);
+            if (!exists) {
                 throw new CollectionException(ErrorCodes.COLLECTION_DOES_NOT_EXIST, "Collection with name ["
                         + collectionName + "] DOES NOT EXIST in Database [" + dbName + "]");
             }
 
             MongoCollection<Document> collection = db.getCollection(collectionName);
             JSONObject jsonObject = QueryExecutor.executeQuery(db, collection, collectionName, command, queryStr, keys,
-                    sortBy, limit, skip, allKeys);
+                    sortBy, limit, skip, allKeys, readPreference, queryCache);
+            if (command.equals("drop") || command.equals("mapReduce") || command.equals("aggregate")) {
+                // These may drop the collection or write their output to a new one
+                namespaceCache.invalidate(dbName);
+            }
             processComplexQuery(dbName, queryStr, db, jsonObject, collection);
             return jsonObject;
         } catch (MongoException e) {
@@ -401,6 +434,7 @@ public class DocumentServiceImpl implements DocumentService {
                     // If collection doesn't exist, create new one .. else insert into existing collection
                     if (!collectionService.getCollList(dbName).contains(newCollectionName)) {
                         db.createCollection(newCollectionName);
+                        namespaceCache.invalidate(dbName);
                         hasError = insertIntoTargetCollection(db, sourceCollection, newCollectionName, queryStr);
                     } else {
                         hasError = insertIntoTargetCollection(db, sourceCollection, newCollectionName, queryStr);
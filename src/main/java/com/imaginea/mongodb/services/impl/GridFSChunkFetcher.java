@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.services.impl;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.types.Binary;
+
+import com.imaginea.mongodb.utils.ConfigurationUtils;
+import com.imaginea.mongodb.utils.TaskExecutors;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+
+/**
+ * Reads the chunks of a large GridFS file ahead of the response. The file is cut into ranges of
+ * consecutive chunks that are fetched concurrently on the fan-out pool, while the response thread
+ * writes them out in order as the oldest range completes, so the round trips of the ranges in
+ * flight overlap instead of adding up.
+ * <p/>
+ * The bytes held by the ranges in flight of all downloads are bounded by GRIDFS_READ_AHEAD_BUFFER,
+ * a range holding no more chunks than fit in it. The buffer of a range is given back once both its
+ * fetch has finished and the download is done with it, so a fetch still running after the
+ * download was abandoned keeps counting. A download that finds the budget spent, or the heap
+ * nearly full, waits for its own oldest range instead of fetching more, down to a single range in
+ * flight.
+ */
+class GridFSChunkFetcher {
+
+  public static final String GRIDFS_READ_AHEAD = "GRIDFS_READ_AHEAD";
+  public static final String GRIDFS_READ_AHEAD_CHUNKS = "GRIDFS_READ_AHEAD_CHUNKS";
+  public static final String GRIDFS_READ_AHEAD_BUFFER = "GRIDFS_READ_AHEAD_BUFFER";
+
+  /** Share of the maximum heap in use above which no range is read ahead. */
+  private static final double MEMORY_PRESSURE = 0.85;
+  private static final int KB = 1024;
+
+  private static final int BUFFER_KB =
+      (int) Math.max(1, ConfigurationUtils.getLong(GRIDFS_READ_AHEAD_BUFFER, 64L * KB * KB) / KB);
+  private static final Semaphore bufferPermits = new Semaphore(BUFFER_KB);
+
+  private final MongoCollection<Document> chunksCollection;
+  private final BsonValue fileId;
+  private final int chunkSize;
+  private final int maxInFlight;
+  private final int rangeChunks;
+
+  /**
+   * @param chunksCollection Chunks collection of the bucket
+   * @param fileId Id of the file
+   * @param chunkSize Size of the chunks of the file
+   * @param maxInFlight Ranges fetched at once
+   * @param rangeChunks Chunks fetched by one range, at most {@link #getRangeChunks(int)}
+   */
+  GridFSChunkFetcher(MongoCollection<Document> chunksCollection, BsonValue fileId, int chunkSize,
+      int maxInFlight, int rangeChunks) {
+    this.chunksCollection = chunksCollection;
+    this.fileId = fileId;
+    this.chunkSize = chunkSize;
+    this.maxInFlight = Math.max(1, maxInFlight);
+    this.rangeChunks = Math.max(1, Math.min(rangeChunks, getRangeChunks(chunkSize)));
+    if ((long) chunkSize > (long) BUFFER_KB * KB) {
+      throw new IllegalArgumentException("Chunks of " + chunkSize
+          + " bytes do not fit in the read ahead buffer");
+    }
+  }
+
+  static int getMaxInFlight() {
+    return ConfigurationUtils.getInt(GRIDFS_READ_AHEAD, 4);
+  }
+
+  /**
+   * @param chunkSize Size of the chunks of the file
+   * @return Chunks fetched by one range, as many as configured but no more than fit in the read
+   *         ahead buffer. 0 when a single chunk is larger than the buffer and the file cannot be
+   *         read ahead.
+   */
+  static int getRangeChunks(int chunkSize) {
+    return (int) Math.min(ConfigurationUtils.getInt(GRIDFS_READ_AHEAD_CHUNKS, 16),
+        (long) BUFFER_KB * KB / Math.max(1, chunkSize));
+  }
+
+  /**
+   * Writes a byte range of the file.
+   *
+   * @param offset Offset of the first byte to be written
+   * @param length Number of bytes to be written
+   * @param out Stream the bytes are written to
+   * @throws IOException When writing fails, chunks are missing or the download is interrupted
+   */
+  void write(long offset, long length, OutputStream out) throws IOException {
+    long end = offset + length;
+    int lastChunk = (int) ((end - 1) / chunkSize);
+    int next = (int) (offset / chunkSize);
+    Deque<Range> window = new ArrayDeque<Range>();
+    try {
+      while (next <= lastChunk || !window.isEmpty()) {
+        while (next <= lastChunk && window.size() < allowedInFlight()) {
+          Range range = reserve(next, Math.min(lastChunk, next + rangeChunks - 1),
+              window.isEmpty());
+          if (range == null) {
+            break;
+          }
+          window.addLast(range);
+          next = range.to + 1;
+        }
+        Range oldest = window.removeFirst();
+        try {
+          writeRange(oldest, await(oldest.chunks), offset, end, out);
+        } finally {
+          oldest.release();
+        }
+      }
+    } finally {
+      for (Range range : window) {
+        range.abandon();
+      }
+    }
+  }
+
+  /**
+   * Takes the buffer of a range and starts fetching it. Only the first range of the window waits
+   * for the buffer, the others are left for later when it is spent.
+   *
+   * @return Range being fetched, null when the buffer is spent
+   */
+  private Range reserve(final int from, final int to, boolean wait) throws IOException {
+    long bytes = (long) (to - from + 1) * chunkSize;
+    // Never more than the whole buffer, as a range holds no more chunks than fit in it
+    int permits = (int) ((bytes + KB - 1) / KB);
+    if (wait) {
+      try {
+        bufferPermits.acquire(permits);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Download interrupted");
+      }
+    } else if (!bufferPermits.tryAcquire(permits)) {
+      return null;
+    }
+    final Range range = new Range(from, to, permits);
+    try {
+      range.chunks = TaskExecutors.getFanOutExecutor().submit(new Callable<List<byte[]>>() {
+        public List<byte[]> call() throws IOException {
+          if (!range.started.compareAndSet(false, true)) {
+            return null;
+          }
+          try {
+            return fetch(from, to);
+          } finally {
+            range.release();
+          }
+        }
+      });
+    } catch (RuntimeException e) {
+      bufferPermits.release(permits);
+      throw e;
+    }
+    return range;
+  }
+
+  private int allowedInFlight() {
+    Runtime runtime = Runtime.getRuntime();
+    long used = runtime.totalMemory() - runtime.freeMemory();
+    return used > runtime.maxMemory() * MEMORY_PRESSURE ? 1 : maxInFlight;
+  }
+
+  private List<byte[]> fetch(int from, int to) throws IOException {
+    List<byte[]> chunks = new ArrayList<byte[]>(to - from + 1);
+    MongoCursor<Document> cursor = chunksCollection
+        .find(Filters.and(Filters.eq("files_id", fileId), Filters.gte("n", from),
+            Filters.lte("n", to)))
+        .sort(Sorts.ascending("n")).batchSize(to - from + 1).iterator();
+    try {
+      for (int n = from; n <= to; n++) {
+        Document chunk = cursor.hasNext() ? cursor.next() : null;
+        if (chunk == null || ((Number) chunk.get("n")).intValue() != n) {
+          throw new IOException("Chunk [" + n + "] of file [" + fileId + "] is missing");
+        }
+        chunks.add(chunk.get("data", Binary.class).getData());
+      }
+    } finally {
+      cursor.close();
+    }
+    return chunks;
+  }
+
+  private void writeRange(Range range, List<byte[]> chunks, long offset, long end,
+      OutputStream out) throws IOException {
+    long position = (long) range.from * chunkSize;
+    for (byte[] data : chunks) {
+      int from = (int) Math.max(0, offset - position);
+      int to = (int) Math.min(data.length, end - position);
+      if (to > from) {
+        out.write(data, from, to - from);
+      }
+      position += chunkSize;
+    }
+  }
+
+  private static List<byte[]> await(Future<List<byte[]>> chunks) throws IOException {
+    try {
+      return chunks.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Download interrupted");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * Range of chunks being fetched. Its buffer is held by the fetch and by the download, and given
+   * back when the last of them lets go.
+   */
+  private static class Range {
+    private final int from;
+    private final int to;
+    private final int permits;
+    private final AtomicInteger holders = new AtomicInteger(2);
+    private final AtomicBoolean started = new AtomicBoolean();
+    private volatile Future<List<byte[]>> chunks;
+
+    Range(int from, int to, int permits) {
+      this.from = from;
+      this.to = to;
+      this.permits = permits;
+    }
+
+    void release() {
+      if (holders.decrementAndGet() == 0) {
+        bufferPermits.release(permits);
+      }
+    }
+
+    /**
+     * Cancels the fetch. A fetch already running lets go of the buffer when it stops, one that
+     * never started is let go of here.
+     */
+    void abandon() {
+      chunks.cancel(true);
+      if (started.compareAndSet(false, true)) {
+        release();
+      }
+      release();
+    }
+  }
+}
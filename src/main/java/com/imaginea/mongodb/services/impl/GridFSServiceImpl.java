@@ -11,20 +11,30 @@
  */
 package com.imaginea.mongodb.services.impl;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
 
 import org.bson.BsonObjectId;
 import org.bson.BsonValue;
 import org.bson.Document;
 import org.bson.codecs.BsonValueCodec;
+import org.bson.json.JsonParseException;
+import org.bson.types.Binary;
 import org.bson.types.ObjectId;
 import org.glassfish.jersey.media.multipart.FormDataBodyPart;
 import org.glassfish.jersey.media.multipart.FormDataContentDisposition;
@@ -32,6 +42,8 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import javax.ws.rs.core.MediaType;
+
 import com.imaginea.mongodb.exceptions.ApplicationException;
 import com.imaginea.mongodb.exceptions.CollectionException;
 import com.imaginea.mongodb.exceptions.DatabaseException;
@@ -40,20 +52,32 @@ import com.imaginea.mongodb.exceptions.ErrorCodes;
 import com.imaginea.mongodb.exceptions.GridFSException;
 import com.imaginea.mongodb.exceptions.InvalidMongoCommandException;
 import com.imaginea.mongodb.exceptions.ValidationException;
-import com.imaginea.mongodb.services.AuthService;
 import com.imaginea.mongodb.services.CollectionService;
 import com.imaginea.mongodb.services.DatabaseService;
 import com.imaginea.mongodb.services.GridFSService;
+import com.imaginea.mongodb.services.ServiceContext;
+import com.imaginea.mongodb.services.ServiceProvider;
+import com.imaginea.mongodb.utils.ApplicationUtils;
+import com.imaginea.mongodb.utils.ConfigurationUtils;
+import com.imaginea.mongodb.utils.ContentTypes;
+import com.imaginea.mongodb.utils.FileCache;
 import com.imaginea.mongodb.utils.JSON;
+import com.imaginea.mongodb.utils.NamespaceCache;
+import com.imaginea.mongodb.utils.ParsedQueryCache;
 import com.mongodb.BasicDBObject;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoException;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.gridfs.GridFSBucket;
 import com.mongodb.client.gridfs.GridFSBuckets;
+import com.mongodb.client.gridfs.GridFSDownloadStream;
 import com.mongodb.client.gridfs.model.GridFSFile;
-import com.mongodb.client.gridfs.model.GridFSUploadOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Sorts;
 import com.mongodb.gridfs.GridFS;
 import com.mongodb.gridfs.GridFSDBFile;
 import com.mongodb.gridfs.GridFSInputFile;
@@ -74,10 +98,32 @@ public class GridFSServiceImpl implements GridFSService {
 
     private DatabaseService databaseService;
     private CollectionService collectionService;
+    private ParsedQueryCache queryCache;
+    private NamespaceCache namespaceCache;
 
-    private static final AuthService AUTH_SERVICE = AuthServiceImpl.getInstance();
     private static final String FILES_COLLECTION_FIELD_STRING = "_filesCollection";
     private static final String CHUNKS_COLLECTION_FIELD_STRING = "_chunkCollection";
+    private static final int CONTENT_TYPE_SNIFF_BYTES = 8192;
+    private static final int ARCHIVE_BUFFER_SIZE = 64 * 1024;
+
+    public static final String GRIDFS_CHUNK_SIZE = "GRIDFS_CHUNK_SIZE";
+    public static final String GRIDFS_UPLOAD_BATCH_BYTES = "GRIDFS_UPLOAD_BATCH_BYTES";
+    public static final String GRIDFS_DEDUP = "GRIDFS_DEDUP";
+    private static final String METADATA_SHA256 = "metadata." + GridFSUploader.SHA256_FIELD;
+    private static final String METADATA_CONTENT_REF =
+            "metadata." + GridFSUploader.CONTENT_REF_FIELD;
+    private static final int DEFAULT_CHUNK_SIZE = 255 * 1024;
+    private static final int DEFAULT_UPLOAD_BATCH_BYTES = 4 * 1024 * 1024;
+    /** Largest chunk that, with its keys, still fits a 16MB BSON document. */
+    private static final int MAX_CHUNK_SIZE = 15 * 1024 * 1024;
+
+    /** Fields of the files collection shown under another name in the listing. */
+    private static final Map<String, String> LISTED_FIELDS =
+            Collections.singletonMap("fileName", "filename");
+
+    /** Buckets whose indexes were created by this connection, as <db>.<bucket>. */
+    private final Set<String> indexedBuckets =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
     /**
      * Creates an instance of MongoInstanceProvider which is used to get a mongo instance to perform
@@ -87,9 +133,20 @@ public class GridFSServiceImpl implements GridFSService {
      * @param connectionId A combination of username,mongoHost and mongoPort
      */
     public GridFSServiceImpl(String connectionId) throws ApplicationException {
-        mongoInstance = AUTH_SERVICE.getMongoInstance(connectionId);
-        databaseService = new DatabaseServiceImpl(connectionId);
-        collectionService = new CollectionServiceImpl(connectionId);
+        this(ServiceProvider.getServiceContext(connectionId));
+    }
+
+    /**
+     * Creates the GridFS service of a connection from its service context.
+     *
+     * @param serviceContext Services and caches of the connection
+     */
+    public GridFSServiceImpl(ServiceContext serviceContext) {
+        mongoInstance = serviceContext.getMongoConnectionDetails().getMongo();
+        databaseService = serviceContext.getDatabaseService();
+        collectionService = serviceContext.getCollectionService();
+        queryCache = serviceContext.getQueryCache();
+        namespaceCache = serviceContext.getNamespaceCache();
     }
 
 
@@ -117,30 +174,78 @@ public class GridFSServiceImpl implements GridFSService {
         if (getAllBuckets(dbName).contains(bucketName)) {
             throw new CollectionException(ErrorCodes.COLLECTION_ALREADY_EXISTS,
                     "Collection [" + bucketName + "] already exists in Database [" + dbName + "]");
-        } else {
-            try {
-
-
-                GridFSBucket gridFSBucket =
-                        GridFSBuckets.create(mongoInstance.getDatabase(dbName), bucketName);
+        }
+        try {
+            MongoDatabase db = mongoInstance.getDatabase(dbName);
+            db.createCollection(bucketName + ".files");
+            db.createCollection(bucketName + ".chunks");
+            namespaceCache.invalidate(dbName);
+            ensureIndexes(db, dbName, bucketName);
+        } catch (MongoException e) {
+            throw new GridFSException(ErrorCodes.GRIDFS_CREATION_EXCEPTION, e.getMessage());
+        }
+        return "GridFS bucket [" + bucketName + "] added to database [" + dbName + "].";
+    }
 
-                // Get the input stream
-                InputStream streamToUploadFrom = new FileInputStream(new File("/home/maheshk/sample.txt"));
+    /**
+     * Creates the indexes the driver expects on a bucket, once per bucket of the connection. Only
+     * called when writing to the bucket: listing or downloading must work with the read role alone
+     * and never start an index build.
+     */
+    private void ensureIndexes(MongoDatabase db, String dbName, String bucketName) {
+        String namespace = dbName + "." + bucketName;
+        if (indexedBuckets.contains(namespace)) {
+            return;
+        }
+        db.getCollection(bucketName + ".files")
+                .createIndex(new Document("filename", 1).append("uploadDate", 1));
+        db.getCollection(bucketName + ".chunks").createIndex(
+                new Document("files_id", 1).append("n", 1), new IndexOptions().unique(true));
+        indexedBuckets.add(namespace);
+    }
 
-                // Create some custom options
-                GridFSUploadOptions options = new GridFSUploadOptions().chunkSizeBytes(1024)
-                        .metadata(new Document("type", "presentation"));
+    /**
+     * Creates the indexes looking up stored content by hash, and the files sharing the chunks of
+     * another, on a bucket taking deduplicated uploads.
+     */
+    private void ensureHashIndexes(MongoDatabase db, String dbName, String bucketName) {
+        String namespace = dbName + "." + bucketName + "#" + GridFSUploader.SHA256_FIELD;
+        if (indexedBuckets.contains(namespace)) {
+            return;
+        }
+        MongoCollection<Document> files = db.getCollection(bucketName + ".files");
+        IndexOptions sparse = new IndexOptions().sparse(true);
+        files.createIndex(new Document(METADATA_SHA256, 1), sparse);
+        files.createIndex(new Document(METADATA_CONTENT_REF, 1), sparse);
+        indexedBuckets.add(namespace);
+    }
 
-                ObjectId fileId = gridFSBucket.uploadFromStream("temp-file", streamToUploadFrom, options);
+    /**
+     * Id under which the chunks of a file are stored, that of the file whose content it shares
+     * when it was deduplicated.
+     */
+    private static BsonValue getChunksId(GridFSFile file) {
+        Document metadata = file.getMetadata();
+        Object contentRef =
+                metadata == null ? null : metadata.get(GridFSUploader.CONTENT_REF_FIELD);
+        return contentRef instanceof ObjectId ? new BsonObjectId((ObjectId) contentRef)
+                : file.getId();
+    }
 
-            } catch (MongoException e) {
-                throw new GridFSException(ErrorCodes.GRIDFS_CREATION_EXCEPTION, e.getMessage());
-            } catch (FileNotFoundException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-            }
-            return "GridFS bucket [" + bucketName + "] added to database [" + dbName + "].";
-        }
+    /**
+     * Chunk size of an upload: the one asked for, else the one configured for the bucket, else
+     * the one configured for all buckets.
+     */
+    private static int resolveChunkSize(String bucketName, Integer requested)
+            throws ValidationException {
+        int chunkSize = requested != null ? requested : ConfigurationUtils.getInt(
+                GRIDFS_CHUNK_SIZE + "." + bucketName,
+                ConfigurationUtils.getInt(GRIDFS_CHUNK_SIZE, DEFAULT_CHUNK_SIZE));
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new ValidationException(ErrorCodes.INVALID_ARGUMENT,
+                    "Chunk size must be between 1 and " + MAX_CHUNK_SIZE + " bytes");
+        }
+        return chunkSize;
     }
 
     /**
@@ -189,7 +294,7 @@ public class GridFSServiceImpl implements GridFSService {
         // getGridFSCollection(gridFS, bucketType);
         try {
             if (command.equals("find")) {
-                return executeFind(gridFS, query, sortBy, limit, skip);
+                return executeFind(db, gridFS, dbName, bucketName, query, sortBy, limit, skip);
             } else if (command.equals("drop")) {
                 return executeDrop(db, bucketName);
             } else {
@@ -201,37 +306,50 @@ public class GridFSServiceImpl implements GridFSService {
         }
     }
 
-    private JSONObject executeFind(GridFSBucket gridFS, String query, String sortBy, String limit,
+    /**
+     * Lists a page of the files of a bucket. Filter and sort are run by the server on the files
+     * collection, with the field names shown in the listing mapped back to the stored ones, and
+     * the matches are counted by the server too, the count being kept for a few seconds so that
+     * paging through a bucket counts once.
+     */
+    private JSONObject executeFind(MongoDatabase db, GridFSBucket gridFS, String dbName,
+                                   String bucketName, String query, String sortBy, String limit,
                                    String skip) throws JSONException {
-        Document queryObj = Document.parse(query);
-        Document sortObj = Document.parse(sortBy);
+        Document queryObj = toStoredFields(queryCache.parse(query));
+        Document sortObj = toStoredFields(queryCache.parse(sortBy));
         int filesLimit = Integer.parseInt(limit);
         int filesSkip = Integer.parseInt(skip);
-        long count = 0l;
-        // Partial Keys cant be fetched for a file
 
         MongoCursor<GridFSFile> it =
                 gridFS.find(queryObj).sort(sortObj).skip(filesSkip).limit(filesLimit).iterator();
 
         JSONArray fileList = new JSONArray();
-        while (it.hasNext()) {
-            GridFSFile fsFile = it.next();
-            JSONObject file = new JSONObject();
-
-            file.put("_id", fsFile.getId().asObjectId().getValue());
-            file.put("fileName", fsFile.getFilename());
-            file.put("length", fsFile.getLength());
-            file.put("chunkSize", fsFile.getChunkSize());
-            file.put("uploadDate", fsFile.getUploadDate());
-            file.put("md5", fsFile.getMD5());
-            if (fsFile.getMetadata() != null) {
-                file.put("metadata", fsFile.getMetadata());
+        try {
+            while (it.hasNext()) {
+                GridFSFile fsFile = it.next();
+                JSONObject file = new JSONObject();
+
+                file.put("_id", fsFile.getId().asObjectId().getValue());
+                file.put("fileName", fsFile.getFilename());
+                file.put("length", fsFile.getLength());
+                file.put("chunkSize", fsFile.getChunkSize());
+                file.put("uploadDate", fsFile.getUploadDate());
+                file.put("md5", fsFile.getMD5());
+                if (fsFile.getMetadata() != null) {
+                    file.put("metadata", fsFile.getMetadata());
+                }
+                fileList.put(file);
             }
-            fileList.put(file);
+        } finally {
+            it.close();
         }
         // count of documents must not depend on limit size.
-        for (GridFSFile gridFSFile : gridFS.find(queryObj)) {
-            count++;
+        String filesCollection = bucketName + ".files";
+        String filter = queryObj.toJson();
+        Long count = namespaceCache.getCount(dbName, filesCollection, filter);
+        if (count == null) {
+            count = db.getCollection(filesCollection).count(queryObj);
+            namespaceCache.putCount(dbName, filesCollection, filter, count);
         }
         JSONObject result = new JSONObject();
         result.put("documents", fileList);
@@ -240,9 +358,37 @@ public class GridFSServiceImpl implements GridFSService {
         return result;
     }
 
+    /**
+     * Renames the fields of a filter or sort that the listing shows under another name than the
+     * one stored in the files collection, also inside $and, $or and $nor. The parsed document is
+     * shared by the query cache, so a renamed copy is returned.
+     */
+    private static Document toStoredFields(Document listed) {
+        Document stored = new Document();
+        for (Map.Entry<String, Object> entry : listed.entrySet()) {
+            String key = LISTED_FIELDS.containsKey(entry.getKey())
+                    ? LISTED_FIELDS.get(entry.getKey()) : entry.getKey();
+            Object value = entry.getValue();
+            if (value instanceof List && ("$and".equals(key) || "$or".equals(key)
+                    || "$nor".equals(key))) {
+                List<Object> clauses = new ArrayList<Object>();
+                for (Object clause : (List<?>) value) {
+                    clauses.add(clause instanceof Document ? toStoredFields((Document) clause)
+                            : clause);
+                }
+                value = clauses;
+            }
+            stored.put(key, value);
+        }
+        return stored;
+    }
+
     private JSONObject executeDrop(MongoDatabase db, String bucketName) throws JSONException {
         db.getCollection(bucketName + ".files").drop();
         db.getCollection(bucketName + ".chunks").drop();
+        indexedBuckets.remove(db.getName() + "." + bucketName);
+        indexedBuckets.remove(db.getName() + "." + bucketName + "#" + GridFSUploader.SHA256_FIELD);
+        namespaceCache.invalidate(db.getName());
         JSONObject jsonObject = new JSONObject();
         jsonObject.put("success", true);
         return jsonObject;
@@ -272,62 +418,318 @@ public class GridFSServiceImpl implements GridFSService {
     // }
 
     /**
-     * Service implementation for retrieving the specified file stored in GridFS.
+     * Service implementation for looking up a file stored in GridFS without reading its content.
      *
      * @param dbName     Name of Database
      * @param bucketName Name of GridFS Bucket
      * @param _id        ObjectId of the file to be retrieved
-     * @return Requested multipartfile for viewing or download based on 'download' param.
+     * @return Entry of the file in the files collection of the bucket
      */
-    public File getFile(String dbName, String bucketName, String _id)
-            throws ValidationException, DatabaseException, CollectionException {
+    public GridFSFile getFileInfo(String dbName, String bucketName, String _id)
+            throws ApplicationException {
         if (dbName == null) {
             throw new DatabaseException(ErrorCodes.DB_NAME_EMPTY, "Database Name Is Null");
         }
         if (dbName.equals("")) {
             throw new DatabaseException(ErrorCodes.DB_NAME_EMPTY, "Database Name Empty");
         }
-        File tempFile = null;
+        if (bucketName == null || bucketName.equals("")) {
+            throw new CollectionException(ErrorCodes.BUCKET_NAME_EMPTY, "Bucket Name Empty");
+        }
+        if (_id == null || !ObjectId.isValid(_id)) {
+            throw new DocumentException(ErrorCodes.INVALID_OBJECT_ID,
+                    "Invalid file id [" + _id + "]");
+        }
+        GridFSFile fsFile;
         try {
-            // if (!databaseService.getDbList().contains(dbName)) {
-            //   throw new DatabaseException(ErrorCodes.DB_DOES_NOT_EXISTS,
-
-            //       "Database with dbName [ " + dbName + "] does not exist");
-            // }
-
-
-            ObjectId objectId = new ObjectId(_id);
-
             MongoDatabase db = mongoInstance.getDatabase(dbName);
-
             GridFSBucket gridFS = GridFSBuckets.create(db, bucketName);
+            fsFile = gridFS.find(new Document("_id", new ObjectId(_id))).first();
+            if (fsFile != null && !getChunksId(fsFile).equals(fsFile.getId())
+                    && new GridFSSharedContent(db, bucketName).repair(fsFile.getMetadata())) {
+                // The delete of the file holding the chunks was cut short and is now finished
+                fsFile = gridFS.find(new Document("_id", new ObjectId(_id))).first();
+            }
+        } catch (MongoException m) {
+            throw new GridFSException(ErrorCodes.DOWNLOAD_FILE_EXCEPTION, m.getMessage());
+        }
+        if (fsFile == null) {
+            throw new DocumentException(ErrorCodes.DOCUMENT_DOES_NOT_EXIST,
+                    "File [" + _id + "] does not exist in bucket [" + bucketName + "]");
+        }
+        return fsFile;
+    }
 
-            Document id = new Document();
-
-            id.put("_id", objectId);
-
-            GridFSFile fsFile = gridFS.find(id).first();
-
-            if (fsFile != null) {
+    /**
+     * Service implementation for finding the MIME type of a file stored in GridFS.
+     *
+     * @param dbName     Name of Database
+     * @param bucketName Name of GridFS Bucket
+     * @param file       Entry of the file in the files collection
+     * @return Content type of the metadata, else the one detected from the first chunk
+     */
+    public String getContentType(String dbName, String bucketName, GridFSFile file)
+            throws ApplicationException {
+        Document metadata = file.getMetadata();
+        if (metadata != null && metadata.get("contentType") instanceof String) {
+            return metadata.getString("contentType");
+        }
+        if (file.getLength() == 0) {
+            return MediaType.APPLICATION_OCTET_STREAM;
+        }
+        try {
+            Document firstChunk = getChunksCollection(dbName, bucketName)
+                    .find(Filters.and(Filters.eq("files_id", getChunksId(file)),
+                            Filters.eq("n", 0)))
+                    .first();
+            if (firstChunk == null) {
+                return MediaType.APPLICATION_OCTET_STREAM;
+            }
+            byte[] data = firstChunk.get("data", Binary.class).getData();
+            if (data.length > CONTENT_TYPE_SNIFF_BYTES) {
+                data = Arrays.copyOf(data, CONTENT_TYPE_SNIFF_BYTES);
+            }
+            return ApplicationUtils.getContentType(data);
+        } catch (MongoException m) {
+            throw new GridFSException(ErrorCodes.DOWNLOAD_FILE_EXCEPTION, m.getMessage());
+        }
+    }
 
-                String tempDir = System.getProperty("java.io.tmpdir");
+    /**
+     * Service implementation for streaming a file stored in GridFS, or a byte range of it.
+     *
+     * @param dbName     Name of Database
+     * @param bucketName Name of GridFS Bucket
+     * @param file       Entry of the file in the files collection
+     * @param offset     Offset of the first byte to be written
+     * @param length     Number of bytes to be written
+     * @param out        Stream the bytes are written to
+     */
+    public void writeFile(final String dbName, final String bucketName, final GridFSFile file,
+                          long offset, long length, OutputStream out) throws IOException {
+        if (length <= 0) {
+            return;
+        }
+        FileCache cache = FileCache.getGridFSCache();
+        if (cache != null && cache.accepts(file.getLength())) {
+            // The key holds the checksum and upload date of the file, a cached copy of an older
+            // file of the same id is never served
+            cache.write(getCacheKey(dbName, bucketName, file), file.getLength(),
+                    new FileCache.Content() {
+                        public void writeTo(long offset, long length, OutputStream out)
+                                throws IOException {
+                            writeChunks(dbName, bucketName, file, offset, length, out);
+                        }
+                    }, offset, length, out);
+            return;
+        }
+        writeChunks(dbName, bucketName, file, offset, length, out);
+    }
 
-                tempFile = new File(tempDir + "/" + fsFile.getFilename());
+    private String getCacheKey(String dbName, String bucketName, GridFSFile file) {
+        List<String> hosts = new ArrayList<String>();
+        for (ServerAddress address : mongoInstance.getAllAddress()) {
+            hosts.add(address.toString());
+        }
+        Collections.sort(hosts);
+        return hosts + "/" + dbName + "/" + bucketName + "/" + file.getId() + "/" + file.getMD5()
+                + "/" + file.getUploadDate().getTime() + "/" + file.getLength();
+    }
 
-                FileOutputStream streamToDownloadTo = new FileOutputStream(tempFile);
+    private void writeChunks(String dbName, String bucketName, GridFSFile file, long offset,
+                             long length, OutputStream out) throws IOException {
+        BsonValue chunksId = getChunksId(file);
+        int chunkSize = file.getChunkSize();
+        long end = offset + length;
+        int firstChunk = (int) (offset / chunkSize);
+        int lastChunk = (int) ((end - 1) / chunkSize);
+        int readAhead = GridFSChunkFetcher.getMaxInFlight();
+        int rangeChunks = GridFSChunkFetcher.getRangeChunks(chunkSize);
+        if (readAhead > 1 && rangeChunks > 0 && lastChunk - firstChunk + 1 > rangeChunks) {
+            // Large downloads fetch several ranges of chunks at once
+            new GridFSChunkFetcher(getChunksCollection(dbName, bucketName), chunksId, chunkSize,
+                    readAhead, rangeChunks).write(offset, length, out);
+            return;
+        }
+        if (offset == 0 && length == file.getLength() && chunksId.equals(file.getId())) {
+            GridFSBucket gridFS = GridFSBuckets.create(mongoInstance.getDatabase(dbName), bucketName);
+            GridFSDownloadStream in = gridFS.openDownloadStream(file.getObjectId());
+            try {
+                byte[] buffer = new byte[file.getChunkSize()];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+            return;
+        }
+        // The seek of the download stream computes chunk numbers in float, which picks the
+        // wrong chunk for large offsets, so ranges read just the chunks covering them.
+        MongoCursor<Document> chunks = getChunksCollection(dbName, bucketName)
+                .find(Filters.and(Filters.eq("files_id", chunksId),
+                        Filters.gte("n", firstChunk), Filters.lte("n", lastChunk)))
+                .sort(Sorts.ascending("n")).iterator();
+        try {
+            long position = (long) firstChunk * chunkSize;
+            for (int n = firstChunk; n <= lastChunk; n++) {
+                Document chunk = chunks.hasNext() ? chunks.next() : null;
+                if (chunk == null || ((Number) chunk.get("n")).intValue() != n) {
+                    throw new IOException("Chunk [" + n + "] of file [" + file.getId()
+                            + "] is missing");
+                }
+                byte[] data = chunk.get("data", Binary.class).getData();
+                int from = (int) Math.max(0, offset - position);
+                int to = (int) Math.min(data.length, end - position);
+                if (to > from) {
+                    out.write(data, from, to - from);
+                }
+                position += chunkSize;
+            }
+        } finally {
+            chunks.close();
+        }
+    }
 
-                gridFS.downloadToStream(objectId, streamToDownloadTo);
+    /**
+     * Service implementation for building the filter of the files to be put into an archive.
+     *
+     * @param query Filter on the files, as typed for the listing of the bucket. May be null.
+     * @param ids   ObjectIds of the files. May be null.
+     * @return Filter on the files collection
+     */
+    public Document getArchiveFilter(String query, List<String> ids) throws ApplicationException {
+        List<Document> clauses = new ArrayList<Document>();
+        if (query != null && !query.trim().isEmpty()) {
+            try {
+                clauses.add(toStoredFields(queryCache.parse(query)));
+            } catch (JsonParseException e) {
+                throw new InvalidMongoCommandException(ErrorCodes.INVALID_QUERY,
+                        "Invalid filter [" + query + "]: " + e.getMessage());
+            }
+        }
+        if (ids != null && !ids.isEmpty()) {
+            List<ObjectId> objectIds = new ArrayList<ObjectId>();
+            for (String id : ids) {
+                if (!ObjectId.isValid(id)) {
+                    throw new DocumentException(ErrorCodes.INVALID_OBJECT_ID,
+                            "Invalid file id [" + id + "]");
+                }
+                objectIds.add(new ObjectId(id));
+            }
+            clauses.add(new Document("_id", new Document("$in", objectIds)));
+        }
+        if (clauses.isEmpty()) {
+            return new Document();
+        }
+        return clauses.size() == 1 ? clauses.get(0) : new Document("$and", clauses);
+    }
 
-                streamToDownloadTo.close();
+    /**
+     * Service implementation for streaming the files matching a filter as a ZIP archive. Files
+     * are archived by name and upload date, a name used by several files gets a counter. The
+     * entries of compressed contents are deflated at level 0 rather than stored, as storing needs
+     * the CRC of the content before it is written.
+     *
+     * @param dbName     Name of Database
+     * @param bucketName Name of GridFS Bucket
+     * @param filter     Filter on the files collection
+     * @param out        Stream the archive is written to
+     * @return Number of files written
+     */
+    public int writeArchive(String dbName, String bucketName, Document filter, OutputStream out)
+            throws IOException {
+        MongoDatabase db = mongoInstance.getDatabase(dbName);
+        GridFSBucket gridFS = GridFSBuckets.create(db, bucketName);
+        ZipOutputStream zip =
+                new ZipOutputStream(new BufferedOutputStream(out, ARCHIVE_BUFFER_SIZE));
+        // Writing a large archive may outlast the idle timeout of the cursor between batches, so
+        // the server never closes it: it is closed below however the writing ends, including the
+        // client going away
+        MongoCursor<GridFSFile> files = gridFS.find(filter)
+                .sort(new Document("filename", 1).append("uploadDate", 1))
+                .noCursorTimeout(true).iterator();
+        int count = 0;
+        String previousName = null;
+        int sameName = 0;
+        try {
+            while (files.hasNext()) {
+                GridFSFile file = files.next();
+                String name = toEntryName(file);
+                if (name.equals(previousName)) {
+                    sameName++;
+                } else {
+                    previousName = name;
+                    sameName = 0;
+                }
+                String entryName = sameName == 0 ? name : tagged(name, "(" + (sameName + 1) + ")");
+                Document metadata = file.getMetadata();
+                Object contentType = metadata == null ? null : metadata.get("contentType");
+                zip.setLevel(ContentTypes.isCompressed(contentType instanceof String
+                        ? (String) contentType : null, file.getFilename())
+                        ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION);
+                try {
+                    zip.putNextEntry(newEntry(entryName, file));
+                } catch (ZipException e) {
+                    // Same path as a file whose name sorted apart, like "a/b" and "/a/b"
+                    zip.putNextEntry(newEntry(tagged(entryName, file.getId().asObjectId()
+                            .getValue().toHexString()), file));
+                }
+                // Straight from the chunks, a bulk export is not to fill the download cache
+                writeChunks(dbName, bucketName, file, 0, file.getLength(), zip);
+                zip.closeEntry();
+                count++;
+            }
+            zip.finish();
+            zip.flush();
+        } finally {
+            files.close();
+        }
+        return count;
+    }
 
+    /**
+     * Path of a file in an archive, without the parts that could place it outside the directory
+     * the archive is extracted to.
+     */
+    private static String toEntryName(GridFSFile file) {
+        String name = file.getFilename() == null ? "" : file.getFilename().replace('\\', '/');
+        StringBuilder path = new StringBuilder();
+        for (String part : name.split("/")) {
+            if (part.isEmpty() || part.equals(".") || part.equals("..")) {
+                continue;
+            }
+            if (path.length() > 0) {
+                path.append('/');
             }
+            path.append(part);
+        }
+        return path.length() > 0 ? path.toString()
+                : file.getId().asObjectId().getValue().toHexString();
+    }
 
-        } catch (MongoException m) {
-            throw new CollectionException(ErrorCodes.GET_COLLECTION_LIST_EXCEPTION, m.getMessage());
-        } catch (IOException e) {
-            throw new CollectionException(ErrorCodes.GET_COLLECTION_LIST_EXCEPTION, e.getMessage());
+    private static ZipEntry newEntry(String name, GridFSFile file) {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setTime(file.getUploadDate().getTime());
+        entry.setSize(file.getLength());
+        return entry;
+    }
+
+    /**
+     * Adds a tag to a file name, before its extension.
+     */
+    private static String tagged(String name, String tag) {
+        int slash = name.lastIndexOf('/');
+        int dot = name.lastIndexOf('.');
+        if (dot <= slash + 1) {
+            return name + " " + tag;
         }
-        return tempFile;
+        return name.substring(0, dot) + " " + tag + name.substring(dot);
+    }
+
+    private MongoCollection<Document> getChunksCollection(String dbName, String bucketName) {
+        return mongoInstance.getDatabase(dbName).getCollection(bucketName + ".chunks");
     }
 
     /**
@@ -342,7 +744,9 @@ public class GridFSServiceImpl implements GridFSService {
      * deletion url as JSON Array string.
      */
     public JSONArray insertFile(String dbName, String bucketName, String connectionId,
-                                InputStream inputStream, FormDataContentDisposition fileData) throws ApplicationException {
+                                InputStream inputStream, FormDataContentDisposition fileData,
+                                Integer chunkSize, Boolean dedup, String sha256)
+            throws ApplicationException {
         if (dbName == null) {
             throw new DatabaseException(ErrorCodes.DB_NAME_EMPTY, "Database name is null");
 
@@ -358,6 +762,13 @@ public class GridFSServiceImpl implements GridFSService {
             throw new CollectionException(ErrorCodes.COLLECTION_NAME_EMPTY, "Bucket Name Empty");
         }
 
+        int fileChunkSize = resolveChunkSize(bucketName, chunkSize);
+        boolean deduplicate =
+                dedup != null ? dedup : ConfigurationUtils.getBoolean(GRIDFS_DEDUP, false);
+        if (sha256 != null && !sha256.matches("[0-9a-fA-F]{64}")) {
+            throw new ValidationException(ErrorCodes.INVALID_ARGUMENT,
+                    "sha256 must be 64 hexadecimal digits");
+        }
         JSONArray result = new JSONArray();
 
         try {
@@ -368,18 +779,39 @@ public class GridFSServiceImpl implements GridFSService {
 
             MongoDatabase db = mongoInstance.getDatabase(dbName);
 
-            GridFSBucket gridFS = GridFSBuckets.create(db, bucketName);
-
-
-            GridFSUploadOptions options = new GridFSUploadOptions().chunkSizeBytes(1024)
-                    .metadata(new Document("type", "presentation"));
-
-            ObjectId fileId = gridFS.uploadFromStream(fileData.getFileName(), inputStream, options);
+            ensureIndexes(db, dbName, bucketName);
+            int batchBytes =
+                    ConfigurationUtils.getInt(GRIDFS_UPLOAD_BATCH_BYTES,
+                            DEFAULT_UPLOAD_BATCH_BYTES);
+            GridFSUploader uploader =
+                    new GridFSUploader(db, bucketName, fileChunkSize, batchBytes, deduplicate);
+            Document file;
+            Document stored = null;
+            if (deduplicate) {
+                ensureHashIndexes(db, dbName, bucketName);
+                if (sha256 != null) {
+                    stored = uploader.findContent(sha256.toLowerCase(), null);
+                }
+            }
+            if (stored != null) {
+                // Content already in the bucket, the stream is only hashed to check the claim
+                file = uploader.uploadStored(fileData.getFileName(), inputStream, null, stored);
+            } else {
+                file = uploader.upload(fileData.getFileName(), inputStream, null);
+            }
+            ObjectId fileId = file.getObjectId("_id");
+            Document fileMetadata = file.get("metadata", Document.class);
+            namespaceCache.invalidateCounts(dbName, bucketName + ".files");
 
             String objectId = JSON.serialize(fileId);
             JSONObject obj = new JSONObject();
             obj.put("name", fileData.getFileName());
-            // obj.put("size", fileData.);
+            obj.put("size", ((Number) file.get("length")).longValue());
+            if (fileMetadata != null && fileMetadata.containsKey(GridFSUploader.SHA256_FIELD)) {
+                obj.put("sha256", fileMetadata.getString(GridFSUploader.SHA256_FIELD));
+                obj.put("deduplicated",
+                        fileMetadata.containsKey(GridFSUploader.CONTENT_REF_FIELD));
+            }
             obj.put("url",
                     String.format("services/%s/%s/gridfs/getfile?id=%s&download=%s&connectionId=%s&ts=%s",
                             dbName, bucketName, objectId, false, connectionId, new Date()));
@@ -391,6 +823,10 @@ public class GridFSServiceImpl implements GridFSService {
 
         } catch (MongoException e) {
             throw new CollectionException(ErrorCodes.UPLOAD_FILE_EXCEPTION, e.getMessage());
+        } catch (IOException e) {
+            throw new CollectionException(ErrorCodes.UPLOAD_FILE_EXCEPTION, e.getMessage());
+        } catch (IllegalArgumentException e) {
+            throw new ValidationException(ErrorCodes.INVALID_ARGUMENT, e.getMessage());
         } catch (JSONException e) {
             throw new ApplicationException(ErrorCodes.JSON_EXCEPTION, "Error creating json response obj",
                     e.getCause());
@@ -451,7 +887,13 @@ public class GridFSServiceImpl implements GridFSService {
                         "Document does not exist !");
             }
 
-            gridFS.delete(objectId);
+            if (getChunksId(gridFSFile).equals(gridFSFile.getId())) {
+                new GridFSSharedContent(db, bucketName).deleteOwner(objectId);
+            } else {
+                // The chunks belong to the file whose content was shared
+                db.getCollection(bucketName + ".files").deleteOne(Filters.eq("_id", objectId));
+            }
+            namespaceCache.invalidateCounts(dbName, bucketName + ".files");
 
         } catch (MongoException e) {
             throw new DocumentException(ErrorCodes.DOCUMENT_DELETION_EXCEPTION, e.getMessage());
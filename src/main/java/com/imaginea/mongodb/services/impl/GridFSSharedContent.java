@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.services.impl;
+
+import org.bson.Document;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.gridfs.GridFSBuckets;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Updates;
+
+/**
+ * Keeps the files of a bucket sharing the chunks of a deduplicated content consistent while the
+ * file owning the chunks is deleted, without transactions.
+ * <p/>
+ * Deleting an owner first marks it <metadata.deleting>, after which uploads no longer pick it. An
+ * upload that picked it before checks, once its reference is written, that the owner is not being
+ * deleted, and otherwise withdraws the reference and stores the content itself. The delete hands
+ * the chunks over to one of the referring files, the heir, which it claims with
+ * <metadata.heirOf> so that the heir can no longer be withdrawn. The heir is recorded on the owner
+ * as <metadata.heir>, then the chunks are moved to it, the heir stops referring, the other
+ * referring files are pointed at the heir and the owner goes last. Every step can be run again, so
+ * a handover cut short is finished by the next delete of the owner or the next read of a file
+ * referring to it.
+ */
+class GridFSSharedContent {
+
+  static final String DELETING_FIELD = "deleting";
+  static final String HEIR_FIELD = "heir";
+  static final String HEIR_OF_FIELD = "heirOf";
+
+  private static final String CONTENT_REF = "metadata." + GridFSUploader.CONTENT_REF_FIELD;
+  private static final String DELETING = "metadata." + DELETING_FIELD;
+  private static final String HEIR = "metadata." + HEIR_FIELD;
+  private static final String HEIR_OF = "metadata." + HEIR_OF_FIELD;
+
+  private final MongoDatabase db;
+  private final String bucketName;
+  private final MongoCollection<Document> filesCollection;
+  private final MongoCollection<Document> chunksCollection;
+
+  GridFSSharedContent(MongoDatabase db, String bucketName) {
+    this.db = db;
+    this.bucketName = bucketName;
+    this.filesCollection = db.getCollection(bucketName + ".files");
+    this.chunksCollection = db.getCollection(bucketName + ".chunks");
+  }
+
+  /**
+   * Tells whether a file owning chunks still exists and is not being deleted.
+   */
+  boolean isOwnerLive(Object ownerId) {
+    return filesCollection.find(Filters.and(Filters.eq("_id", ownerId),
+        Filters.exists(DELETING, false))).first() != null;
+  }
+
+  /**
+   * Deletes a file referring to an owner being deleted, unless the delete already claimed it as
+   * heir or moved it to another heir.
+   *
+   * @return Whether the file was deleted. When not, it refers to chunks which are in place.
+   */
+  boolean withdraw(Document reference, Object ownerId) {
+    return filesCollection.deleteOne(Filters.and(Filters.eq("_id", reference.get("_id")),
+        Filters.eq(CONTENT_REF, ownerId), Filters.exists(HEIR_OF, false))).getDeletedCount() == 1;
+  }
+
+  /**
+   * Deletes a file holding its own chunks. When files refer to its content, the chunks are handed
+   * over to one of them and only the files document is deleted.
+   */
+  void deleteOwner(Object ownerId) {
+    Document owner = filesCollection.findOneAndUpdate(Filters.eq("_id", ownerId),
+        Updates.set(DELETING, true));
+    if (owner == null) {
+      return;
+    }
+    Object heirId = getHeir(owner);
+    // A claim fails only when its candidate was withdrawn, and no file starts referring any more
+    while (heirId == null) {
+      Document candidate = filesCollection.find(Filters.eq(CONTENT_REF, ownerId)).first();
+      if (candidate == null) {
+        // An upload referring to it from now on sees it being deleted and withdraws
+        GridFSBuckets.create(db, bucketName).delete(owner.getObjectId("_id"));
+        return;
+      }
+      if (filesCollection.updateOne(Filters.and(Filters.eq("_id", candidate.get("_id")),
+          Filters.eq(CONTENT_REF, ownerId)), Updates.set(HEIR_OF, ownerId))
+          .getModifiedCount() == 1) {
+        heirId = candidate.get("_id");
+        filesCollection.updateOne(Filters.eq("_id", ownerId), Updates.set(HEIR, heirId));
+      }
+    }
+    handOver(ownerId, heirId);
+  }
+
+  /**
+   * Finishes the handover of the chunks a file refers to, when the delete of their owner was cut
+   * short.
+   *
+   * @param metadata Metadata of a file, which may refer to the chunks of another
+   * @return Whether a handover was finished, the files document being stale then
+   */
+  boolean repair(Document metadata) {
+    Object ownerId = metadata == null ? null : metadata.get(GridFSUploader.CONTENT_REF_FIELD);
+    if (ownerId == null) {
+      return false;
+    }
+    Document owner = filesCollection.find(Filters.eq("_id", ownerId)).first();
+    Object heirId = owner == null ? null : getHeir(owner);
+    if (heirId == null) {
+      return false;
+    }
+    handOver(ownerId, heirId);
+    return true;
+  }
+
+  private void handOver(Object ownerId, Object heirId) {
+    chunksCollection.updateMany(Filters.eq("files_id", ownerId), Updates.set("files_id", heirId));
+    filesCollection.updateOne(Filters.eq("_id", heirId),
+        Updates.combine(Updates.unset(CONTENT_REF), Updates.unset(HEIR_OF)));
+    filesCollection.updateMany(Filters.eq(CONTENT_REF, ownerId),
+        Updates.set(CONTENT_REF, heirId));
+    filesCollection.deleteOne(Filters.eq("_id", ownerId));
+  }
+
+  private static Object getHeir(Document owner) {
+    Document metadata = owner.get("metadata", Document.class);
+    return metadata == null ? null : metadata.get(HEIR_FIELD);
+  }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.services.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+
+import com.imaginea.mongodb.utils.TaskExecutors;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.InsertManyOptions;
+
+/**
+ * Writes a stream into a GridFS bucket. The chunks are gathered in batches that are inserted
+ * unordered on the fan-out pool while the next batch is read from the stream, so reading the
+ * upload and writing to the server overlap. At most {@link #MAX_PENDING_BATCHES} batches are held
+ * in memory per upload. The files document is written last, so readers never see a file whose
+ * chunks are not all in place, and the chunks written so far are removed when the upload fails.
+ * <p/>
+ * Deduplicating uploads also hash the content with SHA-256 as it streams by. When the bucket
+ * already holds a file with the same hash and length, the new chunks are dropped and the files
+ * document refers to the chunks of that file through <metadata.contentRef> instead. Files being
+ * deleted are not referred to, see {@link GridFSSharedContent}.
+ */
+class GridFSUploader {
+
+  private static final int MAX_PENDING_BATCHES = 2;
+  private static final InsertManyOptions UNORDERED = new InsertManyOptions().ordered(false);
+
+  static final String SHA256_FIELD = "sha256";
+  static final String CONTENT_REF_FIELD = "contentRef";
+  private static final int HASH_BUFFER_SIZE = 64 * 1024;
+
+  private final MongoCollection<Document> filesCollection;
+  private final MongoCollection<Document> chunksCollection;
+  private final int chunkSize;
+  private final int batchChunks;
+  private final boolean dedup;
+  private final GridFSSharedContent sharedContent;
+
+  /**
+   * @param db Database of the bucket
+   * @param bucketName Name of the GridFS bucket
+   * @param chunkSize Size of the chunks in bytes
+   * @param batchBytes Bytes of chunks inserted by one command
+   * @param dedup Whether content already in the bucket is stored only once
+   */
+  GridFSUploader(MongoDatabase db, String bucketName, int chunkSize, int batchBytes,
+      boolean dedup) {
+    this.filesCollection = db.getCollection(bucketName + ".files");
+    this.chunksCollection = db.getCollection(bucketName + ".chunks");
+    this.chunkSize = chunkSize;
+    this.batchChunks = Math.max(1, batchBytes / chunkSize);
+    this.dedup = dedup;
+    this.sharedContent = new GridFSSharedContent(db, bucketName);
+  }
+
+  /**
+   * Finds the file holding the chunks of a content.
+   *
+   * @param sha256 SHA-256 of the content, in hex
+   * @param length Length of the content, or null to match any length
+   * @return Files document of the file owning the chunks, or null when the content is not stored
+   *         or its owner is being deleted
+   */
+  Document findContent(String sha256, Long length) {
+    Document filter = new Document("metadata." + SHA256_FIELD, sha256)
+        .append("metadata." + CONTENT_REF_FIELD, new Document("$exists", false))
+        .append("metadata." + GridFSSharedContent.DELETING_FIELD,
+            new Document("$exists", false));
+    if (length != null) {
+      filter.append("length", length);
+    }
+    return filesCollection.find(filter).first();
+  }
+
+  /**
+   * Stores a file whose content the client claims to be already in the bucket. The stream is
+   * only hashed to check the claim, none of its chunks are written.
+   *
+   * @param filename Name of the file
+   * @param in Content of the file, read till its end
+   * @param metadata Metadata of the file. May be null.
+   * @param stored Files document of the file owning the chunks of the content
+   * @return Files document written
+   * @throws IOException When reading the stream fails
+   * @throws IllegalArgumentException When the stream is not the stored content, or the stored
+   *         content was deleted meanwhile
+   */
+  Document uploadStored(String filename, InputStream in, Document metadata, Document stored)
+      throws IOException {
+    MessageDigest sha256 = newDigest("SHA-256");
+    byte[] buffer = new byte[HASH_BUFFER_SIZE];
+    long length = 0;
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      sha256.update(buffer, 0, read);
+      length += read;
+    }
+    String hash = toHex(sha256.digest());
+    Document storedMetadata = stored.get("metadata", Document.class);
+    if (length != ((Number) stored.get("length")).longValue()
+        || !hash.equals(storedMetadata.getString(SHA256_FIELD))) {
+      throw new IllegalArgumentException("Uploaded content does not match the sha256 given");
+    }
+    Document file = referenceTo(new ObjectId(), filename, metadata, stored, hash);
+    if (!insertReference(file, stored)) {
+      throw new IllegalArgumentException("File with the sha256 given was deleted, upload it again");
+    }
+    return file;
+  }
+
+  /**
+   * Writes the files document of a file referring to stored content, then checks that the owner of
+   * the content is not being deleted.
+   *
+   * @return Whether the file was stored. When not, the reference was withdrawn and the content is
+   *         to be stored with the file.
+   */
+  private boolean insertReference(Document file, Document stored) {
+    filesCollection.insertOne(file);
+    return sharedContent.isOwnerLive(stored.get("_id"))
+        || !sharedContent.withdraw(file, stored.get("_id"));
+  }
+
+  /**
+   * Uploads the content of a stream as a new file.
+   *
+   * @param filename Name of the file
+   * @param in Content of the file, read till its end
+   * @param metadata Metadata of the file. May be null.
+   * @return Files document written
+   * @throws IOException When reading the stream fails or the upload is interrupted
+   */
+  Document upload(String filename, InputStream in, Document metadata) throws IOException {
+    ObjectId fileId = new ObjectId();
+    MessageDigest md5 = newDigest("MD5");
+    MessageDigest sha256 = dedup ? newDigest("SHA-256") : null;
+    Deque<Future<?>> pending = new ArrayDeque<Future<?>>();
+    List<Document> batch = new ArrayList<Document>(batchChunks);
+    long length = 0;
+    int n = 0;
+    try {
+      byte[] chunk;
+      while ((chunk = readChunk(in)) != null) {
+        md5.update(chunk);
+        if (sha256 != null) {
+          sha256.update(chunk);
+        }
+        length += chunk.length;
+        batch.add(new Document("files_id", fileId).append("n", n++).append("data",
+            new Binary(chunk)));
+        if (batch.size() == batchChunks) {
+          submit(batch, pending);
+          batch = new ArrayList<Document>(batchChunks);
+        }
+      }
+      if (!batch.isEmpty()) {
+        submit(batch, pending);
+      }
+      while (!pending.isEmpty()) {
+        await(pending.removeFirst());
+      }
+      if (sha256 != null) {
+        String hash = toHex(sha256.digest());
+        Document stored = findContent(hash, length);
+        if (stored != null) {
+          // Its own id, the chunks of the upload are kept until the reference is known to hold
+          Document file = referenceTo(new ObjectId(), filename, metadata, stored, hash);
+          if (insertReference(file, stored)) {
+            chunksCollection.deleteMany(Filters.eq("files_id", fileId));
+            return file;
+          }
+        }
+        metadata = metadata == null ? new Document() : new Document(metadata);
+        metadata.append(SHA256_FIELD, hash);
+      }
+      Document file = new Document("_id", fileId).append("length", length)
+          .append("chunkSize", chunkSize).append("uploadDate", new Date())
+          .append("md5", toHex(md5.digest())).append("filename", filename);
+      if (metadata != null) {
+        file.append("metadata", metadata);
+      }
+      filesCollection.insertOne(file);
+      return file;
+    } catch (IOException e) {
+      discard(fileId, pending);
+      throw e;
+    } catch (RuntimeException e) {
+      discard(fileId, pending);
+      throw e;
+    }
+  }
+
+  /**
+   * Files document of a new file sharing the chunks of a stored one.
+   */
+  private static Document referenceTo(ObjectId fileId, String filename, Document metadata,
+      Document stored, String hash) {
+    Document fileMetadata = metadata == null ? new Document() : new Document(metadata);
+    fileMetadata.append(SHA256_FIELD, hash).append(CONTENT_REF_FIELD, stored.get("_id"));
+    return new Document("_id", fileId).append("length", stored.get("length"))
+        .append("chunkSize", stored.get("chunkSize")).append("uploadDate", new Date())
+        .append("md5", stored.get("md5")).append("filename", filename)
+        .append("metadata", fileMetadata);
+  }
+
+  private void submit(final List<Document> batch, Deque<Future<?>> pending) throws IOException {
+    if (pending.size() >= MAX_PENDING_BATCHES) {
+      await(pending.removeFirst());
+    }
+    pending.addLast(TaskExecutors.getFanOutExecutor().submit(new Callable<Void>() {
+      public Void call() {
+        chunksCollection.insertMany(batch, UNORDERED);
+        return null;
+      }
+    }));
+  }
+
+  /**
+   * Removes the chunks of a failed upload, once the batches still being written are done.
+   */
+  private void discard(ObjectId fileId, Deque<Future<?>> pending) {
+    for (Future<?> future : pending) {
+      try {
+        future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      } catch (ExecutionException e) {
+        // Already failing
+      }
+    }
+    chunksCollection.deleteMany(Filters.eq("files_id", fileId));
+  }
+
+  private static void await(Future<?> future) throws IOException {
+    try {
+      future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Upload interrupted");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * @return Next chunk of the stream, shorter than the chunk size only at the end of the stream,
+   *         or null once the stream is over
+   */
+  private byte[] readChunk(InputStream in) throws IOException {
+    byte[] chunk = new byte[chunkSize];
+    int filled = 0;
+    while (filled < chunkSize) {
+      int read = in.read(chunk, filled, chunkSize - filled);
+      if (read == -1) {
+        break;
+      }
+      filled += read;
+    }
+    if (filled == 0) {
+      return null;
+    }
+    return filled == chunkSize ? chunk : Arrays.copyOf(chunk, filled);
+  }
+
+  static MessageDigest newDigest(String algorithm) {
+    try {
+      return MessageDigest.getInstance(algorithm);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(algorithm + " is not available", e);
+    }
+  }
+
+  static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return hex.toString();
+  }
+}
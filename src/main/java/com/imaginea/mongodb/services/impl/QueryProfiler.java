@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.services.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bson.Document;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.imaginea.mongodb.exceptions.ApplicationException;
+import com.imaginea.mongodb.exceptions.ErrorCodes;
+import com.imaginea.mongodb.utils.ConfigurationUtils;
+import com.imaginea.mongodb.utils.LongRingBuffer;
+import com.imaginea.mongodb.utils.QueryShape;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+
+/**
+ * Finds the slow queries of a connection from the database profiler. The new entries of
+ * <system.profile> are read from the position reached by the previous read, each is reduced to
+ * its {@link QueryShape} and added to a table of statistics per shape. The table is bounded: once
+ * full, the shape with the least total time makes room for the new one.
+ */
+public class QueryProfiler {
+
+  public static final String PROFILER_MAX_SHAPES = "PROFILER_MAX_SHAPES";
+  public static final String PROFILER_BATCH_SIZE = "PROFILER_BATCH_SIZE";
+
+  private static final int DURATION_SAMPLES = 256;
+  private static final List<String> SORT_FIELDS =
+      Arrays.asList("totalMillis", "count", "p50Millis", "p99Millis", "maxMillis", "scanRatio");
+
+  private final MongoClient mongoInstance;
+  private final int maxShapes;
+  private final int batchSize;
+  private final ConcurrentHashMap<String, ShapeTable> tables =
+      new ConcurrentHashMap<String, ShapeTable>();
+
+  public QueryProfiler(MongoClient mongoInstance) {
+    this.mongoInstance = mongoInstance;
+    this.maxShapes = Math.max(1, ConfigurationUtils.getInt(PROFILER_MAX_SHAPES, 500));
+    this.batchSize = Math.max(1, ConfigurationUtils.getInt(PROFILER_BATCH_SIZE, 1000));
+  }
+
+  /**
+   * @return Profiling level (<was>) and slow operation threshold (<slowms>) of the database
+   */
+  public Document getLevel(String dbName) throws ApplicationException {
+    try {
+      return mongoInstance.getDatabase(dbName).runCommand(new Document("profile", -1));
+    } catch (MongoException e) {
+      throw new ApplicationException(ErrorCodes.PROFILER_EXCEPTION, e.getMessage());
+    }
+  }
+
+  /**
+   * Sets the profiling level of the database.
+   *
+   * @param level 0 for off, 1 for the operations slower than slowms, 2 for all
+   * @param slowms Threshold of slow operations in milliseconds, left as is when null
+   * @return Previous level and threshold
+   */
+  public Document setLevel(String dbName, int level, Integer slowms) throws ApplicationException {
+    if (level < 0 || level > 2) {
+      throw new ApplicationException(ErrorCodes.INVALID_ARGUMENT,
+          "Profiling level should be 0, 1 or 2");
+    }
+    Document command = new Document("profile", level);
+    if (slowms != null) {
+      command.append("slowms", slowms);
+    }
+    try {
+      return mongoInstance.getDatabase(dbName).runCommand(command);
+    } catch (MongoException e) {
+      throw new ApplicationException(ErrorCodes.PROFILER_EXCEPTION, e.getMessage());
+    }
+  }
+
+  /**
+   * Reads the profile entries added since the last call and returns the statistics per shape.
+   *
+   * @param dbName Database whose profile is read
+   * @param sortBy One of totalMillis, count, p50Millis, p99Millis, maxMillis and scanRatio
+   * @param limit Maximum number of shapes returned
+   * @return Shapes, worst first, and the number of profile entries read so far
+   */
+  public JSONObject getShapes(String dbName, String sortBy, int limit)
+      throws ApplicationException, JSONException {
+    final String sortField = sortBy == null ? "totalMillis" : sortBy;
+    if (!SORT_FIELDS.contains(sortField)) {
+      throw new ApplicationException(ErrorCodes.INVALID_ARGUMENT,
+          "Shapes can be sorted by " + SORT_FIELDS);
+    }
+    ShapeTable table = getTable(dbName);
+    synchronized (table) {
+      tail(mongoInstance.getDatabase(dbName), table);
+      List<JSONObject> shapes = new ArrayList<JSONObject>();
+      for (ShapeStats stats : table.shapes.values()) {
+        shapes.add(stats.toJSON());
+      }
+      Collections.sort(shapes, new Comparator<JSONObject>() {
+        public int compare(JSONObject a, JSONObject b) {
+          return Double.compare(b.optDouble(sortField), a.optDouble(sortField));
+        }
+      });
+      JSONObject result = new JSONObject();
+      result.put("shapes", new JSONArray(shapes.subList(0, Math.min(limit, shapes.size()))));
+      result.put("entriesRead", table.entriesRead);
+      result.put("position", table.position == null ? null : table.position.getTime());
+      result.put("evicted", table.evicted);
+      return result;
+    }
+  }
+
+  /**
+   * Forgets the statistics of a database. The profile is read again from the current position on.
+   */
+  public void reset(String dbName) {
+    ShapeTable table = getTable(dbName);
+    synchronized (table) {
+      table.shapes.clear();
+      table.entriesRead = 0;
+      table.evicted = 0;
+    }
+  }
+
+  private ShapeTable getTable(String dbName) {
+    ShapeTable table = tables.get(dbName);
+    if (table == null) {
+      table = new ShapeTable();
+      ShapeTable existing = tables.putIfAbsent(dbName, table);
+      if (existing != null) {
+        table = existing;
+      }
+    }
+    return table;
+  }
+
+  /**
+   * Reads the entries after the position of the table in batches. Entries logged within the same
+   * millisecond as the position are told apart by how many of them were read already.
+   */
+  private void tail(MongoDatabase db, ShapeTable table) throws ApplicationException {
+    try {
+      boolean more = true;
+      while (more) {
+        Date start = table.position;
+        int skip = table.readAtPosition;
+        int added = 0;
+        MongoCursor<Document> cursor = db.getCollection("system.profile")
+            .find(start == null ? new Document() : Filters.gte("ts", start))
+            .sort(Sorts.ascending("ts")).limit(batchSize + skip).iterator();
+        try {
+          while (cursor.hasNext()) {
+            Document entry = cursor.next();
+            Date ts = entry.getDate("ts");
+            if (skip > 0 && ts != null && ts.equals(start)) {
+              skip--;
+              continue;
+            }
+            skip = 0;
+            add(table, entry);
+            added++;
+            if (ts != null && ts.equals(table.position)) {
+              table.readAtPosition++;
+            } else if (ts != null) {
+              table.position = ts;
+              table.readAtPosition = 1;
+            }
+          }
+        } finally {
+          cursor.close();
+        }
+        more = added >= batchSize;
+      }
+    } catch (MongoException e) {
+      throw new ApplicationException(ErrorCodes.PROFILER_EXCEPTION, e.getMessage());
+    }
+  }
+
+  private void add(ShapeTable table, Document entry) {
+    String ns = entry.getString("ns");
+    String op = entry.getString("op");
+    Document shape = QueryShape.shapeOf(entry);
+    String fingerprint = QueryShape.fingerprint(ns, op, shape);
+    ShapeStats stats = table.shapes.get(fingerprint);
+    if (stats == null) {
+      if (table.shapes.size() >= maxShapes) {
+        evictLeastTime(table);
+      }
+      stats = new ShapeStats(fingerprint, ns, op, shape);
+      table.shapes.put(fingerprint, stats);
+    }
+    stats.add(entry);
+    table.entriesRead++;
+  }
+
+  private static void evictLeastTime(ShapeTable table) {
+    String least = null;
+    long leastMillis = Long.MAX_VALUE;
+    for (ShapeStats stats : table.shapes.values()) {
+      if (stats.totalMillis < leastMillis) {
+        leastMillis = stats.totalMillis;
+        least = stats.fingerprint;
+      }
+    }
+    table.shapes.remove(least);
+    table.evicted++;
+  }
+
+  private static long getLong(Document entry, String key) {
+    Object value = entry.get(key);
+    return value instanceof Number ? ((Number) value).longValue() : 0;
+  }
+
+  private static class ShapeTable {
+    private final Map<String, ShapeStats> shapes = new HashMap<String, ShapeStats>();
+    private Date position;
+    private int readAtPosition;
+    private long entriesRead;
+    private long evicted;
+  }
+
+  /**
+   * Statistics of one shape. Percentiles are taken over the latest durations.
+   */
+  private static class ShapeStats {
+    private final String fingerprint;
+    private final String ns;
+    private final String op;
+    private final Document shape;
+    private final LongRingBuffer durations = new LongRingBuffer(DURATION_SAMPLES);
+    private long count;
+    private long totalMillis;
+    private long maxMillis;
+    private long docsExamined;
+    private long keysExamined;
+    private long nReturned;
+    private String planSummary;
+    private Date lastSeen;
+
+    ShapeStats(String fingerprint, String ns, String op, Document shape) {
+      this.fingerprint = fingerprint;
+      this.ns = ns;
+      this.op = op;
+      this.shape = shape;
+    }
+
+    void add(Document entry) {
+      long millis = getLong(entry, "millis");
+      count++;
+      totalMillis += millis;
+      maxMillis = Math.max(maxMillis, millis);
+      durations.add(millis);
+      // Servers before 3.2 call them nscannedObjects and nscanned
+      docsExamined += entry.containsKey("docsExamined") ? getLong(entry, "docsExamined")
+          : getLong(entry, "nscannedObjects");
+      keysExamined += entry.containsKey("keysExamined") ? getLong(entry, "keysExamined")
+          : getLong(entry, "nscanned");
+      nReturned += getLong(entry, "nreturned");
+      if (entry.getString("planSummary") != null) {
+        planSummary = entry.getString("planSummary");
+      }
+      lastSeen = entry.getDate("ts");
+    }
+
+    long percentile(int percent) {
+      long[] sorted = new long[durations.size()];
+      for (int i = 0; i < sorted.length; i++) {
+        sorted[i] = durations.get(i);
+      }
+      Arrays.sort(sorted);
+      int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+      return sorted.length == 0 ? 0 : sorted[Math.max(0, index)];
+    }
+
+    JSONObject toJSON() throws JSONException {
+      JSONObject json = new JSONObject();
+      json.put("fingerprint", fingerprint);
+      json.put("ns", ns);
+      json.put("op", op);
+      json.put("shape", shape);
+      json.put("count", count);
+      json.put("totalMillis", totalMillis);
+      json.put("avgMillis", count == 0 ? 0 : totalMillis / count);
+      json.put("p50Millis", percentile(50));
+      json.put("p99Millis", percentile(99));
+      json.put("maxMillis", maxMillis);
+      json.put("docsExamined", docsExamined);
+      json.put("keysExamined", keysExamined);
+      json.put("nReturned", nReturned);
+      // Documents examined per document returned, 1 being ideal
+      json.put("scanRatio", (double) docsExamined / Math.max(1, nReturned));
+      json.put("planSummary", planSummary);
+      json.put("lastSeen", lastSeen == null ? null : lastSeen.getTime());
+      return json;
+    }
+  }
+}
@@ -0,0 +1,525 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.services.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.bson.Document;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.imaginea.mongodb.exceptions.ApplicationException;
+import com.imaginea.mongodb.exceptions.ErrorCodes;
+import com.imaginea.mongodb.utils.ConfigurationUtils;
+import com.imaginea.mongodb.utils.LongRingBuffer;
+import com.imaginea.mongodb.utils.MetricsStore;
+import com.imaginea.mongodb.utils.ServerStatusMetrics;
+import com.imaginea.mongodb.utils.TaskExecutors;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
+
+/**
+ * Samples <serverStatus> of one connection in the background and keeps a window of the sampled
+ * series in ring buffers. However many clients watch the graphs of a connection, the server sees a
+ * single <serverStatus> per interval, and every client reads the same samples.
+ * <p/>
+ * Every numeric field of <serverStatus> is a series (see {@link ServerStatusMetrics}). Counters
+ * are kept as their increase over each interval and handed out as per second rates, gauges as
+ * read. Series showing up later, like the counters of a command run for the first time, are added
+ * as they appear. Each sample is also appended to the {@link MetricsStore} of the server.
+ * <p/>
+ * Every sample gets a sequence number which keeps growing for the life of the connection, so
+ * clients that are pushed the samples or poll for them can ask for whatever came after the last
+ * one they saw. The sampler stops by itself once nobody has read the samples for a while.
+ */
+public class ServerStatusSampler {
+
+  private static final Logger logger = Logger.getLogger(ServerStatusSampler.class);
+
+  public static final String GRAPHS_SAMPLE_INTERVAL = "GRAPHS_SAMPLE_INTERVAL";
+  public static final String GRAPHS_HISTORY_SIZE = "GRAPHS_HISTORY_SIZE";
+  public static final String GRAPHS_IDLE_TIMEOUT = "GRAPHS_IDLE_TIMEOUT";
+  public static final String GRAPHS_MAX_SERIES = "GRAPHS_MAX_SERIES";
+
+  private static final long MIN_SAMPLE_INTERVAL = 1000;
+
+  /**
+   * Marks the samples taken before a series showed up.
+   */
+  private static final long MISSING = Long.MIN_VALUE;
+
+  private static final String[] LEGACY_SERIES = {"opcounters.query", "opcounters.insert",
+      "opcounters.update", "opcounters.delete"};
+  private static final String[] LEGACY_KEYS = {"QueryValue", "InsertValue", "UpdateValue",
+      "DeleteValue"};
+  private static final String[] LATENCY_SECTIONS = {"reads", "writes", "commands",
+      "transactions"};
+
+  private final MongoClient mongoInstance;
+  private final long idleTimeout;
+  private final int historySize;
+  private final int maxSeries;
+
+  private final Object lock = new Object();
+  private final LongRingBuffer timestamps;
+  private final LongRingBuffer elapsed;
+  private final Map<String, Series> seriesByName = new HashMap<String, Series>();
+  private final List<Series> series = new ArrayList<Series>();
+  private boolean hasBaseline;
+  private long lastTimestamp;
+  private long sequence;
+  private long startedAt;
+  private long interval;
+  private String lastError;
+  private ScheduledFuture<?> task;
+  private boolean closed;
+  private int streams;
+
+  private volatile long lastReadAt;
+  private volatile String host;
+
+  public ServerStatusSampler(MongoClient mongoInstance) {
+    this.mongoInstance = mongoInstance;
+    this.idleTimeout = ConfigurationUtils.getLong(GRAPHS_IDLE_TIMEOUT, 60 * 1000);
+    this.historySize = Math.max(2, ConfigurationUtils.getInt(GRAPHS_HISTORY_SIZE, 360));
+    this.maxSeries = Math.max(LEGACY_SERIES.length, ConfigurationUtils.getInt(GRAPHS_MAX_SERIES,
+        2000));
+    timestamps = new LongRingBuffer(historySize);
+    elapsed = new LongRingBuffer(historySize);
+  }
+
+  /**
+   * Starts sampling, or restarts it when asked for a different interval.
+   *
+   * @param requestedInterval Sampling interval in milliseconds. The configured interval is used
+   *        when null.
+   */
+  public void start(Long requestedInterval) {
+    long newInterval = requestedInterval != null ? requestedInterval
+        : ConfigurationUtils.getLong(GRAPHS_SAMPLE_INTERVAL, 5000);
+    newInterval = Math.max(MIN_SAMPLE_INTERVAL, newInterval);
+    lastReadAt = System.currentTimeMillis();
+    synchronized (lock) {
+      if (closed || (task != null && !task.isDone() && interval == newInterval)) {
+        return;
+      }
+      if (task != null) {
+        task.cancel(false);
+      }
+      timestamps.clear();
+      elapsed.clear();
+      for (Series each : series) {
+        each.values.clear();
+      }
+      hasBaseline = false;
+      lastError = null;
+      startedAt = System.currentTimeMillis();
+      interval = newInterval;
+      task = TaskExecutors.getScheduler().scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          sample();
+        }
+      }, 0, interval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  public boolean isRunning() {
+    synchronized (lock) {
+      return task != null && !task.isDone();
+    }
+  }
+
+  /**
+   * @return true once the connection of the sampler is closed
+   */
+  public boolean isClosed() {
+    synchronized (lock) {
+      return closed;
+    }
+  }
+
+  /**
+   * @return Milliseconds between samples, 0 before the first start
+   */
+  public long getInterval() {
+    synchronized (lock) {
+      return interval;
+    }
+  }
+
+  public void stop() {
+    synchronized (lock) {
+      if (task != null) {
+        task.cancel(false);
+        task = null;
+      }
+      lock.notifyAll();
+    }
+  }
+
+  /**
+   * Stops sampling for good and wakes up the clients waiting for samples.
+   */
+  public void close() {
+    synchronized (lock) {
+      closed = true;
+      stop();
+    }
+  }
+
+  private void sample() {
+    long now = System.currentTimeMillis();
+    if (now - lastReadAt > Math.max(idleTimeout, 3 * interval)) {
+      logger.debug("Stopping idle serverStatus sampler");
+      stop();
+      return;
+    }
+    try {
+      Document serverStatus =
+          mongoInstance.getDatabase("admin").runCommand(new Document("serverStatus", 1));
+      host = serverStatus.getString("host");
+      record(now, serverStatus);
+      appendToHistory(now);
+    } catch (MongoException e) {
+      synchronized (lock) {
+        lastError = e.getMessage();
+      }
+    } catch (RuntimeException e) {
+      // Keep the schedule alive, a failing sample must not cancel the task
+      logger.error("Error sampling serverStatus", e);
+      synchronized (lock) {
+        lastError = e.getMessage();
+      }
+    }
+  }
+
+  void record(long timestamp, Document serverStatus) {
+    Map<String, Long> sampled = new LinkedHashMap<String, Long>();
+    ServerStatusMetrics.flatten(serverStatus, sampled);
+    synchronized (lock) {
+      if (hasBaseline) {
+        addAverageLatencies(sampled);
+      }
+      for (Series each : series) {
+        Long current = sampled.remove(each.name);
+        if (hasBaseline) {
+          each.values.add(each.next(current));
+        } else if (current != null) {
+          each.last = current;
+        }
+      }
+      // Series seen for the first time
+      for (Map.Entry<String, Long> entry : sampled.entrySet()) {
+        if (series.size() >= maxSeries) {
+          logger.debug("Sampling the first " + maxSeries + " series of serverStatus only");
+          break;
+        }
+        Series added = new Series(entry.getKey(), historySize);
+        for (int i = 0; i < timestamps.size(); i++) {
+          added.values.add(MISSING);
+        }
+        long value = added.next(entry.getValue());
+        if (hasBaseline) {
+          added.values.add(value);
+        }
+        series.add(added);
+        seriesByName.put(added.name, added);
+      }
+      if (hasBaseline) {
+        timestamps.add(timestamp);
+        elapsed.add(timestamp - lastTimestamp);
+        sequence++;
+        lock.notifyAll();
+      }
+      lastTimestamp = timestamp;
+      hasBaseline = true;
+      lastError = null;
+    }
+  }
+
+  private void appendToHistory(long timestamp) {
+    MetricsStore store = MetricsStore.forHost(host);
+    if (store == null) {
+      return;
+    }
+    Map<String, Double> latest = new HashMap<String, Double>();
+    synchronized (lock) {
+      int last = timestamps.size() - 1;
+      if (last < 0 || timestamps.get(last) != timestamp) {
+        return;
+      }
+      for (Series each : series) {
+        long value = each.values.get(last);
+        if (value != MISSING && store.isStored(each.name)) {
+          latest.put(each.name, each.counter
+              ? ServerStatusMetrics.ratePerSecondMilli(value, elapsed.get(last)) / 1000.0 : value);
+        }
+      }
+    }
+    try {
+      store.append(this, timestamp, latest);
+    } catch (IOException e) {
+      logger.error("Error writing the metrics history of " + host, e);
+    }
+  }
+
+  /**
+   * @return Server being sampled as reported by <serverStatus>, like <myhost:27017>. It is looked
+   *         up when no sample was taken yet.
+   */
+  public String getHost() {
+    if (host == null) {
+      host = mongoInstance.getDatabase("admin").runCommand(new Document("serverStatus", 1))
+          .getString("host");
+    }
+    return host;
+  }
+
+  /**
+   * The <opLatencies> sections hold the total latency and the number of operations since startup.
+   * Their quotient over the interval, the average latency in microseconds, is what is worth
+   * charting.
+   */
+  private void addAverageLatencies(Map<String, Long> sampled) {
+    for (String section : LATENCY_SECTIONS) {
+      String prefix = "opLatencies." + section + ".";
+      Series latency = seriesByName.get(prefix + "latency");
+      Series ops = seriesByName.get(prefix + "ops");
+      Long currentLatency = sampled.get(prefix + "latency");
+      Long currentOps = sampled.get(prefix + "ops");
+      if (latency == null || ops == null || currentLatency == null || currentOps == null) {
+        continue;
+      }
+      long opsDelta = currentOps - ops.last;
+      long latencyDelta = currentLatency - latency.last;
+      sampled.put(prefix + "avgLatency",
+          opsDelta > 0 && latencyDelta >= 0 ? latencyDelta / opsDelta : 0);
+    }
+  }
+
+  /**
+   * Returns the latest samples in the format of the graphs page: the time since sampling started
+   * as <TimeStamp> and the operations per second during each interval, the same rates the events
+   * carry.
+   *
+   * @param limit Maximum number of samples to return
+   * @return Samples, oldest first
+   * @throws ApplicationException when sampling fails and there is nothing to show
+   */
+  public JSONArray getSamples(int limit) throws ApplicationException, JSONException {
+    lastReadAt = System.currentTimeMillis();
+    JSONArray samples = new JSONArray();
+    synchronized (lock) {
+      checkError();
+      Series[] legacy = new Series[LEGACY_SERIES.length];
+      for (int j = 0; j < LEGACY_SERIES.length; j++) {
+        legacy[j] = seriesByName.get(LEGACY_SERIES[j]);
+      }
+      int size = timestamps.size();
+      for (int i = Math.max(0, size - limit); i < size; i++) {
+        JSONObject sample = new JSONObject();
+        sample.put("TimeStamp", timestamps.get(i) - startedAt);
+        for (int j = 0; j < LEGACY_KEYS.length; j++) {
+          long value = legacy[j] == null ? MISSING : legacy[j].values.get(i);
+          sample.put(LEGACY_KEYS[j], value == MISSING ? 0
+              : ServerStatusMetrics.ratePerSecondMilli(value, elapsed.get(i)) / 1000.0);
+        }
+        samples.put(sample);
+      }
+    }
+    return samples;
+  }
+
+  /**
+   * Waits until a sample newer than the given sequence number is taken.
+   *
+   * @param afterSequence Sequence number of the last sample seen by the caller
+   * @param timeout Maximum milliseconds to wait
+   * @return Sequence number of the latest sample. It equals afterSequence (or is lower after a
+   *         restart) when nothing new came in.
+   */
+  public long awaitSamples(long afterSequence, long timeout) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeout;
+    synchronized (lock) {
+      long remaining = timeout;
+      while (sequence <= afterSequence && remaining > 0 && !closed) {
+        lastReadAt = System.currentTimeMillis();
+        lock.wait(remaining);
+        remaining = deadline - System.currentTimeMillis();
+      }
+      lastReadAt = System.currentTimeMillis();
+      return sequence;
+    }
+  }
+
+  /**
+   * @return Sequence number of the latest sample
+   */
+  public long getSequence() {
+    synchronized (lock) {
+      return sequence;
+    }
+  }
+
+  /**
+   * Returns the samples taken after the given sequence number, limited to the window still held.
+   *
+   * @param afterSequence Sequence number of the last sample seen by the caller
+   * @param series Prefixes of the series to include, like <opcounters> or <connections>. All
+   *        series are included when null or empty.
+   * @return Samples, oldest first, each with its <seq>, <timestamp> and the <values> of the series.
+   *         Counters are given as per second rates.
+   * @throws ApplicationException when sampling fails and there is nothing to show
+   */
+  public JSONArray getEvents(long afterSequence, Set<String> prefixes)
+      throws ApplicationException, JSONException {
+    lastReadAt = System.currentTimeMillis();
+    JSONArray events = new JSONArray();
+    synchronized (lock) {
+      checkError();
+      int size = timestamps.size();
+      long firstSequence = sequence - size + 1;
+      int from = (int) Math.max(0, Math.min(size, afterSequence - firstSequence + 1));
+      for (int i = from; i < size; i++) {
+        JSONObject event = new JSONObject();
+        event.put("seq", firstSequence + i);
+        event.put("timestamp", timestamps.get(i));
+        event.put("interval", interval);
+        JSONObject sampleValues = new JSONObject();
+        for (Series each : series) {
+          long value = each.values.get(i);
+          if (value == MISSING || !each.matches(prefixes)) {
+            continue;
+          }
+          if (each.counter) {
+            sampleValues.put(each.name,
+                ServerStatusMetrics.ratePerSecondMilli(value, elapsed.get(i)) / 1000.0);
+          } else {
+            sampleValues.put(each.name, value);
+          }
+        }
+        event.put("values", sampleValues);
+        events.put(event);
+      }
+    }
+    return events;
+  }
+
+  /**
+   * @return Names of the series sampled so far, each telling whether it is a <counter> or a
+   *         <gauge>
+   */
+  public JSONObject getSeries() throws JSONException {
+    JSONObject kinds = new JSONObject();
+    synchronized (lock) {
+      for (Series each : series) {
+        kinds.put(each.name, each.counter ? "counter" : "gauge");
+      }
+    }
+    return kinds;
+  }
+
+  /**
+   * @return Why sampling fails, as long as no sample could be taken. Null otherwise.
+   */
+  public String getError() {
+    synchronized (lock) {
+      return timestamps.isEmpty() ? lastError : null;
+    }
+  }
+
+  /**
+   * Counts a client streaming the samples, unless as many as allowed already do.
+   *
+   * @param maxStreams Streams allowed per connection
+   * @return false when the client is turned away
+   */
+  public boolean openStream(int maxStreams) {
+    synchronized (lock) {
+      if (streams >= maxStreams) {
+        return false;
+      }
+      streams++;
+      return true;
+    }
+  }
+
+  /**
+   * Stops counting a client that was streaming the samples.
+   */
+  public void closeStream() {
+    synchronized (lock) {
+      streams--;
+    }
+  }
+
+  private void checkError() throws ApplicationException {
+    if (timestamps.isEmpty() && lastError != null) {
+      throw new ApplicationException(ErrorCodes.ERROR_INITIATING_GRAPH, lastError);
+    }
+  }
+
+  private static class Series {
+    private final String name;
+    private final boolean counter;
+    private final LongRingBuffer values;
+    private long last = MISSING;
+
+    Series(String name, int historySize) {
+      this.name = name;
+      this.counter = ServerStatusMetrics.isCounter(name);
+      this.values = new LongRingBuffer(historySize);
+    }
+
+    /**
+     * @param current Value read now, null when the series is gone from this sample
+     * @return Value to keep for the sample: the increase since the last sample for counters
+     */
+    long next(Long current) {
+      if (current == null) {
+        return MISSING;
+      }
+      if (!counter) {
+        return current;
+      }
+      long previous = last;
+      last = current;
+      if (previous == MISSING) {
+        return MISSING;
+      }
+      // Counters start over when the server restarts
+      return Math.max(0, current - previous);
+    }
+
+    boolean matches(Set<String> prefixes) {
+      if (prefixes == null || prefixes.isEmpty()) {
+        return true;
+      }
+      for (String prefix : prefixes) {
+        if (name.equals(prefix) || name.startsWith(prefix + ".")) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+}
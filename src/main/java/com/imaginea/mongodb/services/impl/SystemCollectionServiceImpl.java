@@ -13,10 +13,16 @@
 package com.imaginea.mongodb.services.impl;
 
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeoutException;
 
 import org.bson.Document;
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 /**
@@ -27,24 +33,33 @@ import org.json.JSONObject;
  * @author Sanjay Chaluvadi
  */
 
-import com.imaginea.mongodb.domain.MongoConnectionDetails;
 import com.imaginea.mongodb.exceptions.ApplicationException;
 import com.imaginea.mongodb.exceptions.DatabaseException;
 import com.imaginea.mongodb.exceptions.ErrorCodes;
-import com.imaginea.mongodb.services.AuthService;
+import com.imaginea.mongodb.services.ServiceContext;
+import com.imaginea.mongodb.services.ServiceProvider;
 import com.imaginea.mongodb.services.SystemCollectionService;
 import com.imaginea.mongodb.utils.ApplicationUtils;
+import com.imaginea.mongodb.utils.ConfigurationUtils;
+import com.imaginea.mongodb.utils.IndexAdvisor;
+import com.imaginea.mongodb.utils.TaskExecutors;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoException;
 import com.mongodb.client.ListIndexesIterable;
+import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
 
 public class SystemCollectionServiceImpl implements SystemCollectionService {
+
+    public static final String INDEX_USAGE_PARALLELISM = "INDEX_USAGE_PARALLELISM";
+    public static final String INDEX_USAGE_TIMEOUT = "INDEX_USAGE_TIMEOUT";
+    public static final String INDEX_USAGE_MIN_AGE = "INDEX_USAGE_MIN_AGE";
+
     /**
      * Mongo Instance to communicate with mongo
      */
     private MongoClient mongoInstance;
-    private static final AuthService AUTH_SERVICE = AuthServiceImpl.getInstance();
 
     /**
      * Creates an instance of MongoInstanceProvider which is used to get a mongo instance to perform
@@ -54,9 +69,16 @@ public class SystemCollectionServiceImpl implements SystemCollectionService {
      * @param connectionId A combination of username,mongoHost and mongoPort
      */
     public SystemCollectionServiceImpl(String connectionId) throws ApplicationException {
-        MongoConnectionDetails mongoConnectionDetails =
-                AUTH_SERVICE.getMongoConnectionDetails(connectionId);
-        mongoInstance = mongoConnectionDetails.getMongo();
+        this(ServiceProvider.getServiceContext(connectionId));
+    }
+
+    /**
+     * Creates the system collection service of a connection from its service context.
+     *
+     * @param serviceContext Services and caches of the connection
+     */
+    public SystemCollectionServiceImpl(ServiceContext serviceContext) {
+        mongoInstance = serviceContext.getMongoConnectionDetails().getMongo();
     }
 
     /**
@@ -510,6 +532,179 @@ public class SystemCollectionServiceImpl implements SystemCollectionService {
         return "Index: " + indexName + " dropped from the collection: " + dbName + ":" + collectionName;
     }
 
+    /**
+     * Gathers the usage and size of every index of a database, the collections being queried in
+     * parallel on the fan-out pool, a few at a time. The usage is summed over the servers reporting
+     * it. Indexes not used since their usage counters were reset (at server start or index
+     * creation), if that was at least INDEX_USAGE_MIN_AGE ago, and indexes made redundant by a
+     * longer one are flagged, with the memory their removal would free.
+     *
+     * @param dbName Name of the database
+     * @return Indexes per collection and the totals of the database
+     * @throws DatabaseException throw super type of UndefinedDatabaseException
+     */
+    @Override
+    public JSONObject getIndexUsage(final String dbName) throws ApplicationException {
+        if (dbName == null) {
+            throw new DatabaseException(ErrorCodes.DB_NAME_EMPTY, "Database name is null");
+        }
+        if (dbName.equals("")) {
+            throw new DatabaseException(ErrorCodes.DB_NAME_EMPTY, "Database Name Empty");
+        }
+        try {
+            final MongoDatabase db = mongoInstance.getDatabase(dbName);
+            List<String> collectionNames = new ArrayList<String>();
+            for (Document collection : db.listCollections()) {
+                String name = collection.getString("name");
+                // Views have no indexes of their own
+                if (!name.startsWith("system.") && !"view".equals(collection.getString("type"))) {
+                    collectionNames.add(name);
+                }
+            }
+            List<Callable<JSONObject>> tasks = new ArrayList<Callable<JSONObject>>();
+            for (final String collectionName : collectionNames) {
+                tasks.add(new Callable<JSONObject>() {
+                    public JSONObject call() throws Exception {
+                        return getCollectionIndexUsage(db, collectionName);
+                    }
+                });
+            }
+            List<Object> results = TaskExecutors.invokeAll(tasks,
+                    ConfigurationUtils.getInt(INDEX_USAGE_PARALLELISM,
+                            TaskExecutors.getBulkParallelism()),
+                    ConfigurationUtils.getLong(INDEX_USAGE_TIMEOUT, 30 * 1000));
+
+            JSONArray collections = new JSONArray();
+            int unusedCount = 0;
+            int redundantCount = 0;
+            long savings = 0;
+            for (int i = 0; i < results.size(); i++) {
+                Object result = results.get(i);
+                if (result instanceof JSONObject) {
+                    JSONObject collection = (JSONObject) result;
+                    unusedCount += collection.getInt("unusedCount");
+                    redundantCount += collection.getInt("redundantCount");
+                    savings += collection.getLong("estimatedSavingsBytes");
+                    collections.put(collection);
+                } else {
+                    JSONObject collection = new JSONObject();
+                    collection.put("name", collectionNames.get(i));
+                    collection.put("error", result instanceof TimeoutException
+                            ? "Timed out" : String.valueOf(((Throwable) result).getMessage()));
+                    collections.put(collection);
+                }
+            }
+            JSONObject usage = new JSONObject();
+            usage.put("dbName", dbName);
+            usage.put("collections", collections);
+            usage.put("unusedCount", unusedCount);
+            usage.put("redundantCount", redundantCount);
+            usage.put("estimatedSavingsBytes", savings);
+            return usage;
+        } catch (MongoException e) {
+            throw new ApplicationException(ErrorCodes.INDEX_USAGE_EXCEPTION, e.getMessage());
+        } catch (JSONException e) {
+            throw new ApplicationException(ErrorCodes.JSON_EXCEPTION, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ApplicationException(ErrorCodes.INDEX_USAGE_EXCEPTION, "Interrupted");
+        }
+    }
+
+    private JSONObject getCollectionIndexUsage(MongoDatabase db, String collectionName)
+            throws JSONException {
+        MongoCollection<Document> collection = db.getCollection(collectionName);
+        List<Document> specs = collection.listIndexes().into(new ArrayList<Document>());
+
+        Map<String, Document> accesses = new HashMap<String, Document>();
+        boolean hasIndexStats = true;
+        try {
+            List<Document> pipeline = new ArrayList<Document>();
+            pipeline.add(new Document("$indexStats", new Document()));
+            // One document per index and server of a replica set or sharded cluster
+            for (Document stats : collection.aggregate(pipeline)) {
+                Document access = (Document) stats.get("accesses");
+                if (access == null) {
+                    continue;
+                }
+                Object ops = access.get("ops");
+                long opCount = ops instanceof Number ? ((Number) ops).longValue() : 0;
+                Date since = access.getDate("since");
+                Document total = accesses.get(stats.getString("name"));
+                if (total == null) {
+                    accesses.put(stats.getString("name"),
+                            new Document("ops", opCount).append("since", since).append("hosts", 1));
+                } else {
+                    Date totalSince = total.getDate("since");
+                    total.put("ops", total.getLong("ops") + opCount);
+                    total.put("hosts", total.getInteger("hosts") + 1);
+                    if (totalSince == null || (since != null && since.before(totalSince))) {
+                        total.put("since", since);
+                    }
+                }
+            }
+        } catch (MongoException e) {
+            // Servers before 3.2 or users without the indexStats action
+            hasIndexStats = false;
+        }
+        Document indexSizes = (Document) db.runCommand(new Document("collStats", collectionName))
+                .get("indexSizes");
+
+        // Counters reset more recently than this have not seen enough of the workload
+        long observedBefore = System.currentTimeMillis()
+                - ConfigurationUtils.getLong(INDEX_USAGE_MIN_AGE, 7 * 24 * 60 * 60 * 1000L);
+        JSONArray indexes = new JSONArray();
+        int unusedCount = 0;
+        int redundantCount = 0;
+        long savings = 0;
+        for (Document spec : specs) {
+            String name = spec.getString("name");
+            Object size = indexSizes == null ? null : indexSizes.get(name);
+            long sizeBytes = size instanceof Number ? ((Number) size).longValue() : 0;
+            JSONObject index = new JSONObject();
+            index.put("name", name);
+            index.put("key", spec.get("key"));
+            index.put("sizeBytes", sizeBytes);
+            index.put("unique", Boolean.TRUE.equals(spec.get("unique")));
+
+            boolean unused = false;
+            Document access = accesses.get(name);
+            if (access != null) {
+                long opCount = access.getLong("ops");
+                Date since = access.getDate("since");
+                index.put("ops", opCount);
+                index.put("since", since == null ? null : since.getTime());
+                index.put("hosts", access.getInteger("hosts"));
+                // Unique and TTL indexes earn their keep without serving queries
+                unused = opCount == 0 && since != null && since.getTime() <= observedBefore
+                        && !"_id_".equals(name)
+                        && !Boolean.TRUE.equals(spec.get("unique"))
+                        && !spec.containsKey("expireAfterSeconds");
+            }
+            String coveredBy = IndexAdvisor.findCoveringIndex(spec, specs);
+            index.put("unused", unused);
+            index.put("redundantWith", coveredBy);
+            if (unused) {
+                unusedCount++;
+            }
+            if (coveredBy != null) {
+                redundantCount++;
+            }
+            if (unused || coveredBy != null) {
+                savings += sizeBytes;
+            }
+            indexes.put(index);
+        }
+        JSONObject result = new JSONObject();
+        result.put("name", collectionName);
+        result.put("indexes", indexes);
+        result.put("usageAvailable", hasIndexStats);
+        result.put("unusedCount", unusedCount);
+        result.put("redundantCount", redundantCount);
+        result.put("estimatedSavingsBytes", savings);
+        return result;
+    }
+
     public String getMongoClientVersion(String dataBaseName) throws ApplicationException {
         String version = "";
         try {
@@ -13,7 +13,6 @@ import org.json.JSONObject;
 import org.json.JSONString;
 
 import javax.ws.rs.core.MediaType;
-import java.io.File;
 import java.util.*;
 
 /**
@@ -25,9 +24,15 @@ public class ApplicationUtils {
     MimeUtil.registerMimeDetector("eu.medsea.mimeutil.detector.MagicMimeMimeDetector");
   }
 
-  public static String getContentType(File file) {
+  /**
+   * Detects the MIME type of a content from its magic bytes.
+   *
+   * @param head Leading bytes of the content
+   * @return Most specific MIME type matched, application/octet-stream when none matched
+   */
+  public static String getContentType(byte[] head) {
     Collection types =
-        MimeUtil.getMimeTypes(file, new MimeType(MediaType.APPLICATION_OCTET_STREAM));
+        MimeUtil.getMimeTypes(head, new MimeType(MediaType.APPLICATION_OCTET_STREAM));
     return MimeUtil.getMostSpecificMimeType(types).toString();
   }
 
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.bson.BsonBinaryWriter;
+import org.bson.BsonDocument;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+
+/**
+ * Records every command the mongo client of a connection sends, in {@link RequestMetrics} per
+ * command name and in {@link CommandStatistics} per connection, database and command name.
+ */
+public class CommandMetricsListener implements CommandListener {
+
+  public static final String COMMAND_REPLY_SIZES_ENABLED = "COMMAND_REPLY_SIZES_ENABLED";
+
+  private static final Logger logger = Logger.getLogger(CommandMetricsListener.class);
+
+  /** Commands awaiting their reply beyond which the database names are no longer tracked. */
+  private static final int MAX_PENDING = 10000;
+
+  /**
+   * Replies are handed to the listener decoded, so their size is known only by encoding them
+   * again, which is done only when asked for.
+   */
+  private static final boolean REPLY_SIZES_ENABLED =
+      ConfigurationUtils.getBoolean(COMMAND_REPLY_SIZES_ENABLED, false);
+
+  private static final BsonDocumentCodec CODEC = new BsonDocumentCodec();
+
+  private final String connectionId;
+  private final RequestMetrics metrics = RequestMetrics.getInstance();
+  private final CommandStatistics statistics = CommandStatistics.getInstance();
+  private final ConcurrentHashMap<Integer, String> pendingDbNames =
+      new ConcurrentHashMap<Integer, String>();
+
+  /**
+   * @param connectionId Connection of the client the listener is registered with
+   */
+  public CommandMetricsListener(String connectionId) {
+    this.connectionId = connectionId;
+  }
+
+  @Override
+  public void commandStarted(CommandStartedEvent event) {
+    if (pendingDbNames.size() < MAX_PENDING) {
+      pendingDbNames.put(event.getRequestId(), event.getDatabaseName());
+    }
+  }
+
+  @Override
+  public void commandSucceeded(CommandSucceededEvent event) {
+    long nanos = event.getElapsedTime(TimeUnit.NANOSECONDS);
+    metrics.recordCommand(event.getCommandName(), nanos, false);
+    statistics.record(connectionId, pendingDbNames.remove(event.getRequestId()),
+        event.getCommandName(), nanos,
+        REPLY_SIZES_ENABLED ? replySize(event.getResponse()) : -1, false);
+  }
+
+  @Override
+  public void commandFailed(CommandFailedEvent event) {
+    long nanos = event.getElapsedTime(TimeUnit.NANOSECONDS);
+    metrics.recordCommand(event.getCommandName(), nanos, true);
+    statistics.record(connectionId, pendingDbNames.remove(event.getRequestId()),
+        event.getCommandName(), nanos, -1, true);
+  }
+
+  /**
+   * @return Size of the reply in bytes, -1 when not known
+   */
+  static long replySize(BsonDocument reply) {
+    if (reply == null) {
+      return -1;
+    }
+    if (reply instanceof RawBsonDocument) {
+      return ((RawBsonDocument) reply).getByteBuffer().remaining();
+    }
+    BasicOutputBuffer buffer = new BasicOutputBuffer();
+    BsonBinaryWriter writer = new BsonBinaryWriter(buffer);
+    try {
+      CODEC.encode(writer, reply, EncoderContext.builder().build());
+      return buffer.getPosition();
+    } catch (RuntimeException e) {
+      logger.debug("Size of the " + reply.keySet() + " reply is not known: " + e);
+      return -1;
+    } finally {
+      writer.close();
+      buffer.close();
+    }
+  }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Accounting of the commands each connection sent to mongo, per database and command name:
+ * latency, reply sizes and failures. Fed by the {@link CommandMetricsListener} of the mongo
+ * client of every connection, so the time spent in mongod and on the network can be told apart
+ * from the time mViewer spends on a request.
+ */
+public class CommandStatistics {
+
+  public static final String COMMAND_STATS_MAX_ENTRIES = "COMMAND_STATS_MAX_ENTRIES";
+
+  private static final String OTHER_COMMANDS = "other";
+
+  private static final CommandStatistics INSTANCE =
+      new CommandStatistics(ConfigurationUtils.getInt(COMMAND_STATS_MAX_ENTRIES, 500));
+
+  private final int maxEntries;
+  private final ConcurrentHashMap<String, ConcurrentHashMap<String, Entry>> connections =
+      new ConcurrentHashMap<String, ConcurrentHashMap<String, Entry>>();
+
+  CommandStatistics(int maxEntries) {
+    this.maxEntries = Math.max(1, maxEntries);
+  }
+
+  public static CommandStatistics getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Records a command.
+   *
+   * @param connectionId Connection whose client sent the command
+   * @param dbName Database the command ran on, null when not known
+   * @param command Name of the command
+   * @param nanos Time until the reply
+   * @param replyBytes Size of the reply, negative when not known
+   * @param failed Whether the command failed
+   */
+  public void record(String connectionId, String dbName, String command, long nanos,
+      long replyBytes, boolean failed) {
+    ConcurrentHashMap<String, Entry> entries = connections.get(connectionId);
+    if (entries == null) {
+      entries = new ConcurrentHashMap<String, Entry>();
+      ConcurrentHashMap<String, Entry> existing = connections.putIfAbsent(connectionId, entries);
+      if (existing != null) {
+        entries = existing;
+      }
+    }
+    String db = dbName == null ? "" : dbName;
+    String key = db + '\u0000' + command;
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      if (entries.size() >= maxEntries) {
+        // Commands beyond the limit are counted together per database
+        key = db + '\u0000' + OTHER_COMMANDS;
+        command = OTHER_COMMANDS;
+        entry = entries.get(key);
+      }
+      if (entry == null) {
+        entry = new Entry(db, command);
+        Entry existing = entries.putIfAbsent(key, entry);
+        if (existing != null) {
+          entry = existing;
+        }
+      }
+    }
+    entry.record(nanos, replyBytes, failed);
+  }
+
+  /**
+   * Forgets the commands of a connection that was closed.
+   */
+  public void removeConnection(String connectionId) {
+    if (connectionId != null) {
+      connections.remove(connectionId);
+    }
+  }
+
+  /**
+   * Lists the commands of some connections ordered by a measure. Only the given connections are
+   * looked at, so that a caller never learns the ids of connections other than its own.
+   *
+   * @param connectionIds Connections to list
+   * @param sortBy totalTime, count, failures, maxTime or replyBytes
+   * @param limit Maximum number of commands listed
+   * @return Commands with their counts, latency percentiles and reply sizes
+   */
+  public JSONArray getTopCommands(Collection<String> connectionIds, String sortBy, int limit)
+      throws JSONException {
+    List<Object[]> rows = new ArrayList<Object[]>();
+    for (String connectionId : new HashSet<String>(connectionIds)) {
+      ConcurrentHashMap<String, Entry> entries = connectionId == null ? null
+          : connections.get(connectionId);
+      if (entries == null) {
+        continue;
+      }
+      for (Entry entry : entries.values()) {
+        rows.add(new Object[] {connectionId, entry, entry.sortKey(sortBy)});
+      }
+    }
+    Collections.sort(rows, new Comparator<Object[]>() {
+      public int compare(Object[] a, Object[] b) {
+        return Long.compare((Long) b[2], (Long) a[2]);
+      }
+    });
+    JSONArray commands = new JSONArray();
+    for (int i = 0; i < rows.size() && i < limit; i++) {
+      JSONObject command = ((Entry) rows.get(i)[1]).toJSON();
+      command.put("connectionId", rows.get(i)[0]);
+      commands.put(command);
+    }
+    return commands;
+  }
+
+  private static class Entry {
+    private final String db;
+    private final String command;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram replySizes = new LatencyHistogram();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong replyBytes = new AtomicLong();
+    private final AtomicLong maxReplyBytes = new AtomicLong();
+
+    Entry(String db, String command) {
+      this.db = db;
+      this.command = command;
+    }
+
+    void record(long nanos, long bytes, boolean failed) {
+      latency.record(nanos);
+      if (failed) {
+        failures.incrementAndGet();
+      }
+      if (bytes >= 0) {
+        replySizes.recordValue(bytes);
+        replyBytes.addAndGet(bytes);
+        long current = maxReplyBytes.get();
+        while (bytes > current && !maxReplyBytes.compareAndSet(current, bytes)) {
+          current = maxReplyBytes.get();
+        }
+      }
+    }
+
+    long sortKey(String sortBy) {
+      if ("count".equals(sortBy)) {
+        return latency.getCount();
+      } else if ("failures".equals(sortBy)) {
+        return failures.get();
+      } else if ("maxTime".equals(sortBy)) {
+        return latency.getMaxMicros();
+      } else if ("replyBytes".equals(sortBy)) {
+        return replyBytes.get();
+      }
+      return latency.getSumMicros();
+    }
+
+    JSONObject toJSON() throws JSONException {
+      long count = latency.getCount();
+      JSONObject json = new JSONObject();
+      json.put("db", db);
+      json.put("command", command);
+      json.put("count", count);
+      json.put("failures", failures.get());
+      json.put("totalMillis", latency.getSumMicros() / 1000.0);
+      json.put("avgMillis", count == 0 ? 0 : latency.getSumMicros() / 1000.0 / count);
+      json.put("p50Millis", latency.getPercentileMicros(50) / 1000.0);
+      json.put("p95Millis", latency.getPercentileMicros(95) / 1000.0);
+      json.put("p99Millis", latency.getPercentileMicros(99) / 1000.0);
+      json.put("maxMillis", latency.getMaxMicros() / 1000.0);
+      long replies = replySizes.getCount();
+      JSONObject reply = new JSONObject();
+      reply.put("totalBytes", replyBytes.get());
+      reply.put("avgBytes", replies == 0 ? 0 : replyBytes.get() / replies);
+      reply.put("p99Bytes", replySizes.getValueAtPercentile(99));
+      reply.put("maxBytes", maxReplyBytes.get());
+      json.put("reply", reply);
+      return json;
+    }
+  }
+}
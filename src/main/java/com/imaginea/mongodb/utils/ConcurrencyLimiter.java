@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.imaginea.mongodb.exceptions.ApplicationException;
+import com.imaginea.mongodb.exceptions.ErrorCodes;
+
+/**
+ * Admission control for the REST requests. A request takes a permit of its connection and then one
+ * of the whole server before it runs, so a single connection can never hold more than its share of
+ * the servlet threads and pooled sockets. Requests that find no free permit wait for a short while
+ * in a fair (first come first served) queue and are turned away once that wait is over.
+ */
+public class ConcurrencyLimiter {
+
+  public static final String MAX_CONCURRENT_REQUESTS = "MAX_CONCURRENT_REQUESTS";
+  public static final String MAX_CONCURRENT_REQUESTS_PER_CONNECTION =
+      "MAX_CONCURRENT_REQUESTS_PER_CONNECTION";
+  public static final String REQUEST_QUEUE_TIMEOUT = "REQUEST_QUEUE_TIMEOUT";
+
+  private static final ConcurrencyLimiter INSTANCE = new ConcurrencyLimiter(
+      ConfigurationUtils.getInt(MAX_CONCURRENT_REQUESTS, 32),
+      ConfigurationUtils.getInt(MAX_CONCURRENT_REQUESTS_PER_CONNECTION, 6),
+      ConfigurationUtils.getLong(REQUEST_QUEUE_TIMEOUT, 500));
+
+  private final int maxConcurrent;
+  private final int maxPerConnection;
+  private final long queueTimeout;
+  private final Semaphore globalPermits;
+  private final ConcurrentHashMap<String, ConnectionPermits> connectionPermits =
+      new ConcurrentHashMap<String, ConnectionPermits>();
+
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger queued = new AtomicInteger();
+  private final AtomicLong admitted = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+
+  ConcurrencyLimiter(int maxConcurrent, int maxPerConnection, long queueTimeout) {
+    this.maxConcurrent = Math.max(1, maxConcurrent);
+    this.globalPermits = new Semaphore(this.maxConcurrent, true);
+    this.maxPerConnection = Math.max(1, maxPerConnection);
+    this.queueTimeout = Math.max(0, queueTimeout);
+  }
+
+  public static ConcurrencyLimiter getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Waits for a permit of the connection and one of the server.
+   *
+   * @param connectionId Connection making the request. Requests without one only count towards
+   *        the server wide limit, and so should requests naming a connection that is not open.
+   * @return Permit to be released once the request is done
+   * @throws ApplicationException TOO_MANY_REQUESTS when no permit was free within the queue timeout
+   */
+  public Permit acquire(String connectionId) throws ApplicationException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(queueTimeout);
+    ConnectionPermits perConnection = connectionId == null ? null : getConnectionPermits(connectionId);
+    queued.incrementAndGet();
+    if (perConnection != null) {
+      perConnection.queued.incrementAndGet();
+    }
+    boolean connectionAcquired = false;
+    boolean globalAcquired = false;
+    try {
+      connectionAcquired = perConnection == null
+          || perConnection.permits.tryAcquire(remaining(deadline), TimeUnit.NANOSECONDS);
+      globalAcquired =
+          connectionAcquired && globalPermits.tryAcquire(remaining(deadline), TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      queued.decrementAndGet();
+      if (perConnection != null) {
+        perConnection.queued.decrementAndGet();
+      }
+    }
+    if (!globalAcquired) {
+      if (connectionAcquired && perConnection != null) {
+        perConnection.permits.release();
+      }
+      rejected.incrementAndGet();
+      if (perConnection != null) {
+        perConnection.rejected.incrementAndGet();
+      }
+      throw new ApplicationException(ErrorCodes.TOO_MANY_REQUESTS, connectionAcquired
+          ? "mViewer is busy serving other requests. Please retry in a moment."
+          : "Too many requests running on this connection. Please retry in a moment.");
+    }
+    admitted.incrementAndGet();
+    inFlight.incrementAndGet();
+    return new Permit(perConnection);
+  }
+
+  /**
+   * Forgets the permits of a connection that was closed.
+   */
+  public void removeConnection(String connectionId) {
+    if (connectionId != null) {
+      connectionPermits.remove(connectionId);
+    }
+  }
+
+  /**
+   * @return Current queue depth, in flight count and rejections of the whole server
+   */
+  public JSONObject getMetrics() throws JSONException {
+    return getMetrics(null);
+  }
+
+  /**
+   * Reports the server wide counters and those of one connection. The other connections are left
+   * out as their ids must not be handed to anyone but their owner.
+   *
+   * @param connectionId Connection to report on as well, may be null
+   * @return Current queue depth, in flight count and rejections overall and of the connection
+   */
+  public JSONObject getMetrics(String connectionId) throws JSONException {
+    JSONObject metrics = new JSONObject();
+    metrics.put("maxConcurrent", maxConcurrent);
+    metrics.put("maxPerConnection", maxPerConnection);
+    metrics.put("queueTimeout", queueTimeout);
+    metrics.put("inFlight", inFlight.get());
+    metrics.put("queued", queued.get());
+    metrics.put("admitted", admitted.get());
+    metrics.put("rejected", rejected.get());
+    metrics.put("connections", connectionPermits.size());
+    ConnectionPermits perConnection =
+        connectionId == null ? null : connectionPermits.get(connectionId);
+    if (perConnection != null) {
+      JSONObject connection = new JSONObject();
+      connection.put("inFlight", maxPerConnection - perConnection.permits.availablePermits());
+      connection.put("queued", perConnection.queued.get());
+      connection.put("rejected", perConnection.rejected.get());
+      metrics.put("connection", connection);
+    }
+    return metrics;
+  }
+
+  private ConnectionPermits getConnectionPermits(String connectionId) {
+    ConnectionPermits perConnection = connectionPermits.get(connectionId);
+    if (perConnection == null) {
+      perConnection = new ConnectionPermits(maxPerConnection);
+      ConnectionPermits existing = connectionPermits.putIfAbsent(connectionId, perConnection);
+      if (existing != null) {
+        perConnection = existing;
+      }
+    }
+    return perConnection;
+  }
+
+  private static long remaining(long deadline) {
+    return Math.max(0, deadline - System.nanoTime());
+  }
+
+  private static class ConnectionPermits {
+    private final Semaphore permits;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+
+    ConnectionPermits(int maxPerConnection) {
+      this.permits = new Semaphore(maxPerConnection, true);
+    }
+  }
+
+  /**
+   * Permits held by a running request.
+   */
+  public class Permit {
+    private final ConnectionPermits perConnection;
+    private boolean released;
+
+    private Permit(ConnectionPermits perConnection) {
+      this.perConnection = perConnection;
+    }
+
+    public void release() {
+      if (released) {
+        return;
+      }
+      released = true;
+      inFlight.decrementAndGet();
+      globalPermits.release();
+      if (perConnection != null) {
+        perConnection.permits.release();
+      }
+    }
+  }
+}
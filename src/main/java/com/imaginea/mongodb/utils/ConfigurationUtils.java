@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Reads the application settings from <mViewer.properties>. The file is looked up at the path
+ * given by the <mviewer.config> system property and falls back to the working directory, which is
+ * where the start scripts run from. A system property with the same key always overrides the value
+ * in the file, so any setting can also be passed as -DKEY=value.
+ * <p/>
+ * Keys are kept in UPPER_SNAKE form since the start script sources the file as a shell script.
+ */
+public class ConfigurationUtils {
+
+  private static final Logger logger = Logger.getLogger(ConfigurationUtils.class);
+
+  private static final String CONFIG_FILE_PROPERTY = "mviewer.config";
+  private static final String DEFAULT_CONFIG_FILE = "mViewer.properties";
+
+  private static final Properties properties = loadProperties();
+
+  private static Properties loadProperties() {
+    Properties props = new Properties();
+    File configFile = new File(System.getProperty(CONFIG_FILE_PROPERTY, DEFAULT_CONFIG_FILE));
+    if (!configFile.isFile()) {
+      logger.info("No configuration found at " + configFile.getAbsolutePath() + ". Using defaults.");
+      return props;
+    }
+    InputStream in = null;
+    try {
+      in = new FileInputStream(configFile);
+      props.load(in);
+    } catch (IOException e) {
+      logger.error("Error reading configuration from " + configFile.getAbsolutePath(), e);
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {
+          logger.error(e);
+        }
+      }
+    }
+    return props;
+  }
+
+  /**
+   * Returns the configured value of a key, a system property taking precedence over the file.
+   *
+   * @param key Name of the setting
+   * @return trimmed value or null if the key is not set or empty
+   */
+  public static String getString(String key) {
+    String value = System.getProperty(key);
+    if (value == null) {
+      value = properties.getProperty(key);
+    }
+    if (value == null || value.trim().isEmpty()) {
+      return null;
+    }
+    return value.trim();
+  }
+
+  public static String getString(String key, String defaultValue) {
+    String value = getString(key);
+    return value == null ? defaultValue : value;
+  }
+
+  /**
+   * Returns the integer value of a key.
+   *
+   * @param key Name of the setting
+   * @return value or null if the key is not set or is not a valid integer
+   */
+  public static Integer getInteger(String key) {
+    String value = getString(key);
+    if (value == null) {
+      return null;
+    }
+    try {
+      return Integer.valueOf(value);
+    } catch (NumberFormatException e) {
+      logger.warn("Ignoring invalid integer value [" + value + "] for " + key);
+      return null;
+    }
+  }
+
+  public static int getInt(String key, int defaultValue) {
+    Integer value = getInteger(key);
+    return value == null ? defaultValue : value;
+  }
+
+  public static long getLong(String key, long defaultValue) {
+    String value = getString(key);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      logger.warn("Ignoring invalid long value [" + value + "] for " + key);
+      return defaultValue;
+    }
+  }
+
+  public static boolean getBoolean(String key, boolean defaultValue) {
+    String value = getString(key);
+    return value == null ? defaultValue : Boolean.parseBoolean(value);
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.utils;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Tells apart contents that are already compressed, which gain nothing from being deflated again
+ * into an archive, from those worth compressing. The MIME type decides when it is known, else the
+ * extension of the file name.
+ */
+public class ContentTypes {
+
+  private static final Set<String> COMPRESSED_TYPES = new HashSet<String>(Arrays.asList(
+      "application/zip", "application/gzip", "application/x-gzip", "application/x-bzip2",
+      "application/x-xz", "application/x-7z-compressed", "application/x-rar-compressed",
+      "application/vnd.rar", "application/java-archive", "application/pdf",
+      "application/vnd.openxmlformats-officedocument.wordprocessingml.document",
+      "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet",
+      "application/vnd.openxmlformats-officedocument.presentationml.presentation",
+      "application/vnd.oasis.opendocument.text", "application/epub+zip", "font/woff",
+      "font/woff2"));
+
+  /** Image types that are stored without compression. */
+  private static final Set<String> UNCOMPRESSED_IMAGES = new HashSet<String>(Arrays.asList(
+      "image/bmp", "image/x-ms-bmp", "image/svg+xml", "image/tiff", "image/x-icon"));
+
+  private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<String>(Arrays.asList(
+      "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "jar", "war", "ear", "apk", "pdf", "docx",
+      "xlsx", "pptx", "odt", "ods", "odp", "epub", "jpg", "jpeg", "png", "gif", "webp", "heic",
+      "mp3", "aac", "ogg", "oga", "flac", "m4a", "opus", "mp4", "m4v", "mkv", "webm", "avi",
+      "mov", "wmv", "woff", "woff2", "br", "zst", "lz4"));
+
+  private ContentTypes() {}
+
+  /**
+   * @param contentType MIME type of the content. May be null.
+   * @param fileName Name of the file holding the content. May be null.
+   * @return true when the content is most likely compressed already
+   */
+  public static boolean isCompressed(String contentType, String fileName) {
+    if (contentType != null && !contentType.trim().isEmpty()) {
+      String type = contentType.toLowerCase(Locale.ROOT);
+      int parameters = type.indexOf(';');
+      if (parameters >= 0) {
+        type = type.substring(0, parameters);
+      }
+      type = type.trim();
+      if (!type.equals("application/octet-stream")) {
+        if (type.startsWith("image/")) {
+          return !UNCOMPRESSED_IMAGES.contains(type);
+        }
+        return type.startsWith("video/") || type.startsWith("audio/")
+            || COMPRESSED_TYPES.contains(type);
+      }
+    }
+    if (fileName == null) {
+      return false;
+    }
+    int dot = fileName.lastIndexOf('.');
+    return dot >= 0
+        && COMPRESSED_EXTENSIONS.contains(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+  }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Least recently used cache of file contents on the local disk, bounded by the total bytes of the
+ * files it holds. Entries are named after the SHA-256 of their key, so a key that carries the
+ * version of the content, such as a checksum, never hands out stale bytes: a changed content is
+ * a different key, and its old entry ages out. Entries are written to a temporary file first and
+ * renamed into place once complete, and the cache picks up the files left by an earlier run.
+ * <p/>
+ * The cache never fails a read it could serve without it: when an entry cannot be filled, for a
+ * full disk or an unwritable directory, the content is written straight from its source. A range
+ * of a content not cached yet is also written from the source, without filling the entry, since
+ * filling would hold back the first byte until the whole content is on disk.
+ * <p/>
+ * Entries are read with {@link FileChannel#transferTo}, which the operating system turns into a
+ * zero-copy transfer when the target is a socket or file channel.
+ */
+public class FileCache {
+
+  private static final Logger logger = Logger.getLogger(FileCache.class);
+
+  public static final String GRIDFS_CACHE_ENABLED = "GRIDFS_CACHE_ENABLED";
+  public static final String GRIDFS_CACHE_DIR = "GRIDFS_CACHE_DIR";
+  public static final String GRIDFS_CACHE_MAX_BYTES = "GRIDFS_CACHE_MAX_BYTES";
+  public static final String GRIDFS_CACHE_MAX_FILE_BYTES = "GRIDFS_CACHE_MAX_FILE_BYTES";
+
+  private static final String ENTRY_SUFFIX = ".bin";
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  private static volatile FileCache gridFSCache;
+
+  private final File dir;
+  private final long maxBytes;
+  private final long maxEntryBytes;
+  /** Sizes of the entries by name, least recently used first. */
+  private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f,
+      true);
+  private long bytes;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+
+  /**
+   * Source of a content, written to fill an entry or when the cache is bypassed.
+   */
+  public interface Content {
+    void writeTo(long offset, long length, OutputStream out) throws IOException;
+  }
+
+  /**
+   * @param dir Directory of the entries, created when missing
+   * @param maxBytes Total bytes of the entries
+   * @param maxEntryBytes Bytes of the largest entry
+   */
+  public FileCache(File dir, long maxBytes, long maxEntryBytes) throws IOException {
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Could not create cache directory " + dir);
+    }
+    this.dir = dir;
+    this.maxBytes = maxBytes;
+    this.maxEntryBytes = Math.min(maxBytes, maxEntryBytes);
+    load();
+  }
+
+  /**
+   * @return Cache of the GridFS downloads, null when it is not enabled or could not be set up
+   */
+  public static FileCache getGridFSCache() {
+    if (gridFSCache == null && ConfigurationUtils.getBoolean(GRIDFS_CACHE_ENABLED, false)) {
+      synchronized (FileCache.class) {
+        if (gridFSCache == null) {
+          File dir = new File(ConfigurationUtils.getString(GRIDFS_CACHE_DIR, "data/gridfs-cache"));
+          try {
+            gridFSCache = new FileCache(dir,
+                ConfigurationUtils.getLong(GRIDFS_CACHE_MAX_BYTES, 256L * 1024 * 1024),
+                ConfigurationUtils.getLong(GRIDFS_CACHE_MAX_FILE_BYTES, 32L * 1024 * 1024));
+          } catch (IOException e) {
+            logger.error("GridFS downloads are not cached", e);
+          }
+        }
+      }
+    }
+    return gridFSCache;
+  }
+
+  /**
+   * Tells whether a content of the given length may be cached at all.
+   */
+  public boolean accepts(long length) {
+    return length <= maxEntryBytes;
+  }
+
+  /**
+   * Writes a byte range of a cached entry. A missing entry is filled first when the whole content
+   * is asked for, otherwise the range is written from the content itself.
+   *
+   * @param key Key of the content, including its version
+   * @param length Length of the content
+   * @param content Source of the content
+   * @param offset Offset of the first byte to be written
+   * @param count Number of bytes to be written
+   * @param out Stream the bytes are written to
+   * @throws IOException When reading the content or the entry, or writing the bytes, fails
+   */
+  public void write(String key, long length, Content content, long offset, long count,
+      OutputStream out) throws IOException {
+    String name = nameOf(key);
+    File file = new File(dir, name + ENTRY_SUFFIX);
+    FileInputStream in = open(name, file, length);
+    if (in == null) {
+      misses.incrementAndGet();
+      if (offset > 0 || count < length) {
+        content.writeTo(offset, count, out);
+        return;
+      }
+      try {
+        in = fill(name, file, length, content);
+      } catch (IOException e) {
+        // Nothing was written yet, so the content is served without the cache
+        failures.incrementAndGet();
+        logger.warn("Could not cache " + key + ": " + e.getMessage());
+        content.writeTo(offset, count, out);
+        return;
+      }
+    } else {
+      hits.incrementAndGet();
+    }
+    try {
+      FileChannel channel = in.getChannel();
+      WritableByteChannel target = Channels.newChannel(out);
+      long position = offset;
+      long end = offset + count;
+      while (position < end) {
+        long sent = channel.transferTo(position, end - position, target);
+        if (sent <= 0) {
+          throw new IOException("Cached file " + file + " is shorter than " + length + " bytes");
+        }
+        position += sent;
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Appends the entries held, the bytes they take and the lookups of the cache to the metrics.
+   *
+   * @param text Metrics being written
+   * @param cache Name of the cache in the samples
+   */
+  public void writeTo(PrometheusText text, String cache) {
+    long entryCount;
+    long entryBytes;
+    synchronized (this) {
+      entryCount = entries.size();
+      entryBytes = bytes;
+    }
+    text.family("mviewer_file_cache_entries", "gauge", "Files held by a disk cache");
+    text.sample("mviewer_file_cache_entries", entryCount, "cache", cache);
+    text.family("mviewer_file_cache_bytes", "gauge", "Bytes of the files held by a disk cache");
+    text.sample("mviewer_file_cache_bytes", entryBytes, "cache", cache);
+    text.family("mviewer_file_cache_hits_total", "counter", "Downloads served from a disk cache");
+    text.sample("mviewer_file_cache_hits_total", hits.get(), "cache", cache);
+    text.family("mviewer_file_cache_misses_total", "counter", "Downloads filling a disk cache");
+    text.sample("mviewer_file_cache_misses_total", misses.get(), "cache", cache);
+    text.family("mviewer_file_cache_evictions_total", "counter", "Files evicted from a disk cache");
+    text.sample("mviewer_file_cache_evictions_total", evictions.get(), "cache", cache);
+    text.family("mviewer_file_cache_failures_total", "counter",
+        "Downloads served around a disk cache that could not be filled");
+    text.sample("mviewer_file_cache_failures_total", failures.get(), "cache", cache);
+  }
+
+  synchronized long getBytes() {
+    return bytes;
+  }
+
+  synchronized int getEntryCount() {
+    return entries.size();
+  }
+
+  /**
+   * Opens an entry, marking it as recently used. An entry whose size does not match the length of
+   * the content is dropped.
+   */
+  private FileInputStream open(String name, File file, long length) {
+    synchronized (this) {
+      Long size = entries.get(name);
+      if (size == null) {
+        return null;
+      }
+      if (size != length) {
+        remove(name);
+        return null;
+      }
+    }
+    try {
+      return new FileInputStream(file);
+    } catch (IOException e) {
+      // Evicted in the meantime
+      return null;
+    }
+  }
+
+  /**
+   * Fills an entry and opens it before it can be evicted again.
+   */
+  private FileInputStream fill(String name, File file, long length, Content content)
+      throws IOException {
+    File temp = File.createTempFile(name, TEMP_SUFFIX, dir);
+    try {
+      OutputStream out = new FileOutputStream(temp);
+      try {
+        content.writeTo(0, length, out);
+      } finally {
+        out.close();
+      }
+      if (temp.length() != length) {
+        throw new IOException("Expected " + length + " bytes to cache but got " + temp.length());
+      }
+      synchronized (this) {
+        if (!temp.renameTo(file)) {
+          // Another request filled it first, or the file is in use on a platform that forbids it
+          if (!file.isFile() || file.length() != length) {
+            throw new IOException("Could not move " + temp + " to " + file);
+          }
+        }
+        FileInputStream in = new FileInputStream(file);
+        Long previous = entries.put(name, length);
+        bytes += length - (previous == null ? 0 : previous);
+        evict();
+        return in;
+      }
+    } finally {
+      temp.delete();
+    }
+  }
+
+  private void evict() {
+    Iterator<Map.Entry<String, Long>> eldest = entries.entrySet().iterator();
+    while (bytes > maxBytes && eldest.hasNext()) {
+      Map.Entry<String, Long> entry = eldest.next();
+      eldest.remove();
+      bytes -= entry.getValue();
+      new File(dir, entry.getKey() + ENTRY_SUFFIX).delete();
+      evictions.incrementAndGet();
+    }
+  }
+
+  private void remove(String name) {
+    Long size = entries.remove(name);
+    if (size != null) {
+      bytes -= size;
+      new File(dir, name + ENTRY_SUFFIX).delete();
+    }
+  }
+
+  /**
+   * Picks up the entries of an earlier run, oldest first, and removes unfinished ones.
+   */
+  private synchronized void load() {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(files, new Comparator<File>() {
+      public int compare(File a, File b) {
+        return Long.compare(a.lastModified(), b.lastModified());
+      }
+    });
+    for (File file : files) {
+      String fileName = file.getName();
+      if (fileName.endsWith(TEMP_SUFFIX)) {
+        file.delete();
+      } else if (fileName.endsWith(ENTRY_SUFFIX)) {
+        entries.put(fileName.substring(0, fileName.length() - ENTRY_SUFFIX.length()),
+            file.length());
+        bytes += file.length();
+      }
+    }
+    evict();
+  }
+
+  private static String nameOf(String key) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(
+          key.getBytes(StandardCharsets.UTF_8));
+      StringBuilder name = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      return name.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+}
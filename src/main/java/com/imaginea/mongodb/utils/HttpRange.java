@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.utils;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Single byte range of a <code>Range: bytes=..</code> request header, resolved against the length
+ * of the requested entity. Only one range per request is served, requests for several ranges get
+ * the whole entity, which RFC 7233 allows a server to do.
+ */
+public class HttpRange {
+
+  private static final String BYTES_UNIT = "bytes=";
+  private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+  private final long start;
+  private final long end;
+  private final long total;
+
+  private HttpRange(long start, long end, long total) {
+    this.start = start;
+    this.end = end;
+    this.total = total;
+  }
+
+  /**
+   * Parses a Range header.
+   *
+   * @param header Value of the Range header. May be null.
+   * @param total Length of the entity in bytes
+   * @return Range to be served, null when the whole entity is to be sent because the header is
+   *         absent, malformed or asks for several ranges. A range that lies past the end of the
+   *         entity is returned as not satisfiable.
+   */
+  public static HttpRange parse(String header, long total) {
+    if (header == null) {
+      return null;
+    }
+    String spec = header.trim();
+    if (!spec.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length())) {
+      return null;
+    }
+    spec = spec.substring(BYTES_UNIT.length()).trim();
+    int dash = spec.indexOf('-');
+    if (dash < 0 || spec.indexOf(',') >= 0) {
+      return null;
+    }
+    try {
+      String first = spec.substring(0, dash).trim();
+      String last = spec.substring(dash + 1).trim();
+      if (first.isEmpty()) {
+        // Suffix range, the last <last> bytes of the entity
+        long suffix = Long.parseLong(last);
+        if (suffix < 0) {
+          return null;
+        }
+        if (suffix == 0 || total == 0) {
+          return new HttpRange(-1, -1, total);
+        }
+        return new HttpRange(Math.max(0, total - suffix), total - 1, total);
+      }
+      long start = Long.parseLong(first);
+      long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+      if (start < 0 || end < start) {
+        return null;
+      }
+      if (start >= total) {
+        return new HttpRange(-1, -1, total);
+      }
+      return new HttpRange(start, Math.min(end, total - 1), total);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Tells whether the range of a request carrying an If-Range header is to be honoured, that is
+   * whether the entity the client holds a part of is still the current one.
+   *
+   * @param ifRange Value of the If-Range header. May be null.
+   * @param etag Strong entity tag of the current entity, quoted
+   * @param lastModified Modification time of the current entity in milliseconds
+   * @return true when there is no If-Range header or it names the current entity
+   */
+  public static boolean ifRangeMatches(String ifRange, String etag, long lastModified) {
+    if (ifRange == null) {
+      return true;
+    }
+    String validator = ifRange.trim();
+    if (validator.startsWith("\"") || validator.startsWith("W/")) {
+      // Weak tags never match for ranges
+      return validator.equals(etag);
+    }
+    SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+    try {
+      Date date = format.parse(validator);
+      return date.getTime() == lastModified / 1000 * 1000;
+    } catch (ParseException e) {
+      return false;
+    }
+  }
+
+  public boolean isSatisfiable() {
+    return start >= 0;
+  }
+
+  public long getStart() {
+    return start;
+  }
+
+  /**
+   * @return Offset of the last byte of the range, inclusive
+   */
+  public long getEnd() {
+    return end;
+  }
+
+  public long getLength() {
+    return isSatisfiable() ? end - start + 1 : 0;
+  }
+
+  /**
+   * @return Value of the Content-Range header answering the request
+   */
+  public String toContentRange() {
+    if (!isSatisfiable()) {
+      return "bytes */" + total;
+    }
+    return "bytes " + start + "-" + end + "/" + total;
+  }
+}
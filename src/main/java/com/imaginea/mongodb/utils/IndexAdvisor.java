@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.Document;
+
+/**
+ * Finds the indexes of a collection made redundant by another index. An index is redundant when
+ * its keys, with the same directions, are a prefix of the keys of another index: every query able
+ * to use it can use the longer index just as well, while each write pays for both.
+ * <p/>
+ * Indexes which do more than speed up queries are never reported: <_id_>, unique, sparse, partial
+ * and TTL indexes, and the covering index must itself be a plain one over the same collation.
+ */
+public class IndexAdvisor {
+
+  /**
+   * @param index Specification of an index as listed by <listIndexes>
+   * @param indexes Specifications of all the indexes of its collection
+   * @return Name of an index making the given one redundant, or null
+   */
+  public static String findCoveringIndex(Document index, List<Document> indexes) {
+    if ("_id_".equals(index.getString("name")) || Boolean.TRUE.equals(index.get("unique"))
+        || hasFilter(index) || index.containsKey("expireAfterSeconds")) {
+      return null;
+    }
+    List<Map.Entry<String, Object>> keys = keysOf(index);
+    if (keys.isEmpty()) {
+      return null;
+    }
+    for (Document other : indexes) {
+      if (other == index || index.getString("name").equals(other.getString("name"))
+          || hasFilter(other) || !equal(index.get("collation"), other.get("collation"))) {
+        continue;
+      }
+      List<Map.Entry<String, Object>> otherKeys = keysOf(other);
+      // An identical key pattern only makes this one redundant when the other enforces uniqueness
+      if (otherKeys.size() < keys.size() || (otherKeys.size() == keys.size()
+          && !Boolean.TRUE.equals(other.get("unique")))) {
+        continue;
+      }
+      if (isPrefix(keys, otherKeys)) {
+        return other.getString("name");
+      }
+    }
+    return null;
+  }
+
+  private static boolean hasFilter(Document index) {
+    return Boolean.TRUE.equals(index.get("sparse")) || index.containsKey("partialFilterExpression");
+  }
+
+  private static List<Map.Entry<String, Object>> keysOf(Document index) {
+    Object key = index.get("key");
+    List<Map.Entry<String, Object>> keys = new ArrayList<Map.Entry<String, Object>>();
+    if (key instanceof Document) {
+      keys.addAll(((Document) key).entrySet());
+    }
+    return keys;
+  }
+
+  private static boolean isPrefix(List<Map.Entry<String, Object>> prefix,
+      List<Map.Entry<String, Object>> keys) {
+    for (int i = 0; i < prefix.size(); i++) {
+      Map.Entry<String, Object> key = prefix.get(i);
+      Map.Entry<String, Object> other = keys.get(i);
+      if (!key.getKey().equals(other.getKey())
+          || !sameDirection(key.getValue(), other.getValue())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Directions are stored as 1, 1.0 or 1L alike. Special index types (<text>, <hashed>,
+   * <2dsphere>...) only match themselves.
+   */
+  private static boolean sameDirection(Object a, Object b) {
+    if (a instanceof Number && b instanceof Number) {
+      return Math.signum(((Number) a).doubleValue()) == Math.signum(((Number) b).doubleValue());
+    }
+    return equal(a, b);
+  }
+
+  private static boolean equal(Object a, Object b) {
+    return a == null ? b == null : a.equals(b);
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram with log-linear buckets, in the manner of an HDR histogram with three bits of
+ * precision. Values below 16 microseconds have a bucket each, larger ones fall in one of 8
+ * buckets per power of two, so any value is known within 12.5% from a microsecond up to days.
+ * <p/>
+ * The buckets are allocated once, recording only increments counters and never allocates, and
+ * many threads may record and read at the same time. Other quantities than durations, like sizes
+ * in bytes, may be recorded with {@link #recordValue(long)}.
+ */
+public class LatencyHistogram {
+
+  private static final int LINEAR_BUCKETS = 16;
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int MIN_EXPONENT = 4;
+  private static final int MAX_EXPONENT = 44;
+  private static final int BUCKETS =
+      LINEAR_BUCKETS + (MAX_EXPONENT - MIN_EXPONENT + 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Records a duration.
+   *
+   * @param nanos Duration in nanoseconds, negative ones count as zero
+   */
+  public void record(long nanos) {
+    recordValue(TimeUnit.NANOSECONDS.toMicros(nanos));
+  }
+
+  /**
+   * Records a value as is.
+   *
+   * @param value Value to record, negative ones count as zero
+   */
+  public void recordValue(long value) {
+    value = Math.max(0, value);
+    counts.incrementAndGet(bucketOf(value));
+    count.incrementAndGet();
+    sum.addAndGet(value);
+    long current = max.get();
+    while (value > current && !max.compareAndSet(current, value)) {
+      current = max.get();
+    }
+  }
+
+  /**
+   * @return Number of recorded durations
+   */
+  public long getCount() {
+    return count.get();
+  }
+
+  /**
+   * @return Sum of the recorded durations in microseconds
+   */
+  public long getSumMicros() {
+    return sum.get();
+  }
+
+  /**
+   * @return Largest recorded duration in microseconds
+   */
+  public long getMaxMicros() {
+    return max.get();
+  }
+
+  /**
+   * Estimates a percentile of the recorded durations.
+   *
+   * @param percentile Percentile between 0 and 100
+   * @return Duration in microseconds, 0 when nothing was recorded
+   */
+  public long getPercentileMicros(double percentile) {
+    return getValueAtPercentile(percentile);
+  }
+
+  /**
+   * Estimates a percentile from the buckets. The answer is the upper bound of the bucket holding
+   * the percentile, never more than the largest recorded value.
+   *
+   * @param percentile Percentile between 0 and 100
+   * @return Value in the unit it was recorded in, 0 when nothing was recorded
+   */
+  public long getValueAtPercentile(double percentile) {
+    long total = 0;
+    long[] snapshot = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        return Math.min(upperBoundOf(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  static int bucketOf(long micros) {
+    if (micros < LINEAR_BUCKETS) {
+      return (int) micros;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(micros);
+    if (exponent > MAX_EXPONENT) {
+      return BUCKETS - 1;
+    }
+    int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return LINEAR_BUCKETS + (exponent - MIN_EXPONENT) * SUB_BUCKETS + subBucket;
+  }
+
+  /**
+   * @return Largest value falling in the bucket
+   */
+  static long upperBoundOf(int bucket) {
+    if (bucket < LINEAR_BUCKETS) {
+      return bucket;
+    }
+    int exponent = MIN_EXPONENT + (bucket - LINEAR_BUCKETS) / SUB_BUCKETS;
+    int subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+    long width = 1L << (exponent - SUB_BUCKET_BITS);
+    return (SUB_BUCKETS + subBucket) * width + width - 1;
+  }
+}
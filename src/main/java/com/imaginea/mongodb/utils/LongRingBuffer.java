@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.utils;
+
+/**
+ * Fixed size ring buffer of primitive longs. Once full, every new value overwrites the oldest one,
+ * so keeping a window of samples costs no allocation after construction.
+ * <p/>
+ * Not thread safe. Callers sharing a buffer between threads synchronize on their own lock, which
+ * also lets several buffers filled together (for instance timestamps and values) stay aligned.
+ */
+public class LongRingBuffer {
+
+  private final long[] values;
+  private int head;
+  private int size;
+
+  public LongRingBuffer(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+    }
+    values = new long[capacity];
+  }
+
+  /**
+   * Appends a value, dropping the oldest one when the buffer is full.
+   */
+  public void add(long value) {
+    values[head] = value;
+    head = (head + 1) % values.length;
+    if (size < values.length) {
+      size++;
+    }
+  }
+
+  /**
+   * @param index Position counted from the oldest value held, 0 being the oldest
+   * @return Value at the position
+   */
+  public long get(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+    return values[(head - size + index + values.length) % values.length];
+  }
+
+  /**
+   * @return Most recently added value
+   */
+  public long last() {
+    return get(size - 1);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int capacity() {
+    return values.length;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public void clear() {
+    head = 0;
+    size = 0;
+  }
+}
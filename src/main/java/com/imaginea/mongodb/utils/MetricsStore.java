@@ -0,0 +1,632 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * History of the sampled metrics of one server, kept on disk so that it outlives the graphs page
+ * and mViewer itself.
+ * <p/>
+ * Samples are written at three resolutions: as taken, rolled up per minute and rolled up per hour,
+ * every rolled up record holding the min, max and average of its bucket. Each resolution is a
+ * series of segment files covering a fixed span of time (an hour of raw samples, a day of minutes,
+ * thirty days of hours). A segment is a header followed by fixed width records and is written and
+ * read through a memory mapping, kept for as long as the segment is. Segments past the retention
+ * of their resolution are deleted.
+ * <p/>
+ * The buckets being rolled up live in memory only. Those of the latest samples are rebuilt from the
+ * raw records when the store is first appended to, so a restart loses none of them.
+ * <p/>
+ * Several connections may sample the same server. The store keeps the samples of one of them, the
+ * samples of the others being dropped until it has been silent for a minute.
+ * <p/>
+ * Record layout: series id (int), timestamp (long), min, max, sum (doubles), count (int).
+ */
+public class MetricsStore {
+
+  private static final Logger logger = Logger.getLogger(MetricsStore.class);
+
+  public static final String GRAPHS_HISTORY_ENABLED = "GRAPHS_HISTORY_ENABLED";
+  public static final String GRAPHS_DATA_DIR = "GRAPHS_DATA_DIR";
+  public static final String GRAPHS_RETENTION_RAW = "GRAPHS_RETENTION_RAW";
+  public static final String GRAPHS_RETENTION_MINUTE = "GRAPHS_RETENTION_MINUTE";
+  public static final String GRAPHS_RETENTION_HOUR = "GRAPHS_RETENTION_HOUR";
+  public static final String GRAPHS_STORED_SERIES = "GRAPHS_STORED_SERIES";
+  public static final String GRAPHS_STORED_MAX_SERIES = "GRAPHS_STORED_MAX_SERIES";
+
+  private static final long MINUTE_MILLIS = 60 * 1000L;
+  private static final long HOUR_MILLIS = 60 * MINUTE_MILLIS;
+  private static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+
+  private static final int MAGIC = 0x4D564D53;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 32;
+  private static final int COUNT_OFFSET = 20;
+  private static final int RECORD_SIZE = 40;
+  private static final int RECORDS_PER_SEGMENT = 65536;
+  private static final String SERIES_FILE = "series.txt";
+  private static final long OWNER_TIMEOUT = MINUTE_MILLIS;
+
+  private static final String DEFAULT_STORED_SERIES = "opcounters,connections,network,mem,"
+      + "opLatencies,asserts,globalLock,wiredTiger.cache,wiredTiger.concurrentTransactions";
+
+  private static final Map<String, MetricsStore> stores =
+      new ConcurrentHashMap<String, MetricsStore>();
+
+  /**
+   * Resolutions kept, each with the step of its buckets and the span of its segment files.
+   */
+  public enum Resolution {
+    RAW("raw", 0, HOUR_MILLIS), MINUTE("1m", MINUTE_MILLIS, DAY_MILLIS), HOUR("1h", HOUR_MILLIS,
+        30 * DAY_MILLIS);
+
+    private final String label;
+    private final long step;
+    private final long segmentSpan;
+
+    private Resolution(String label, long step, long segmentSpan) {
+      this.label = label;
+      this.step = step;
+      this.segmentSpan = segmentSpan;
+    }
+
+    public String getLabel() {
+      return label;
+    }
+
+    public static Resolution fromLabel(String label) {
+      for (Resolution resolution : values()) {
+        if (resolution.label.equals(label)) {
+          return resolution;
+        }
+      }
+      return null;
+    }
+  }
+
+  private final File dir;
+  private final long[] retention;
+  private final Set<String> storedPrefixes;
+  private final int maxSeries;
+  private final int recordsPerSegment;
+
+  private final Map<String, Integer> seriesIds = new HashMap<String, Integer>();
+  private final List<String> seriesNames = new ArrayList<String>();
+  private final Segment[] current = new Segment[Resolution.values().length];
+  private final Rollup[] rollups = {null, new Rollup(), new Rollup()};
+  private final Map<File, Segment> mapped = new HashMap<File, Segment>();
+  private boolean recovered;
+  private Object owner;
+  private long lastTimestamp = -1;
+
+  MetricsStore(File dir, long[] retention, Set<String> storedPrefixes, int maxSeries,
+      int recordsPerSegment) throws IOException {
+    this.dir = dir;
+    this.retention = retention;
+    this.storedPrefixes = storedPrefixes;
+    this.maxSeries = maxSeries;
+    this.recordsPerSegment = recordsPerSegment;
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Cannot create the metrics directory " + dir);
+    }
+    File seriesFile = new File(dir, SERIES_FILE);
+    if (seriesFile.isFile()) {
+      for (String name : Files.readAllLines(seriesFile.toPath(), StandardCharsets.UTF_8)) {
+        if (!name.isEmpty()) {
+          seriesIds.put(name, seriesNames.size());
+          seriesNames.add(name);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the store of a server, opening it on first use.
+   *
+   * @param host Server as reported by <serverStatus>, like <myhost:27017>
+   * @return Store, or null when the history is not enabled or the data directory is not writable
+   */
+  public static MetricsStore forHost(String host) {
+    if (host == null || !ConfigurationUtils.getBoolean(GRAPHS_HISTORY_ENABLED, false)) {
+      return null;
+    }
+    String key = host.replaceAll("[^A-Za-z0-9._-]", "_");
+    MetricsStore store = stores.get(key);
+    if (store != null) {
+      return store;
+    }
+    synchronized (stores) {
+      store = stores.get(key);
+      if (store == null) {
+        File dataDir = new File(ConfigurationUtils.getString(GRAPHS_DATA_DIR, "data/metrics"));
+        long[] retention = {ConfigurationUtils.getLong(GRAPHS_RETENTION_RAW, DAY_MILLIS),
+            ConfigurationUtils.getLong(GRAPHS_RETENTION_MINUTE, 7 * DAY_MILLIS),
+            ConfigurationUtils.getLong(GRAPHS_RETENTION_HOUR, 90 * DAY_MILLIS)};
+        Set<String> prefixes = new LinkedHashSet<String>();
+        for (String prefix : ConfigurationUtils
+            .getString(GRAPHS_STORED_SERIES, DEFAULT_STORED_SERIES).split(",")) {
+          if (!prefix.trim().isEmpty()) {
+            prefixes.add(prefix.trim());
+          }
+        }
+        try {
+          store = new MetricsStore(new File(dataDir, key), retention, prefixes,
+              ConfigurationUtils.getInt(GRAPHS_STORED_MAX_SERIES, 512), RECORDS_PER_SEGMENT);
+          stores.put(key, store);
+        } catch (IOException e) {
+          logger.error("Metrics history of " + host + " is not kept", e);
+        }
+      }
+    }
+    return store;
+  }
+
+  /**
+   * Tells whether a series is kept in the history.
+   */
+  public boolean isStored(String name) {
+    for (String prefix : storedPrefixes) {
+      if (name.equals(prefix) || name.startsWith(prefix + ".")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Appends a sample at every resolution. Rolled up records are written once their bucket is over.
+   *
+   * @param source Sampler the sample comes from
+   * @param timestamp Time of the sample
+   * @param values Value of each series, rates for counters
+   * @return Whether the sample was kept. Samples of a source other than the one being kept, and
+   *         samples not newer than the last one, are dropped.
+   */
+  public synchronized boolean append(Object source, long timestamp, Map<String, Double> values)
+      throws IOException {
+    if (source != owner && owner != null && timestamp - lastTimestamp < OWNER_TIMEOUT) {
+      return false;
+    }
+    if (timestamp <= lastTimestamp) {
+      return false;
+    }
+    owner = source;
+    lastTimestamp = timestamp;
+    if (!recovered) {
+      recovered = true;
+      recoverRollups(timestamp);
+    }
+    for (Resolution resolution : new Resolution[] {Resolution.MINUTE, Resolution.HOUR}) {
+      Rollup rollup = rollups[resolution.ordinal()];
+      long bucket = timestamp - timestamp % resolution.step;
+      if (rollup.bucket != bucket) {
+        flush(resolution, rollup);
+        rollup.bucket = bucket;
+      }
+    }
+    for (Map.Entry<String, Double> entry : values.entrySet()) {
+      Double value = entry.getValue();
+      if (value == null || value.isNaN() || !isStored(entry.getKey())) {
+        continue;
+      }
+      int id = seriesId(entry.getKey());
+      if (id < 0) {
+        continue;
+      }
+      write(Resolution.RAW, id, timestamp, value, value, value, 1);
+      rollups[Resolution.MINUTE.ordinal()].add(id, value);
+      rollups[Resolution.HOUR.ordinal()].add(id, value);
+    }
+    return true;
+  }
+
+  /**
+   * Refills the buckets being rolled up from the raw records of the latest sample before the
+   * given time, which a previous run of mViewer may have left unfinished.
+   */
+  private void recoverRollups(long before) throws IOException {
+    // Raw records are appended in time order, the latest is the last one of the last segment
+    long latest = -1;
+    for (Segment segment : segments(Resolution.RAW, 0, before - 1)) {
+      int count = segment.readCount();
+      if (count > 0) {
+        latest = Math.max(latest, segment.buffer.getLong(Segment.position(count - 1) + 4));
+      }
+    }
+    if (latest < 0 || latest >= before) {
+      return;
+    }
+    long earliest = latest - latest % Resolution.HOUR.step;
+    for (Segment segment : segments(Resolution.RAW, earliest, latest)) {
+      ByteBuffer buffer = segment.buffer;
+      int count = segment.readCount();
+      for (int i = 0; i < count; i++) {
+        int position = Segment.position(i);
+        int id = buffer.getInt(position);
+        long timestamp = buffer.getLong(position + 4);
+        for (Resolution resolution : new Resolution[] {Resolution.MINUTE, Resolution.HOUR}) {
+          if (id >= 0 && timestamp >= latest - latest % resolution.step && timestamp <= latest) {
+            rollups[resolution.ordinal()].add(id, buffer.getDouble(position + 12));
+          }
+        }
+      }
+    }
+    rollups[Resolution.MINUTE.ordinal()].bucket = latest - latest % Resolution.MINUTE.step;
+    rollups[Resolution.HOUR.ordinal()].bucket = earliest;
+  }
+
+  private void flush(Resolution resolution, Rollup rollup) throws IOException {
+    for (Map.Entry<Integer, double[]> entry : rollup.buckets.entrySet()) {
+      double[] acc = entry.getValue();
+      write(resolution, entry.getKey(), rollup.bucket, acc[0], acc[1], acc[2], (int) acc[3]);
+    }
+    rollup.buckets.clear();
+  }
+
+  private int seriesId(String name) throws IOException {
+    Integer id = seriesIds.get(name);
+    if (id != null) {
+      return id;
+    }
+    if (seriesNames.size() >= maxSeries) {
+      return -1;
+    }
+    Writer writer = new OutputStreamWriter(
+        new FileOutputStream(new File(dir, SERIES_FILE), true), StandardCharsets.UTF_8);
+    try {
+      writer.write(name + "\n");
+    } finally {
+      writer.close();
+    }
+    id = seriesNames.size();
+    seriesIds.put(name, id);
+    seriesNames.add(name);
+    return id;
+  }
+
+  private void write(Resolution resolution, int id, long timestamp, double min, double max,
+      double sum, int count) throws IOException {
+    long start = timestamp - timestamp % resolution.segmentSpan;
+    Segment segment = current[resolution.ordinal()];
+    if (segment == null || segment.start != start || segment.isFull()) {
+      segment = openForWrite(resolution, start, timestamp);
+      current[resolution.ordinal()] = segment;
+    }
+    segment.append(id, timestamp, min, max, sum, count);
+  }
+
+  private Segment openForWrite(Resolution resolution, long start, long now) throws IOException {
+    int part = 0;
+    File file;
+    while ((file = segmentFile(resolution, start, part + 1)).exists()) {
+      part++;
+    }
+    if (part > 0) {
+      file = segmentFile(resolution, start, part);
+      Segment last = mapped.get(file);
+      if (last == null || !last.writable) {
+        last = Segment.open(file, true);
+      }
+      if (last != null && !last.isFull()) {
+        mapped.put(file, last);
+        return last;
+      }
+    }
+    deleteExpired(now);
+    file = segmentFile(resolution, start, part + 1);
+    Segment segment = Segment.create(file, start, recordsPerSegment);
+    mapped.put(file, segment);
+    return segment;
+  }
+
+  private File segmentFile(Resolution resolution, long start, int part) {
+    return new File(dir, resolution.label + "-" + start + "-" + part + ".seg");
+  }
+
+  /**
+   * Deletes the segments whose whole span is older than the retention of their resolution.
+   *
+   * @param now Time of the latest sample
+   */
+  synchronized void deleteExpired(long now) {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      SegmentName name = SegmentName.parse(file.getName());
+      if (name != null && name.start + name.resolution.segmentSpan
+          < now - retention[name.resolution.ordinal()]) {
+        Segment segment = current[name.resolution.ordinal()];
+        if (segment != null && segment.file.equals(file)) {
+          current[name.resolution.ordinal()] = null;
+        }
+        // The mapping goes once nothing refers to the segment any more
+        mapped.remove(file);
+        if (!file.delete()) {
+          logger.warn("Could not delete expired metrics segment " + file);
+        }
+      }
+    }
+  }
+
+  /**
+   * Picks the finest resolution still holding the whole range without returning an excessive
+   * number of points: raw up to 3 hours, minutes up to 3 days and hours beyond.
+   */
+  public Resolution chooseResolution(long from, long to, long now) {
+    long range = to - from;
+    if (range <= 3 * HOUR_MILLIS && from >= now - retention[Resolution.RAW.ordinal()]) {
+      return Resolution.RAW;
+    }
+    if (range <= 3 * DAY_MILLIS && from >= now - retention[Resolution.MINUTE.ordinal()]) {
+      return Resolution.MINUTE;
+    }
+    return Resolution.HOUR;
+  }
+
+  /**
+   * Reads the records of a time range.
+   *
+   * @param from Start of the range, inclusive
+   * @param to End of the range, inclusive
+   * @param prefixes Prefixes of the series to read, all when empty
+   * @param resolution Resolution to read
+   * @return Points ordered by time, each with its <TimeStamp> and the <min>, <max> and <avg> of
+   *         every series under <values>
+   */
+  public JSONArray query(long from, long to, Set<String> prefixes, Resolution resolution)
+      throws IOException, JSONException {
+    String[] names;
+    synchronized (this) {
+      names = seriesNames.toArray(new String[seriesNames.size()]);
+    }
+    boolean[] wanted = new boolean[names.length];
+    for (int i = 0; i < names.length; i++) {
+      wanted[i] = matches(names[i], prefixes);
+    }
+    TreeMap<Long, JSONObject> points = new TreeMap<Long, JSONObject>();
+    for (Segment segment : segments(resolution, from, to)) {
+      ByteBuffer buffer = segment.buffer;
+      int count = segment.readCount();
+      for (int i = 0; i < count; i++) {
+        int position = Segment.position(i);
+        int id = buffer.getInt(position);
+        long timestamp = buffer.getLong(position + 4);
+        if (id < 0 || id >= wanted.length || !wanted[id] || timestamp < from || timestamp > to) {
+          continue;
+        }
+        JSONObject point = points.get(timestamp);
+        if (point == null) {
+          point = new JSONObject();
+          point.put("TimeStamp", timestamp);
+          point.put("values", new JSONObject());
+          points.put(timestamp, point);
+        }
+        JSONObject value = new JSONObject();
+        int samples = buffer.getInt(position + 36);
+        value.put("min", buffer.getDouble(position + 12));
+        value.put("max", buffer.getDouble(position + 20));
+        value.put("avg", samples == 0 ? 0 : buffer.getDouble(position + 28) / samples);
+        point.getJSONObject("values").put(names[id], value);
+      }
+    }
+    return new JSONArray(points.values());
+  }
+
+  /**
+   * @return Segments of a resolution overlapping a time range, in time order
+   */
+  private List<Segment> segments(Resolution resolution, long from, long to) throws IOException {
+    List<File> files = new ArrayList<File>();
+    File[] all = dir.listFiles();
+    for (File file : all == null ? new File[0] : all) {
+      SegmentName name = SegmentName.parse(file.getName());
+      if (name != null && name.resolution == resolution && name.start <= to
+          && name.start + resolution.segmentSpan > from) {
+        files.add(file);
+      }
+    }
+    Collections.sort(files);
+    List<Segment> segments = new ArrayList<Segment>();
+    for (File file : files) {
+      Segment segment = mappedSegment(file);
+      if (segment != null) {
+        segments.add(segment);
+      }
+    }
+    return segments;
+  }
+
+  /**
+   * Mapping of a segment, opened on first use and kept until the segment is deleted.
+   */
+  private synchronized Segment mappedSegment(File file) throws IOException {
+    Segment segment = mapped.get(file);
+    if (segment == null && file.isFile()) {
+      segment = Segment.open(file, false);
+      if (segment != null) {
+        mapped.put(file, segment);
+      }
+    }
+    return segment;
+  }
+
+  private static boolean matches(String name, Set<String> prefixes) {
+    if (prefixes == null || prefixes.isEmpty()) {
+      return true;
+    }
+    for (String prefix : prefixes) {
+      if (name.equals(prefix) || name.startsWith(prefix + ".")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Running min, max, sum and count per series of the bucket being rolled up.
+   */
+  private static class Rollup {
+    private long bucket = -1;
+    private final Map<Integer, double[]> buckets = new HashMap<Integer, double[]>();
+
+    void add(int id, double value) {
+      double[] acc = buckets.get(id);
+      if (acc == null) {
+        buckets.put(id, new double[] {value, value, value, 1});
+        return;
+      }
+      acc[0] = Math.min(acc[0], value);
+      acc[1] = Math.max(acc[1], value);
+      acc[2] += value;
+      acc[3]++;
+    }
+  }
+
+  private static class SegmentName {
+    private Resolution resolution;
+    private long start;
+
+    static SegmentName parse(String fileName) {
+      if (!fileName.endsWith(".seg")) {
+        return null;
+      }
+      String[] parts = fileName.substring(0, fileName.length() - 4).split("-");
+      if (parts.length != 3 || Resolution.fromLabel(parts[0]) == null) {
+        return null;
+      }
+      SegmentName name = new SegmentName();
+      name.resolution = Resolution.fromLabel(parts[0]);
+      try {
+        name.start = Long.parseLong(parts[1]);
+      } catch (NumberFormatException e) {
+        return null;
+      }
+      return name;
+    }
+  }
+
+  /**
+   * Memory mapped segment file. The record count in the header is updated after each record, so a
+   * record cut short by a crash is never read.
+   */
+  private static class Segment {
+    private final File file;
+    private final long start;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final boolean writable;
+    private int count;
+
+    private Segment(File file, long start, MappedByteBuffer buffer, int capacity, int count,
+        boolean writable) {
+      this.file = file;
+      this.start = start;
+      this.buffer = buffer;
+      this.capacity = capacity;
+      this.count = count;
+      this.writable = writable;
+    }
+
+    static Segment create(File file, long start, int capacity) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+        raf.setLength(size);
+        MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putLong(8, start);
+        buffer.putInt(16, RECORD_SIZE);
+        buffer.putInt(COUNT_OFFSET, 0);
+        return new Segment(file, start, buffer, capacity, 0, true);
+      } finally {
+        // The mapping stays valid once the file is closed
+        raf.close();
+      }
+    }
+
+    static Segment open(File file, boolean writable) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r");
+      try {
+        long size = raf.length();
+        if (size < HEADER_SIZE) {
+          return null;
+        }
+        MappedByteBuffer buffer = raf.getChannel().map(
+            writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, size);
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(16) != RECORD_SIZE) {
+          logger.warn("Ignoring unknown metrics segment " + file);
+          return null;
+        }
+        int capacity = (int) ((size - HEADER_SIZE) / RECORD_SIZE);
+        int count = Math.min(capacity, buffer.getInt(COUNT_OFFSET));
+        return new Segment(file, buffer.getLong(8), buffer, capacity, count, writable);
+      } finally {
+        raf.close();
+      }
+    }
+
+    boolean isFull() {
+      return count >= capacity;
+    }
+
+    /**
+     * @return Records of the segment as told by its header, which may be appended to meanwhile
+     */
+    int readCount() {
+      return Math.min(capacity, buffer.getInt(COUNT_OFFSET));
+    }
+
+    static int position(int record) {
+      return HEADER_SIZE + record * RECORD_SIZE;
+    }
+
+    void append(int id, long timestamp, double min, double max, double sum, int samples) {
+      int position = HEADER_SIZE + count * RECORD_SIZE;
+      buffer.putInt(position, id);
+      buffer.putLong(position + 4, timestamp);
+      buffer.putDouble(position + 12, min);
+      buffer.putDouble(position + 20, max);
+      buffer.putDouble(position + 28, sum);
+      buffer.putInt(position + 36, samples);
+      count++;
+      buffer.putInt(COUNT_OFFSET, count);
+    }
+  }
+}
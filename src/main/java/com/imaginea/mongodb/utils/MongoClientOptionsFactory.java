@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.utils;
+
+import com.imaginea.mongodb.domain.ConnectionOptions;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.ReadPreference;
+
+/**
+ * Builds the options of the mongo clients created at login. Every option is resolved in the order
+ * login override, mViewer.properties / system property and then the driver default.
+ */
+public class MongoClientOptionsFactory {
+
+  public static final String MIN_CONNECTIONS_PER_HOST = "MONGO_MIN_CONNECTIONS_PER_HOST";
+  public static final String CONNECTIONS_PER_HOST = "MONGO_CONNECTIONS_PER_HOST";
+  public static final String WAIT_QUEUE_MULTIPLIER = "MONGO_WAIT_QUEUE_MULTIPLIER";
+  public static final String MAX_WAIT_TIME = "MONGO_MAX_WAIT_TIME";
+  public static final String MAX_CONNECTION_IDLE_TIME = "MONGO_MAX_CONNECTION_IDLE_TIME";
+  public static final String CONNECT_TIMEOUT = "MONGO_CONNECT_TIMEOUT";
+  public static final String SOCKET_TIMEOUT = "MONGO_SOCKET_TIMEOUT";
+  public static final String SERVER_SELECTION_TIMEOUT = "MONGO_SERVER_SELECTION_TIMEOUT";
+  public static final String HEARTBEAT_FREQUENCY = "MONGO_HEARTBEAT_FREQUENCY";
+  public static final String READ_PREFERENCE = "MONGO_READ_PREFERENCE";
+
+  /**
+   * Creates a builder with all the configured options applied.
+   *
+   * @param overrides Options given at login. May be null.
+   * @return Builder of the client options
+   * @throws IllegalArgumentException When an option is out of range or the read preference is
+   *         unknown
+   */
+  public static MongoClientOptions.Builder newBuilder(ConnectionOptions overrides) {
+    if (overrides == null) {
+      overrides = new ConnectionOptions();
+    }
+    MongoClientOptions.Builder builder = MongoClientOptions.builder().description("mViewer");
+
+    Integer value = resolve(overrides.getMinConnectionsPerHost(), MIN_CONNECTIONS_PER_HOST);
+    if (value != null) {
+      builder.minConnectionsPerHost(value);
+    }
+    value = resolve(overrides.getConnectionsPerHost(), CONNECTIONS_PER_HOST);
+    if (value != null) {
+      builder.connectionsPerHost(value);
+    }
+    value = resolve(overrides.getThreadsAllowedToBlockForConnectionMultiplier(),
+        WAIT_QUEUE_MULTIPLIER);
+    if (value != null) {
+      builder.threadsAllowedToBlockForConnectionMultiplier(value);
+    }
+    value = resolve(overrides.getMaxWaitTime(), MAX_WAIT_TIME);
+    if (value != null) {
+      builder.maxWaitTime(value);
+    }
+    value = resolve(overrides.getMaxConnectionIdleTime(), MAX_CONNECTION_IDLE_TIME);
+    if (value != null) {
+      builder.maxConnectionIdleTime(value);
+    }
+    value = resolve(overrides.getConnectTimeout(), CONNECT_TIMEOUT);
+    if (value != null) {
+      builder.connectTimeout(value);
+    }
+    value = resolve(overrides.getSocketTimeout(), SOCKET_TIMEOUT);
+    if (value != null) {
+      builder.socketTimeout(value);
+    }
+    value = resolve(overrides.getServerSelectionTimeout(), SERVER_SELECTION_TIMEOUT);
+    if (value != null) {
+      builder.serverSelectionTimeout(value);
+    }
+    value = resolve(overrides.getHeartbeatFrequency(), HEARTBEAT_FREQUENCY);
+    if (value != null) {
+      builder.heartbeatFrequency(value);
+    }
+    String readPreference = overrides.getReadPreference();
+    if (readPreference == null || readPreference.trim().isEmpty()) {
+      readPreference = ConfigurationUtils.getString(READ_PREFERENCE);
+    }
+    if (readPreference != null) {
+      builder.readPreference(ReadPreference.valueOf(readPreference.trim()));
+    }
+    return builder;
+  }
+
+  /**
+   * Tells whether a server selection timeout is set either at login or in the configuration.
+   */
+  public static boolean hasServerSelectionTimeout(ConnectionOptions overrides) {
+    return resolve(overrides == null ? null : overrides.getServerSelectionTimeout(),
+        SERVER_SELECTION_TIMEOUT) != null;
+  }
+
+  private static Integer resolve(Integer override, String key) {
+    return override != null ? override : ConfigurationUtils.getInteger(key);
+  }
+}
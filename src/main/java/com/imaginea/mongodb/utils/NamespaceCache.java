@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.utils;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONObject;
+
+/**
+ * Collection names of the databases of one connection, kept for a short while so that the checks
+ * for the existence of a collection done before every query need not list the collections each
+ * time. The services that create, rename or drop collections invalidate the database they changed.
+ * Changes made from outside mViewer show up once the entry expires.
+ * <p/>
+ * The statistics of all the collections of a database are kept the same way, for their own,
+ * usually longer, time. Document counts of a collection per filter are kept for a few seconds so
+ * that paging through a listing does not count the matches again for every page.
+ */
+public class NamespaceCache {
+
+  public static final String NAMESPACE_CACHE_TTL = "NAMESPACE_CACHE_TTL";
+  public static final String COLL_STATS_CACHE_TTL = "COLL_STATS_CACHE_TTL";
+  public static final String COUNT_CACHE_TTL = "COUNT_CACHE_TTL";
+
+  private static final int MAX_COUNTS = 1000;
+  private static final char KEY_SEPARATOR = '\u0000';
+
+  private final long ttl;
+  private final long statsTtl;
+  private final long countTtl;
+  private final ConcurrentHashMap<String, Entry> collectionNames =
+      new ConcurrentHashMap<String, Entry>();
+  private final ConcurrentHashMap<String, StatsEntry> collectionStats =
+      new ConcurrentHashMap<String, StatsEntry>();
+  private final ConcurrentHashMap<String, CountEntry> counts =
+      new ConcurrentHashMap<String, CountEntry>();
+
+  public NamespaceCache() {
+    this(ConfigurationUtils.getLong(NAMESPACE_CACHE_TTL, 10 * 1000),
+        ConfigurationUtils.getLong(COLL_STATS_CACHE_TTL, 30 * 1000),
+        ConfigurationUtils.getLong(COUNT_CACHE_TTL, 5 * 1000));
+  }
+
+  public NamespaceCache(long ttl) {
+    this(ttl, ttl, ttl);
+  }
+
+  public NamespaceCache(long ttl, long statsTtl) {
+    this(ttl, statsTtl, ttl);
+  }
+
+  public NamespaceCache(long ttl, long statsTtl, long countTtl) {
+    this.ttl = ttl;
+    this.statsTtl = statsTtl;
+    this.countTtl = countTtl;
+  }
+
+  /**
+   * @param dbName Name of the database
+   * @return Collection names of the database or null if they are not cached or have expired
+   */
+  public Set<String> getCollectionNames(String dbName) {
+    Entry entry = collectionNames.get(dbName);
+    if (entry == null) {
+      return null;
+    }
+    if (entry.expiresAt < System.currentTimeMillis()) {
+      collectionNames.remove(dbName, entry);
+      return null;
+    }
+    return entry.names;
+  }
+
+  public void putCollectionNames(String dbName, Set<String> names) {
+    if (ttl > 0) {
+      collectionNames.put(dbName,
+          new Entry(Collections.unmodifiableSet(names), System.currentTimeMillis() + ttl));
+    }
+  }
+
+  /**
+   * @param dbName Name of the database
+   * @return Statistics of all the collections of the database or null if they are not cached or
+   *         have expired
+   */
+  public JSONObject getCollectionStats(String dbName) {
+    StatsEntry entry = collectionStats.get(dbName);
+    if (entry == null) {
+      return null;
+    }
+    if (entry.expiresAt < System.currentTimeMillis()) {
+      collectionStats.remove(dbName, entry);
+      return null;
+    }
+    return entry.stats;
+  }
+
+  public void putCollectionStats(String dbName, JSONObject stats) {
+    if (statsTtl > 0) {
+      collectionStats.put(dbName, new StatsEntry(stats, System.currentTimeMillis() + statsTtl));
+    }
+  }
+
+  /**
+   * @param dbName Name of the database
+   * @param collectionName Name of the collection
+   * @param filter Canonical text of the filter counted
+   * @return Number of documents matching the filter or null if it is not cached or has expired
+   */
+  public Long getCount(String dbName, String collectionName, String filter) {
+    String key = countKey(dbName, collectionName, filter);
+    CountEntry entry = counts.get(key);
+    if (entry == null) {
+      return null;
+    }
+    if (entry.expiresAt < System.currentTimeMillis()) {
+      counts.remove(key, entry);
+      return null;
+    }
+    return entry.count;
+  }
+
+  public void putCount(String dbName, String collectionName, String filter, long count) {
+    if (countTtl <= 0) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    if (counts.size() >= MAX_COUNTS) {
+      for (Map.Entry<String, CountEntry> entry : counts.entrySet()) {
+        if (entry.getValue().expiresAt < now) {
+          counts.remove(entry.getKey(), entry.getValue());
+        }
+      }
+      if (counts.size() >= MAX_COUNTS) {
+        counts.clear();
+      }
+    }
+    counts.put(countKey(dbName, collectionName, filter), new CountEntry(count, now + countTtl));
+  }
+
+  /**
+   * Forgets the counts of a collection whose documents were added or removed.
+   */
+  public void invalidateCounts(String dbName, String collectionName) {
+    removeCounts(dbName + KEY_SEPARATOR + collectionName + KEY_SEPARATOR);
+  }
+
+  public void invalidate(String dbName) {
+    collectionNames.remove(dbName);
+    collectionStats.remove(dbName);
+    removeCounts(dbName + KEY_SEPARATOR);
+  }
+
+  public void clear() {
+    collectionNames.clear();
+    collectionStats.clear();
+    counts.clear();
+  }
+
+  private void removeCounts(String prefix) {
+    Iterator<String> keys = counts.keySet().iterator();
+    while (keys.hasNext()) {
+      if (keys.next().startsWith(prefix)) {
+        keys.remove();
+      }
+    }
+  }
+
+  private static String countKey(String dbName, String collectionName, String filter) {
+    return dbName + KEY_SEPARATOR + collectionName + KEY_SEPARATOR + filter;
+  }
+
+  private static class Entry {
+    private final Set<String> names;
+    private final long expiresAt;
+
+    Entry(Set<String> names, long expiresAt) {
+      this.names = names;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  private static class CountEntry {
+    private final long count;
+    private final long expiresAt;
+
+    CountEntry(long count, long expiresAt) {
+      this.count = count;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  private static class StatsEntry {
+    private final JSONObject stats;
+    private final long expiresAt;
+
+    StatsEntry(JSONObject stats, long expiresAt) {
+      this.stats = stats;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
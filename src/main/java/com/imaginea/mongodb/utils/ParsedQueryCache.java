@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.bson.Document;
+
+/**
+ * Bounded least recently used cache of parsed query, sort and projection documents. The browser
+ * pages through a collection with the same query text over and over, so parsing it once per
+ * connection is enough.
+ * <p/>
+ * The documents handed out are shared and must only be passed on to the driver, never modified.
+ */
+public class ParsedQueryCache {
+
+  public static final String QUERY_CACHE_SIZE = "QUERY_CACHE_SIZE";
+
+  /**
+   * Longer texts are parsed every time rather than held in memory
+   */
+  private static final int MAX_CACHED_QUERY_LENGTH = 4096;
+
+  private final Map<String, Document> parsedQueries;
+
+  public ParsedQueryCache() {
+    this(ConfigurationUtils.getInt(QUERY_CACHE_SIZE, 256));
+  }
+
+  public ParsedQueryCache(final int maxEntries) {
+    parsedQueries = new LinkedHashMap<String, Document>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Document> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Parses a JSON query, reusing the result of an earlier parse of the same text.
+   *
+   * @param json Query text
+   * @return Parsed document. Must not be modified.
+   */
+  public Document parse(String json) {
+    if (json == null || json.length() > MAX_CACHED_QUERY_LENGTH) {
+      return Document.parse(json);
+    }
+    synchronized (parsedQueries) {
+      Document parsed = parsedQueries.get(json);
+      if (parsed != null) {
+        return parsed;
+      }
+    }
+    Document parsed = Document.parse(json);
+    synchronized (parsedQueries) {
+      parsedQueries.put(json, parsed);
+    }
+    return parsed;
+  }
+
+  public void clear() {
+    synchronized (parsedQueries) {
+      parsedQueries.clear();
+    }
+  }
+}
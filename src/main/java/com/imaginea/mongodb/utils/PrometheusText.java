@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.utils;
+
+/**
+ * Writes metrics in the Prometheus text exposition format (version 0.0.4).
+ */
+public class PrometheusText {
+
+  public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+  private final StringBuilder text = new StringBuilder();
+
+  /**
+   * Starts a metric family. Every family is to be started once, before its samples.
+   *
+   * @param name Name of the metric
+   * @param type counter, gauge or summary
+   * @param help One line description
+   */
+  public PrometheusText family(String name, String type, String help) {
+    text.append("# HELP ").append(name).append(' ')
+        .append(help.replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+    text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    return this;
+  }
+
+  /**
+   * Writes a sample.
+   *
+   * @param name Name of the metric
+   * @param value Value of the sample
+   * @param labels Label names and values, alternating
+   */
+  public PrometheusText sample(String name, double value, String... labels) {
+    text.append(name);
+    if (labels.length > 0) {
+      text.append('{');
+      for (int i = 0; i + 1 < labels.length; i += 2) {
+        if (i > 0) {
+          text.append(',');
+        }
+        text.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+      }
+      text.append('}');
+    }
+    text.append(' ');
+    if (Double.isNaN(value)) {
+      text.append("NaN");
+    } else if (Double.isInfinite(value)) {
+      text.append(value > 0 ? "+Inf" : "-Inf");
+    } else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+      text.append((long) value);
+    } else {
+      text.append(value);
+    }
+    text.append('\n');
+    return this;
+  }
+
+  /**
+   * Writes the 50th, 90th and 99th percentiles, the sum and the count of a histogram as the
+   * samples of a summary, in seconds.
+   *
+   * @param name Name of the summary family
+   * @param histogram Recorded durations
+   * @param labels Label names and values, alternating
+   */
+  public PrometheusText summary(String name, LatencyHistogram histogram, String... labels) {
+    String[] quantileLabels = new String[labels.length + 2];
+    System.arraycopy(labels, 0, quantileLabels, 0, labels.length);
+    quantileLabels[labels.length] = "quantile";
+    for (double quantile : QUANTILES) {
+      quantileLabels[labels.length + 1] = String.valueOf(quantile);
+      sample(name, histogram.getPercentileMicros(quantile * 100) / 1e6, quantileLabels);
+    }
+    sample(name + "_sum", histogram.getSumMicros() / 1e6, labels);
+    sample(name + "_count", histogram.getCount(), labels);
+    return this;
+  }
+
+  @Override
+  public String toString() {
+    return text.toString();
+  }
+
+  private static String escape(String value) {
+    if (value == null) {
+      return "";
+    }
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+}
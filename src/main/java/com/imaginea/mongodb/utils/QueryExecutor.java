@@ -15,6 +15,7 @@ import com.imaginea.mongodb.exceptions.DatabaseException;
 import com.imaginea.mongodb.exceptions.ErrorCodes;
 import com.imaginea.mongodb.exceptions.InvalidMongoCommandException;
 import com.mongodb.MapReduceCommand;
+import com.mongodb.ReadPreference;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
@@ -34,20 +35,38 @@ public class QueryExecutor {
     public static JSONObject executeQuery(MongoDatabase db, MongoCollection<Document> mongoCollection,
                                           String collectionName, String command, String queryStr, String fields, String sortByStr,
                                           int limit, int skip, boolean allKeys) throws JSONException, ApplicationException {
+        return executeQuery(db, mongoCollection, collectionName, command, queryStr, fields, sortByStr,
+                limit, skip, allKeys, ReadPreference.primary(), null);
+    }
+
+    /**
+     * Runs a shell like command on a collection. Commands that only read are sent as per the given
+     * read preference while the ones that write, or may write as aggregate with an $out or $merge
+     * stage and mapReduce, always go to the primary. Query and sort texts are parsed through the query cache when one is
+     * given.
+     */
+    public static JSONObject executeQuery(MongoDatabase db, MongoCollection<Document> mongoCollection,
+                                          String collectionName, String command, String queryStr, String fields, String sortByStr,
+                                          int limit, int skip, boolean allKeys, ReadPreference readPreference,
+                                          ParsedQueryCache queryCache) throws JSONException, ApplicationException {
+        MongoDatabase readDb = db.withReadPreference(readPreference);
+        MongoCollection<Document> readCollection = mongoCollection.withReadPreference(readPreference);
         StringTokenizer strtok = new StringTokenizer(fields, ",");
         Document keysObj = new Document("_id", 1);
         while (strtok.hasMoreElements()) {
             keysObj.put(strtok.nextToken(), 1);
         }
-        Document sortObj = Document.parse(sortByStr);
+        Document sortObj = parse(queryCache, sortByStr);
         if (command.equals("aggregate")) {
-            return executeAggregate(mongoCollection, queryStr);
+            List<Document> pipeline = parsePipeline(queryStr);
+            return executeAggregate(writesOutput(pipeline) ? mongoCollection : readCollection,
+                    pipeline);
         }
         if (command.equals("count")) {
-            return executeCount(mongoCollection, queryStr);
+            return executeCount(readCollection, parse(queryCache, queryStr));
         }
         if (command.equals("distinct")) {
-            return executeDistinct(mongoCollection, queryStr);
+            return executeDistinct(readCollection, queryStr);
         }
         if (command.equals("drop")) {
             return executeDrop(mongoCollection);
@@ -62,19 +81,20 @@ public class QueryExecutor {
             return executeEnsureIndex(mongoCollection, queryStr);
         }
         if (command.equals("find")) {
-            return executeFind(mongoCollection, queryStr, keysObj, sortObj, limit, skip, allKeys);
+            return executeFind(readCollection, parse(queryCache, queryStr), keysObj, sortObj, limit, skip,
+                    allKeys);
         }
         if (command.equals("findOne")) {
-            return executeFindOne(mongoCollection, queryStr);
+            return executeFindOne(readCollection, queryStr);
         }
         if (command.equals("findAndModify")) {
             return executeFindAndModify(mongoCollection, queryStr, keysObj);
         }
         if (command.equals("group")) {
-            return executeGroup(mongoCollection, queryStr);
+            return executeGroup(readCollection, queryStr);
         }
         if (command.equals("getIndexes")) {
-            return executeGetIndexes(mongoCollection);
+            return executeGetIndexes(readCollection);
         }
         if (command.equals("insert")) {
             return executeInsert(mongoCollection, queryStr);
@@ -86,13 +106,13 @@ public class QueryExecutor {
             return executeRemove(mongoCollection, queryStr);
         }
         if (command.equals("stats")) {
-            return executeStats(db, collectionName);
+            return executeStats(readDb, collectionName);
         }
         if (command.equals("storageSize")) {
-            return executeStorageSize(db, collectionName);
+            return executeStorageSize(readDb, collectionName);
         }
         if (command.equals("totalIndexSize")) {
-            return executeTotalIndexSize(db, collectionName);
+            return executeTotalIndexSize(readDb, collectionName);
         }
         if (command.equals("update")) {
             return executeUpdate(mongoCollection, queryStr);
@@ -101,14 +121,48 @@ public class QueryExecutor {
                 "Command is not yet supported");
     }
 
-    private static JSONObject executeAggregate(MongoCollection<Document> mongoCollection,
-                                               String queryStr) throws DatabaseException, JSONException {
-        Document queryObj = Document.parse(queryStr);
-        if (queryObj instanceof List) {
-            List<Document> listOfAggregates = (List) queryObj;
-            int size = listOfAggregates.size();
+    /**
+     * Parses the stages of an aggregation pipeline given as a JSON array.
+     *
+     * @return Stages of the pipeline, null when the text is not an array of documents
+     */
+    @SuppressWarnings("unchecked")
+    static List<Document> parsePipeline(String queryStr) {
+        Object pipeline;
+        try {
+            pipeline = Document.parse("{\"pipeline\": " + queryStr + "}").get("pipeline");
+        } catch (RuntimeException e) {
+            return null;
+        }
+        if (!(pipeline instanceof List)) {
+            return null;
+        }
+        for (Object stage : (List) pipeline) {
+            if (!(stage instanceof Document)) {
+                return null;
+            }
+        }
+        return (List<Document>) pipeline;
+    }
+
+    /**
+     * Tells whether a pipeline writes its results to a collection, through an $out or $merge stage.
+     */
+    static boolean writesOutput(List<Document> pipeline) {
+        if (pipeline != null) {
+            for (Document stage : pipeline) {
+                if (stage.containsKey("$out") || stage.containsKey("$merge")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
 
-            MongoCursor<Document> resultIterator = mongoCollection.aggregate(listOfAggregates).iterator();
+    private static JSONObject executeAggregate(MongoCollection<Document> mongoCollection,
+                                               List<Document> pipeline) throws DatabaseException, JSONException {
+        if (pipeline != null) {
+            MongoCursor<Document> resultIterator = mongoCollection.aggregate(pipeline).iterator();
 
             // AggregationOutput aggregationOutput =
             // mongoCollection.aggregate(listOfAggregates.get(0),
@@ -116,12 +170,13 @@ public class QueryExecutor {
             // 1]));
             // Iterator<Document> resultIterator =
             // aggregationOutput.results().iterator();
-            List<Document> results = null;
-            if (resultIterator.hasNext()) {
-                results = new ArrayList<Document>();
+            List<Document> results = new ArrayList<Document>();
+            try {
                 while (resultIterator.hasNext()) {
                     results.add(resultIterator.next());
                 }
+            } finally {
+                resultIterator.close();
             }
             return ApplicationUtils.constructResponse(false, results.size(), results);
         }
@@ -129,10 +184,27 @@ public class QueryExecutor {
                 "Aggregate command is ill formed");
     }
 
-    private static JSONObject executeCount(MongoCollection<Document> mongoCollection, String queryStr)
+    private static Document parse(ParsedQueryCache queryCache, String json) {
+        long begin = RequestTimings.begin();
+        try {
+            return queryCache == null ? Document.parse(json) : queryCache.parse(json);
+        } finally {
+            RequestTimings.end(RequestTimings.PARSE, begin);
+        }
+    }
+
+    private static long count(MongoCollection<Document> mongoCollection, Document queryObj) {
+        long begin = RequestTimings.begin();
+        try {
+            return mongoCollection.count(queryObj);
+        } finally {
+            RequestTimings.end(RequestTimings.COUNT, begin);
+        }
+    }
+
+    private static JSONObject executeCount(MongoCollection<Document> mongoCollection, Document queryObj)
             throws JSONException {
-        Document queryObj = Document.parse(queryStr);
-        long count = mongoCollection.count(queryObj);
+        long count = count(mongoCollection, queryObj);
         return ApplicationUtils.constructResponse(false, new Document("count", count));
     }
 
@@ -213,10 +285,9 @@ public class QueryExecutor {
 
     }
 
-    private static JSONObject executeFind(MongoCollection<Document> mongoCollection, String queryStr,
+    private static JSONObject executeFind(MongoCollection<Document> mongoCollection, Document queryObj,
                                           Document keysObj, Document sortObj, int limit, int skip, boolean allKeys)
             throws JSONException {
-        Document queryObj = Document.parse(queryStr);
         FindIterable<Document> cursor = null;
         if (allKeys) {
             cursor = mongoCollection.find(queryObj);
@@ -225,6 +296,7 @@ public class QueryExecutor {
             cursor = mongoCollection.find(queryObj).projection(keysObj);
         }
         cursor = cursor.sort(sortObj).skip(skip).limit(limit);
+        long begin = RequestTimings.begin();
         MongoCursor<Document> iterator = cursor.iterator();
         ArrayList<Document> dataList = new ArrayList<Document>();
         if (iterator.hasNext()) {
@@ -238,9 +310,9 @@ public class QueryExecutor {
                 dataList.add(document);
             }
         }
+        RequestTimings.end(RequestTimings.MONGO, begin);
 
-
-        return ApplicationUtils.constructResponse(true, mongoCollection.count(queryObj), dataList);
+        return ApplicationUtils.constructResponse(true, count(mongoCollection, queryObj), dataList);
     }
 
     private static JSONObject executeFindAndModify(MongoCollection<Document> mongoCollection,
@@ -453,21 +525,24 @@ public class QueryExecutor {
     private static JSONObject executeStats(MongoDatabase db, String collectionName)
             throws JSONException {
 
-        Document stats = db.runCommand(new Document("collStats", collectionName));
+        Document stats =
+                db.runCommand(new Document("collStats", collectionName), db.getReadPreference());
         return ApplicationUtils.constructResponse(false, stats);
     }
 
     private static JSONObject executeStorageSize(MongoDatabase db, String collectionName)
             throws JSONException {
         Integer storageSize =
-                (Integer) db.runCommand(new Document("collStats", collectionName)).get("storageSize");
+                (Integer) db.runCommand(new Document("collStats", collectionName), db.getReadPreference())
+                        .get("storageSize");
         return ApplicationUtils.constructResponse(false, new Document("storageSize", storageSize));
     }
 
     private static JSONObject executeTotalIndexSize(MongoDatabase db, String collectionName)
             throws JSONException {
         Integer totalIndexSize =
-                (Integer) db.runCommand(new Document("collStats", collectionName)).get("totalIndexSize");
+                (Integer) db.runCommand(new Document("collStats", collectionName), db.getReadPreference())
+                        .get("totalIndexSize");
         return ApplicationUtils.constructResponse(false,
                 new Document("totalIndexSize", totalIndexSize));
     }
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.Document;
+
+/**
+ * Reduces the query of a <system.profile> entry to its shape: the same document with every literal
+ * value replaced by <?>. Queries differing only in their values, like <{name: "a"}> and
+ * <{name: "b"}>, share a shape and are aggregated together. Lists of values (<$in: [1, 2, 3]>)
+ * become a single <?> so that their length does not make new shapes, while lists of documents
+ * (<$or>, aggregation pipelines) keep one shape per element.
+ */
+public class QueryShape {
+
+  public static final String PLACEHOLDER = "?";
+
+  /**
+   * Options which do not change what a query looks for.
+   */
+  private static final Set<String> IGNORED = new HashSet<String>(Arrays.asList("lsid", "$db",
+      "$clusterTime", "$readPreference", "$queryOptions", "batchSize", "limit", "skip", "comment",
+      "txnNumber", "cursor", "maxTimeMS", "readConcern", "writeConcern", "singleBatch",
+      "ntoreturn", "ntoskip", "shardVersion", "allowDiskUse", "$comment"));
+
+  /**
+   * Returns the shape of the query of a profile entry. Newer servers log the whole command under
+   * <command>, older ones the query under <query> and the update under <updateobj>. A <getmore>
+   * takes the shape of the command which opened its cursor when it is logged.
+   *
+   * @param profileEntry Document of <system.profile>
+   * @return Shape of the query
+   */
+  public static Document shapeOf(Document profileEntry) {
+    Object source = profileEntry.get("originatingCommand");
+    if (!(source instanceof Document)) {
+      source = profileEntry.get("command");
+    }
+    if (!(source instanceof Document)) {
+      source = profileEntry.get("query");
+    }
+    Document shape = new Document();
+    if (source instanceof Document) {
+      boolean first = true;
+      for (Map.Entry<String, Object> entry : ((Document) source).entrySet()) {
+        if (IGNORED.contains(entry.getKey())) {
+          continue;
+        }
+        // The command name holds the collection, which is no literal
+        shape.put(entry.getKey(), first && entry.getValue() instanceof String ? entry.getValue()
+            : normalize(entry.getValue()));
+        first = false;
+      }
+    }
+    Object update = profileEntry.get("updateobj");
+    if (update instanceof Document) {
+      shape.put("updateobj", normalize(update));
+    }
+    return shape;
+  }
+
+  /**
+   * @return Value with its literals replaced by the placeholder
+   */
+  public static Object normalize(Object value) {
+    if (value instanceof Document) {
+      Document normalized = new Document();
+      for (Map.Entry<String, Object> entry : ((Document) value).entrySet()) {
+        normalized.put(entry.getKey(), normalize(entry.getValue()));
+      }
+      return normalized;
+    }
+    if (value instanceof List) {
+      List<?> list = (List<?>) value;
+      List<Object> normalized = new ArrayList<Object>();
+      for (Object element : list) {
+        if (!(element instanceof Document) && !(element instanceof List)) {
+          return PLACEHOLDER;
+        }
+        normalized.add(normalize(element));
+      }
+      return normalized.isEmpty() ? PLACEHOLDER : normalized;
+    }
+    return PLACEHOLDER;
+  }
+
+  /**
+   * @return Short hexadecimal id of a shape, stable across restarts
+   */
+  public static String fingerprint(String ns, String op, Document shape) {
+    String text = ns + "|" + op + "|" + shape.toJson();
+    try {
+      byte[] digest =
+          MessageDigest.getInstance("MD5").digest(text.getBytes(StandardCharsets.UTF_8));
+      StringBuilder hex = new StringBuilder();
+      for (int i = 0; i < 8; i++) {
+        hex.append(String.format("%02x", digest[i] & 0xff));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      // Every JVM ships MD5
+      return Integer.toHexString(text.hashCode());
+    }
+  }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency and outcome of the requests served by mViewer itself and of the commands it sends to
+ * mongo, kept as one {@link LatencyHistogram} per endpoint and per command name.
+ * <p/>
+ * The endpoint of the request being served is remembered on its thread, so that errors reported
+ * deep down are counted against it.
+ */
+public class RequestMetrics {
+
+  public static final String REQUEST_METRICS_ENABLED = "REQUEST_METRICS_ENABLED";
+
+  /** Distinct command names tracked before the others are counted together. */
+  private static final int MAX_COMMANDS = 200;
+  private static final String OTHER_COMMANDS = "other";
+
+  private static final RequestMetrics INSTANCE =
+      new RequestMetrics(ConfigurationUtils.getBoolean(REQUEST_METRICS_ENABLED, true));
+
+  private final boolean enabled;
+  private final ThreadLocal<String> currentEndpoint = new ThreadLocal<String>();
+  private final ConcurrentHashMap<String, Endpoint> endpoints =
+      new ConcurrentHashMap<String, Endpoint>();
+  private final ConcurrentHashMap<String, Command> commands =
+      new ConcurrentHashMap<String, Command>();
+
+  RequestMetrics(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public static RequestMetrics getInstance() {
+    return INSTANCE;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Marks the start of a request on the current thread.
+   *
+   * @param endpoint Resource class and method serving the request
+   */
+  public void begin(String endpoint) {
+    if (enabled) {
+      currentEndpoint.set(endpoint);
+    }
+  }
+
+  /**
+   * Records a request served on the current thread.
+   *
+   * @param endpoint Resource class and method which served the request
+   * @param nanos Time taken
+   * @param status HTTP status of the response
+   */
+  public void end(String endpoint, long nanos, int status) {
+    if (!enabled) {
+      return;
+    }
+    currentEndpoint.remove();
+    Endpoint metrics = getEndpoint(endpoint);
+    metrics.latency.record(nanos);
+    increment(metrics.statuses, String.valueOf(status));
+  }
+
+  /**
+   * Counts an error answered to the request of the current thread. Errors outside of a request
+   * are not counted.
+   *
+   * @param errorCode One of the {@link com.imaginea.mongodb.exceptions.ErrorCodes}
+   */
+  public void recordError(String errorCode) {
+    String endpoint = enabled ? currentEndpoint.get() : null;
+    if (endpoint != null) {
+      increment(getEndpoint(endpoint).errors, String.valueOf(errorCode));
+    }
+  }
+
+  /**
+   * Records a command sent to mongo.
+   *
+   * @param name Name of the command
+   * @param nanos Time until the reply
+   * @param failed Whether the command failed
+   */
+  public void recordCommand(String name, long nanos, boolean failed) {
+    if (!enabled) {
+      return;
+    }
+    Command command = commands.get(name);
+    if (command == null) {
+      String key = commands.size() < MAX_COMMANDS ? name : OTHER_COMMANDS;
+      command = commands.get(key);
+      if (command == null) {
+        command = new Command();
+        Command existing = commands.putIfAbsent(key, command);
+        if (existing != null) {
+          command = existing;
+        }
+      }
+    }
+    command.latency.record(nanos);
+    if (failed) {
+      command.failures.incrementAndGet();
+    }
+  }
+
+  /**
+   * Writes the request and command metrics.
+   */
+  public void writeTo(PrometheusText text) {
+    text.family("mviewer_http_request_duration_seconds", "summary",
+        "Time taken by the REST requests per endpoint");
+    for (Map.Entry<String, Endpoint> entry : endpoints.entrySet()) {
+      text.summary("mviewer_http_request_duration_seconds", entry.getValue().latency, "endpoint",
+          entry.getKey());
+    }
+    text.family("mviewer_http_request_duration_max_seconds", "gauge",
+        "Longest REST request per endpoint");
+    for (Map.Entry<String, Endpoint> entry : endpoints.entrySet()) {
+      text.sample("mviewer_http_request_duration_max_seconds",
+          entry.getValue().latency.getMaxMicros() / 1e6, "endpoint", entry.getKey());
+    }
+    text.family("mviewer_http_responses_total", "counter",
+        "REST responses per endpoint and HTTP status");
+    for (Map.Entry<String, Endpoint> entry : endpoints.entrySet()) {
+      for (Map.Entry<String, AtomicLong> status : entry.getValue().statuses.entrySet()) {
+        text.sample("mviewer_http_responses_total", status.getValue().get(), "endpoint",
+            entry.getKey(), "status", status.getKey());
+      }
+    }
+    text.family("mviewer_http_errors_total", "counter",
+        "Error responses per endpoint and mViewer error code");
+    for (Map.Entry<String, Endpoint> entry : endpoints.entrySet()) {
+      for (Map.Entry<String, AtomicLong> error : entry.getValue().errors.entrySet()) {
+        text.sample("mviewer_http_errors_total", error.getValue().get(), "endpoint",
+            entry.getKey(), "code", error.getKey());
+      }
+    }
+    text.family("mviewer_mongo_command_duration_seconds", "summary",
+        "Time until mongo replied per command name");
+    for (Map.Entry<String, Command> entry : commands.entrySet()) {
+      text.summary("mviewer_mongo_command_duration_seconds", entry.getValue().latency, "command",
+          entry.getKey());
+    }
+    text.family("mviewer_mongo_command_failures_total", "counter",
+        "Failed mongo commands per command name");
+    for (Map.Entry<String, Command> entry : commands.entrySet()) {
+      text.sample("mviewer_mongo_command_failures_total", entry.getValue().failures.get(),
+          "command", entry.getKey());
+    }
+  }
+
+  private Endpoint getEndpoint(String name) {
+    Endpoint endpoint = endpoints.get(name);
+    if (endpoint == null) {
+      endpoint = new Endpoint();
+      Endpoint existing = endpoints.putIfAbsent(name, endpoint);
+      if (existing != null) {
+        endpoint = existing;
+      }
+    }
+    return endpoint;
+  }
+
+  private static void increment(ConcurrentHashMap<String, AtomicLong> counters, String key) {
+    AtomicLong counter = counters.get(key);
+    if (counter == null) {
+      counter = new AtomicLong();
+      AtomicLong existing = counters.putIfAbsent(key, counter);
+      if (existing != null) {
+        counter = existing;
+      }
+    }
+    counter.incrementAndGet();
+  }
+
+  private static class Endpoint {
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final ConcurrentHashMap<String, AtomicLong> statuses =
+        new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentHashMap<String, AtomicLong> errors =
+        new ConcurrentHashMap<String, AtomicLong>();
+  }
+
+  private static class Command {
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong failures = new AtomicLong();
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.utils;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Time spent by the request of the current thread in each of its phases, like parsing the query,
+ * waiting for mongo or serializing the result. Phases are timed with {@link #begin()} and
+ * {@link #end(String, long)}, which do nothing at all unless the request is being timed, and a
+ * phase entered many times adds up.
+ * <p/>
+ * The timings are sent back in the <Server-Timing> header of the response and, when asked for,
+ * in a debug block of the JSON response.
+ */
+public class RequestTimings {
+
+  public static final String SERVER_TIMING_ENABLED = "SERVER_TIMING_ENABLED";
+
+  public static final String PARSE = "parse";
+  public static final String QUEUE = "queue";
+  public static final String MONGO = "mongo";
+  public static final String COUNT = "count";
+  public static final String SERIALIZE = "serialize";
+
+  private static final boolean ENABLED = ConfigurationUtils.getBoolean(SERVER_TIMING_ENABLED, true);
+  private static final int MAX_PHASES = 8;
+
+  private static final ThreadLocal<RequestTimings> CURRENT = new ThreadLocal<RequestTimings>();
+
+  private final long start = System.nanoTime();
+  private final boolean debug;
+  private final String[] phases = new String[MAX_PHASES];
+  private final long[] nanos = new long[MAX_PHASES];
+  private int size;
+
+  private RequestTimings(boolean debug) {
+    this.debug = debug;
+  }
+
+  public static boolean isEnabled() {
+    return ENABLED;
+  }
+
+  /**
+   * Starts timing the request of the current thread.
+   *
+   * @param debug Whether the timings go in the JSON response too
+   */
+  public static void start(boolean debug) {
+    if (ENABLED) {
+      CURRENT.set(new RequestTimings(debug));
+    }
+  }
+
+  /**
+   * @return Timings of the request of the current thread, null when it is not timed
+   */
+  public static RequestTimings current() {
+    return ENABLED ? CURRENT.get() : null;
+  }
+
+  /**
+   * Stops timing the request of the current thread.
+   */
+  public static void stop() {
+    if (ENABLED) {
+      CURRENT.remove();
+    }
+  }
+
+  /**
+   * @return Start of a phase, to be given to {@link #end(String, long)}. 0 when the request is
+   *         not timed.
+   */
+  public static long begin() {
+    return current() == null ? 0 : System.nanoTime();
+  }
+
+  /**
+   * Adds the time since the start of a phase to it.
+   *
+   * @param phase Name of the phase
+   * @param begin What {@link #begin()} returned at the start of the phase
+   */
+  public static void end(String phase, long begin) {
+    if (begin == 0) {
+      return;
+    }
+    RequestTimings timings = current();
+    if (timings != null) {
+      timings.add(phase, System.nanoTime() - begin);
+    }
+  }
+
+  public boolean isDebug() {
+    return debug;
+  }
+
+  /**
+   * @return The phases and the total in the <Server-Timing> header syntax, in milliseconds
+   */
+  public String toServerTiming() {
+    StringBuilder header = new StringBuilder();
+    for (int i = 0; i < size; i++) {
+      header.append(phases[i]).append(";dur=").append(millis(nanos[i])).append(", ");
+    }
+    return header.append("total;dur=").append(millis(System.nanoTime() - start)).toString();
+  }
+
+  /**
+   * @return The phases and the total so far in milliseconds
+   */
+  public JSONObject toJSON() throws JSONException {
+    JSONObject json = new JSONObject();
+    for (int i = 0; i < size; i++) {
+      json.put(phases[i], millis(nanos[i]));
+    }
+    json.put("total", millis(System.nanoTime() - start));
+    return json;
+  }
+
+  private void add(String phase, long duration) {
+    for (int i = 0; i < size; i++) {
+      if (phases[i].equals(phase)) {
+        nanos[i] += duration;
+        return;
+      }
+    }
+    if (size < MAX_PHASES) {
+      phases[size] = phase;
+      nanos[size++] = duration;
+    }
+  }
+
+  private static double millis(long nanos) {
+    return Math.round(nanos / 1000.0) / 1000.0;
+  }
+}
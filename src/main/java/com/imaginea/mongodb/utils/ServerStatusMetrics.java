@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.utils;
+
+import java.util.Locale;
+import java.util.Map;
+
+import org.bson.Document;
+
+/**
+ * Turns a <serverStatus> reply into flat named series, one per numeric field, named by the dotted
+ * path of the field (for instance <connections.current> or <wiredTiger.cache.bytes read into
+ * cache>), and tells counters from gauges.
+ * <p/>
+ * Counters only ever grow while the server runs (operations, bytes, asserts...) and are charted as
+ * per second rates. Gauges are a level at the time of sampling (connections open, memory, cache
+ * usage, queues...) and are charted as read.
+ */
+public class ServerStatusMetrics {
+
+  /**
+   * Sections and fields that are identities, clocks or replication state rather than metrics.
+   */
+  private static final String[] EXCLUDED = {"host", "version", "process", "pid", "uptime",
+      "uptimeMillis", "uptimeEstimate", "localTime", "ok", "operationTime", "$clusterTime",
+      "$gleStats", "repl", "security", "storageEngine", "sharding", "transportSecurity"};
+
+  private static final String[] GAUGE_PREFIXES = {"mem.", "globalLock.currentQueue.",
+      "globalLock.activeClients.", "wiredTiger.concurrentTransactions.", "tcmalloc.",
+      "metrics.cursor.open.", "logicalSessionRecordCache.activeSessionsCount"};
+
+  /**
+   * Words which, found in the last part of a path, mark a level rather than a running total.
+   */
+  private static final String[] GAUGE_WORDS = {"current", "available", "active", "open",
+      "maximum", "configured", "in the cache", "usage", "avg", "resident", "virtual", "mapped"};
+
+  /**
+   * Adds every numeric field of the document to the map, keyed by its dotted path. Booleans,
+   * dates, strings and arrays are skipped.
+   *
+   * @param serverStatus Reply of <serverStatus>
+   * @param series Map to add the series to
+   */
+  public static void flatten(Document serverStatus, Map<String, Long> series) {
+    for (Map.Entry<String, Object> entry : serverStatus.entrySet()) {
+      if (!isExcluded(entry.getKey())) {
+        flatten(entry.getKey(), entry.getValue(), series);
+      }
+    }
+  }
+
+  private static void flatten(String path, Object value, Map<String, Long> series) {
+    if (value instanceof Document) {
+      for (Map.Entry<String, Object> entry : ((Document) value).entrySet()) {
+        flatten(path + "." + entry.getKey(), entry.getValue(), series);
+      }
+    } else if (value instanceof Number) {
+      series.put(path, ((Number) value).longValue());
+    }
+  }
+
+  private static boolean isExcluded(String key) {
+    for (String excluded : EXCLUDED) {
+      if (excluded.equals(key)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @param path Dotted path of a series
+   * @return true when the series is a counter, false when it is a gauge
+   */
+  public static boolean isCounter(String path) {
+    for (String prefix : GAUGE_PREFIXES) {
+      if (path.startsWith(prefix)) {
+        return false;
+      }
+    }
+    if (path.startsWith("connections.")) {
+      return path.equals("connections.totalCreated");
+    }
+    String leaf = path.substring(path.lastIndexOf('.') + 1).toLowerCase(Locale.ENGLISH);
+    for (String word : GAUGE_WORDS) {
+      if (leaf.contains(word)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Converts the increase of a counter over an interval into a per second rate, in thousandths so
+   * that slow counters do not round down to 0.
+   *
+   * @param delta Increase of the counter
+   * @param elapsedMillis Length of the interval
+   * @return Rate per second multiplied by 1000, 0 for an empty interval and Long.MAX_VALUE when
+   *         the rate does not fit
+   */
+  public static long ratePerSecondMilli(long delta, long elapsedMillis) {
+    if (elapsedMillis <= 0 || delta <= 0) {
+      return 0;
+    }
+    // Whole and remaining part per millisecond, scaled apart so that nothing overflows
+    long quotient = delta / elapsedMillis;
+    long remainder = delta % elapsedMillis;
+    if (quotient > Long.MAX_VALUE / 1000000 - 1) {
+      return Long.MAX_VALUE;
+    }
+    return quotient * 1000000 + (remainder * 1000000 + elapsedMillis / 2) / elapsedMillis;
+  }
+}
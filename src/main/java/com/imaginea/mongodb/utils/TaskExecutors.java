@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.utils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Thread pools shared by the background tasks of mViewer. Threads are daemons so that they never
+ * keep the server from shutting down.
+ */
+public class TaskExecutors {
+
+  public static final String SCHEDULER_THREADS = "SCHEDULER_THREADS";
+  public static final String FAN_OUT_THREADS = "FAN_OUT_THREADS";
+
+  private static final ScheduledExecutorService scheduler =
+      Executors.newScheduledThreadPool(Math.max(1, ConfigurationUtils.getInt(SCHEDULER_THREADS, 2)),
+          daemonThreadFactory("mViewer-scheduler"));
+
+  private static final int fanOutThreads =
+      Math.max(1, ConfigurationUtils.getInt(FAN_OUT_THREADS, 8));
+
+  private static final ExecutorService fanOut =
+      Executors.newFixedThreadPool(fanOutThreads, daemonThreadFactory("mViewer-fan-out"));
+
+  private static final ExecutorService background =
+      Executors.newCachedThreadPool(daemonThreadFactory("mViewer-background"));
+
+  /**
+   * @return Scheduler running the periodic samplers and pollers
+   */
+  public static ScheduledExecutorService getScheduler() {
+    return scheduler;
+  }
+
+  /**
+   * @return Bounded pool running the commands a request sends to many collections or servers at
+   *         once
+   */
+  public static ExecutorService getFanOutExecutor() {
+    return fanOut;
+  }
+
+  /**
+   * @return Pool for background work that mostly waits on the fan-out pool, like refreshing a
+   *         cached overview. It keeps such waits off the scheduler, whose few threads run the
+   *         samplers, and off the fan-out pool, whose tasks they wait for. Callers make sure only
+   *         a few such tasks run at once.
+   */
+  public static ExecutorService getBackgroundExecutor() {
+    return background;
+  }
+
+  /**
+   * @return Tasks a single bulk request runs at once unless configured otherwise: a quarter of the
+   *         fan-out pool, so that a request with thousands of tasks leaves most of the pool to the
+   *         GridFS transfers and the other requests
+   */
+  public static int getBulkParallelism() {
+    return Math.max(1, fanOutThreads / 4);
+  }
+
+  /**
+   * @return The pools by name, for their metrics
+   */
+  public static Map<String, ThreadPoolExecutor> getThreadPools() {
+    Map<String, ThreadPoolExecutor> pools = new LinkedHashMap<String, ThreadPoolExecutor>();
+    pools.put("scheduler", (ThreadPoolExecutor) scheduler);
+    pools.put("fanOut", (ThreadPoolExecutor) fanOut);
+    pools.put("background", (ThreadPoolExecutor) background);
+    return pools;
+  }
+
+  /**
+   * Runs the tasks on the fan-out pool and waits for all of them, at most for the timeout.
+   * A task failing or running late does not fail the others: its slot of the result holds the
+   * exception instead, {@link java.util.concurrent.TimeoutException} for the late ones, which are
+   * cancelled.
+   *
+   * @param tasks Tasks to run
+   * @param timeout Milliseconds to wait for all of them
+   * @return Result or exception of each task, in the order of the tasks
+   */
+  public static List<Object> invokeAll(List<? extends Callable<?>> tasks, long timeout)
+      throws InterruptedException {
+    List<Future<Object>> futures = new ArrayList<Future<Object>>();
+    for (Callable<?> task : tasks) {
+      futures.add(fanOut.submit(wrap(task)));
+    }
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+    List<Object> results = new ArrayList<Object>();
+    for (Future<Object> future : futures) {
+      try {
+        results.add(future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+      } catch (ExecutionException e) {
+        results.add(e.getCause());
+      } catch (CancellationException e) {
+        results.add(e);
+      } catch (TimeoutException e) {
+        future.cancel(true);
+        results.add(e);
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Runs many tasks on the fan-out pool with at most the given number of them running at once,
+   * so that a request with thousands of tasks leaves the pool to the other requests. Tasks not
+   * done within the timeout are not started any more and their slot of the result holds a
+   * {@link java.util.concurrent.TimeoutException}; a failed task's slot holds its exception.
+   *
+   * @param tasks Tasks to run
+   * @param parallelism Most tasks running at once
+   * @param timeout Milliseconds to wait for all of them
+   * @return Result or exception of each task, in the order of the tasks
+   */
+  public static List<Object> invokeAll(final List<? extends Callable<?>> tasks, int parallelism,
+      long timeout) throws InterruptedException {
+    final Object notDone = new Object();
+    final AtomicReferenceArray<Object> slots = new AtomicReferenceArray<Object>(tasks.size());
+    for (int i = 0; i < tasks.size(); i++) {
+      slots.set(i, notDone);
+    }
+    final AtomicInteger next = new AtomicInteger();
+    final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+    List<Callable<Object>> workers = new ArrayList<Callable<Object>>();
+    for (int w = 0; w < Math.min(Math.max(1, parallelism), tasks.size()); w++) {
+      workers.add(new Callable<Object>() {
+        public Object call() {
+          int i;
+          while (System.nanoTime() - deadline < 0 && !Thread.currentThread().isInterrupted()
+              && (i = next.getAndIncrement()) < tasks.size()) {
+            try {
+              slots.set(i, tasks.get(i).call());
+            } catch (Exception e) {
+              slots.set(i, e);
+            }
+          }
+          return null;
+        }
+      });
+    }
+    invokeAll(workers, timeout);
+    List<Object> results = new ArrayList<Object>();
+    for (int i = 0; i < tasks.size(); i++) {
+      Object result = slots.get(i);
+      results.add(result == notDone ? new TimeoutException() : result);
+    }
+    return results;
+  }
+
+  /**
+   * Runs the tasks on the fan-out pool, giving each of them the timeout on its own. The clock of
+   * a task starts when a thread picks it up, so tasks queued behind slow ones are not charged for
+   * the wait. A task still queued once the pool had the time to run every task is given up.
+   * <p/>
+   * As with {@link #invokeAll(List, long)} the slot of a failed task holds its exception and the
+   * one of a late task a {@link java.util.concurrent.TimeoutException}.
+   *
+   * @param tasks Tasks to run
+   * @param timeout Milliseconds each task may run
+   * @return Result or exception of each task, in the order of the tasks
+   */
+  public static List<Object> invokeEach(List<? extends Callable<?>> tasks, long timeout)
+      throws InterruptedException {
+    long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeout));
+    List<TimedTask> timedTasks = new ArrayList<TimedTask>();
+    List<Future<Object>> futures = new ArrayList<Future<Object>>();
+    for (Callable<?> task : tasks) {
+      TimedTask timedTask = new TimedTask(task);
+      timedTasks.add(timedTask);
+      futures.add(fanOut.submit(timedTask));
+    }
+    long rounds = (tasks.size() + fanOutThreads - 1) / fanOutThreads;
+    long queueDeadline = System.nanoTime() + timeoutNanos * Math.max(1, rounds);
+    List<Object> results = new ArrayList<Object>();
+    for (int i = 0; i < futures.size(); i++) {
+      Future<Object> future = futures.get(i);
+      TimedTask timedTask = timedTasks.get(i);
+      while (true) {
+        long now = System.nanoTime();
+        long deadline = timedTask.started ? timedTask.startTime + timeoutNanos : queueDeadline;
+        try {
+          results.add(future.get(Math.max(0, deadline - now), TimeUnit.NANOSECONDS));
+          break;
+        } catch (ExecutionException e) {
+          results.add(e.getCause());
+          break;
+        } catch (CancellationException e) {
+          results.add(e);
+          break;
+        } catch (TimeoutException e) {
+          boolean late = timedTask.started
+              ? System.nanoTime() - timedTask.startTime >= timeoutNanos
+              : System.nanoTime() - queueDeadline >= 0;
+          if (late) {
+            future.cancel(true);
+            results.add(e);
+            break;
+          }
+        }
+      }
+    }
+    return results;
+  }
+
+  private static class TimedTask implements Callable<Object> {
+    private final Callable<?> task;
+    private volatile long startTime;
+    private volatile boolean started;
+
+    TimedTask(Callable<?> task) {
+      this.task = task;
+    }
+
+    public Object call() throws Exception {
+      startTime = System.nanoTime();
+      started = true;
+      return task.call();
+    }
+  }
+
+  private static Callable<Object> wrap(final Callable<?> task) {
+    return new Callable<Object>() {
+      public Object call() throws Exception {
+        return task.call();
+      }
+    };
+  }
+
+  static ThreadFactory daemonThreadFactory(final String namePrefix) {
+    return new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, namePrefix + "-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+}
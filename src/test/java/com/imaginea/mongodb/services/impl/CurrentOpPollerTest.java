@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.services.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.bson.Document;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+/**
+ * Tests how {@link CurrentOpPoller} tells new, running and finished operations apart between
+ * snapshots.
+ */
+public class CurrentOpPollerTest {
+
+  private static Document op(int opid, int connectionId, long secsRunning) {
+    return new Document("opid", opid).append("op", "query").append("ns", "test.items")
+        .append("connectionId", connectionId).append("secs_running", secsRunning);
+  }
+
+  @Test
+  public void flagsOperationsNewToTheViewer() throws Exception {
+    CurrentOpPoller poller = new CurrentOpPoller(null);
+    poller.record(1000, Arrays.asList(op(1, 10, 0)));
+    poller.record(2000, Arrays.asList(op(1, 10, 1), op(2, 11, 0)));
+
+    JSONObject all = poller.getOperations(0, null, 0, null);
+    assertEquals(2, all.getLong("seq"));
+    JSONArray running = all.getJSONArray("running");
+    assertEquals(2, running.length());
+    assertTrue(running.getJSONObject(0).getBoolean("isNew"));
+    assertEquals(1000, running.getJSONObject(0).getLong("firstSeen"));
+
+    running = poller.getOperations(1, null, 0, null).getJSONArray("running");
+    assertFalse(running.getJSONObject(0).getBoolean("isNew"));
+    assertTrue(running.getJSONObject(1).getBoolean("isNew"));
+  }
+
+  @Test
+  public void listsOperationsFinishedSinceTheViewerLastLooked() throws Exception {
+    CurrentOpPoller poller = new CurrentOpPoller(null);
+    poller.record(1000, Arrays.asList(op(1, 10, 0), op(2, 11, 0)));
+    poller.record(2000, Arrays.asList(op(2, 11, 1)));
+    poller.record(3000, Collections.emptyList());
+
+    JSONObject all = poller.getOperations(0, null, 0, null);
+    assertEquals(0, all.getJSONArray("running").length());
+    JSONArray finished = all.getJSONArray("finished");
+    assertEquals(2, finished.length());
+    // Latest first
+    assertEquals(3000, finished.getJSONObject(0).getLong("finishedBy"));
+    assertEquals(2000, finished.getJSONObject(1).getLong("finishedBy"));
+    assertEquals(1000, finished.getJSONObject(1).getLong("firstSeen"));
+
+    assertEquals(1, poller.getOperations(2, null, 0, null).getJSONArray("finished").length());
+    assertEquals(0, poller.getOperations(3, null, 0, null).getJSONArray("finished").length());
+  }
+
+  @Test
+  public void tellsAReusedOpidFromTheOperationThatHadIt() throws Exception {
+    CurrentOpPoller poller = new CurrentOpPoller(null);
+    poller.record(1000, Arrays.asList(op(1, 10, 5)));
+    // Same opid, but another client connection and a shorter running time
+    poller.record(2000, Arrays.asList(op(1, 12, 0)));
+
+    JSONObject all = poller.getOperations(1, null, 0, null);
+    JSONArray running = all.getJSONArray("running");
+    assertEquals(1, running.length());
+    assertTrue(running.getJSONObject(0).getBoolean("isNew"));
+    assertEquals(2000, running.getJSONObject(0).getLong("firstSeen"));
+    JSONArray finished = all.getJSONArray("finished");
+    assertEquals(1, finished.length());
+    assertEquals(1000, finished.getJSONObject(0).getLong("firstSeen"));
+
+    // The same operation seen again keeps its first sighting
+    poller.record(3000, Arrays.asList(op(1, 12, 1)));
+    running = poller.getOperations(2, null, 0, null).getJSONArray("running");
+    assertFalse(running.getJSONObject(0).getBoolean("isNew"));
+    assertEquals(2000, running.getJSONObject(0).getLong("firstSeen"));
+  }
+}
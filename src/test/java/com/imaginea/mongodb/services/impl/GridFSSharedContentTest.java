@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.services.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+
+import org.bson.Document;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.imaginea.mongodb.controllers.TestingTemplate;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Updates;
+
+/**
+ * Tests deduplicated uploads and the handover of their chunks when the file owning them is
+ * deleted, against the mongo server configured for the tests.
+ */
+public class GridFSSharedContentTest extends TestingTemplate {
+
+  private static final String DB_NAME = "random";
+  private static final String BUCKET = "dedup";
+  private static final int CHUNK_SIZE = 1024;
+  private static final String CONTENT_REF =
+      "metadata." + GridFSUploader.CONTENT_REF_FIELD;
+
+  private MongoDatabase db;
+  private MongoCollection<Document> files;
+  private MongoCollection<Document> chunks;
+  private GridFSUploader uploader;
+  private GridFSSharedContent sharedContent;
+  private byte[] content;
+
+  @Before
+  public void emptyBucket() {
+    db = mongoInstance.getDatabase(DB_NAME);
+    files = db.getCollection(BUCKET + ".files");
+    chunks = db.getCollection(BUCKET + ".chunks");
+    files.drop();
+    chunks.drop();
+    uploader = new GridFSUploader(db, BUCKET, CHUNK_SIZE, 4 * CHUNK_SIZE, true);
+    sharedContent = new GridFSSharedContent(db, BUCKET);
+    content = new byte[3 * CHUNK_SIZE + 100];
+    Arrays.fill(content, (byte) 7);
+  }
+
+  private Document upload(String name) throws Exception {
+    return uploader.upload(name, new ByteArrayInputStream(content), null);
+  }
+
+  private long chunksOf(Object fileId) {
+    return chunks.count(Filters.eq("files_id", fileId));
+  }
+
+  @Test
+  public void storesTheSameContentOnce() throws Exception {
+    Document owner = upload("a.txt");
+    Document copy = upload("b.txt");
+
+    assertNull(owner.get("metadata", Document.class).get(GridFSUploader.CONTENT_REF_FIELD));
+    assertEquals(owner.get("_id"),
+        copy.get("metadata", Document.class).get(GridFSUploader.CONTENT_REF_FIELD));
+    assertEquals(4, chunksOf(owner.get("_id")));
+    assertEquals(4, chunks.count());
+    assertEquals(2, files.count());
+  }
+
+  @Test
+  public void refersToStoredContentGivenByHash() throws Exception {
+    Document owner = upload("a.txt");
+    String sha256 = owner.get("metadata", Document.class).getString(GridFSUploader.SHA256_FIELD);
+    Document stored = uploader.findContent(sha256, null);
+    Document copy =
+        uploader.uploadStored("b.txt", new ByteArrayInputStream(content), null, stored);
+
+    assertEquals(owner.get("_id"),
+        copy.get("metadata", Document.class).get(GridFSUploader.CONTENT_REF_FIELD));
+    assertEquals(4, chunks.count());
+  }
+
+  @Test
+  public void handsTheChunksOverWhenTheOwnerIsDeleted() throws Exception {
+    Document owner = upload("a.txt");
+    upload("b.txt");
+    upload("c.txt");
+
+    sharedContent.deleteOwner(owner.get("_id"));
+
+    assertNull(files.find(Filters.eq("_id", owner.get("_id"))).first());
+    Document heir = files.find(Filters.exists(CONTENT_REF, false)).first();
+    assertNotNull(heir);
+    assertFalse(heir.get("metadata", Document.class)
+        .containsKey(GridFSSharedContent.HEIR_OF_FIELD));
+    assertEquals(4, chunksOf(heir.get("_id")));
+    assertEquals(4, chunks.count());
+    // The other copy now refers to the heir
+    assertEquals(1, files.count(Filters.eq(CONTENT_REF, heir.get("_id"))));
+  }
+
+  @Test
+  public void deletesTheChunksOfAnUnsharedOwner() throws Exception {
+    Document owner = upload("a.txt");
+
+    sharedContent.deleteOwner(owner.get("_id"));
+
+    assertEquals(0, files.count());
+    assertEquals(0, chunks.count());
+  }
+
+  @Test
+  public void neverRefersToAnOwnerBeingDeleted() throws Exception {
+    Document owner = upload("a.txt");
+    String sha256 = owner.get("metadata", Document.class).getString(GridFSUploader.SHA256_FIELD);
+    Document stored = uploader.findContent(sha256, null);
+    // The owner starts being deleted after the upload found it
+    files.updateOne(Filters.eq("_id", owner.get("_id")),
+        Updates.set("metadata." + GridFSSharedContent.DELETING_FIELD, true));
+
+    assertNull(uploader.findContent(sha256, null));
+    try {
+      uploader.uploadStored("b.txt", new ByteArrayInputStream(content), null, stored);
+      fail("Referred to an owner being deleted");
+    } catch (IllegalArgumentException e) {
+      assertEquals(0, files.count(Filters.eq(CONTENT_REF, owner.get("_id"))));
+    }
+    // A full upload stores the content again
+    Document copy = upload("c.txt");
+    assertFalse(copy.get("metadata", Document.class)
+        .containsKey(GridFSUploader.CONTENT_REF_FIELD));
+    assertEquals(4, chunksOf(copy.get("_id")));
+  }
+
+  @Test
+  public void finishesAHandoverCutShort() throws Exception {
+    Document owner = upload("a.txt");
+    Document heir = upload("b.txt");
+    Document other = upload("c.txt");
+    // A delete that stopped right after claiming the heir
+    files.updateOne(Filters.eq("_id", owner.get("_id")),
+        Updates.combine(Updates.set("metadata." + GridFSSharedContent.DELETING_FIELD, true),
+            Updates.set("metadata." + GridFSSharedContent.HEIR_FIELD, heir.get("_id"))));
+    files.updateOne(Filters.eq("_id", heir.get("_id")),
+        Updates.set("metadata." + GridFSSharedContent.HEIR_OF_FIELD, owner.get("_id")));
+
+    assertTrue(sharedContent.repair(other.get("metadata", Document.class)));
+
+    assertNull(files.find(Filters.eq("_id", owner.get("_id"))).first());
+    assertEquals(4, chunksOf(heir.get("_id")));
+    assertEquals(heir.get("_id"), files.find(Filters.eq("_id", other.get("_id"))).first()
+        .get("metadata", Document.class).get(GridFSUploader.CONTENT_REF_FIELD));
+    assertFalse(sharedContent.repair(files.find(Filters.eq("_id", other.get("_id"))).first()
+        .get("metadata", Document.class)));
+  }
+}
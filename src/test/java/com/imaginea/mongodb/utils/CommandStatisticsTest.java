@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.junit.Test;
+
+/**
+ * Tests the accounting of {@link CommandStatistics}.
+ */
+public class CommandStatisticsTest {
+
+  private static final long MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+  @Test
+  public void listsCommandsByCumulativeTime() throws Exception {
+    CommandStatistics statistics = new CommandStatistics(10);
+    for (int i = 0; i < 10; i++) {
+      statistics.record("1_a", "test", "find", MILLI, 1000, false);
+    }
+    statistics.record("1_a", "test", "aggregate", 50 * MILLI, 200, false);
+    statistics.record("1_a", "test", "aggregate", 10 * MILLI, -1, true);
+    statistics.record("2_b", "test", "count", 100 * MILLI, 40, false);
+
+    JSONArray commands = statistics.getTopCommands(Arrays.asList("1_a"), null, 10);
+    assertEquals(2, commands.length());
+    assertEquals("aggregate", commands.getJSONObject(0).getString("command"));
+    assertEquals(1, commands.getJSONObject(0).getLong("failures"));
+    assertEquals(200, commands.getJSONObject(0).getJSONObject("reply").getLong("totalBytes"));
+    assertEquals("find", commands.getJSONObject(1).getString("command"));
+    assertEquals(10000, commands.getJSONObject(1).getJSONObject("reply").getLong("totalBytes"));
+
+    List<String> both = Arrays.asList("1_a", "2_b");
+    commands = statistics.getTopCommands(both, "count", 1);
+    assertEquals(1, commands.length());
+    assertEquals("find", commands.getJSONObject(0).getString("command"));
+    assertEquals("2_b", statistics.getTopCommands(both, null, 1).getJSONObject(0)
+        .getString("connectionId"));
+    // Connections that were not asked for are never listed
+    assertEquals(2, statistics.getTopCommands(Arrays.asList("1_a", "3_c"), null, 10).length());
+
+    statistics.removeConnection("1_a");
+    assertEquals(0, statistics.getTopCommands(Arrays.asList("1_a"), null, 10).length());
+  }
+
+  @Test
+  public void countsCommandsBeyondTheLimitTogether() throws Exception {
+    CommandStatistics statistics = new CommandStatistics(2);
+    statistics.record("1_a", "test", "find", MILLI, 0, false);
+    statistics.record("1_a", "test", "insert", MILLI, 0, false);
+    statistics.record("1_a", "test", "update", MILLI, 0, false);
+    statistics.record("1_a", "test", "delete", MILLI, 0, false);
+
+    JSONArray commands = statistics.getTopCommands(Arrays.asList("1_a"), "count", 10);
+    assertEquals(3, commands.length());
+    assertEquals("other", commands.getJSONObject(0).getString("command"));
+    assertEquals(2, commands.getJSONObject(0).getLong("count"));
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import com.imaginea.mongodb.exceptions.ApplicationException;
+import com.imaginea.mongodb.exceptions.ErrorCodes;
+
+/**
+ * Tests the per connection and global limits of {@link ConcurrencyLimiter}.
+ */
+public class ConcurrencyLimiterTest {
+
+  @Test
+  public void rejectsRequestsOverTheConnectionLimit() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 2, 0);
+    ConcurrencyLimiter.Permit first = limiter.acquire("1_a");
+    limiter.acquire("1_a");
+    try {
+      limiter.acquire("1_a");
+      fail("Third request of the connection should be refused");
+    } catch (ApplicationException e) {
+      assertEquals(ErrorCodes.TOO_MANY_REQUESTS, e.getErrorCode());
+    }
+    // Other connections are not affected
+    limiter.acquire("2_b");
+    first.release();
+    limiter.acquire("1_a");
+
+    JSONObject metrics = limiter.getMetrics("1_a");
+    assertEquals(3, metrics.getInt("inFlight"));
+    assertEquals(1, metrics.getLong("rejected"));
+    assertEquals(2, metrics.getInt("connections"));
+    assertEquals(1, metrics.getJSONObject("connection").getLong("rejected"));
+    // Other connections are never listed
+    assertFalse(limiter.getMetrics().has("connection"));
+  }
+
+  @Test
+  public void rejectsRequestsOverTheGlobalLimit() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 2, 0);
+    limiter.acquire("1_a");
+    limiter.acquire("2_b");
+    try {
+      limiter.acquire("3_c");
+      fail("Request over the global limit should be refused");
+    } catch (ApplicationException e) {
+      assertEquals(ErrorCodes.TOO_MANY_REQUESTS, e.getErrorCode());
+    }
+    // The connection permit taken by the refused request is given back
+    assertEquals(0, limiter.getMetrics("3_c").getJSONObject("connection").getInt("inFlight"));
+  }
+
+  @Test
+  public void releaseIsIdempotent() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 0);
+    ConcurrencyLimiter.Permit permit = limiter.acquire(null);
+    permit.release();
+    permit.release();
+    limiter.acquire(null);
+    try {
+      limiter.acquire(null);
+      fail("Double release must not hand out extra permits");
+    } catch (ApplicationException e) {
+      assertEquals(ErrorCodes.TOO_MANY_REQUESTS, e.getErrorCode());
+    }
+  }
+}
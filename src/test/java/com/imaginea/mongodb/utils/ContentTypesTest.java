@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.utils;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests telling compressed contents apart in {@link ContentTypes}.
+ */
+public class ContentTypesTest {
+
+  @Test
+  public void mimeTypeDecidesWhenKnown() {
+    assertTrue(ContentTypes.isCompressed("image/jpeg", "photo.bmp"));
+    assertTrue(ContentTypes.isCompressed("video/mp4", null));
+    assertTrue(ContentTypes.isCompressed("application/zip; charset=binary", "bundle"));
+    assertFalse(ContentTypes.isCompressed("text/plain", "notes.zip"));
+    assertFalse(ContentTypes.isCompressed("image/svg+xml", "logo.svg"));
+    assertFalse(ContentTypes.isCompressed("application/json", null));
+  }
+
+  @Test
+  public void extensionDecidesOtherwise() {
+    assertTrue(ContentTypes.isCompressed(null, "backup.TAR.GZ"));
+    assertTrue(ContentTypes.isCompressed("application/octet-stream", "movie.mkv"));
+    assertFalse(ContentTypes.isCompressed(null, "report.csv"));
+    assertFalse(ContentTypes.isCompressed("", "README"));
+    assertFalse(ContentTypes.isCompressed(null, null));
+  }
+}
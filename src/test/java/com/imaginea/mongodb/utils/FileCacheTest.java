@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests filling, serving, evicting and reloading the entries of {@link FileCache}.
+ */
+public class FileCacheTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static class CountingContent implements FileCache.Content {
+    private final byte[] data;
+    private int fills;
+
+    CountingContent(int length, int seed) {
+      data = new byte[length];
+      for (int i = 0; i < length; i++) {
+        data[i] = (byte) (i * 31 + seed);
+      }
+    }
+
+    public void writeTo(long offset, long length, OutputStream out) throws IOException {
+      fills++;
+      out.write(data, (int) offset, (int) length);
+    }
+  }
+
+  private static byte[] read(FileCache cache, String key, CountingContent content, long offset,
+      long count) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    cache.write(key, content.data.length, content, offset, count, out);
+    return out.toByteArray();
+  }
+
+  @Test
+  public void fillsOnceAndServesRanges() throws Exception {
+    FileCache cache = new FileCache(folder.getRoot(), 1000, 1000);
+    CountingContent content = new CountingContent(300, 1);
+    assertArrayEquals(content.data, read(cache, "a", content, 0, 300));
+    assertArrayEquals(Arrays.copyOfRange(content.data, 100, 150),
+        read(cache, "a", content, 100, 50));
+    assertEquals(1, content.fills);
+    assertEquals(300, cache.getBytes());
+  }
+
+  @Test
+  public void servesRangesOfMissingEntriesWithoutFilling() throws Exception {
+    FileCache cache = new FileCache(folder.getRoot(), 1000, 1000);
+    CountingContent content = new CountingContent(300, 1);
+    assertArrayEquals(Arrays.copyOfRange(content.data, 100, 150),
+        read(cache, "a", content, 100, 50));
+    assertEquals(0, cache.getEntryCount());
+  }
+
+  @Test
+  public void servesTheContentWhenTheEntryCannotBeFilled() throws Exception {
+    File dir = folder.newFolder("cache");
+    FileCache cache = new FileCache(dir, 1000, 1000);
+    assertTrue(dir.delete());
+    CountingContent content = new CountingContent(300, 1);
+    assertArrayEquals(content.data, read(cache, "a", content, 0, 300));
+    assertEquals(0, cache.getEntryCount());
+  }
+
+  @Test
+  public void evictsTheLeastRecentlyUsedEntries() throws Exception {
+    FileCache cache = new FileCache(folder.getRoot(), 1000, 1000);
+    CountingContent a = new CountingContent(400, 1);
+    CountingContent b = new CountingContent(400, 2);
+    CountingContent c = new CountingContent(400, 3);
+    read(cache, "a", a, 0, 400);
+    read(cache, "b", b, 0, 400);
+    // a is used again, so b is the eldest when c comes in
+    read(cache, "a", a, 0, 400);
+    read(cache, "c", c, 0, 400);
+    assertEquals(2, cache.getEntryCount());
+    assertEquals(800, cache.getBytes());
+
+    read(cache, "a", a, 0, 400);
+    assertEquals(1, a.fills);
+    read(cache, "b", b, 0, 400);
+    assertEquals(2, b.fills);
+  }
+
+  @Test
+  public void refillsEntriesOfAnotherLengthAndRejectsLargeContent() throws Exception {
+    FileCache cache = new FileCache(folder.getRoot(), 1000, 500);
+    assertTrue(cache.accepts(500));
+    assertFalse(cache.accepts(501));
+
+    CountingContent shorter = new CountingContent(100, 1);
+    CountingContent longer = new CountingContent(200, 1);
+    read(cache, "a", shorter, 0, 100);
+    assertArrayEquals(longer.data, read(cache, "a", longer, 0, 200));
+    assertEquals(1, longer.fills);
+    assertEquals(200, cache.getBytes());
+  }
+
+  @Test
+  public void picksUpTheEntriesOfAnEarlierRun() throws Exception {
+    FileCache cache = new FileCache(folder.getRoot(), 1000, 1000);
+    CountingContent content = new CountingContent(300, 1);
+    read(cache, "a", content, 0, 300);
+    folder.newFile("left-over.tmp");
+
+    FileCache reopened = new FileCache(folder.getRoot(), 1000, 1000);
+    assertEquals(1, reopened.getEntryCount());
+    assertArrayEquals(content.data, read(reopened, "a", content, 0, 300));
+    assertEquals(1, content.fills);
+    assertFalse(new File(folder.getRoot(), "left-over.tmp").exists());
+  }
+}
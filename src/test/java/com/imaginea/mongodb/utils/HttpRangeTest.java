@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests the parsing of Range and If-Range headers by {@link HttpRange}.
+ */
+public class HttpRangeTest {
+
+  @Test
+  public void parsesBoundedOpenAndSuffixRanges() {
+    HttpRange range = HttpRange.parse("bytes=100-199", 1000);
+    assertEquals(100, range.getStart());
+    assertEquals(199, range.getEnd());
+    assertEquals(100, range.getLength());
+    assertEquals("bytes 100-199/1000", range.toContentRange());
+
+    range = HttpRange.parse("bytes=900-", 1000);
+    assertEquals(900, range.getStart());
+    assertEquals(999, range.getEnd());
+
+    range = HttpRange.parse("bytes=-300", 1000);
+    assertEquals(700, range.getStart());
+    assertEquals(999, range.getEnd());
+
+    // Ends past the entity are clipped
+    range = HttpRange.parse("bytes=500-5000", 1000);
+    assertEquals(999, range.getEnd());
+    range = HttpRange.parse("bytes=-5000", 1000);
+    assertEquals(0, range.getStart());
+  }
+
+  @Test
+  public void servesTheWholeEntityForMissingOrUnsupportedHeaders() {
+    assertNull(HttpRange.parse(null, 1000));
+    assertNull(HttpRange.parse("items=0-10", 1000));
+    assertNull(HttpRange.parse("bytes=0-10,20-30", 1000));
+    assertNull(HttpRange.parse("bytes=20-10", 1000));
+    assertNull(HttpRange.parse("bytes=a-b", 1000));
+  }
+
+  @Test
+  public void rangesPastTheEndAreNotSatisfiable() {
+    HttpRange range = HttpRange.parse("bytes=1000-", 1000);
+    assertFalse(range.isSatisfiable());
+    assertEquals(0, range.getLength());
+    assertEquals("bytes */1000", range.toContentRange());
+    assertFalse(HttpRange.parse("bytes=-0", 1000).isSatisfiable());
+    assertFalse(HttpRange.parse("bytes=0-", 0).isSatisfiable());
+  }
+
+  @Test
+  public void ifRangeMatchesOnlyTheCurrentEntity() {
+    long lastModified = 784111777123L;
+    assertTrue(HttpRange.ifRangeMatches(null, "\"abc\"", lastModified));
+    assertTrue(HttpRange.ifRangeMatches("\"abc\"", "\"abc\"", lastModified));
+    assertFalse(HttpRange.ifRangeMatches("\"abd\"", "\"abc\"", lastModified));
+    assertFalse(HttpRange.ifRangeMatches("W/\"abc\"", "\"abc\"", lastModified));
+    assertTrue(HttpRange.ifRangeMatches("Sun, 06 Nov 1994 08:49:37 GMT", "\"abc\"", lastModified));
+    assertFalse(HttpRange.ifRangeMatches("Sun, 06 Nov 1994 08:49:38 GMT", "\"abc\"",
+        lastModified));
+    assertFalse(HttpRange.ifRangeMatches("yesterday", "\"abc\"", lastModified));
+  }
+}
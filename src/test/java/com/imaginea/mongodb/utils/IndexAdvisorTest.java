@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.bson.Document;
+import org.junit.Test;
+
+/**
+ * Tests the prefix redundancy rules of {@link IndexAdvisor}.
+ */
+public class IndexAdvisorTest {
+
+  private static Document index(String name, Document key) {
+    return new Document("v", 1).append("key", key).append("name", name);
+  }
+
+  @Test
+  public void prefixOfLongerIndexIsRedundant() {
+    Document a = index("a_1", new Document("a", 1));
+    Document ab = index("a_1_b_1", new Document("a", 1).append("b", 1));
+    List<Document> indexes = Arrays.asList(index("_id_", new Document("_id", 1)), a, ab);
+    assertEquals("a_1_b_1", IndexAdvisor.findCoveringIndex(a, indexes));
+    assertNull(IndexAdvisor.findCoveringIndex(ab, indexes));
+    assertNull(IndexAdvisor.findCoveringIndex(indexes.get(0), indexes));
+  }
+
+  @Test
+  public void directionsAndTypesMustMatch() {
+    Document a = index("a_-1", new Document("a", -1));
+    Document ab = index("a_1_b_1", new Document("a", 1.0).append("b", 1));
+    Document hashed = index("a_hashed", new Document("a", "hashed"));
+    List<Document> indexes = Arrays.asList(a, ab, hashed);
+    assertNull(IndexAdvisor.findCoveringIndex(a, indexes));
+    assertNull(IndexAdvisor.findCoveringIndex(hashed, indexes));
+
+    Document positive = index("a_1", new Document("a", 1L));
+    assertEquals("a_1_b_1", IndexAdvisor.findCoveringIndex(positive, Arrays.asList(positive, ab)));
+  }
+
+  @Test
+  public void constrainingIndexesAreKept() {
+    Document unique = index("a_1", new Document("a", 1)).append("unique", true);
+    Document ttl = index("t_1", new Document("t", 1)).append("expireAfterSeconds", 60);
+    Document partial = index("a_1_b_1", new Document("a", 1).append("b", 1))
+        .append("partialFilterExpression", new Document("b", new Document("$exists", true)));
+    Document longer = index("t_1_a_1", new Document("t", 1).append("a", 1));
+    List<Document> indexes = Arrays.asList(unique, ttl, partial, longer);
+    assertNull(IndexAdvisor.findCoveringIndex(unique, indexes));
+    assertNull(IndexAdvisor.findCoveringIndex(ttl, indexes));
+    // A partial index cannot stand in for a full one
+    Document plain = index("a_1_plain", new Document("a", 1));
+    assertNull(IndexAdvisor.findCoveringIndex(plain, Arrays.asList(plain, partial)));
+  }
+
+  @Test
+  public void samePatternIsRedundantOnlyWithAUniqueTwin() {
+    Document plain = index("a_1", new Document("a", 1));
+    Document unique = index("a_1_unique", new Document("a", 1)).append("unique", true);
+    assertEquals("a_1_unique",
+        IndexAdvisor.findCoveringIndex(plain, Arrays.asList(plain, unique)));
+  }
+}
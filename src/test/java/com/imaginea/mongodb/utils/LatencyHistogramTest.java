@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests the bucketing and the percentiles of {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest {
+
+  @Test
+  public void bucketsHoldTheirValues() {
+    long[] values = {0, 1, 15, 16, 17, 100, 1000, 123456, 1L << 40, 1L << 44};
+    for (long value : values) {
+      int bucket = LatencyHistogram.bucketOf(value);
+      assertTrue(value <= LatencyHistogram.upperBoundOf(bucket));
+      if (bucket > 0) {
+        assertTrue(value > LatencyHistogram.upperBoundOf(bucket - 1));
+      }
+      // Within 12.5% of the value
+      assertTrue(LatencyHistogram.upperBoundOf(bucket) - value <= Math.max(1, value / 8));
+    }
+  }
+
+  @Test
+  public void percentilesFollowTheRecordedValues() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getPercentileMicros(50));
+    for (int millis = 1; millis <= 100; millis++) {
+      histogram.record(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+    assertEquals(100, histogram.getCount());
+    assertEquals(5050000, histogram.getSumMicros());
+    assertEquals(100000, histogram.getMaxMicros());
+    assertEquals(100000, histogram.getPercentileMicros(100));
+
+    long median = histogram.getPercentileMicros(50);
+    assertTrue(median >= 50000 && median <= 50000 * 9 / 8);
+    long p99 = histogram.getPercentileMicros(99);
+    assertTrue(p99 >= 99000 && p99 <= 100000);
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests the wrap around of {@link LongRingBuffer}.
+ */
+public class LongRingBufferTest {
+
+  @Test
+  public void keepsValuesInInsertionOrder() {
+    LongRingBuffer buffer = new LongRingBuffer(3);
+    buffer.add(1);
+    buffer.add(2);
+    assertEquals(2, buffer.size());
+    assertEquals(1, buffer.get(0));
+    assertEquals(2, buffer.last());
+  }
+
+  @Test
+  public void overwritesOldestValueWhenFull() {
+    LongRingBuffer buffer = new LongRingBuffer(3);
+    for (long i = 1; i <= 5; i++) {
+      buffer.add(i);
+    }
+    assertEquals(3, buffer.size());
+    assertEquals(3, buffer.get(0));
+    assertEquals(4, buffer.get(1));
+    assertEquals(5, buffer.get(2));
+  }
+
+  @Test
+  public void clearEmptiesTheBuffer() {
+    LongRingBuffer buffer = new LongRingBuffer(2);
+    buffer.add(7);
+    buffer.clear();
+    assertTrue(buffer.isEmpty());
+    buffer.add(8);
+    assertEquals(8, buffer.get(0));
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void rejectsIndexPastSize() {
+    LongRingBuffer buffer = new LongRingBuffer(2);
+    buffer.add(1);
+    buffer.get(1);
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests writing, rolling up, reading back and expiring the segments of {@link MetricsStore}.
+ */
+public class MetricsStoreTest {
+
+  private static final long MINUTE = 60 * 1000L;
+  private static final long HOUR = 60 * MINUTE;
+  private static final long DAY = 24 * HOUR;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private MetricsStore newStore(int recordsPerSegment) throws Exception {
+    Set<String> prefixes = new LinkedHashSet<String>();
+    prefixes.add("opcounters");
+    return new MetricsStore(folder.getRoot(), new long[] {DAY, 7 * DAY, 90 * DAY}, prefixes, 16,
+        recordsPerSegment);
+  }
+
+  private static Map<String, Double> sample(double query, double resident) {
+    Map<String, Double> values = new HashMap<String, Double>();
+    values.put("opcounters.query", query);
+    values.put("mem.resident", resident);
+    return values;
+  }
+
+  @Test
+  public void readsBackRawSamplesAndMinuteRollups() throws Exception {
+    MetricsStore store = newStore(1024);
+    long start = 10 * DAY;
+    store.append(this, start, sample(2, 100));
+    store.append(this, start + 20000, sample(4, 100));
+    store.append(this, start + 40000, sample(6, 100));
+    store.append(this, start + MINUTE, sample(1, 100));
+
+    JSONArray raw = store.query(start, start + HOUR, Collections.<String>emptySet(),
+        MetricsStore.Resolution.RAW);
+    assertEquals(4, raw.length());
+    JSONObject first = raw.getJSONObject(0);
+    assertEquals(start, first.getLong("TimeStamp"));
+    assertEquals(2.0, first.getJSONObject("values").getJSONObject("opcounters.query")
+        .getDouble("avg"), 0);
+    // Series outside the stored prefixes are not kept
+    assertFalse(first.getJSONObject("values").has("mem.resident"));
+
+    JSONArray minutes = store.query(start, start + HOUR, Collections.<String>emptySet(),
+        MetricsStore.Resolution.MINUTE);
+    assertEquals(1, minutes.length());
+    JSONObject minute = minutes.getJSONObject(0).getJSONObject("values")
+        .getJSONObject("opcounters.query");
+    assertEquals(2.0, minute.getDouble("min"), 0);
+    assertEquals(6.0, minute.getDouble("max"), 0);
+    assertEquals(4.0, minute.getDouble("avg"), 0);
+  }
+
+  @Test
+  public void spillsIntoNewPartsAndSurvivesReopening() throws Exception {
+    MetricsStore store = newStore(2);
+    long start = 10 * DAY;
+    for (int i = 0; i < 5; i++) {
+      store.append(this, start + i * 1000, sample(i, 0));
+    }
+    MetricsStore reopened = newStore(2);
+    reopened.append(this, start + 5000, sample(5, 0));
+    JSONArray raw = reopened.query(start, start + HOUR, Collections.<String>emptySet(),
+        MetricsStore.Resolution.RAW);
+    assertEquals(6, raw.length());
+    assertEquals(5.0, raw.getJSONObject(5).getJSONObject("values")
+        .getJSONObject("opcounters.query").getDouble("avg"), 0);
+  }
+
+  @Test
+  public void deletesSegmentsPastRetention() throws Exception {
+    MetricsStore store = newStore(1024);
+    long start = 10 * DAY;
+    store.append(this, start, sample(1, 0));
+    store.append(this, start + 2 * DAY, sample(1, 0));
+    store.deleteExpired(start + 2 * DAY);
+
+    File[] files = folder.getRoot().listFiles();
+    boolean oldRawKept = false;
+    boolean newRawKept = false;
+    for (File file : files) {
+      oldRawKept |= file.getName().equals("raw-" + start + "-1.seg");
+      newRawKept |= file.getName().equals("raw-" + (start + 2 * DAY) + "-1.seg");
+    }
+    assertFalse(oldRawKept);
+    assertTrue(newRawKept);
+  }
+
+  @Test
+  public void rebuildsTheUnfinishedRollupAfterReopening() throws Exception {
+    MetricsStore store = newStore(1024);
+    long start = 10 * DAY;
+    store.append(this, start, sample(2, 0));
+    store.append(this, start + 20000, sample(4, 0));
+    // The minute is not over when mViewer stops
+    MetricsStore reopened = newStore(1024);
+    reopened.append(this, start + MINUTE, sample(9, 0));
+
+    JSONArray minutes = reopened.query(start, start + HOUR, Collections.<String>emptySet(),
+        MetricsStore.Resolution.MINUTE);
+    assertEquals(1, minutes.length());
+    JSONObject minute = minutes.getJSONObject(0).getJSONObject("values")
+        .getJSONObject("opcounters.query");
+    assertEquals(2.0, minute.getDouble("min"), 0);
+    assertEquals(4.0, minute.getDouble("max"), 0);
+    assertEquals(3.0, minute.getDouble("avg"), 0);
+  }
+
+  @Test
+  public void keepsTheSamplesOfOneSourceAtATime() throws Exception {
+    MetricsStore store = newStore(1024);
+    Object first = new Object();
+    Object second = new Object();
+    long start = 10 * DAY;
+    assertTrue(store.append(first, start, sample(1, 0)));
+    assertFalse(store.append(second, start + 1000, sample(100, 0)));
+    assertTrue(store.append(first, start + 5000, sample(2, 0)));
+    // Samples not newer than the last one are dropped whatever their source
+    assertFalse(store.append(first, start + 5000, sample(3, 0)));
+    // Once the first source has gone quiet the second one is kept
+    assertTrue(store.append(second, start + 5000 + MINUTE, sample(4, 0)));
+
+    JSONArray raw = store.query(start, start + HOUR, Collections.<String>emptySet(),
+        MetricsStore.Resolution.RAW);
+    assertEquals(3, raw.length());
+    assertEquals(2.0, raw.getJSONObject(1).getJSONObject("values")
+        .getJSONObject("opcounters.query").getDouble("avg"), 0);
+  }
+
+  @Test
+  public void choosesResolutionFromRange() throws Exception {
+    MetricsStore store = newStore(16);
+    long now = 100 * DAY;
+    assertEquals(MetricsStore.Resolution.RAW, store.chooseResolution(now - HOUR, now, now));
+    assertEquals(MetricsStore.Resolution.MINUTE, store.chooseResolution(now - DAY, now, now));
+    assertEquals(MetricsStore.Resolution.HOUR, store.chooseResolution(now - 30 * DAY, now, now));
+  }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.bson.Document;
+import org.junit.Test;
+
+/**
+ * Tests how {@link QueryExecutor} reads aggregation pipelines.
+ */
+public class QueryExecutorTest {
+
+  @Test
+  public void parsesPipelineStages() {
+    List<Document> pipeline =
+        QueryExecutor.parsePipeline("[{$match: {a: 1}}, {$group: {_id: '$b', n: {$sum: 1}}}]");
+    assertEquals(2, pipeline.size());
+    assertTrue(pipeline.get(0).containsKey("$match"));
+
+    assertNull(QueryExecutor.parsePipeline("{$match: {a: 1}}"));
+    assertNull(QueryExecutor.parsePipeline("[1, 2]"));
+    assertNull(QueryExecutor.parsePipeline("[{$match"));
+  }
+
+  @Test
+  public void sendsOnlyPipelinesWithAnOutputStageToThePrimary() {
+    assertTrue(QueryExecutor.writesOutput(QueryExecutor.parsePipeline("[{$out: 'copy'}]")));
+    assertTrue(QueryExecutor.writesOutput(
+        QueryExecutor.parsePipeline("[{$match: {}}, {$merge: {into: 'copy'}}]")));
+    // $out appearing as a value or in a field name is not a stage
+    assertFalse(QueryExecutor.writesOutput(
+        QueryExecutor.parsePipeline("[{$match: {note: '$out', 'a$out': 1}}]")));
+    assertFalse(QueryExecutor.writesOutput(null));
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Arrays;
+
+import org.bson.Document;
+import org.junit.Test;
+
+/**
+ * Tests the literal removal of {@link QueryShape}.
+ */
+public class QueryShapeTest {
+
+  private static Document findEntry(Document filter) {
+    return new Document("op", "query").append("ns", "test.users").append("command",
+        new Document("find", "users").append("filter", filter).append("limit", 10)
+            .append("$db", "test"));
+  }
+
+  @Test
+  public void queriesDifferingInValuesShareAShape() {
+    Document first = QueryShape.shapeOf(findEntry(new Document("name", "a").append("age",
+        new Document("$gt", 20))));
+    Document second = QueryShape.shapeOf(findEntry(new Document("name", "b").append("age",
+        new Document("$gt", 65))));
+    assertEquals(first, second);
+    assertEquals("{ \"find\" : \"users\", \"filter\" : { \"name\" : \"?\", \"age\" : "
+        + "{ \"$gt\" : \"?\" } } }", first.toJson());
+    assertEquals(QueryShape.fingerprint("test.users", "query", first),
+        QueryShape.fingerprint("test.users", "query", second));
+  }
+
+  @Test
+  public void listsOfValuesCollapseButListsOfDocumentsDoNot() {
+    Document in = QueryShape.shapeOf(findEntry(new Document("_id",
+        new Document("$in", Arrays.asList(1, 2, 3)))));
+    Document shortIn = QueryShape.shapeOf(findEntry(new Document("_id",
+        new Document("$in", Arrays.asList(4)))));
+    assertEquals(in, shortIn);
+
+    Document or = QueryShape.shapeOf(findEntry(new Document("$or",
+        Arrays.asList(new Document("a", 1), new Document("b", 2)))));
+    assertEquals("{ \"find\" : \"users\", \"filter\" : { \"$or\" : [{ \"a\" : \"?\" }, "
+        + "{ \"b\" : \"?\" }] } }", or.toJson());
+  }
+
+  @Test
+  public void differentFieldsMakeDifferentShapes() {
+    Document byName = QueryShape.shapeOf(findEntry(new Document("name", "a")));
+    Document byAge = QueryShape.shapeOf(findEntry(new Document("age", 1)));
+    assertFalse(QueryShape.fingerprint("test.users", "query", byName)
+        .equals(QueryShape.fingerprint("test.users", "query", byAge)));
+  }
+
+  @Test
+  public void readsQueryAndUpdateOfOlderServers() {
+    Document entry = new Document("op", "update").append("ns", "test.users")
+        .append("query", new Document("_id", 5))
+        .append("updateobj", new Document("$set", new Document("name", "x")));
+    assertEquals("{ \"_id\" : \"?\", \"updateobj\" : { \"$set\" : { \"name\" : \"?\" } } }",
+        QueryShape.shapeOf(entry).toJson());
+  }
+}
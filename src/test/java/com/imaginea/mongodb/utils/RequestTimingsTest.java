@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+/**
+ * Tests the phase timing of {@link RequestTimings}.
+ */
+public class RequestTimingsTest {
+
+  @Test
+  public void phasesAddUpAndAreReported() throws Exception {
+    RequestTimings.start(true);
+    try {
+      long begin = RequestTimings.begin();
+      Thread.sleep(5);
+      RequestTimings.end(RequestTimings.MONGO, begin);
+      begin = RequestTimings.begin();
+      Thread.sleep(5);
+      RequestTimings.end(RequestTimings.MONGO, begin);
+      RequestTimings.end(RequestTimings.PARSE, RequestTimings.begin());
+
+      RequestTimings timings = RequestTimings.current();
+      assertTrue(timings.isDebug());
+      JSONObject json = timings.toJSON();
+      assertTrue(json.getDouble("mongo") >= 10);
+      assertTrue(json.getDouble("total") >= json.getDouble("mongo"));
+      String header = timings.toServerTiming();
+      assertTrue(header, header.matches("mongo;dur=[0-9.]+, parse;dur=[0-9.]+, total;dur=[0-9.]+"));
+    } finally {
+      RequestTimings.stop();
+    }
+  }
+
+  @Test
+  public void untimedRequestsRecordNothing() {
+    RequestTimings.stop();
+    assertEquals(0, RequestTimings.begin());
+    RequestTimings.end(RequestTimings.MONGO, 0);
+    assertNull(RequestTimings.current());
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.bson.Document;
+import org.junit.Test;
+
+/**
+ * Tests the flattening and classification of <serverStatus> fields by {@link ServerStatusMetrics}.
+ */
+public class ServerStatusMetricsTest {
+
+  @Test
+  public void flattensNumericFieldsOnly() {
+    Document serverStatus = new Document("host", "localhost").append("uptime", 10.0)
+        .append("opcounters", new Document("query", 5).append("insert", 3000000000L))
+        .append("wiredTiger", new Document("cache",
+            new Document("bytes currently in the cache", 1024L).append("eviction", "on")))
+        .append("storageEngine", new Document("supportsCommittedReads", true));
+    Map<String, Long> series = new HashMap<String, Long>();
+    ServerStatusMetrics.flatten(serverStatus, series);
+
+    assertEquals(3, series.size());
+    assertEquals(Long.valueOf(5), series.get("opcounters.query"));
+    assertEquals(Long.valueOf(3000000000L), series.get("opcounters.insert"));
+    assertEquals(Long.valueOf(1024), series.get("wiredTiger.cache.bytes currently in the cache"));
+  }
+
+  @Test
+  public void classifiesCountersAndGauges() {
+    assertTrue(ServerStatusMetrics.isCounter("opcounters.query"));
+    assertTrue(ServerStatusMetrics.isCounter("network.bytesIn"));
+    assertTrue(ServerStatusMetrics.isCounter("asserts.regular"));
+    assertTrue(ServerStatusMetrics.isCounter("connections.totalCreated"));
+    assertTrue(ServerStatusMetrics.isCounter("opLatencies.reads.latency"));
+    assertFalse(ServerStatusMetrics.isCounter("connections.current"));
+    assertFalse(ServerStatusMetrics.isCounter("mem.resident"));
+    assertFalse(ServerStatusMetrics.isCounter("globalLock.currentQueue.readers"));
+    assertFalse(ServerStatusMetrics.isCounter("wiredTiger.cache.bytes currently in the cache"));
+    assertFalse(ServerStatusMetrics.isCounter("opLatencies.reads.avgLatency"));
+  }
+
+  @Test
+  public void computesRatesInThousandths() {
+    assertEquals(600, ServerStatusMetrics.ratePerSecondMilli(3, 5000));
+    assertEquals(2000000, ServerStatusMetrics.ratePerSecondMilli(10000, 5000));
+    assertEquals(0, ServerStatusMetrics.ratePerSecondMilli(10, 0));
+    assertEquals(Long.MAX_VALUE, ServerStatusMetrics.ratePerSecondMilli(Long.MAX_VALUE, 1000));
+    assertEquals(1000000000000L,
+        ServerStatusMetrics.ratePerSecondMilli(5000000000000L, 5000000));
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2011 Imaginea Technologies Private Ltd. Hyderabad, India
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.imaginea.mongodb.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests the timeouts of {@link TaskExecutors#invokeEach(List, long)} and the bounded parallelism
+ * of {@link TaskExecutors#invokeAll(List, int, long)}.
+ */
+public class TaskExecutorsTest {
+
+  @Test
+  public void slowTaskTimesOutWithoutFailingTheOthers() throws Exception {
+    List<Callable<String>> tasks = new ArrayList<Callable<String>>();
+    tasks.add(constant("first"));
+    tasks.add(new Callable<String>() {
+      public String call() throws Exception {
+        Thread.sleep(10000);
+        return "slow";
+      }
+    });
+    tasks.add(new Callable<String>() {
+      public String call() throws Exception {
+        throw new IllegalStateException("broken");
+      }
+    });
+    tasks.add(constant("last"));
+
+    long start = System.currentTimeMillis();
+    List<Object> results = TaskExecutors.invokeEach(tasks, 200);
+    assertTrue(System.currentTimeMillis() - start < 5000);
+
+    assertEquals("first", results.get(0));
+    assertTrue(results.get(1) instanceof TimeoutException);
+    assertTrue(results.get(2) instanceof IllegalStateException);
+    assertEquals("last", results.get(3));
+  }
+
+  @Test
+  public void boundedInvokeRunsAtMostTheGivenTasksAtOnce() throws Exception {
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger mostRunning = new AtomicInteger();
+    List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+    for (int i = 0; i < 20; i++) {
+      final int value = i;
+      tasks.add(new Callable<Integer>() {
+        public Integer call() throws Exception {
+          int now = running.incrementAndGet();
+          synchronized (mostRunning) {
+            mostRunning.set(Math.max(mostRunning.get(), now));
+          }
+          Thread.sleep(5);
+          running.decrementAndGet();
+          return value;
+        }
+      });
+    }
+    List<Object> results = TaskExecutors.invokeAll(tasks, 3, 10000);
+    assertEquals(20, results.size());
+    for (int i = 0; i < 20; i++) {
+      assertEquals(i, results.get(i));
+    }
+    assertTrue(mostRunning.get() <= 3);
+  }
+
+  @Test
+  public void boundedInvokeGivesUpTasksPastTheTimeout() throws Exception {
+    List<Callable<String>> tasks = new ArrayList<Callable<String>>();
+    for (int i = 0; i < 4; i++) {
+      tasks.add(new Callable<String>() {
+        public String call() throws Exception {
+          Thread.sleep(150);
+          return "done";
+        }
+      });
+    }
+    List<Object> results = TaskExecutors.invokeAll(tasks, 1, 200);
+    assertEquals("done", results.get(0));
+    assertTrue(results.get(3) instanceof TimeoutException);
+  }
+
+  private static Callable<String> constant(final String value) {
+    return new Callable<String>() {
+      public String call() {
+        return value;
+      }
+    };
+  }
+}